@@ -0,0 +1,376 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Reads the constant pool of a class file, to determine the names of the other classes which the class references.
+ * <p/>
+ * The classes returned are those named by CONSTANT_Class entries (the superclass, interfaces, and classes which are
+ * instantiated, cast to, or whose members are accessed), and those named in the descriptors of CONSTANT_NameAndType
+ * entries (the parameter, return and field types of members accessed).
+ * <p/>
+ * Can also scan the code of the methods of a class file, to determine the instance fields which the class reads.
+ *
+ * @author Niall Gallagher
+ */
+public class ClassFileParser {
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
+    private static final int CONSTANT_InvokeDynamic = 18;
+    private static final int CONSTANT_Module = 19;
+    private static final int CONSTANT_Package = 20;
+
+    private static final int OPCODE_GETFIELD = 0xb4;
+
+    /**
+     * Returns the internal names (e.g. {@code com/foo/Bar}) of classes referenced from the constant pool of the given
+     * class file. The class itself is excluded. For array types, the element type is returned. Primitive types are
+     * excluded.
+     *
+     * @param classFile The bytecode of a class
+     * @return The internal names of classes referenced by the class
+     * @throws IllegalStateException If the class file could not be parsed
+     */
+    public static Set<String> getReferencedClassNames(byte[] classFile) {
+        try {
+            DataInputStream in = openClassFile(classFile);
+            ConstantPool constantPool = readConstantPool(in);
+            in.readUnsignedShort(); // access flags
+            int thisClassIndex = in.readUnsignedShort();
+
+            Set<String> classNames = new LinkedHashSet<String>();
+            for (int i = 1; i < constantPool.count; i++) {
+                if (constantPool.classNameIndexes[i] != 0) {
+                    addClassName(constantPool.getClassName(i), classNames);
+                }
+                else if (constantPool.descriptorIndexes[i] != 0) {
+                    addDescriptorClassNames(constantPool.utf8Entries[constantPool.descriptorIndexes[i]], classNames);
+                }
+            }
+            classNames.remove(constantPool.getClassName(thisClassIndex));
+            return classNames;
+        }
+        catch (IllegalStateException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to parse class file of " + classFile.length + " bytes", e);
+        }
+    }
+
+    /**
+     * Returns the instance fields which are read (via the {@code getfield} instruction) by the methods of the given
+     * class file, and the inner classes named in its InnerClasses attribute, which includes the member, local and
+     * anonymous classes it declares.
+     *
+     * @param classFile The bytecode of a class
+     * @return The fields read and the inner classes of the class
+     * @throws IllegalStateException If the class file could not be parsed
+     */
+    public static FieldReads getFieldReads(byte[] classFile) {
+        try {
+            DataInputStream in = openClassFile(classFile);
+            ConstantPool constantPool = readConstantPool(in);
+            in.readUnsignedShort(); // access flags
+            in.readUnsignedShort(); // this class
+            in.readUnsignedShort(); // super class
+            in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+            int fieldsCount = in.readUnsignedShort();
+            for (int i = 0; i < fieldsCount; i++) {
+                in.skipBytes(6); // access flags, name, descriptor
+                skipAttributes(in);
+            }
+            FieldReads fieldReads = new FieldReads();
+            int methodsCount = in.readUnsignedShort();
+            for (int i = 0; i < methodsCount; i++) {
+                in.skipBytes(6); // access flags, name, descriptor
+                int attributesCount = in.readUnsignedShort();
+                for (int j = 0; j < attributesCount; j++) {
+                    String attributeName = constantPool.utf8Entries[in.readUnsignedShort()];
+                    int attributeLength = in.readInt();
+                    if ("Code".equals(attributeName)) {
+                        in.skipBytes(4); // max stack, max locals
+                        byte[] code = new byte[in.readInt()];
+                        in.readFully(code);
+                        addFieldsRead(code, constantPool, fieldReads.fieldsRead);
+                        in.skipBytes(8 * in.readUnsignedShort()); // exception table
+                        skipAttributes(in);
+                    }
+                    else {
+                        in.skipBytes(attributeLength);
+                    }
+                }
+            }
+            int attributesCount = in.readUnsignedShort();
+            for (int i = 0; i < attributesCount; i++) {
+                String attributeName = constantPool.utf8Entries[in.readUnsignedShort()];
+                int attributeLength = in.readInt();
+                if ("InnerClasses".equals(attributeName)) {
+                    int numberOfClasses = in.readUnsignedShort();
+                    for (int j = 0; j < numberOfClasses; j++) {
+                        fieldReads.innerClassNames.add(constantPool.getClassName(in.readUnsignedShort()));
+                        in.skipBytes(6); // outer class, inner name, access flags
+                    }
+                }
+                else {
+                    in.skipBytes(attributeLength);
+                }
+            }
+            return fieldReads;
+        }
+        catch (IllegalStateException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to parse class file of " + classFile.length + " bytes", e);
+        }
+    }
+
+    /**
+     * The result of {@link #getFieldReads(byte[])}.
+     */
+    public static class FieldReads {
+        final Set<String> fieldsRead = new LinkedHashSet<String>();
+        final Set<String> innerClassNames = new LinkedHashSet<String>();
+
+        /**
+         * @param ownerClassName The internal name of the class in which the field is declared
+         * @param fieldName The name of the field
+         * @return True if the field is read by the methods of the class
+         */
+        public boolean isFieldRead(String ownerClassName, String fieldName) {
+            return fieldsRead.contains(ownerClassName + '.' + fieldName);
+        }
+
+        /**
+         * @return The internal names of the inner classes named in the class
+         */
+        public Set<String> getInnerClassNames() {
+            return innerClassNames;
+        }
+    }
+
+    static DataInputStream openClassFile(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IllegalStateException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        return in;
+    }
+
+    /**
+     * The entries of a constant pool which are needed to resolve class names, descriptors and field references.
+     */
+    static class ConstantPool {
+        final int count;
+        final String[] utf8Entries;
+        final int[] classNameIndexes;
+        final int[] nameIndexes;
+        final int[] descriptorIndexes;
+        final int[] fieldrefClassIndexes;
+        final int[] fieldrefNameAndTypeIndexes;
+
+        ConstantPool(int count) {
+            this.count = count;
+            this.utf8Entries = new String[count];
+            this.classNameIndexes = new int[count];
+            this.nameIndexes = new int[count];
+            this.descriptorIndexes = new int[count];
+            this.fieldrefClassIndexes = new int[count];
+            this.fieldrefNameAndTypeIndexes = new int[count];
+        }
+
+        String getClassName(int classIndex) {
+            return utf8Entries[classNameIndexes[classIndex]];
+        }
+    }
+
+    static ConstantPool readConstantPool(DataInputStream in) throws IOException {
+        ConstantPool constantPool = new ConstantPool(in.readUnsignedShort());
+        // Indexes are stored as found, and resolved to strings after the whole constant pool has been read...
+        for (int i = 1; i < constantPool.count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_Utf8:
+                    constantPool.utf8Entries[i] = in.readUTF();
+                    break;
+                case CONSTANT_Class:
+                    constantPool.classNameIndexes[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_NameAndType:
+                    constantPool.nameIndexes[i] = in.readUnsignedShort();
+                    constantPool.descriptorIndexes[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_Fieldref:
+                    constantPool.fieldrefClassIndexes[i] = in.readUnsignedShort();
+                    constantPool.fieldrefNameAndTypeIndexes[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_String:
+                case CONSTANT_MethodType:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                    in.readUnsignedShort();
+                    break;
+                case CONSTANT_MethodHandle:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case CONSTANT_Integer:
+                case CONSTANT_Float:
+                case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref:
+                case CONSTANT_Dynamic:
+                case CONSTANT_InvokeDynamic:
+                    in.readInt();
+                    break;
+                case CONSTANT_Long:
+                case CONSTANT_Double:
+                    in.readLong();
+                    i++; // 8-byte constants occupy two entries in the constant pool
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected constant pool tag " + tag + " at index " + i);
+            }
+        }
+        return constantPool;
+    }
+
+    static void skipAttributes(DataInputStream in) throws IOException {
+        int attributesCount = in.readUnsignedShort();
+        for (int i = 0; i < attributesCount; i++) {
+            in.readUnsignedShort(); // attribute name
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    /**
+     * Adds the fields read by {@code getfield} instructions in the given method code, as {@code owner.name}.
+     */
+    static void addFieldsRead(byte[] code, ConstantPool constantPool, Set<String> fieldsRead) {
+        int offset = 0;
+        while (offset < code.length) {
+            int opcode = code[offset] & 0xff;
+            if (opcode == OPCODE_GETFIELD) {
+                int fieldrefIndex = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+                int nameAndTypeIndex = constantPool.fieldrefNameAndTypeIndexes[fieldrefIndex];
+                fieldsRead.add(constantPool.getClassName(constantPool.fieldrefClassIndexes[fieldrefIndex]) + '.' + constantPool.utf8Entries[constantPool.nameIndexes[nameAndTypeIndex]]);
+            }
+            offset += getInstructionLength(code, offset);
+        }
+    }
+
+    /**
+     * Returns the length in bytes of the instruction at the given offset in method code, including its operands.
+     */
+    static int getInstructionLength(byte[] code, int offset) {
+        int opcode = code[offset] & 0xff;
+        switch (opcode) {
+            case 0x10: // bipush
+            case 0x12: // ldc
+            case 0x15: case 0x16: case 0x17: case 0x18: case 0x19: // iload, lload, fload, dload, aload
+            case 0x36: case 0x37: case 0x38: case 0x39: case 0x3a: // istore, lstore, fstore, dstore, astore
+            case 0xa9: // ret
+            case 0xbc: // newarray
+                return 2;
+            case 0x11: // sipush
+            case 0x13: case 0x14: // ldc_w, ldc2_w
+            case 0x84: // iinc
+            case 0xbb: // new
+            case 0xbd: // anewarray
+            case 0xc0: case 0xc1: // checkcast, instanceof
+            case 0xc6: case 0xc7: // ifnull, ifnonnull
+                return 3;
+            case 0xc5: // multianewarray
+                return 4;
+            case 0xb9: case 0xba: // invokeinterface, invokedynamic
+            case 0xc8: case 0xc9: // goto_w, jsr_w
+                return 5;
+            case 0xc4: // wide
+                return (code[offset + 1] & 0xff) == 0x84 ? 6 : 4;
+            case 0xaa: { // tableswitch
+                int operands = (offset + 4) & ~3; // operands are 4-byte aligned relative to the start of the code
+                int low = readInt(code, operands + 4);
+                int high = readInt(code, operands + 8);
+                return operands - offset + 12 + 4 * (high - low + 1);
+            }
+            case 0xab: { // lookupswitch
+                int operands = (offset + 4) & ~3;
+                int numberOfPairs = readInt(code, operands + 4);
+                return operands - offset + 8 + 8 * numberOfPairs;
+            }
+            default:
+                if (opcode >= 0x99 && opcode <= 0xa8) { // if<cond>, if_<cmp>, goto, jsr
+                    return 3;
+                }
+                if (opcode >= 0xb2 && opcode <= 0xb8) { // getstatic, putstatic, getfield, putfield, invoke*
+                    return 3;
+                }
+                return 1;
+        }
+    }
+
+    static int readInt(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 24) | ((code[offset + 1] & 0xff) << 16) | ((code[offset + 2] & 0xff) << 8) | (code[offset + 3] & 0xff);
+    }
+
+    /**
+     * Adds the class named by a CONSTANT_Class entry, which is either an internal class name such as
+     * {@code com/foo/Bar}, or an array descriptor such as {@code [Lcom/foo/Bar;} or {@code [I}.
+     */
+    static void addClassName(String name, Set<String> classNames) {
+        if (name.startsWith("[")) {
+            addDescriptorClassNames(name, classNames);
+        }
+        else {
+            classNames.add(name);
+        }
+    }
+
+    /**
+     * Adds the classes named in a field or method descriptor, such as {@code (ILcom/foo/Bar;)[Lcom/foo/Baz;}.
+     */
+    static void addDescriptorClassNames(String descriptor, Set<String> classNames) {
+        for (int start = descriptor.indexOf('L'); start >= 0; start = descriptor.indexOf('L', start)) {
+            int end = descriptor.indexOf(';', start);
+            if (end < 0) {
+                break;
+            }
+            classNames.add(descriptor.substring(start + 1, end));
+            start = end + 1;
+        }
+    }
+}
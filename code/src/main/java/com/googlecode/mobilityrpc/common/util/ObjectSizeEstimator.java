@@ -0,0 +1,162 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.common.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Estimates the amount of memory retained by an object graph, by walking the graph reflectively and summing the
+ * approximate shallow sizes of the objects reachable from the root object.
+ * <p/>
+ * The estimate assumes a 64-bit JVM without compressed references, and is intended for cache accounting rather than
+ * precise measurement. Objects shared by the graph with the rest of the application (such as {@link Class} objects
+ * and class loaders) are not counted, and the walk stops after visiting {@link #MAX_OBJECTS_VISITED} objects, so
+ * the estimate for very large graphs is a lower bound.
+ *
+ * @author Niall Gallagher
+ */
+public class ObjectSizeEstimator {
+
+    static final int OBJECT_HEADER_BYTES = 16;
+    static final int ARRAY_HEADER_BYTES = 24;
+    static final int REFERENCE_BYTES = 8;
+    static final int ALIGNMENT_BYTES = 8;
+
+    /**
+     * The maximum number of objects which will be visited when estimating the size of a single object graph.
+     */
+    static final int MAX_OBJECTS_VISITED = 10000;
+
+    /**
+     * Returns the estimated number of bytes of memory retained by the given object and the objects reachable from it.
+     *
+     * @param root The root of the object graph
+     * @return The estimated number of bytes retained, or zero if the object is null
+     */
+    public static long estimateRetainedSize(Object root) {
+        if (root == null) {
+            return 0;
+        }
+        final Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+        final Deque<Object> pending = new ArrayDeque<Object>();
+        // Cache of the instance fields of each class encountered, scoped to this call so that
+        // classes (which might be loaded by session class loaders) are not retained...
+        final Map<Class<?>, List<Field>> fieldsCache = new HashMap<Class<?>, List<Field>>();
+        long totalBytes = 0;
+        pending.push(root);
+        while (!pending.isEmpty() && visited.size() < MAX_OBJECTS_VISITED) {
+            Object object = pending.pop();
+            if (visited.put(object, Boolean.TRUE) != null) {
+                continue;
+            }
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                int length = Array.getLength(object);
+                Class<?> componentType = type.getComponentType();
+                if (componentType.isPrimitive()) {
+                    totalBytes += align(ARRAY_HEADER_BYTES + (long) length * primitiveSize(componentType));
+                }
+                else {
+                    totalBytes += align(ARRAY_HEADER_BYTES + (long) length * REFERENCE_BYTES);
+                    for (int i = 0; i < length; i++) {
+                        pushIfCounted(pending, Array.get(object, i));
+                    }
+                }
+                continue;
+            }
+            long shallowBytes = OBJECT_HEADER_BYTES;
+            for (Field field : getInstanceFields(type, fieldsCache)) {
+                Class<?> fieldType = field.getType();
+                if (fieldType.isPrimitive()) {
+                    shallowBytes += primitiveSize(fieldType);
+                }
+                else {
+                    shallowBytes += REFERENCE_BYTES;
+                    try {
+                        pushIfCounted(pending, field.get(object));
+                    }
+                    catch (Exception e) {
+                        // Field not accessible, count the reference but not the object it refers to...
+                    }
+                }
+            }
+            totalBytes += align(shallowBytes);
+        }
+        return totalBytes;
+    }
+
+    static void pushIfCounted(Deque<Object> pending, Object object) {
+        if (object == null || object instanceof Class || object instanceof ClassLoader || object instanceof Thread) {
+            return;
+        }
+        pending.push(object);
+    }
+
+    static List<Field> getInstanceFields(Class<?> type, Map<Class<?>, List<Field>> fieldsCache) {
+        List<Field> fields = fieldsCache.get(type);
+        if (fields != null) {
+            return fields;
+        }
+        fields = new ArrayList<Field>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                if (!field.getType().isPrimitive()) {
+                    try {
+                        field.setAccessible(true);
+                    }
+                    catch (RuntimeException e) {
+                        // Field cannot be made accessible (e.g. due to a security manager or module restrictions),
+                        // the reference itself will still be counted...
+                    }
+                }
+                fields.add(field);
+            }
+        }
+        fieldsCache.put(type, fields);
+        return fields;
+    }
+
+    static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        else if (type == int.class || type == float.class) {
+            return 4;
+        }
+        else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        else {
+            return 1;
+        }
+    }
+
+    static long align(long bytes) {
+        return (bytes + ALIGNMENT_BYTES - 1) / ALIGNMENT_BYTES * ALIGNMENT_BYTES;
+    }
+
+    /**
+     * Private constructor, not used.
+     */
+    ObjectSizeEstimator() {
+    }
+}
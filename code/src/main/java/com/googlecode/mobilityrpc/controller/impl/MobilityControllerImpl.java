@@ -15,9 +15,20 @@
  */
 package com.googlecode.mobilityrpc.controller.impl;
 
+import com.googlecode.mobilityrpc.network.Connection;
 import com.googlecode.mobilityrpc.network.ConnectionId;
 import com.googlecode.mobilityrpc.network.impl.ConnectionManagerInternal;
 import com.googlecode.mobilityrpc.session.MobilitySession;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+import com.googlecode.mobilityrpc.serialization.impl.ClassIdTable;
+import com.googlecode.mobilityrpc.serialization.impl.FrameStringTable;
+import com.googlecode.mobilityrpc.serialization.impl.SharedKryoPool;
+import com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator;
+import com.googlecode.mobilityrpc.session.impl.BytecodePushTracker;
+import com.googlecode.mobilityrpc.session.impl.ContentAddressedResourceCache;
+import com.googlecode.mobilityrpc.session.impl.MemoizedResponseCache;
+import com.googlecode.mobilityrpc.session.impl.SessionClassLoader;
+import com.googlecode.mobilityrpc.session.impl.SharedClassLoaderRegistry;
 import com.googlecode.mobilityrpc.session.impl.MobilitySessionInternal;
 import com.googlecode.mobilityrpc.session.impl.MobilitySessionImpl;
 import com.googlecode.mobilityrpc.protocol.converters.MasterMessageConverter;
@@ -28,8 +39,14 @@ import com.googlecode.mobilityrpc.network.impl.ConnectionManagerImpl;
 import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
 import com.googlecode.mobilityrpc.protocol.converters.MessageConverterRegistry;
 import com.googlecode.mobilityrpc.protocol.converters.MessageTypeRegistry;
+import com.googlecode.mobilityrpc.protocol.converters.components.SessionAliasTable;
 import com.googlecode.mobilityrpc.protocol.pojo.*;
 
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -53,8 +70,19 @@ public class MobilityControllerImpl implements MobilityControllerInternal {
     private final MessageConverterRegistry messageConverterRegistry = new MessageConverterRegistry();
     private final DeserializedMessageProcessorRegistry deserializedMessageProcessorRegistry = new DeserializedMessageProcessorRegistry();
     private final MasterMessageConverter masterMessageConverter = new MasterMessageConverter();
+    private final OutgoingMessageBatcher outgoingMessageBatcher = new OutgoingMessageBatcher();
 
     private final ConcurrentMap<UUID, MobilitySessionInternal> sessionRegistry = new ConcurrentHashMap<UUID, MobilitySessionInternal>();
+    private final ContentAddressedResourceCache contentAddressedResourceCache = new ContentAddressedResourceCache();
+    private final SharedClassLoaderRegistry sharedClassLoaderRegistry = new SharedClassLoaderRegistry(this);
+    private final MemoizedResponseCache memoizedResponseCache = new MemoizedResponseCache();
+    private final BytecodePushTracker bytecodePushTracker = new BytecodePushTracker();
+    private final ConcurrentMap<ConnectionId, SessionAliasTable> sessionAliasTables = new ConcurrentHashMap<ConnectionId, SessionAliasTable>();
+    private final ConcurrentMap<ConnectionId, ClassIdTable> classIdTables = new ConcurrentHashMap<ConnectionId, ClassIdTable>();
+    private final ConcurrentMap<ConnectionId, FrameStringTable> frameStringTables = new ConcurrentHashMap<ConnectionId, FrameStringTable>();
+    private final UnsafeFormatNegotiator unsafeFormatNegotiator = new UnsafeFormatNegotiator();
+    private final SharedKryoPool sharedKryoPool = new SharedKryoPool(SessionClassLoader.class.getClassLoader());
+    private final BulkDataStore bulkDataStore = new BulkDataStore();
 
 
     public MobilityControllerImpl() {
@@ -64,7 +92,56 @@ public class MobilityControllerImpl implements MobilityControllerInternal {
 
     @Override
     public void receiveIncomingMessage(ConnectionId connectionId, byte[] message) {
-        messageProcessorService.submit(new MessageProcessorTask(connectionId, message));
+        // Decode messages in the connection's reader thread, in the order in which they were received, so that any
+        // session aliases a message defines are known before subsequent messages which use them are decoded.
+        // Only processing is handed off to the thread pool...
+        List<Object> messages = new ArrayList<Object>(1);
+        decodeIncomingMessage(connectionId, message, messages);
+        dispatchIncomingMessages(connectionId, messages);
+    }
+
+    /**
+     * Submits the given messages, decoded from a single envelope, to the message processing thread pool.
+     * <p/>
+     * Messages whose processing can block for an arbitrary time, such as execution requests which run application
+     * code, are submitted individually, so that they cannot delay other messages in the same batch. The remaining
+     * control messages, such as execution responses and stream credits, which are processed quickly without blocking,
+     * are processed together in order, such that they cost only one submission per batch.
+     *
+     * @param connectionId Identifies the connection from which the messages were received
+     * @param messages The messages to process
+     */
+    void dispatchIncomingMessages(ConnectionId connectionId, List<Object> messages) {
+        List<Object> controlMessages = null;
+        for (Object message : messages) {
+            if (isBlockingMessage(message)) {
+                messageProcessorService.submit(new MessageProcessorTask(connectionId, Collections.singletonList(message)));
+            }
+            else {
+                if (controlMessages == null) {
+                    controlMessages = new ArrayList<Object>(messages.size());
+                }
+                controlMessages.add(message);
+            }
+        }
+        if (controlMessages != null) {
+            messageProcessorService.submit(new MessageProcessorTask(connectionId, controlMessages));
+        }
+    }
+
+    /**
+     * @param message A decoded message
+     * @return True if processing the message can block for an arbitrary time: execution requests run application
+     * code, and resource requests read class path resources from disk
+     */
+    static boolean isBlockingMessage(Object message) {
+        return message instanceof ExecutionRequest || message instanceof ResourceRequest;
+    }
+
+    @Override
+    public void receiveIncomingBulkData(ConnectionId connectionId, long bulkDataId, long length, ReadableByteChannel source) {
+        // Read synchronously, before the connection reads the message which refers to the bulk data...
+        bulkDataStore.receiveIncoming(connectionId, bulkDataId, length, source);
     }
 
     @Override
@@ -73,8 +150,121 @@ public class MobilityControllerImpl implements MobilityControllerInternal {
         if (logger.isLoggable(Level.FINE)) {
             logger.log(Level.FINE, "Serializing and submitting outgoing message to '" + identifier + "': " + message);
         }
-        byte[] messageDataInEnvelope = masterMessageConverter.convertToProtobuf(message);
-        connectionManager.getConnection(identifier).enqueueOutgoingMessage(messageDataInEnvelope);
+        Connection connection = connectionManager.getConnection(identifier);
+        if (!SessionAliasTable.COMPACT_REQUEST_IDENTIFIERS_ENABLED) {
+            byte[] messageDataInEnvelope = masterMessageConverter.convertToProtobuf(message);
+            enqueueOutgoingMessage(identifier, connection, messageDataInEnvelope);
+            return;
+        }
+        // Make the session alias table for this connection available to the converters...
+        SessionAliasTable sessionAliasTable = getSessionAliasTable(identifier);
+        SessionAliasTable.setCurrentTable(sessionAliasTable);
+        try {
+            byte[] messageDataInEnvelope = masterMessageConverter.convertToProtobuf(message);
+            enqueueOutgoingMessage(identifier, connection, messageDataInEnvelope);
+            // Now that the message is enqueued, subsequent messages can rely on any aliases it defined...
+            sessionAliasTable.confirmOutgoingDefinitions();
+        }
+        finally {
+            SessionAliasTable.setCurrentTable(null);
+        }
+    }
+
+    void enqueueOutgoingMessage(ConnectionId identifier, Connection connection, byte[] messageDataInEnvelope) {
+        if (OutgoingMessageBatcher.BATCHING_ENABLED) {
+            outgoingMessageBatcher.enqueueOutgoingMessage(identifier, connection, messageDataInEnvelope);
+        }
+        else {
+            connection.enqueueOutgoingMessage(messageDataInEnvelope);
+        }
+    }
+
+    /**
+     * Called by the connection manager when a connection is closed, to discard state associated with the connection.
+     *
+     * @param connectionId Identifies the connection which was closed
+     */
+    public void notifyConnectionClosed(ConnectionId connectionId) {
+        sessionAliasTables.remove(connectionId);
+        classIdTables.remove(connectionId);
+        frameStringTables.remove(connectionId);
+        unsafeFormatNegotiator.notifyConnectionClosed(connectionId);
+        outgoingMessageBatcher.notifyConnectionClosed(connectionId);
+        bulkDataStore.notifyConnectionClosed(connectionId);
+        bytecodePushTracker.notifyConnectionClosed(connectionId);
+    }
+
+    SessionAliasTable getSessionAliasTable(ConnectionId connectionId) {
+        SessionAliasTable sessionAliasTable = sessionAliasTables.get(connectionId);
+        if (sessionAliasTable == null) {
+            SessionAliasTable newTable = new SessionAliasTable();
+            sessionAliasTable = sessionAliasTables.putIfAbsent(connectionId, newTable);
+            if (sessionAliasTable == null) {
+                sessionAliasTable = newTable;
+            }
+        }
+        return sessionAliasTable;
+    }
+
+    @Override
+    public ClassIdTable getClassIdTable(ConnectionId connectionId) {
+        ClassIdTable classIdTable = classIdTables.get(connectionId);
+        if (classIdTable == null) {
+            ClassIdTable newTable = new ClassIdTable();
+            classIdTable = classIdTables.putIfAbsent(connectionId, newTable);
+            if (classIdTable == null) {
+                classIdTable = newTable;
+            }
+        }
+        return classIdTable;
+    }
+
+    @Override
+    public FrameStringTable getFrameStringTable(ConnectionId connectionId) {
+        FrameStringTable frameStringTable = frameStringTables.get(connectionId);
+        if (frameStringTable == null) {
+            FrameStringTable newTable = new FrameStringTable();
+            frameStringTable = frameStringTables.putIfAbsent(connectionId, newTable);
+            if (frameStringTable == null) {
+                frameStringTable = newTable;
+            }
+        }
+        return frameStringTable;
+    }
+
+    @Override
+    public UnsafeFormatNegotiator getUnsafeFormatNegotiator() {
+        return unsafeFormatNegotiator;
+    }
+
+    @Override
+    public SharedKryoPool getSharedKryoPool() {
+        return sharedKryoPool;
+    }
+
+    @Override
+    public BulkDataStore getBulkDataStore() {
+        return bulkDataStore;
+    }
+
+    @Override
+    public ContentAddressedResourceCache getContentAddressedResourceCache() {
+        return contentAddressedResourceCache;
+    }
+
+    @Override
+    public SharedClassLoaderRegistry getSharedClassLoaderRegistry() {
+        return sharedClassLoaderRegistry;
+    }
+
+    @Override
+    public MemoizedResponseCache getMemoizedResponseCache() {
+        return memoizedResponseCache;
+    }
+
+    @Override
+    public BytecodePushTracker getBytecodePushTracker() {
+        return bytecodePushTracker;
     }
 
     @Override
@@ -88,54 +278,117 @@ public class MobilityControllerImpl implements MobilityControllerInternal {
      */
     @Override
     public void destroy() {
+        outgoingMessageBatcher.destroy();
         connectionManager.destroy();
         messageProcessorService.shutdown();
         sessionRegistry.clear();
+        sessionAliasTables.clear();
+        classIdTables.clear();
+        frameStringTables.clear();
+        unsafeFormatNegotiator.clear();
+        sharedKryoPool.clear();
+        bulkDataStore.clear();
+        bytecodePushTracker.clear();
+        contentAddressedResourceCache.close();
+    }
+
+    /**
+     * Deserializes the given envelope and the message it contains, and adds the message to the given list. If the
+     * message is a {@link Batch}, adds the messages contained in the batch instead, in order. Failures are logged per
+     * message, so one bad message in a batch does not lose the rest.
+     *
+     * @param connectionId Identifies the connection from which the message was received
+     * @param messageData The message, a serialized envelope
+     * @param messages The list to which the decoded message(s) should be added
+     */
+    <T> void decodeIncomingMessage(ConnectionId connectionId, byte[] messageData, List<Object> messages) {
+        try {
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.log(Level.FINEST, "Decoding incoming message: " + messageData.length + " bytes from " + connectionId);
+            }
+            Envelope envelope = messageConverterRegistry.getConverter(Envelope.class).convertFromProtobuf(messageData);
+
+            @SuppressWarnings({"unchecked"})
+            final Class<T> messageClass = (Class<T>) messageTypeToClassRegistry.getMessageClass(envelope.getMessageType());
+
+            MessageConverter<T> messageConverter = messageConverterRegistry.getConverter(messageClass);
+            final T message;
+            // Make the session alias table for this connection available to the converters,
+            // in case the message contains compact request identifiers...
+            SessionAliasTable.setCurrentTable(getSessionAliasTable(connectionId));
+            try {
+                message = messageConverter.convertFromProtobuf(envelope.getMessage());
+            }
+            finally {
+                SessionAliasTable.setCurrentTable(null);
+            }
+            if (message instanceof Batch) {
+                for (byte[] batchedMessageData : ((Batch) message).getMessages()) {
+                    decodeIncomingMessage(connectionId, batchedMessageData, messages);
+                }
+            }
+            else {
+                // Define frame strings now, in the order messages were sent, because later messages can refer to
+                // them even if this message is subsequently discarded...
+                if (message instanceof ExecutionResponse) {
+                    defineIncomingFrameStrings(connectionId, ((ExecutionResponse) message).getFrameStringDefinitions());
+                }
+                else if (message instanceof StreamChunk) {
+                    defineIncomingFrameStrings(connectionId, ((StreamChunk) message).getFrameStringDefinitions());
+                }
+                messages.add(message);
+            }
+        }
+        catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to decode incoming message: " + messageData.length + " bytes from: " + connectionId, e);
+        }
+    }
+
+    void defineIncomingFrameStrings(ConnectionId connectionId, Map<Integer, String> frameStringDefinitions) {
+        if (!frameStringDefinitions.isEmpty()) {
+            FrameStringTable frameStringTable = getFrameStringTable(connectionId);
+            for (Map.Entry<Integer, String> entry : frameStringDefinitions.entrySet()) {
+                frameStringTable.defineIncomingId(entry.getKey(), entry.getValue());
+            }
+        }
     }
 
+    /**
+     * Processes one or more messages decoded from a single envelope, in the order in which they were received.
+     */
     class MessageProcessorTask implements Runnable {
 
         private final ConnectionId connectionId;
-        private final byte[] messageData;
+        private final List<Object> messages;
 
-        MessageProcessorTask(ConnectionId connectionId, byte[] messageData) {
+        MessageProcessorTask(ConnectionId connectionId, List<Object> messages) {
             this.connectionId = connectionId;
-            this.messageData = messageData;
+            this.messages = messages;
         }
 
         @Override
         public void run() {
-            processMessage(connectionId, messageData);
+            for (Object message : messages) {
+                processMessage(connectionId, message);
+            }
         }
 
-        public <T> void processMessage(ConnectionId connectionId, byte[] messageData) {
+        <T> void processMessage(ConnectionId connectionId, T message) {
             try {
-                if (logger.isLoggable(Level.FINEST)) {
-                    logger.log(Level.FINEST, "Processing incoming message: " + messageData.length + " bytes from " + connectionId);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Processing message received from '" + connectionId + "': " + message);
                 }
-                Envelope envelope = messageConverterRegistry.getConverter(Envelope.class).convertFromProtobuf(messageData);
-
                 @SuppressWarnings({"unchecked"})
-                final Class<T> messageClass = (Class<T>) messageTypeToClassRegistry.getMessageClass(envelope.getMessageType());
-
-                MessageConverter<T> messageConverter = messageConverterRegistry.getConverter(messageClass);
+                Class<T> messageClass = (Class<T>) message.getClass();
                 DeserializedMessageProcessor<T> deserializedMessageProcessor = deserializedMessageProcessorRegistry.getProcessor(messageClass);
-                T message = messageConverter.convertFromProtobuf(envelope.getMessage());
-
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.log(Level.FINE, "Received message and submitting for processing, " + messageData.length + " bytes from '" + connectionId + "': " + message);
-                }
                 deserializedMessageProcessor.process(MobilityControllerImpl.this, connectionManager, connectionId, message);
             }
             catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to process incoming message: " + messageData.length + " bytes from: " + connectionId, e);
+                logger.log(Level.WARNING, "Failed to process incoming message from: " + connectionId + ": " + message, e);
             }
         }
-
     }
 
-
-
     @Override
     public MobilitySession getSession(UUID sessionId) {
         return getMessageHandlingSession(sessionId);
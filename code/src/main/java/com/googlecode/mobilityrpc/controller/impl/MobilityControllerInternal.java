@@ -16,9 +16,19 @@
 package com.googlecode.mobilityrpc.controller.impl;
 
 import com.googlecode.mobilityrpc.controller.MobilityController;
+import com.googlecode.mobilityrpc.network.ConnectionId;
 import com.googlecode.mobilityrpc.network.impl.IncomingMessageHandler;
 import com.googlecode.mobilityrpc.network.impl.OutgoingMessageHandler;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+import com.googlecode.mobilityrpc.serialization.impl.ClassIdTable;
+import com.googlecode.mobilityrpc.serialization.impl.FrameStringTable;
+import com.googlecode.mobilityrpc.serialization.impl.SharedKryoPool;
+import com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator;
+import com.googlecode.mobilityrpc.session.impl.BytecodePushTracker;
+import com.googlecode.mobilityrpc.session.impl.ContentAddressedResourceCache;
+import com.googlecode.mobilityrpc.session.impl.MemoizedResponseCache;
 import com.googlecode.mobilityrpc.session.impl.MobilitySessionInternal;
+import com.googlecode.mobilityrpc.session.impl.SharedClassLoaderRegistry;
 
 import java.util.UUID;
 
@@ -32,4 +42,76 @@ public interface MobilityControllerInternal extends MobilityController, Incoming
 
     public MobilitySessionInternal getMessageHandlingSession(UUID sessionId);
 
+    /**
+     * Returns the cache of class bytecode and resources received from remote machines, keyed by content hash, which
+     * is shared by the class loaders of all sessions.
+     *
+     * @return The controller-wide content-addressed resource cache
+     */
+    public ContentAddressedResourceCache getContentAddressedResourceCache();
+
+    /**
+     * Returns the registry of class loaders shared by sessions whose clients declare the same codebase.
+     *
+     * @return The controller-wide registry of shared class loaders
+     */
+    public SharedClassLoaderRegistry getSharedClassLoaderRegistry();
+
+    /**
+     * Returns the cache of responses to requests for memoizable objects, which is shared by all sessions so that
+     * identical requests from different clients can be deduplicated.
+     *
+     * @return The controller-wide memoized response cache
+     */
+    public MemoizedResponseCache getMemoizedResponseCache();
+
+    /**
+     * Returns the tracker of the classes sent in each session on each connection, which selects the bytecode to push
+     * along with execution requests.
+     *
+     * @return The controller-wide bytecode push tracker
+     */
+    public BytecodePushTracker getBytecodePushTracker();
+
+    /**
+     * Returns the table of compact class ids for objects sent and received on the given connection, creating it if
+     * necessary. Tables are shared by all sessions on the connection, and are discarded when the connection is closed.
+     *
+     * @param connectionId Identifies the connection
+     * @return The table of compact class ids for the connection
+     */
+    public ClassIdTable getClassIdTable(ConnectionId connectionId);
+
+    /**
+     * Returns the table of interned stack trace strings for exceptions sent and received on the given connection,
+     * creating it if necessary. Tables are discarded when the connection is closed.
+     *
+     * @param connectionId Identifies the connection
+     * @return The table of interned stack trace strings for the connection
+     */
+    public FrameStringTable getFrameStringTable(ConnectionId connectionId);
+
+    /**
+     * Returns the object which tracks the connections on which the unsafe serialization format can be sent.
+     *
+     * @return The controller-wide unsafe format negotiator
+     */
+    public UnsafeFormatNegotiator getUnsafeFormatNegotiator();
+
+    /**
+     * Returns the pool of configured Kryo instances which the serializers of all sessions draw from, so that
+     * creating a session does not require configuring new Kryo instances.
+     *
+     * @return The controller-wide pool of Kryo instances
+     */
+    public SharedKryoPool getSharedKryoPool();
+
+    /**
+     * Returns the store which assigns ids to bulk data sent to remote machines, and holds bulk data received from
+     * remote machines until the objects which refer to it are deserialized.
+     *
+     * @return The controller-wide bulk data store
+     */
+    public BulkDataStore getBulkDataStore();
+
 }
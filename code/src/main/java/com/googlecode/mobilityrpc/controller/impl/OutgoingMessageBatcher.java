@@ -0,0 +1,243 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.controller.impl;
+
+import com.googlecode.mobilityrpc.network.Connection;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
+import com.googlecode.mobilityrpc.protocol.converters.messages.BatchMessageConverter;
+import com.googlecode.mobilityrpc.protocol.converters.messages.EnvelopeMessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.Batch;
+import com.googlecode.mobilityrpc.protocol.pojo.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces small outgoing messages destined for the same connection into {@link Batch} messages, so that bursts of
+ * small messages (such as FIRE_AND_FORGET execution requests, stream credits or pings) cost one frame on the wire
+ * instead of one per message. On the receiving machine, the control messages in a batch cost one task submission in
+ * total, while messages which can block, such as execution requests, are still processed concurrently.
+ * <p/>
+ * A message smaller than the configured size threshold is held back for at most the configured window, during which
+ * other small messages for the same connection join it. The pending messages are sent when the window elapses, when
+ * their combined size reaches the configured batch size, or immediately before any larger message for the same
+ * connection is sent, so the order in which messages are enqueued on each connection is preserved. A window containing
+ * only a single message is sent as that message alone, without the batch wrapper.
+ * <p/>
+ * Batching is disabled by default, because holding messages back adds up to one window of latency to each small
+ * message, and because peers running older versions of the library do not understand batches. It can be enabled by
+ * setting system property {@code com.googlecode.mobilityrpc.batching} to {@code true}, and tuned via:
+ * <ul>
+ *     <li>
+ *         {@code com.googlecode.mobilityrpc.batching.windowMicros} - the maximum time for which a small message will be
+ *         held back, default 500 microseconds
+ *     </li>
+ *     <li>
+ *         {@code com.googlecode.mobilityrpc.batching.maxMessageBytes} - messages (serialized envelopes) larger than
+ *         this are never held back, default 128 bytes
+ *     </li>
+ *     <li>
+ *         {@code com.googlecode.mobilityrpc.batching.maxBatchBytes} - pending messages are sent immediately when their
+ *         combined size reaches this, default 16384 bytes
+ *     </li>
+ * </ul>
+ *
+ * @author Niall Gallagher
+ */
+public class OutgoingMessageBatcher {
+
+    public static final boolean BATCHING_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.batching");
+
+    private static final long DEFAULT_WINDOW_MICROS = Long.getLong("com.googlecode.mobilityrpc.batching.windowMicros", 500L);
+    private static final int DEFAULT_MAX_MESSAGE_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.batching.maxMessageBytes", 128);
+    private static final int DEFAULT_MAX_BATCH_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.batching.maxBatchBytes", 16384);
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final long windowMicros;
+    private final int maxMessageBytes;
+    private final int maxBatchBytes;
+
+    private final MessageConverter<Envelope> envelopeMessageConverter = new EnvelopeMessageConverter();
+    private final MessageConverter<Batch> batchMessageConverter = new BatchMessageConverter();
+
+    private final ConcurrentMap<ConnectionId, PendingBatch> pendingBatches = new ConcurrentHashMap<ConnectionId, PendingBatch>();
+
+    private final ScheduledExecutorService flushScheduler;
+
+    public OutgoingMessageBatcher() {
+        this(DEFAULT_WINDOW_MICROS, DEFAULT_MAX_MESSAGE_BYTES, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    public OutgoingMessageBatcher(long windowMicros, int maxMessageBytes, int maxBatchBytes) {
+        this.windowMicros = windowMicros;
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxBatchBytes = maxBatchBytes;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MobilityRPC-OutgoingMessageBatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.flushScheduler = executor;
+    }
+
+    /**
+     * Sends the given message on the given connection, either immediately or as part of a batch which will be sent
+     * shortly.
+     *
+     * @param connectionId Identifies the connection
+     * @param connection The connection on which the message should be sent
+     * @param messageDataInEnvelope The message, a serialized envelope
+     */
+    public void enqueueOutgoingMessage(ConnectionId connectionId, Connection connection, byte[] messageDataInEnvelope) {
+        PendingBatch pendingBatch = getPendingBatch(connectionId);
+        synchronized (pendingBatch) {
+            if (messageDataInEnvelope.length > maxMessageBytes) {
+                // Send any messages held back for this connection first, to preserve ordering...
+                pendingBatch.flush(connection);
+                connection.enqueueOutgoingMessage(messageDataInEnvelope);
+                return;
+            }
+            boolean firstInWindow = pendingBatch.messages.isEmpty();
+            pendingBatch.add(messageDataInEnvelope);
+            if (pendingBatch.totalBytes >= maxBatchBytes) {
+                pendingBatch.flush(connection);
+            }
+            else if (firstInWindow) {
+                scheduleFlush(pendingBatch, connection);
+            }
+        }
+    }
+
+    /**
+     * Discards any messages held back for the given connection, which has been closed.
+     *
+     * @param connectionId Identifies the connection which was closed
+     */
+    public void notifyConnectionClosed(ConnectionId connectionId) {
+        PendingBatch pendingBatch = pendingBatches.remove(connectionId);
+        if (pendingBatch != null) {
+            synchronized (pendingBatch) {
+                pendingBatch.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops the thread which sends batches when their window elapses, and discards any messages held back.
+     */
+    public void destroy() {
+        flushScheduler.shutdownNow();
+        pendingBatches.clear();
+    }
+
+    PendingBatch getPendingBatch(ConnectionId connectionId) {
+        PendingBatch pendingBatch = pendingBatches.get(connectionId);
+        if (pendingBatch == null) {
+            PendingBatch newBatch = new PendingBatch(connectionId);
+            pendingBatch = pendingBatches.putIfAbsent(connectionId, newBatch);
+            if (pendingBatch == null) {
+                pendingBatch = newBatch;
+            }
+        }
+        return pendingBatch;
+    }
+
+    void scheduleFlush(final PendingBatch pendingBatch, final Connection connection) {
+        final long windowNumber = pendingBatch.windowNumber;
+        try {
+            flushScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pendingBatch) {
+                        // Skip if the window was already flushed by size or by a larger message...
+                        if (pendingBatch.windowNumber == windowNumber) {
+                            try {
+                                pendingBatch.flush(connection);
+                            }
+                            catch (Exception e) {
+                                logger.log(Level.WARNING, "Failed to send batched messages to " + pendingBatch.connectionId, e);
+                            }
+                        }
+                    }
+                }
+            }, windowMicros, TimeUnit.MICROSECONDS);
+        }
+        catch (Exception e) {
+            // Scheduler has been shut down, send without waiting...
+            pendingBatch.flush(connection);
+        }
+    }
+
+    class PendingBatch {
+        final ConnectionId connectionId;
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        int totalBytes = 0;
+        // Incremented each time the pending messages are sent or discarded, so that stale scheduled flushes are ignored...
+        long windowNumber = 0;
+
+        PendingBatch(ConnectionId connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        void add(byte[] message) {
+            messages.add(message);
+            totalBytes += message.length;
+        }
+
+        void flush(Connection connection) {
+            if (messages.isEmpty()) {
+                return;
+            }
+            try {
+                if (messages.size() == 1) {
+                    connection.enqueueOutgoingMessage(messages.get(0));
+                }
+                else {
+                    byte[] batchMessage = batchMessageConverter.convertToProtobuf(new Batch(new ArrayList<byte[]>(messages)));
+                    connection.enqueueOutgoingMessage(envelopeMessageConverter.convertToProtobuf(
+                            new Envelope(Envelope.MessageType.BATCH, batchMessage)
+                    ));
+                    if (logger.isLoggable(Level.FINER)) {
+                        logger.log(Level.FINER, "Sent batch of " + messages.size() + " messages, " + totalBytes + " bytes to " + connectionId);
+                    }
+                }
+            }
+            finally {
+                clear();
+            }
+        }
+
+        void clear() {
+            messages.clear();
+            totalBytes = 0;
+            windowNumber++;
+        }
+    }
+}
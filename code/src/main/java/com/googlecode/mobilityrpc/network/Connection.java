@@ -48,4 +48,12 @@ public interface Connection {
      */
     public void enqueueOutgoingMessage(byte[] message);
 
+    /**
+     * Submits the specified bulk data to the connection's outgoing message queue, such that it will be sent to the
+     * machine at the other end of the connection as a raw segment, in order with respect to messages.
+     *
+     * @param bulkData The bulk data to send
+     */
+    public void enqueueOutgoingBulkData(OutgoingBulkData bulkData);
+
 }
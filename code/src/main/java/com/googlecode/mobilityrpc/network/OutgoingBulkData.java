@@ -0,0 +1,46 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.network;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A block of binary data which a connection writes to its outgoing stream as a raw segment, identified by an id,
+ * instead of as a serialized message. See {@link Connection#enqueueOutgoingBulkData(OutgoingBulkData)}.
+ *
+ * @author Niall Gallagher
+ */
+public interface OutgoingBulkData {
+
+    /**
+     * @return An id which the receiving machine can use to associate the segment with the message which refers to it
+     */
+    public long getBulkDataId();
+
+    /**
+     * @return The number of bytes which {@link #transferTo(WritableByteChannel)} will write
+     */
+    public long getLength();
+
+    /**
+     * Writes exactly {@link #getLength()} bytes of data to the given channel.
+     *
+     * @param target The channel to which the data should be written
+     * @throws IOException If an error occurs writing the data
+     */
+    public void transferTo(WritableByteChannel target) throws IOException;
+}
@@ -121,6 +121,7 @@ public class ConnectionManagerImpl implements ConnectionManagerInternal, Connect
 
     public void notifyConnectionClosed(ConnectionInternal connection) {
         connections.remove(connection.getConnectionId());
+        mobilityController.notifyConnectionClosed(connection.getConnectionId());
     }
 
     @Override
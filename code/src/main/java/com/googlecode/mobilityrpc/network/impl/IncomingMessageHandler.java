@@ -17,6 +17,8 @@ package com.googlecode.mobilityrpc.network.impl;
 
 import com.googlecode.mobilityrpc.network.ConnectionId;
 
+import java.nio.channels.ReadableByteChannel;
+
 /**
  * An internal interface, implemented by objects which can accept and process a serialized
  * protocol message (byte array) received from a remote machine.
@@ -32,4 +34,16 @@ public interface IncomingMessageHandler {
      * @param serializedMessage The message to supply
      */
     public void receiveIncomingMessage(ConnectionId connectionId, byte[] serializedMessage);
+
+    /**
+     * Supplies a raw segment of bulk data to the handler, which must read exactly the given number of bytes from the
+     * channel supplied before returning, because the connection will read its next message from the same channel.
+     * Bulk data is always supplied before any message which refers to it.
+     *
+     * @param connectionId Identifies the connection from which the bulk data is being received
+     * @param bulkDataId The id which the sending machine assigned to the bulk data
+     * @param length The number of bytes of bulk data to read
+     * @param source The channel from which to read the bulk data
+     */
+    public void receiveIncomingBulkData(ConnectionId connectionId, long bulkDataId, long length, ReadableByteChannel source);
 }
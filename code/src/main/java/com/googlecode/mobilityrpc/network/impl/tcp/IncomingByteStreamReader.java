@@ -22,6 +22,8 @@ import com.googlecode.mobilityrpc.network.impl.IncomingMessageHandler;
 
 import java.io.BufferedInputStream;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +31,9 @@ import java.util.logging.Logger;
  * Continuously extracts individual byte[] messages from an input stream, where each message
  * is preceded by 4 bytes which indicate the length of the message to follow.
  * <p/>
+ * If those 4 bytes instead contain {@link OutgoingByteStreamWriter#BULK_DATA_MARKER}, a raw segment of bulk data
+ * follows, which the reader hands to the message handler to read directly from the stream.
+ * <p/>
  * This reader with read continuously until {@link #shutdown()} is called, or an error occurs.
  * <p/>
  * The reader will submit each message extracted to the supplied {@link com.googlecode.mobilityrpc.network.impl.IncomingMessageHandler}.
@@ -44,6 +49,7 @@ public class IncomingByteStreamReader extends Thread {
 
     private final ConnectionId connectionId;
     private final InputStream inputStream;
+    private final ReadableByteChannel inputChannel;
     private final IncomingMessageHandler incomingMessageHandler;
     private final ConnectionErrorHandler connectionErrorHandler;
 
@@ -59,6 +65,7 @@ public class IncomingByteStreamReader extends Thread {
         this.connectionId = connectionId;
         this.connectionErrorHandler = connectionErrorHandler;
         this.inputStream = new BufferedInputStream(inputStream, 16384);
+        this.inputChannel = Channels.newChannel(this.inputStream);
         this.incomingMessageHandler = incomingMessageHandler;
         this.setName("IncomingByteStreamReader for " + connectionId);
     }
@@ -71,6 +78,10 @@ public class IncomingByteStreamReader extends Thread {
                 logger.log(Level.FINER, "Waiting for incoming messages for {0}", connectionId);
                 byte[] messageSizeHeader = readBytesFromStream(inputStream, 4);
                 int nextMessageSize = byteArrayToInt(messageSizeHeader);
+                if (nextMessageSize == OutgoingByteStreamWriter.BULK_DATA_MARKER) {
+                    receiveBulkData();
+                    continue;
+                }
                 if (logger.isLoggable(Level.FINER)) {
                     logger.log(Level.FINER, "Receiving incoming message: " + nextMessageSize + " bytes from " + connectionId);
                 }
@@ -99,6 +110,19 @@ public class IncomingByteStreamReader extends Thread {
         logger.log(Level.FINER, "IncomingByteStreamReader stopped for {0}", connectionId);
     }
 
+    void receiveBulkData() {
+        byte[] bulkDataHeader = readBytesFromStream(inputStream, 16);
+        long bulkDataId = byteArrayToLong(bulkDataHeader, 0);
+        long length = byteArrayToLong(bulkDataHeader, 8);
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "Receiving incoming bulk data: " + length + " bytes from " + connectionId);
+        }
+        incomingMessageHandler.receiveIncomingBulkData(connectionId, bulkDataId, length, inputChannel);
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "Received incoming bulk data: " + length + " bytes from " + connectionId);
+        }
+    }
+
     /**
      * Reads a specified number of bytes from an input stream. This method allocates a byte array of the specified
      * size up front, then reads from the stream into this byte array without allocating any additional buffers, in
@@ -138,6 +162,14 @@ public class IncomingByteStreamReader extends Thread {
                 + (bytes[3] & 0xFF);
     }
 
+    static long byteArrayToLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
 
     public void shutdown() {
         this.shutdown = true;
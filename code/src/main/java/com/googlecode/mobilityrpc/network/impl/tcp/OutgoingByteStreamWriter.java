@@ -17,11 +17,14 @@ package com.googlecode.mobilityrpc.network.impl.tcp;
 
 import com.googlecode.mobilityrpc.common.util.IOUtil;
 import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.OutgoingBulkData;
 import com.googlecode.mobilityrpc.network.impl.ConnectionErrorHandler;
 import com.googlecode.mobilityrpc.network.impl.MessageProvider;
 
 import java.io.BufferedOutputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,22 +33,31 @@ import java.util.logging.Logger;
  */
 public class OutgoingByteStreamWriter extends Thread {
 
+    /**
+     * A value written in place of the message size, which indicates that a raw segment of bulk data follows, as
+     * opposed to a message. The marker is followed by an 8-byte bulk data id, an 8-byte length, and then the data.
+     */
+    static final int BULK_DATA_MARKER = -1;
+
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     private final ConnectionId connectionId;
     private final OutputStream outputStream;
-    private final MessageProvider<byte[]> outgoingMessageProvider;
+    private final WritableByteChannel outputChannel;
+    private final MessageProvider<Object> outgoingMessageProvider;
     private final ConnectionErrorHandler connectionErrorHandler;
 
     /**
      * @param connectionId Identifies the connection to which the stream belongs
      * @param outputStream An output stream to which the writer will write messages
-     * @param outgoingMessageProvider An object from which the reader will obtain messages to write
+     * @param outgoingMessageProvider An object from which the reader will obtain messages to write, byte[] messages or
+     * {@link OutgoingBulkData} objects
      * @param connectionErrorHandler An object which the writer will notify when any exceptions occur
      */
-    public OutgoingByteStreamWriter(ConnectionId connectionId, OutputStream outputStream, MessageProvider<byte[]> outgoingMessageProvider, ConnectionErrorHandler connectionErrorHandler) {
+    public OutgoingByteStreamWriter(ConnectionId connectionId, OutputStream outputStream, MessageProvider<Object> outgoingMessageProvider, ConnectionErrorHandler connectionErrorHandler) {
         this.connectionId = connectionId;
         this.outputStream = new BufferedOutputStream(outputStream, 16384);
+        this.outputChannel = Channels.newChannel(this.outputStream);
         this.outgoingMessageProvider = outgoingMessageProvider;
         this.connectionErrorHandler = connectionErrorHandler;
         this.setName("OutgoingByteStreamWriter for " + connectionId);
@@ -59,7 +71,12 @@ public class OutgoingByteStreamWriter extends Thread {
         while (!shutdown) {
             try {
                 logger.log(Level.FINER, "Waiting for outgoing messages for {0}", connectionId);
-                byte[] nextMessage = outgoingMessageProvider.getNextMessage();
+                Object next = outgoingMessageProvider.getNextMessage();
+                if (next instanceof OutgoingBulkData) {
+                    writeBulkData((OutgoingBulkData) next);
+                    continue;
+                }
+                byte[] nextMessage = (byte[]) next;
                 int nextMessageSize = nextMessage.length;
                 if (logger.isLoggable(Level.FINER)) {
                     logger.log(Level.FINER, "Sending outgoing message: " + nextMessageSize + " bytes to " + connectionId);
@@ -85,6 +102,22 @@ public class OutgoingByteStreamWriter extends Thread {
         logger.log(Level.FINER, "OutgoingByteStreamWriter stopped for {0}", connectionId);
     }
 
+    void writeBulkData(OutgoingBulkData bulkData) throws Exception {
+        long length = bulkData.getLength();
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "Sending outgoing bulk data: " + length + " bytes to " + connectionId);
+        }
+        writeNextMessageSize(outputStream, BULK_DATA_MARKER);
+        outputStream.write(longToByteArray(bulkData.getBulkDataId()));
+        outputStream.write(longToByteArray(length));
+        // Written through the same buffered stream, so that the data follows the header...
+        bulkData.transferTo(outputChannel);
+        outputStream.flush();
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "Sent outgoing bulk data: " + length + " bytes to " + connectionId);
+        }
+    }
+
     void writeNextMessageSize(OutputStream outputStream, int nextMessageSize) {
         try {
             byte[] nextMessageSizeBytes = intToByteArray(nextMessageSize);
@@ -104,6 +137,19 @@ public class OutgoingByteStreamWriter extends Thread {
         };
     }
 
+    byte[] longToByteArray(long value) {
+        return new byte[] {
+                (byte) (value >>> 56),
+                (byte) (value >>> 48),
+                (byte) (value >>> 40),
+                (byte) (value >>> 32),
+                (byte) (value >>> 24),
+                (byte) (value >>> 16),
+                (byte) (value >>> 8),
+                (byte) value
+        };
+    }
+
     public void shutdown() {
         this.shutdown = true;
         this.interrupt();
@@ -34,7 +34,8 @@ public class TCPConnection implements ConnectionInternal {
     private final Socket socket;
     private final ConnectionId connectionId;
 
-    private final BlockingQueue<byte[]> outgoingMessageQueue = new LinkedBlockingQueue<byte[]>();
+    // Contains byte[] messages, and OutgoingBulkData objects...
+    private final BlockingQueue<Object> outgoingMessageQueue = new LinkedBlockingQueue<Object>();
     private final IncomingMessageHandler incomingMessageHandler;
     private final ConnectionStateListener connectionStateListener;
 
@@ -70,6 +71,14 @@ public class TCPConnection implements ConnectionInternal {
         }
     }
 
+    @Override
+    public void enqueueOutgoingBulkData(OutgoingBulkData bulkData) {
+        outgoingMessageQueue.add(bulkData);
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "Enqueued outgoing bulk data for connection id '" + connectionId + "': " + bulkData.getLength() + " bytes");
+        }
+    }
+
     @Override
     public void init() {
         if (incomingByteStreamReader != null || outgoingByteStreamWriter != null) {
@@ -115,9 +124,9 @@ public class TCPConnection implements ConnectionInternal {
             outgoingByteStreamWriter = new OutgoingByteStreamWriter(
                     connectionId,
                 socket.getOutputStream(),
-                new MessageProvider<byte[]>() {
+                new MessageProvider<Object>() {
                     @Override
-                    public byte[] getNextMessage() {
+                    public Object getNextMessage() {
                         try {
                             return outgoingMessageQueue.take();
                         }
@@ -37,6 +37,9 @@ public class MessageConverterRegistry {
         register(ExecutionResponse.class, new ExecutionResponseMessageConverter());
         register(Ping.class, new PingMessageConverter());
         register(Pong.class, new PongMessageConverter());
+        register(StreamChunk.class, new StreamChunkMessageConverter());
+        register(StreamCredit.class, new StreamCreditMessageConverter());
+        register(Batch.class, new BatchMessageConverter());
     }
 
     private final Map<Class<?>, MessageConverter<?>> converters = new HashMap<Class<?>, MessageConverter<?>>();
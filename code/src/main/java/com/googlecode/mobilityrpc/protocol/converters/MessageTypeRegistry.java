@@ -34,6 +34,9 @@ public class MessageTypeRegistry {
         register(Envelope.MessageType.RESOURCE_RESPONSE, ResourceResponse.class);
         register(Envelope.MessageType.PING, Ping.class);
         register(Envelope.MessageType.PONG, Pong.class);
+        register(Envelope.MessageType.STREAM_CHUNK, StreamChunk.class);
+        register(Envelope.MessageType.STREAM_CREDIT, StreamCredit.class);
+        register(Envelope.MessageType.BATCH, Batch.class);
     }
 
     private final Map<Envelope.MessageType, Class<?>> messageTypeToClass = new HashMap<Envelope.MessageType, Class<?>>();
@@ -19,6 +19,8 @@ import com.googlecode.mobilityrpc.protocol.converters.ComponentConverter;
 import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
 import com.googlecode.mobilityrpc.protocol.protobuf.ComponentRequestIdentifier;
 
+import java.util.UUID;
+
 /**
  * @author Niall Gallagher
  */
@@ -28,19 +30,61 @@ public class RequestIdentifierComponentConverter implements ComponentConverter<R
 
     public RequestIdentifier convertFromProtobuf(ComponentRequestIdentifier.RequestIdentifier protobuf) {
         String requestLabel = protobuf.getRequestLabel();
+        final UUID sessionId;
+        if (protobuf.hasSessionAlias()) {
+            // Sent in compact mode...
+            SessionAliasTable sessionAliasTable = SessionAliasTable.getCurrentTable();
+            if (sessionAliasTable == null) {
+                throw new IllegalStateException("Received compact request identifier, but no session alias table is available for the connection");
+            }
+            if (protobuf.hasSessionId()) {
+                sessionId = uuidConverter.convertFromProtobuf(protobuf.getSessionId());
+                sessionAliasTable.defineIncomingAlias(protobuf.getSessionAlias(), sessionId);
+            }
+            else {
+                sessionId = sessionAliasTable.resolveIncomingAlias(protobuf.getSessionAlias());
+            }
+        }
+        else {
+            sessionId = uuidConverter.convertFromProtobuf(protobuf.getSessionId());
+        }
+        final UUID requestId;
+        if (protobuf.hasRequestSequence()) {
+            requestId = RequestIdentifier.sequentialRequestId(protobuf.getRequestSequence());
+        }
+        else {
+            requestId = uuidConverter.convertFromProtobuf(protobuf.getRequestId());
+        }
         return new RequestIdentifier(
-                uuidConverter.convertFromProtobuf(protobuf.getSessionId()),
-                uuidConverter.convertFromProtobuf(protobuf.getRequestId()),
+                sessionId,
+                requestId,
                 requestLabel
         );
     }
 
     public ComponentRequestIdentifier.RequestIdentifier.Builder convertToProtobuf(RequestIdentifier object) {
         ComponentRequestIdentifier.RequestIdentifier.Builder requestIdentifierBuilder = ComponentRequestIdentifier.RequestIdentifier.newBuilder();
-        requestIdentifierBuilder.setSessionId(uuidConverter.convertToProtobuf(object.getSessionId()));
-        requestIdentifierBuilder.setRequestId(uuidConverter.convertToProtobuf(object.getRequestId()));
-        if (object.getRequestLabel() != null) {
-            requestIdentifierBuilder.setRequestLabel(object.getRequestLabel());
+        SessionAliasTable sessionAliasTable = SessionAliasTable.getCurrentTable();
+        if (sessionAliasTable == null) {
+            // Regular mode, compatible with all versions of the library...
+            requestIdentifierBuilder.setSessionId(uuidConverter.convertToProtobuf(object.getSessionId()));
+            requestIdentifierBuilder.setRequestId(uuidConverter.convertToProtobuf(object.getRequestId()));
+            if (object.getRequestLabel() != null) {
+                requestIdentifierBuilder.setRequestLabel(object.getRequestLabel());
+            }
+            return requestIdentifierBuilder;
+        }
+        // Compact mode. Send the session alias, and the session id only if the alias has not been defined yet.
+        // Send sequential request ids as varints. Omit the request label, which is for debugging only...
+        requestIdentifierBuilder.setSessionAlias(sessionAliasTable.getOutgoingAlias(object.getSessionId()));
+        if (sessionAliasTable.requiresOutgoingDefinition(object.getSessionId())) {
+            requestIdentifierBuilder.setSessionId(uuidConverter.convertToProtobuf(object.getSessionId()));
+        }
+        if (RequestIdentifier.isSequentialRequestId(object.getRequestId())) {
+            requestIdentifierBuilder.setRequestSequence(object.getRequestId().getLeastSignificantBits());
+        }
+        else {
+            requestIdentifierBuilder.setRequestId(uuidConverter.convertToProtobuf(object.getRequestId()));
         }
         return requestIdentifierBuilder;
     }
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters.components;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps session ids to small aliases, for a single connection, so that session ids can be sent once per connection
+ * and replaced by their aliases in subsequent messages, when compact request identifiers are enabled.
+ * <p/>
+ * Each machine assigns aliases for the session ids it sends (outgoing aliases), and learns the aliases assigned by the
+ * machine at the other end of the connection for the session ids it receives (incoming aliases). The sender includes
+ * both the session id and its alias in messages, until a message containing both has been enqueued on the
+ * connection, and after that includes only the alias.
+ * <p/>
+ * Incoming messages are processed concurrently, but are decoded by the thread which reads the connection, in the
+ * order in which they were received. Therefore an alias is always defined before any message which uses only the
+ * alias is decoded, and resolving an incoming alias never needs to wait.
+ * <p/>
+ * The table for the connection on which a message is being sent or received is associated with the converting thread
+ * via {@link #setCurrentTable}, so that it is available to {@link RequestIdentifierComponentConverter} without
+ * passing it through all message converters. Compact request identifiers are disabled when no table is associated
+ * with the thread.
+ * <p/>
+ * Compact request identifiers must be enabled on both machines, via system property
+ * {@code com.googlecode.mobilityrpc.compactRequestIdentifiers=true}, because older versions of the library cannot
+ * read them.
+ *
+ * @author Niall Gallagher
+ */
+public class SessionAliasTable {
+
+    /**
+     * Whether this machine should send compact request identifiers. This machine can always receive them.
+     */
+    public static final boolean COMPACT_REQUEST_IDENTIFIERS_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.compactRequestIdentifiers");
+
+    private static final ThreadLocal<SessionAliasTable> currentTable = new ThreadLocal<SessionAliasTable>();
+    private static final ThreadLocal<List<UUID>> pendingDefinitions = new ThreadLocal<List<UUID>>();
+
+    private final ConcurrentMap<UUID, Integer> outgoingAliases = new ConcurrentHashMap<UUID, Integer>();
+    private final Set<UUID> definedOutgoingAliases = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final AtomicInteger nextOutgoingAlias = new AtomicInteger();
+
+    private final ConcurrentMap<Integer, UUID> incomingAliases = new ConcurrentHashMap<Integer, UUID>();
+
+    /**
+     * Associates the given table with the current thread, while it converts messages for the relevant connection.
+     * Also discards any record of aliases defined in messages previously converted by the thread.
+     *
+     * @param sessionAliasTable The table for the relevant connection, or null to disassociate the current table
+     */
+    public static void setCurrentTable(SessionAliasTable sessionAliasTable) {
+        currentTable.set(sessionAliasTable);
+        pendingDefinitions.remove();
+    }
+
+    /**
+     * @return The table associated with the current thread, or null if none is associated
+     */
+    public static SessionAliasTable getCurrentTable() {
+        return currentTable.get();
+    }
+
+    /**
+     * Returns the alias for the given session id, assigning a new alias if necessary.
+     *
+     * @param sessionId The session id to send
+     * @return The alias for the session id
+     */
+    public int getOutgoingAlias(UUID sessionId) {
+        Integer alias = outgoingAliases.get(sessionId);
+        if (alias == null) {
+            Integer newAlias = nextOutgoingAlias.getAndIncrement();
+            alias = outgoingAliases.putIfAbsent(sessionId, newAlias);
+            if (alias == null) {
+                alias = newAlias;
+            }
+        }
+        return alias;
+    }
+
+    /**
+     * Returns true if the session id must be sent along with its alias, because no message defining the alias has
+     * been enqueued on the connection yet. In that case, records that the message being converted by the current
+     * thread defines the alias.
+     *
+     * @param sessionId The session id to send
+     * @return True if the session id must be sent, false if sending its alias is sufficient
+     */
+    public boolean requiresOutgoingDefinition(UUID sessionId) {
+        if (definedOutgoingAliases.contains(sessionId)) {
+            return false;
+        }
+        List<UUID> definitions = pendingDefinitions.get();
+        if (definitions == null) {
+            definitions = new ArrayList<UUID>(1);
+            pendingDefinitions.set(definitions);
+        }
+        definitions.add(sessionId);
+        return true;
+    }
+
+    /**
+     * Called after the message converted by the current thread has been enqueued on the connection, to record that
+     * the aliases it defined have been sent, such that subsequent messages can omit the session ids.
+     */
+    public void confirmOutgoingDefinitions() {
+        List<UUID> definitions = pendingDefinitions.get();
+        if (definitions != null) {
+            definedOutgoingAliases.addAll(definitions);
+            pendingDefinitions.remove();
+        }
+    }
+
+    /**
+     * Records the session id for an alias defined by the machine at the other end of the connection.
+     *
+     * @param alias The alias
+     * @param sessionId The session id for which it stands
+     */
+    public void defineIncomingAlias(int alias, UUID sessionId) {
+        incomingAliases.put(alias, sessionId);
+    }
+
+    /**
+     * Returns the session id for an alias defined by the machine at the other end of the connection.
+     *
+     * @param alias The alias
+     * @return The session id for which it stands
+     * @throws IllegalStateException If the alias has not been defined
+     */
+    public UUID resolveIncomingAlias(int alias) {
+        UUID sessionId = incomingAliases.get(alias);
+        if (sessionId == null) {
+            throw new IllegalStateException("Session alias has not been defined by any message received on the connection: " + alias);
+        }
+        return sessionId;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters.messages;
+
+import com.google.protobuf.ByteString;
+import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.Batch;
+import com.googlecode.mobilityrpc.protocol.protobuf.MessageBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Niall Gallagher
+ */
+public class BatchMessageConverter extends MessageConverter<Batch> {
+
+    @Override
+    protected Batch fromProtobuf(byte[] bytes) throws Exception {
+        MessageBatch.Batch.Builder builder = MessageBatch.Batch.newBuilder();
+        builder.mergeFrom(bytes);
+        List<byte[]> messages = new ArrayList<byte[]>(builder.getMessagesCount());
+        for (ByteString message : builder.getMessagesList()) {
+            messages.add(message.toByteArray());
+        }
+        return new Batch(messages);
+    }
+
+    @Override
+    protected byte[] toProtobuf(Batch object) throws Exception {
+        MessageBatch.Batch.Builder builder = MessageBatch.Batch.newBuilder();
+        for (byte[] message : object.getMessages()) {
+            builder.addMessages(ByteString.copyFrom(message));
+        }
+        return builder.build().toByteArray();
+    }
+}
@@ -20,9 +20,15 @@ import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
 import com.googlecode.mobilityrpc.protocol.converters.components.RequestIdentifierComponentConverter;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionMode;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionRequest;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
 import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
 import com.googlecode.mobilityrpc.protocol.protobuf.ComponentSerializationFormat;
 import com.googlecode.mobilityrpc.protocol.protobuf.MessageExecutionRequest;
+import com.googlecode.mobilityrpc.protocol.protobuf.MessageResourceResponse;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Niall Gallagher
@@ -35,11 +41,31 @@ public class ExecutionRequestMessageConverter extends MessageConverter<Execution
     protected ExecutionRequest fromProtobuf(byte[] bytes) throws Exception {
         com.googlecode.mobilityrpc.protocol.protobuf.MessageExecutionRequest.ExecutionRequest.Builder builder = com.googlecode.mobilityrpc.protocol.protobuf.MessageExecutionRequest.ExecutionRequest.newBuilder();
         builder.mergeFrom(bytes);
+        List<ResourceResponse.ResourceData> pushedResourceData = new ArrayList<ResourceResponse.ResourceData>(builder.getPushedResourceDataCount());
+        for (MessageResourceResponse.ResourceData protobufResourceData : builder.getPushedResourceDataList()) {
+            pushedResourceData.add(
+                    new ResourceResponse.ResourceData(
+                            protobufResourceData.getResourceName(),
+                            protobufResourceData.getResourceData().toByteArray()
+                    )
+            );
+        }
+        long[] bulkDataIds = new long[builder.getBulkDataIdsCount()];
+        for (int i = 0; i < bulkDataIds.length; i++) {
+            bulkDataIds[i] = builder.getBulkDataIds(i);
+        }
         return new ExecutionRequest(
                 builder.getSerializedExecutableObject().toByteArray(),
                 SerializationFormat.valueOf(builder.getSerializationFormat().name()),
                 ExecutionMode.valueOf(builder.getExecutionMode().name()),
-                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier())
+                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier()),
+                builder.getMemoizable(),
+                pushedResourceData,
+                builder.hasCodebaseFingerprint() ? builder.getCodebaseFingerprint().toByteArray() : null,
+                builder.getUnsafeFormatByteOrder(),
+                builder.getImmutable(),
+                builder.getStreamedResultChunkSize(),
+                bulkDataIds
         );
     }
 
@@ -53,6 +79,32 @@ public class ExecutionRequestMessageConverter extends MessageConverter<Execution
         builder.setRequestIdentifier(
                 requestIdentifierConverter.convertToProtobuf(object.getRequestIdentifier())
         );
+        // Only set the optional field when true, so that regular requests are unchanged on the wire...
+        if (object.isMemoizable()) {
+            builder.setMemoizable(true);
+        }
+        MessageResourceResponse.ResourceData.Builder resourceDataBuilder = MessageResourceResponse.ResourceData.newBuilder();
+        for (ResourceResponse.ResourceData resourceData : object.getPushedResourceData()) {
+            resourceDataBuilder.setResourceName(resourceData.getResourceName());
+            resourceDataBuilder.setResourceData(ByteString.copyFrom(resourceData.getResourceData()));
+            builder.addPushedResourceData(resourceDataBuilder);
+        }
+        if (object.getCodebaseFingerprint() != null) {
+            builder.setCodebaseFingerprint(ByteString.copyFrom(object.getCodebaseFingerprint()));
+        }
+        if (object.getUnsafeFormatByteOrder() != 0) {
+            builder.setUnsafeFormatByteOrder(object.getUnsafeFormatByteOrder());
+        }
+        if (object.isImmutable()) {
+            builder.setImmutable(true);
+        }
+        if (object.getStreamedResultChunkSize() != 0) {
+            builder.setStreamedResultChunkSize(object.getStreamedResultChunkSize());
+        }
+        // Record the bulk data which the sending thread enqueued ahead of this message...
+        for (long bulkDataId : BulkDataStore.takeIdsSentAhead()) {
+            builder.addBulkDataIds(bulkDataId);
+        }
 
         return builder.build().toByteArray();
     }
@@ -20,8 +20,13 @@ import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
 import com.googlecode.mobilityrpc.protocol.converters.components.RequestIdentifierComponentConverter;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionResponse;
 import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import com.googlecode.mobilityrpc.protocol.protobuf.ComponentFrameString;
 import com.googlecode.mobilityrpc.protocol.protobuf.ComponentSerializationFormat;
 import com.googlecode.mobilityrpc.protocol.protobuf.MessageExecutionResponse;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Niall Gallagher
@@ -34,11 +39,23 @@ public class ExecutionResponseMessageConverter extends MessageConverter<Executio
     protected ExecutionResponse fromProtobuf(byte[] bytes) throws Exception {
         MessageExecutionResponse.ExecutionResponse.Builder builder = MessageExecutionResponse.ExecutionResponse.newBuilder();
         builder.mergeFrom(bytes);
+        Map<Integer, String> frameStringDefinitions = new HashMap<Integer, String>(builder.getFrameStringDefinitionsCount());
+        for (ComponentFrameString.FrameString frameString : builder.getFrameStringDefinitionsList()) {
+            frameStringDefinitions.put(frameString.getId(), frameString.getValue());
+        }
+        long[] bulkDataIds = new long[builder.getBulkDataIdsCount()];
+        for (int i = 0; i < bulkDataIds.length; i++) {
+            bulkDataIds[i] = builder.getBulkDataIds(i);
+        }
         return new ExecutionResponse(
                 ExecutionResponse.ExecutionOutcome.valueOf(builder.getExecutionOutcome().name()),
                 builder.getSerializedReturnObject().toByteArray(),
                 SerializationFormat.valueOf(builder.getSerializationFormat().name()),
-                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier())
+                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier()),
+                builder.getUnsafeFormatByteOrder(),
+                builder.getStreamed(),
+                frameStringDefinitions,
+                bulkDataIds
         );
     }
 
@@ -51,6 +68,22 @@ public class ExecutionResponseMessageConverter extends MessageConverter<Executio
         builder.setRequestIdentifier(
                 requestIdentifierConverter.convertToProtobuf(object.getRequestIdentifier())
         );
+        // Only set the optional field when the format is supported, so that regular responses are unchanged on the wire...
+        if (object.getUnsafeFormatByteOrder() != 0) {
+            builder.setUnsafeFormatByteOrder(object.getUnsafeFormatByteOrder());
+        }
+        if (object.isStreamed()) {
+            builder.setStreamed(true);
+        }
+        for (Map.Entry<Integer, String> entry : object.getFrameStringDefinitions().entrySet()) {
+            builder.addFrameStringDefinitions(
+                    ComponentFrameString.FrameString.newBuilder().setId(entry.getKey()).setValue(entry.getValue())
+            );
+        }
+        // Record the bulk data which the sending thread enqueued ahead of this message...
+        for (long bulkDataId : BulkDataStore.takeIdsSentAhead()) {
+            builder.addBulkDataIds(bulkDataId);
+        }
         return builder.build().toByteArray();
     }
 }
@@ -33,7 +33,8 @@ public class ResourceRequestMessageConverter extends MessageConverter<ResourceRe
         builder.mergeFrom(bytes);
         return new ResourceRequest(
                 builder.getResourceNameList(),
-                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier())
+                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier()),
+                builder.getContentHashesOnly()
         );
     }
 
@@ -42,6 +43,10 @@ public class ResourceRequestMessageConverter extends MessageConverter<ResourceRe
         MessageResourceRequest.ResourceRequest.Builder builder = MessageResourceRequest.ResourceRequest.newBuilder();
         builder.addAllResourceName(object.getResourceNames());
         builder.setRequestIdentifier(requestIdentifierConverter.convertToProtobuf(object.getRequestIdentifier()));
+        // Only set the optional field when true, so that regular requests are unchanged on the wire...
+        if (object.isContentHashesOnly()) {
+            builder.setContentHashesOnly(true);
+        }
         return builder.build().toByteArray();
     }
 }
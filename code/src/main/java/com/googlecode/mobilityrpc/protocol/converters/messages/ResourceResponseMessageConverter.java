@@ -41,7 +41,8 @@ public class ResourceResponseMessageConverter extends MessageConverter<ResourceR
             resourceResponses.add(
                     new ResourceResponse.ResourceData(
                             protobufResourceData.getResourceName(),
-                            protobufResourceData.getResourceData().toByteArray()
+                            protobufResourceData.getResourceData().toByteArray(),
+                            protobufResourceData.hasContentHash() ? protobufResourceData.getContentHash().toByteArray() : null
                     )
             );
         }
@@ -58,6 +59,12 @@ public class ResourceResponseMessageConverter extends MessageConverter<ResourceR
         for (ResourceResponse.ResourceData resourceData : object.getResourceDataResponses()) {
             resourceDataBuilder.setResourceName(resourceData.getResourceName());
             resourceDataBuilder.setResourceData(ByteString.copyFrom(resourceData.getResourceData()));
+            if (resourceData.getContentHash() != null) {
+                resourceDataBuilder.setContentHash(ByteString.copyFrom(resourceData.getContentHash()));
+            }
+            else {
+                resourceDataBuilder.clearContentHash();
+            }
             builder.addResourceData(resourceDataBuilder);
         }
         builder.setRequestIdentifier(requestIdentifierConverter.convertToProtobuf(object.getRequestIdentifier()));
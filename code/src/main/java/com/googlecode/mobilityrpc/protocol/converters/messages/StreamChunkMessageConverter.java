@@ -0,0 +1,82 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters.messages;
+
+import com.google.protobuf.ByteString;
+import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
+import com.googlecode.mobilityrpc.protocol.converters.components.RequestIdentifierComponentConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.protocol.protobuf.ComponentFrameString;
+import com.googlecode.mobilityrpc.protocol.protobuf.ComponentSerializationFormat;
+import com.googlecode.mobilityrpc.protocol.protobuf.MessageStreamChunk;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StreamChunkMessageConverter extends MessageConverter<StreamChunk> {
+
+    private final RequestIdentifierComponentConverter requestIdentifierConverter = new RequestIdentifierComponentConverter();
+
+    @Override
+    protected StreamChunk fromProtobuf(byte[] bytes) throws Exception {
+        MessageStreamChunk.StreamChunk.Builder builder = MessageStreamChunk.StreamChunk.newBuilder();
+        builder.mergeFrom(bytes);
+        Map<Integer, String> frameStringDefinitions = new HashMap<Integer, String>(builder.getFrameStringDefinitionsCount());
+        for (ComponentFrameString.FrameString frameString : builder.getFrameStringDefinitionsList()) {
+            frameStringDefinitions.put(frameString.getId(), frameString.getValue());
+        }
+        long[] bulkDataIds = new long[builder.getBulkDataIdsCount()];
+        for (int i = 0; i < bulkDataIds.length; i++) {
+            bulkDataIds[i] = builder.getBulkDataIds(i);
+        }
+        return new StreamChunk(
+                StreamChunk.ChunkType.valueOf(builder.getChunkType().name()),
+                builder.getSequenceNumber(),
+                builder.getSerializedElements().toByteArray(),
+                SerializationFormat.valueOf(builder.getSerializationFormat().name()),
+                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier()),
+                frameStringDefinitions,
+                bulkDataIds
+        );
+    }
+
+    @Override
+    protected byte[] toProtobuf(StreamChunk object) throws Exception {
+        MessageStreamChunk.StreamChunk.Builder builder = MessageStreamChunk.StreamChunk.newBuilder();
+        builder.setChunkType(MessageStreamChunk.StreamChunk.ChunkType.valueOf(object.getChunkType().name()));
+        builder.setSequenceNumber(object.getSequenceNumber());
+        builder.setSerializedElements(ByteString.copyFrom(object.getSerializedElements()));
+        builder.setSerializationFormat(ComponentSerializationFormat.SerializationFormat.valueOf(object.getSerializationFormat().name()));
+        builder.setRequestIdentifier(
+                requestIdentifierConverter.convertToProtobuf(object.getRequestIdentifier())
+        );
+        for (Map.Entry<Integer, String> entry : object.getFrameStringDefinitions().entrySet()) {
+            builder.addFrameStringDefinitions(
+                    ComponentFrameString.FrameString.newBuilder().setId(entry.getKey()).setValue(entry.getValue())
+            );
+        }
+        // Record the bulk data which the sending thread enqueued ahead of this message...
+        for (long bulkDataId : BulkDataStore.takeIdsSentAhead()) {
+            builder.addBulkDataIds(bulkDataId);
+        }
+        return builder.build().toByteArray();
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters.messages;
+
+import com.googlecode.mobilityrpc.protocol.converters.MessageConverter;
+import com.googlecode.mobilityrpc.protocol.converters.components.RequestIdentifierComponentConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamCredit;
+import com.googlecode.mobilityrpc.protocol.protobuf.MessageStreamCredit;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StreamCreditMessageConverter extends MessageConverter<StreamCredit> {
+
+    private final RequestIdentifierComponentConverter requestIdentifierConverter = new RequestIdentifierComponentConverter();
+
+    @Override
+    protected StreamCredit fromProtobuf(byte[] bytes) throws Exception {
+        MessageStreamCredit.StreamCredit.Builder builder = MessageStreamCredit.StreamCredit.newBuilder();
+        builder.mergeFrom(bytes);
+        return new StreamCredit(
+                builder.getCredits(),
+                builder.getCancel(),
+                requestIdentifierConverter.convertFromProtobuf(builder.getRequestIdentifier())
+        );
+    }
+
+    @Override
+    protected byte[] toProtobuf(StreamCredit object) throws Exception {
+        MessageStreamCredit.StreamCredit.Builder builder = MessageStreamCredit.StreamCredit.newBuilder();
+        builder.setCredits(object.getCredits());
+        if (object.isCancel()) {
+            builder.setCancel(true);
+        }
+        builder.setRequestIdentifier(requestIdentifierConverter.convertToProtobuf(object.getRequestIdentifier()));
+        return builder.build().toByteArray();
+    }
+}
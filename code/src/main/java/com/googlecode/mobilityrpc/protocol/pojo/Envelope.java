@@ -25,7 +25,10 @@ public class Envelope {
         RESOURCE_REQUEST,
         RESOURCE_RESPONSE,
         PING,
-        PONG
+        PONG,
+        STREAM_CHUNK,
+        STREAM_CREDIT,
+        BATCH
     }
     private final MessageType messageType;
     private final byte[] message;
@@ -57,5 +57,23 @@ public enum ExecutionMode {
      *     long-running</li>
      * </ul>
      * */
-    FIRE_AND_FORGET
+    FIRE_AND_FORGET,
+
+    /**
+     * A mode of execution in which the remote machine will return the results of a {@link java.util.concurrent.Callable}
+     * incrementally, as a stream of chunks, rather than in a single response.
+     * <ul>
+     *     <li>The {@code call()} method on the remote machine should return an {@link java.util.Iterator} or an
+     *     {@link Iterable}, and the remote machine will send the elements it provides to the local machine in
+     *     chunks</li>
+     *     <li>The local machine grants the remote machine credits to send chunks as it consumes them, so the remote
+     *     machine will only ever be a few chunks ahead of the local application, and memory usage on both machines
+     *     stays bounded regardless of the number of elements</li>
+     *     <li>If an exception occurs on the remote machine while producing elements, it will be returned to the local
+     *     machine and re-thrown to the local application when it reaches that point in the stream</li>
+     *     <li>This mode is used by the {@code executeStreaming} methods of
+     *     {@link com.googlecode.mobilityrpc.session.MobilitySession}</li>
+     * </ul>
+     */
+    STREAM_RESPONSE
 }
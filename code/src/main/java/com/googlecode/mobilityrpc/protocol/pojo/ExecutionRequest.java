@@ -15,6 +15,10 @@
  */
 package com.googlecode.mobilityrpc.protocol.pojo;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * @author Niall Gallagher
  */
@@ -24,12 +28,54 @@ public class ExecutionRequest {
     private final SerializationFormat serializationFormat;
     private final ExecutionMode executionMode;
     private final RequestIdentifier requestIdentifier;
+    private final boolean memoizable;
+    private final List<ResourceResponse.ResourceData> pushedResourceData;
+    private final byte[] codebaseFingerprint;
+    private final int unsafeFormatByteOrder;
+    private final boolean immutable;
+    private final int streamedResultChunkSize;
+    private final long[] bulkDataIds;
 
     public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, false);
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, memoizable, Collections.<ResourceResponse.ResourceData>emptyList());
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable, List<ResourceResponse.ResourceData> pushedResourceData) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, memoizable, pushedResourceData, null);
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable, List<ResourceResponse.ResourceData> pushedResourceData, byte[] codebaseFingerprint) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, memoizable, pushedResourceData, codebaseFingerprint, 0);
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable, List<ResourceResponse.ResourceData> pushedResourceData, byte[] codebaseFingerprint, int unsafeFormatByteOrder) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, memoizable, pushedResourceData, codebaseFingerprint, unsafeFormatByteOrder, false);
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable, List<ResourceResponse.ResourceData> pushedResourceData, byte[] codebaseFingerprint, int unsafeFormatByteOrder, boolean immutable) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, memoizable, pushedResourceData, codebaseFingerprint, unsafeFormatByteOrder, immutable, 0);
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable, List<ResourceResponse.ResourceData> pushedResourceData, byte[] codebaseFingerprint, int unsafeFormatByteOrder, boolean immutable, int streamedResultChunkSize) {
+        this(serializedExecutableObject, serializationFormat, executionMode, requestIdentifier, memoizable, pushedResourceData, codebaseFingerprint, unsafeFormatByteOrder, immutable, streamedResultChunkSize, new long[0]);
+    }
+
+    public ExecutionRequest(byte[] serializedExecutableObject, SerializationFormat serializationFormat, ExecutionMode executionMode, RequestIdentifier requestIdentifier, boolean memoizable, List<ResourceResponse.ResourceData> pushedResourceData, byte[] codebaseFingerprint, int unsafeFormatByteOrder, boolean immutable, int streamedResultChunkSize, long[] bulkDataIds) {
         this.serializedExecutableObject = serializedExecutableObject;
         this.serializationFormat = serializationFormat;
         this.executionMode = executionMode;
         this.requestIdentifier = requestIdentifier;
+        this.memoizable = memoizable;
+        this.pushedResourceData = pushedResourceData;
+        this.codebaseFingerprint = codebaseFingerprint;
+        this.unsafeFormatByteOrder = unsafeFormatByteOrder;
+        this.immutable = immutable;
+        this.streamedResultChunkSize = streamedResultChunkSize;
+        this.bulkDataIds = bulkDataIds;
     }
 
     public byte[] getSerializedExecutableObject() {
@@ -48,6 +94,63 @@ public class ExecutionRequest {
         return requestIdentifier;
     }
 
+    /**
+     * @return True if the executable object is a {@link com.googlecode.mobilityrpc.session.Memoizable} object, such
+     * that the response to this request may be shared with identical requests
+     */
+    public boolean isMemoizable() {
+        return memoizable;
+    }
+
+    /**
+     * @return Bytecode of classes which the client sent along with the request, expecting that the remote host will
+     * need them to deserialize or execute the executable object
+     */
+    public List<ResourceResponse.ResourceData> getPushedResourceData() {
+        return pushedResourceData;
+    }
+
+    /**
+     * @return Identifies the codebase of the client, or null if the client did not declare its codebase
+     */
+    public byte[] getCodebaseFingerprint() {
+        return codebaseFingerprint;
+    }
+
+    /**
+     * @return The byte order in which the client reads and writes
+     * {@link SerializationFormat#KRYO_UNSAFE}, or 0 if the client does not support that format, see
+     * {@link com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator}
+     */
+    public int getUnsafeFormatByteOrder() {
+        return unsafeFormatByteOrder;
+    }
+
+    /**
+     * @return True if the executable object is a {@link com.googlecode.mobilityrpc.session.Immutable} object, such
+     * that the object deserialized from this request may be reused for identical requests
+     */
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    /**
+     * @return The maximum size of the chunks in which the client can receive a streamed result, or 0 if the client
+     * requires the result to be returned in the execution response itself
+     */
+    public int getStreamedResultChunkSize() {
+        return streamedResultChunkSize;
+    }
+
+    /**
+     * @return The ids of the bulk data which the remote machine enqueued on the connection ahead of this message,
+     * if it was received from a remote machine. Outgoing messages record the bulk data enqueued ahead of them by the
+     * sending thread instead, see {@link com.googlecode.mobilityrpc.serialization.impl.BulkDataStore#takeIdsSentAhead()}
+     */
+    public long[] getBulkDataIds() {
+        return bulkDataIds;
+    }
+
     /**
      * @throws UnsupportedOperationException always, as this object is not intended to be compared for equality
      * or used as a key in a hash map.
@@ -74,6 +177,13 @@ public class ExecutionRequest {
                 ", serializationFormat=" + serializationFormat +
                 ", executionMode=" + executionMode +
                 ", requestIdentifier=" + requestIdentifier +
+                ", memoizable=" + memoizable +
+                ", pushedResourceData=" + pushedResourceData.size() + " resources" +
+                ", codebaseFingerprint=" + (codebaseFingerprint == null ? "none" : codebaseFingerprint.length + " bytes") +
+                ", unsafeFormatByteOrder=" + unsafeFormatByteOrder +
+                ", immutable=" + immutable +
+                ", streamedResultChunkSize=" + streamedResultChunkSize +
+                ", bulkDataIds=" + Arrays.toString(bulkDataIds) +
                 '}';
     }
 }
@@ -15,6 +15,10 @@
  */
 package com.googlecode.mobilityrpc.protocol.pojo;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * @author Niall Gallagher
  */
@@ -30,12 +34,36 @@ public class ExecutionResponse {
     private final byte[] serializedReturnObject;
     private final SerializationFormat serializationFormat;
     private final RequestIdentifier requestIdentifier;
+    private final int unsafeFormatByteOrder;
+    private final boolean streamed;
+    private final Map<Integer, String> frameStringDefinitions;
+    private final long[] bulkDataIds;
 
     public ExecutionResponse(ExecutionOutcome executionOutcome, byte[] serializedReturnObject, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier) {
+        this(executionOutcome, serializedReturnObject, serializationFormat, requestIdentifier, 0);
+    }
+
+    public ExecutionResponse(ExecutionOutcome executionOutcome, byte[] serializedReturnObject, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier, int unsafeFormatByteOrder) {
+        this(executionOutcome, serializedReturnObject, serializationFormat, requestIdentifier, unsafeFormatByteOrder, false);
+    }
+
+    public ExecutionResponse(ExecutionOutcome executionOutcome, byte[] serializedReturnObject, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier, int unsafeFormatByteOrder, boolean streamed) {
+        this(executionOutcome, serializedReturnObject, serializationFormat, requestIdentifier, unsafeFormatByteOrder, streamed, Collections.<Integer, String>emptyMap());
+    }
+
+    public ExecutionResponse(ExecutionOutcome executionOutcome, byte[] serializedReturnObject, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier, int unsafeFormatByteOrder, boolean streamed, Map<Integer, String> frameStringDefinitions) {
+        this(executionOutcome, serializedReturnObject, serializationFormat, requestIdentifier, unsafeFormatByteOrder, streamed, frameStringDefinitions, new long[0]);
+    }
+
+    public ExecutionResponse(ExecutionOutcome executionOutcome, byte[] serializedReturnObject, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier, int unsafeFormatByteOrder, boolean streamed, Map<Integer, String> frameStringDefinitions, long[] bulkDataIds) {
         this.executionOutcome = executionOutcome;
         this.serializedReturnObject = serializedReturnObject;
         this.serializationFormat = serializationFormat;
         this.requestIdentifier = requestIdentifier;
+        this.unsafeFormatByteOrder = unsafeFormatByteOrder;
+        this.streamed = streamed;
+        this.frameStringDefinitions = frameStringDefinitions;
+        this.bulkDataIds = bulkDataIds;
     }
 
     public ExecutionOutcome getExecutionOutcome() {
@@ -54,6 +82,40 @@ public class ExecutionResponse {
         return requestIdentifier;
     }
 
+    /**
+     * @return The byte order in which the remote host reads and writes
+     * {@link SerializationFormat#KRYO_UNSAFE}, or 0 if the remote host does not support that format, see
+     * {@link com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator}
+     */
+    public int getUnsafeFormatByteOrder() {
+        return unsafeFormatByteOrder;
+    }
+
+    /**
+     * @return True if the returned object follows in {@link StreamChunk.ChunkType#BYTES} stream chunks, instead of
+     * being contained in this response
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * @return The ids in the stack traces of the serialized exception which this message defines, mapped to the
+     * strings for which they stand, see {@link com.googlecode.mobilityrpc.serialization.impl.FrameStringTable}
+     */
+    public Map<Integer, String> getFrameStringDefinitions() {
+        return frameStringDefinitions;
+    }
+
+    /**
+     * @return The ids of the bulk data which the remote machine enqueued on the connection ahead of this message,
+     * if it was received from a remote machine. Outgoing messages record the bulk data enqueued ahead of them by the
+     * sending thread instead, see {@link com.googlecode.mobilityrpc.serialization.impl.BulkDataStore#takeIdsSentAhead()}
+     */
+    public long[] getBulkDataIds() {
+        return bulkDataIds;
+    }
+
     /**
      * @throws UnsupportedOperationException always, as this object is not intended to be compared for equality
      * or used as a key in a hash map.
@@ -81,6 +143,10 @@ public class ExecutionResponse {
                 ", serializedReturnObject=" + serializedReturnObject.length + " bytes" +
                 ", serializationFormat=" + serializationFormat +
                 ", requestIdentifier=" + requestIdentifier +
+                ", unsafeFormatByteOrder=" + unsafeFormatByteOrder +
+                ", streamed=" + streamed +
+                ", frameStringDefinitions=" + frameStringDefinitions.keySet() +
+                ", bulkDataIds=" + Arrays.toString(bulkDataIds) +
                 '}';
     }
 }
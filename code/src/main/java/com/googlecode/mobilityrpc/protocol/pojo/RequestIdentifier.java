@@ -44,6 +44,25 @@ public class RequestIdentifier {
         return requestLabel;
     }
 
+    /**
+     * Returns a request id for the given sequence number. Sequential request ids are UUIDs whose most significant
+     * bits are zero, which never occurs in randomly-generated (version 4) UUIDs, and can be transferred compactly.
+     *
+     * @param sequence The sequence number of the request within its session
+     * @return A request id for the given sequence number
+     */
+    public static UUID sequentialRequestId(long sequence) {
+        return new UUID(0L, sequence);
+    }
+
+    /**
+     * @param requestId A request id
+     * @return True if the given request id was created by {@link #sequentialRequestId(long)}, otherwise false
+     */
+    public static boolean isSequentialRequestId(UUID requestId) {
+        return requestId.getMostSignificantBits() == 0L;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
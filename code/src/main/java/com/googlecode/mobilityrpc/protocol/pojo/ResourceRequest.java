@@ -24,10 +24,16 @@ public class ResourceRequest {
 
     private final List<String> resourceNames;
     private final RequestIdentifier requestIdentifier;
+    private final boolean contentHashesOnly;
 
     public ResourceRequest(List<String> resourceNames, RequestIdentifier requestIdentifier) {
+        this(resourceNames, requestIdentifier, false);
+    }
+
+    public ResourceRequest(List<String> resourceNames, RequestIdentifier requestIdentifier, boolean contentHashesOnly) {
         this.resourceNames = resourceNames;
         this.requestIdentifier = requestIdentifier;
+        this.contentHashesOnly = contentHashesOnly;
     }
 
     public List<String> getResourceNames() {
@@ -38,6 +44,13 @@ public class ResourceRequest {
         return requestIdentifier;
     }
 
+    /**
+     * @return True if the remote machine should return the content hash of each resource instead of its data
+     */
+    public boolean isContentHashesOnly() {
+        return contentHashesOnly;
+    }
+
     /**
      * @throws UnsupportedOperationException always, as this object is not intended to be compared for equality
      * or used as a key in a hash map.
@@ -62,6 +75,7 @@ public class ResourceRequest {
         return "ResourceRequest{" +
                 "resourceNames=" + resourceNames +
                 ", requestIdentifier=" + requestIdentifier +
+                ", contentHashesOnly=" + contentHashesOnly +
                 '}';
     }
 }
@@ -42,10 +42,16 @@ public class ResourceResponse {
     public static class ResourceData {
         private final String resourceName;
         private final byte[] resourceData;
+        private final byte[] contentHash;
 
         public ResourceData(String resourceName, byte[] resourceData) {
+            this(resourceName, resourceData, null);
+        }
+
+        public ResourceData(String resourceName, byte[] resourceData, byte[] contentHash) {
             this.resourceName = resourceName;
             this.resourceData = resourceData;
+            this.contentHash = contentHash;
         }
 
         public String getResourceName() {
@@ -56,6 +62,14 @@ public class ResourceResponse {
             return resourceData;
         }
 
+        /**
+         * @return The content hash of the resource, if content hashes were requested, otherwise null. The resource
+         * data is empty if it was omitted in favour of its hash
+         */
+        public byte[] getContentHash() {
+            return contentHash;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -63,13 +77,15 @@ public class ResourceResponse {
 
             ResourceData resourceData = (ResourceData) o;
             return resourceName.equals(resourceData.resourceName)
-                    && Arrays.equals(this.resourceData, resourceData.resourceData);
+                    && Arrays.equals(this.resourceData, resourceData.resourceData)
+                    && Arrays.equals(this.contentHash, resourceData.contentHash);
         }
 
         @Override
         public int hashCode() {
             int result = resourceName.hashCode();
             result = 31 * result + Arrays.hashCode(resourceData);
+            result = 31 * result + Arrays.hashCode(contentHash);
             return result;
         }
 
@@ -78,6 +94,7 @@ public class ResourceResponse {
             return "ResourceData{" +
                     "resourceName='" + resourceName + '\'' +
                     ", resourceData=" + resourceData.length + " bytes" +
+                    (contentHash == null ? "" : ", contentHash=" + contentHash.length + " bytes") +
                     '}';
         }
     }
@@ -22,5 +22,11 @@ public enum SerializationFormat {
 
     KRYO,
     JAVA,
-    JBOSS_MARSHALLING
+    JBOSS_MARSHALLING,
+    /**
+     * Kryo, reading and writing primitive values and arrays via unsafe memory access, which is faster for
+     * primitive-heavy object graphs. The data is in the native byte order of the sending machine, so this format is
+     * only sent to machines which have indicated that they support it with the same byte order.
+     */
+    KRYO_UNSAFE
 }
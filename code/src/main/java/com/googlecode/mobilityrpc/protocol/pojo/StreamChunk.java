@@ -0,0 +1,128 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.pojo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StreamChunk {
+
+    public enum ChunkType {
+        ELEMENTS,
+        END_OF_STREAM,
+        FAILURE,
+        BYTES
+    }
+
+    private final ChunkType chunkType;
+    private final long sequenceNumber;
+    private final byte[] serializedElements;
+    private final SerializationFormat serializationFormat;
+    private final RequestIdentifier requestIdentifier;
+    private final Map<Integer, String> frameStringDefinitions;
+    private final long[] bulkDataIds;
+
+    public StreamChunk(ChunkType chunkType, long sequenceNumber, byte[] serializedElements, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier) {
+        this(chunkType, sequenceNumber, serializedElements, serializationFormat, requestIdentifier, Collections.<Integer, String>emptyMap());
+    }
+
+    public StreamChunk(ChunkType chunkType, long sequenceNumber, byte[] serializedElements, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier, Map<Integer, String> frameStringDefinitions) {
+        this(chunkType, sequenceNumber, serializedElements, serializationFormat, requestIdentifier, frameStringDefinitions, new long[0]);
+    }
+
+    public StreamChunk(ChunkType chunkType, long sequenceNumber, byte[] serializedElements, SerializationFormat serializationFormat, RequestIdentifier requestIdentifier, Map<Integer, String> frameStringDefinitions, long[] bulkDataIds) {
+        this.chunkType = chunkType;
+        this.sequenceNumber = sequenceNumber;
+        this.serializedElements = serializedElements;
+        this.serializationFormat = serializationFormat;
+        this.requestIdentifier = requestIdentifier;
+        this.frameStringDefinitions = frameStringDefinitions;
+        this.bulkDataIds = bulkDataIds;
+    }
+
+    public ChunkType getChunkType() {
+        return chunkType;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public byte[] getSerializedElements() {
+        return serializedElements;
+    }
+
+    public SerializationFormat getSerializationFormat() {
+        return serializationFormat;
+    }
+
+    public RequestIdentifier getRequestIdentifier() {
+        return requestIdentifier;
+    }
+
+    /**
+     * @return The ids in the stack traces of the serialized exception which this message defines, mapped to the
+     * strings for which they stand, see {@link com.googlecode.mobilityrpc.serialization.impl.FrameStringTable}
+     */
+    public Map<Integer, String> getFrameStringDefinitions() {
+        return frameStringDefinitions;
+    }
+
+    /**
+     * @return The ids of the bulk data which the remote machine enqueued on the connection ahead of this message,
+     * if it was received from a remote machine. Outgoing messages record the bulk data enqueued ahead of them by the
+     * sending thread instead, see {@link com.googlecode.mobilityrpc.serialization.impl.BulkDataStore#takeIdsSentAhead()}
+     */
+    public long[] getBulkDataIds() {
+        return bulkDataIds;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, as this object is not intended to be compared for equality
+     * or used as a key in a hash map.
+     */
+    @SuppressWarnings({"EqualsWhichDoesntCheckParameterClass"})
+    @Override
+    public boolean equals(Object o) {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, as this object is not intended to be compared for equality
+     * or used as a key in a hash map.
+     */
+    @Override
+    public int hashCode() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public String toString() {
+        return "StreamChunk{" +
+                "chunkType=" + chunkType +
+                ", sequenceNumber=" + sequenceNumber +
+                ", serializedElements=" + serializedElements.length + " bytes" +
+                ", serializationFormat=" + serializationFormat +
+                ", requestIdentifier=" + requestIdentifier +
+                ", frameStringDefinitions=" + frameStringDefinitions.keySet() +
+                ", bulkDataIds=" + Arrays.toString(bulkDataIds) +
+                '}';
+    }
+}
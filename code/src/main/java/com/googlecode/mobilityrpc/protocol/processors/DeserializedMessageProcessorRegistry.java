@@ -33,6 +33,8 @@ public class DeserializedMessageProcessorRegistry {
         put(ResourceResponse.class, new ResourceResponseMessageProcessor());
         put(Ping.class, new PingMessageProcessor());
         put(Pong.class, new PongMessageProcessor());
+        put(StreamChunk.class, new StreamChunkMessageProcessor());
+        put(StreamCredit.class, new StreamCreditMessageProcessor());
     }};
 
     public <T> DeserializedMessageProcessor<T> getProcessor(Class<T> messageClass) {
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.processors.impl;
+
+import com.googlecode.mobilityrpc.session.impl.ContentAddressedResourceCache;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Serves class bytecode and other resources from local class loaders to remote machines, caching the resources
+ * served, so that many remote machines requesting the same classes from this machine do not each cause the
+ * resources to be located and read from the classpath again.
+ * <p/>
+ * Resources are cached per class loader and resource name, together with their content hashes (which remote machines
+ * request before requesting resource data, see {@link ContentAddressedResourceCache}). The cache is bounded by the
+ * total size of resources it contains, and evicts the least recently used resources. The bound can be configured via
+ * system property {@code com.googlecode.mobilityrpc.resourceServer.maxBytes}, default 32MB.
+ * <p/>
+ * Optionally, setting system property {@code com.googlecode.mobilityrpc.resourceServer.jarIndex} to {@code true}
+ * causes the server to build an index of the entries in the jar files on the classpath of each class loader, allowing
+ * requests for resources which are not on the classpath to be answered without searching the classpath. The index is
+ * only used for class loaders whose classpath consists entirely of jar files, accessible via {@link URLClassLoader}s.
+ *
+ * @author Niall Gallagher
+ */
+public class ClasspathResourceServer {
+
+    static final long DEFAULT_MAX_BYTES = Long.getLong("com.googlecode.mobilityrpc.resourceServer.maxBytes", 32L * 1024 * 1024);
+    static final boolean JAR_INDEX_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.resourceServer.jarIndex");
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final long maxBytes;
+    private final boolean jarIndexEnabled;
+
+    // Access-ordered, so that iteration visits least recently used entries first...
+    private final LinkedHashMap<ResourceKey, CachedResource> cachedResources = new LinkedHashMap<ResourceKey, CachedResource>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final Map<ClassLoader, JarIndex> jarIndexes = new WeakHashMap<ClassLoader, JarIndex>();
+
+    public ClasspathResourceServer() {
+        this(DEFAULT_MAX_BYTES, JAR_INDEX_ENABLED);
+    }
+
+    public ClasspathResourceServer(long maxBytes, boolean jarIndexEnabled) {
+        this.maxBytes = maxBytes;
+        this.jarIndexEnabled = jarIndexEnabled;
+    }
+
+    /**
+     * Returns the given resource from the given class loader, from the cache if possible.
+     *
+     * @param resourceName The name of the resource, e.g. {@code com/foo/Bar.class}
+     * @param classLoader The class loader from which to load the resource
+     * @return The resource, or null if the class loader could not locate it
+     */
+    public CachedResource getResource(String resourceName, ClassLoader classLoader) {
+        ResourceKey key = new ResourceKey(classLoader, resourceName);
+        synchronized (cachedResources) {
+            CachedResource cachedResource = cachedResources.get(key);
+            if (cachedResource != null) {
+                return cachedResource;
+            }
+        }
+        if (isKnownMissing(resourceName, classLoader)) {
+            return null;
+        }
+        byte[] resourceData;
+        try {
+            resourceData = ResourceRequestMessageProcessor.getResourceFromClassLoader(resourceName, classLoader);
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        CachedResource cachedResource = new CachedResource(resourceData);
+        if (resourceData.length <= maxBytes) {
+            synchronized (cachedResources) {
+                if (cachedResources.put(key, cachedResource) == null) {
+                    totalBytes += resourceData.length;
+                }
+                for (Iterator<CachedResource> iterator = cachedResources.values().iterator(); totalBytes > maxBytes && iterator.hasNext(); ) {
+                    totalBytes -= iterator.next().getResourceData().length;
+                    iterator.remove();
+                }
+            }
+        }
+        return cachedResource;
+    }
+
+    /**
+     * @return The number of resources in the cache
+     */
+    public int size() {
+        synchronized (cachedResources) {
+            return cachedResources.size();
+        }
+    }
+
+    /**
+     * Removes all resources from the cache, and discards jar indexes.
+     */
+    public void clear() {
+        synchronized (cachedResources) {
+            cachedResources.clear();
+            totalBytes = 0;
+        }
+        synchronized (jarIndexes) {
+            jarIndexes.clear();
+        }
+    }
+
+    /**
+     * Consults the jar index for the given class loader, if enabled and usable, to determine if the resource is
+     * definitely not on its classpath.
+     */
+    boolean isKnownMissing(String resourceName, ClassLoader classLoader) {
+        if (!jarIndexEnabled) {
+            return false;
+        }
+        JarIndex jarIndex;
+        synchronized (jarIndexes) {
+            jarIndex = jarIndexes.get(classLoader);
+        }
+        if (jarIndex == null) {
+            // Build the index without holding the lock, so that requests for other class loaders are not blocked
+            // while jars are read. Concurrent requests for the same class loader may build the index redundantly...
+            JarIndex builtIndex = JarIndex.build(classLoader);
+            synchronized (jarIndexes) {
+                jarIndex = jarIndexes.get(classLoader);
+                if (jarIndex == null) {
+                    jarIndex = builtIndex;
+                    jarIndexes.put(classLoader, jarIndex);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.log(Level.FINE, jarIndex.entries == null
+                                ? "Classpath of class loader cannot be indexed, will search classpath for each resource: " + classLoader
+                                : "Indexed " + jarIndex.entries.size() + " jar entries on classpath of class loader: " + classLoader);
+                    }
+                }
+            }
+        }
+        if (jarIndex.entries == null || jarIndex.entries.contains(resourceName)) {
+            return false;
+        }
+        // Not in any jar, but might still be provided by the JDK...
+        return jarIndex.jdkClassLoader == null
+                ? ClassLoader.getSystemResource(resourceName) == null && Object.class.getResource("/" + resourceName) == null
+                : jarIndex.jdkClassLoader.getResource(resourceName) == null;
+    }
+
+    /**
+     * A resource read from a class loader, along with its content hash, which is computed when first needed.
+     */
+    public static class CachedResource {
+        private final byte[] resourceData;
+        private volatile byte[] contentHash;
+
+        CachedResource(byte[] resourceData) {
+            this.resourceData = resourceData;
+        }
+
+        public byte[] getResourceData() {
+            return resourceData;
+        }
+
+        public byte[] getContentHash() {
+            byte[] hash = contentHash;
+            if (hash == null) {
+                hash = ContentAddressedResourceCache.computeContentHash(resourceData);
+                contentHash = hash;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Identifies a resource by its name and the class loader from which it was loaded. Holds the class loader weakly,
+     * so that cached resources do not prevent class loaders from being garbage collected.
+     */
+    static class ResourceKey {
+        final WeakReference<ClassLoader> classLoader;
+        final String resourceName;
+        final int hashCode;
+
+        ResourceKey(ClassLoader classLoader, String resourceName) {
+            this.classLoader = new WeakReference<ClassLoader>(classLoader);
+            this.resourceName = resourceName;
+            this.hashCode = 31 * System.identityHashCode(classLoader) + resourceName.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ResourceKey that = (ResourceKey) o;
+            ClassLoader thisClassLoader = classLoader.get();
+            return thisClassLoader != null && thisClassLoader == that.classLoader.get() && resourceName.equals(that.resourceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The names of all entries in the jar files on the classpath of a class loader, including jars referenced by the
+     * {@code Class-Path} attributes of the manifests of those jars, which {@link URLClassLoader} also searches.
+     */
+    static class JarIndex {
+        // Null if the classpath could not be indexed...
+        final Set<String> entries;
+        // The first ancestor class loader which is not a URLClassLoader, which is assumed to load only JDK classes...
+        final ClassLoader jdkClassLoader;
+
+        JarIndex(Set<String> entries, ClassLoader jdkClassLoader) {
+            this.entries = entries;
+            this.jdkClassLoader = jdkClassLoader;
+        }
+
+        static JarIndex build(ClassLoader classLoader) {
+            List<URL> classpath = new ArrayList<URL>();
+            ClassLoader current = classLoader;
+            while (current instanceof URLClassLoader) {
+                classpath.addAll(Arrays.asList(((URLClassLoader) current).getURLs()));
+                current = current.getParent();
+            }
+            if (current == classLoader) {
+                return new JarIndex(null, null);
+            }
+            Set<String> entries = new HashSet<String>();
+            Set<String> visitedUrls = new HashSet<String>();
+            LinkedList<URL> urlsToIndex = new LinkedList<URL>(classpath);
+            while (!urlsToIndex.isEmpty()) {
+                URL url = urlsToIndex.removeFirst();
+                if (!visitedUrls.add(url.toExternalForm())) {
+                    continue;
+                }
+                if (!"file".equals(url.getProtocol()) || !url.getPath().endsWith(".jar")) {
+                    // e.g. a directory, which could change, so we cannot index the classpath...
+                    return new JarIndex(null, null);
+                }
+                JarFile jarFile = null;
+                try {
+                    jarFile = new JarFile(new File(url.toURI()));
+                    for (Enumeration<? extends ZipEntry> jarEntries = jarFile.entries(); jarEntries.hasMoreElements(); ) {
+                        entries.add(jarEntries.nextElement().getName());
+                    }
+                    // Index jars referenced by the manifest, relative to this jar, as URLClassLoader would search them...
+                    Manifest manifest = jarFile.getManifest();
+                    String manifestClasspath = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+                    if (manifestClasspath != null) {
+                        for (StringTokenizer tokenizer = new StringTokenizer(manifestClasspath); tokenizer.hasMoreTokens(); ) {
+                            urlsToIndex.add(new URL(url, tokenizer.nextToken()));
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    return new JarIndex(null, null);
+                }
+                finally {
+                    if (jarFile != null) {
+                        try {
+                            jarFile.close();
+                        }
+                        catch (Exception ignore) {
+                            // Ignore
+                        }
+                    }
+                }
+            }
+            return new JarIndex(entries, current);
+        }
+    }
+}
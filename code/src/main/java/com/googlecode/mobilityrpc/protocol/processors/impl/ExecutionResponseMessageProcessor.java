@@ -38,7 +38,10 @@ public class ExecutionResponseMessageProcessor implements DeserializedMessagePro
             MobilitySessionInternal session = mobilityController.getMessageHandlingSession(sessionId);
             // No need to pass ConnectionId to session, since calling thread will be blocked with the same
             // ConnectionId on its stack...
-            session.receiveExecutionResponse(executionResponse);
+            if (!session.receiveExecutionResponse(executionResponse)) {
+                // The response was discarded without being deserialized, release any bulk data sent ahead of it...
+                mobilityController.getBulkDataStore().releaseIncoming(connectionId, executionResponse.getBulkDataIds());
+            }
         }
         catch (Exception e) {
             throw new IllegalStateException("Failed to process execution response: " + executionResponse);
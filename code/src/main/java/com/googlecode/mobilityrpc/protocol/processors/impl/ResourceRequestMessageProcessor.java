@@ -19,14 +19,16 @@ import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
 import com.googlecode.mobilityrpc.network.ConnectionId;
 import com.googlecode.mobilityrpc.network.ConnectionManager;
 import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
-import com.googlecode.mobilityrpc.session.MobilitySession;
+import com.googlecode.mobilityrpc.session.impl.ContentAddressedResourceCache;
+import com.googlecode.mobilityrpc.session.impl.MobilitySessionInternal;
+import com.googlecode.mobilityrpc.session.impl.SessionClassLoader;
 import com.googlecode.mobilityrpc.protocol.pojo.ResourceRequest;
 import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
 import com.googlecode.mobilityrpc.protocol.processors.DeserializedMessageProcessor;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,33 +38,62 @@ import java.util.logging.Logger;
  */
 public class ResourceRequestMessageProcessor implements DeserializedMessageProcessor<ResourceRequest> {
 
+    /**
+     * The maximum size of resources whose data is returned along with their content hashes, in response to requests
+     * for content hashes, so that fetching small resources never costs a second round trip.
+     */
+    static final int INLINE_DATA_MAX_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.contentCache.inlineDataMaxBytes", 16384);
+
     private final Logger logger = Logger.getLogger(getClass().getName());
 
+    private final ClasspathResourceServer resourceServer = new ClasspathResourceServer();
+
     @Override
     public void process(MobilityControllerInternal mobilityController, ConnectionManager connectionManager, ConnectionId connectionId, ResourceRequest resourceRequest) {
         RequestIdentifier requestIdentifier = resourceRequest.getRequestIdentifier();
-        MobilitySession session = mobilityController.getSession(requestIdentifier.getSessionId());
-        if (resourceRequest.getResourceNames().size() != 1) {
-            // Note: although the protocol supports returning multiple classes/resources in a single round-trip,
-            // this optimization has not yet been implemented.
-            // Throw exception if we receive such a request for multiple resources...
-            throw new IllegalStateException("Unsupported number of resources requested, expected one resource: " + resourceRequest.getResourceNames());
-        }
-        final String requestedResourceName = resourceRequest.getResourceNames().get(0);
-        byte[] resourceData;
-        try {
-            resourceData = getResourceFromClassLoader(requestedResourceName, session.getSessionClassLoader());
-        }
-        catch (ClassNotFoundException e) {
-            resourceData = null;
-        }
-
-        List<ResourceResponse.ResourceData> resourceDataListToReturn;
-        if (resourceData != null) {
-            resourceDataListToReturn = Collections.singletonList(new ResourceResponse.ResourceData(requestedResourceName, resourceData));
-        }
-        else {
-            resourceDataListToReturn = Collections.emptyList();
+        MobilitySessionInternal session = mobilityController.getMessageHandlingSession(requestIdentifier.getSessionId());
+        // Return all of the requested classes/resources which we can locate in a single response...
+        List<String> requestedResourceNames = resourceRequest.getResourceNames();
+        List<ResourceResponse.ResourceData> resourceDataListToReturn = new ArrayList<ResourceResponse.ResourceData>(requestedResourceNames.size());
+        List<String> resourceNamesReturned = new ArrayList<String>(requestedResourceNames.size());
+        SessionClassLoader sessionClassLoader = session.getSessionClassLoader();
+        for (String requestedResourceName : requestedResourceNames) {
+            byte[] resourceData;
+            byte[] contentHash = null;
+            // Classes on the local classpath are cached by the resource server, which is shared by all sessions...
+            ClasspathResourceServer.CachedResource cachedResource = resourceServer.getResource(requestedResourceName, sessionClassLoader.getParent());
+            if (cachedResource != null) {
+                resourceData = cachedResource.getResourceData();
+                if (resourceRequest.isContentHashesOnly()) {
+                    contentHash = cachedResource.getContentHash();
+                }
+            }
+            else {
+                // Mobile code this session received from another machine...
+                resourceData = sessionClassLoader.getReceivedResourceData(requestedResourceName);
+                if (resourceData == null) {
+                    if (logger.isLoggable(Level.FINER)) {
+                        logger.log(Level.FINER, "Failed to locate class bytecode or resource '" + requestedResourceName + "'");
+                    }
+                    continue;
+                }
+                if (resourceRequest.isContentHashesOnly()) {
+                    contentHash = ContentAddressedResourceCache.computeContentHash(resourceData);
+                }
+            }
+            if (resourceRequest.isContentHashesOnly() && resourceData.length > INLINE_DATA_MAX_BYTES) {
+                // The remote machine will check its cache for the hash, and request the data only if not found...
+                resourceDataListToReturn.add(new ResourceResponse.ResourceData(requestedResourceName, new byte[0], contentHash));
+            }
+            else if (resourceRequest.isContentHashesOnly()) {
+                // Small enough to return inline, with its hash so that the remote machine need not compute it...
+                resourceDataListToReturn.add(new ResourceResponse.ResourceData(requestedResourceName, resourceData, contentHash));
+                resourceNamesReturned.add(requestedResourceName);
+            }
+            else {
+                resourceDataListToReturn.add(new ResourceResponse.ResourceData(requestedResourceName, resourceData));
+                resourceNamesReturned.add(requestedResourceName);
+            }
         }
         // Prepare ResourceResponse...
         ResourceResponse resourceResponse = new ResourceResponse(
@@ -70,29 +101,24 @@ public class ResourceRequestMessageProcessor implements DeserializedMessageProce
                 requestIdentifier
         );
         mobilityController.sendOutgoingMessage(connectionId, resourceResponse);
+        // Record that the remote machine now has these resources, so the session will not push them again...
+        session.recordResourcesSent(connectionId, resourceNamesReturned);
         if (logger.isLoggable(Level.FINER)) {
-            if (resourceResponse.getResourceDataResponses().isEmpty()) {
-                logger.log(Level.FINER, "Failed to locate class bytecode or resource '" + requestedResourceName + "', returned response: " + resourceResponse);
-            }
-            else {
-                logger.log(Level.FINER, "Successfully located class bytecode or resource '" + requestedResourceName + "', returned response: " + resourceResponse);
-            }
+            logger.log(Level.FINER, "Located " + resourceNamesReturned.size() + " of " + requestedResourceNames.size() + " classes or resources requested " + requestedResourceNames + ", returned response: " + resourceResponse);
         }
     }
 
     public static byte[] getResourceFromClassLoader(String resourceName, ClassLoader classLoader) throws ClassNotFoundException {
+        InputStream inputStream = null;
         try {
-//            String resourceName = resourceName.replace('.', '/') + ".class";
-            InputStream inputStream = classLoader.getResourceAsStream(resourceName);
+            inputStream = classLoader.getResourceAsStream(resourceName);
             if (inputStream == null) {
                 throw new ClassNotFoundException("Class loader could not locate class bytecode or resource '" + resourceName + "' via class loader '" + classLoader + "'");
             }
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            for (int value = 0; value != -1;) {
-                value = inputStream.read();
-                if (value != -1) {
-                    byteArrayOutputStream.write(value);
-                }
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(Math.max(inputStream.available(), 1024));
+            byte[] buffer = new byte[8192];
+            for (int bytesRead = inputStream.read(buffer); bytesRead != -1; bytesRead = inputStream.read(buffer)) {
+                byteArrayOutputStream.write(buffer, 0, bytesRead);
             }
             return byteArrayOutputStream.toByteArray();
         }
@@ -102,7 +128,17 @@ public class ResourceRequestMessageProcessor implements DeserializedMessageProce
         }
         catch (Exception e) {
             // Catch and rethrow other unexpected exceptions...
-            throw new IllegalStateException("Failed to load class bytecode or resource: " + resourceName + ", class loader: " + classLoader);
+            throw new IllegalStateException("Failed to load class bytecode or resource: " + resourceName + ", class loader: " + classLoader, e);
+        }
+        finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                }
+                catch (Exception ignore) {
+                    // Ignore
+                }
+            }
         }
     }
 
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.processors.impl;
+
+import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.ConnectionManager;
+import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.protocol.processors.DeserializedMessageProcessor;
+import com.googlecode.mobilityrpc.session.impl.MobilitySessionInternal;
+
+import java.util.UUID;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StreamChunkMessageProcessor implements DeserializedMessageProcessor<StreamChunk> {
+
+    @Override
+    public void process(MobilityControllerInternal mobilityController, ConnectionManager connectionManager, ConnectionId connectionId, StreamChunk streamChunk) {
+        try {
+            RequestIdentifier requestIdentifier = streamChunk.getRequestIdentifier();
+            UUID sessionId = requestIdentifier.getSessionId();
+            MobilitySessionInternal session = mobilityController.getMessageHandlingSession(sessionId);
+            // No need to pass ConnectionId to session, since the thread consuming the stream will have the same
+            // ConnectionId on its stack...
+            if (!session.receiveStreamChunk(streamChunk)) {
+                // The chunk was discarded without being deserialized, release any bulk data sent ahead of it...
+                mobilityController.getBulkDataStore().releaseIncoming(connectionId, streamChunk.getBulkDataIds());
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to process stream chunk: " + streamChunk, e);
+        }
+    }
+}
@@ -15,6 +15,10 @@
  */
 package com.googlecode.mobilityrpc.serialization;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * @author Niall Gallagher
  */
@@ -23,4 +27,53 @@ public interface Serializer {
     byte[] serialize(Object object);
 
     Object deserialize(byte[] serialiedData);
+
+    /**
+     * Serializes the given object into the given buffer, starting at its current position, and advances the
+     * position of the buffer past the serialized data.
+     *
+     * @param object The object to serialize
+     * @param buffer The buffer into which the object should be written
+     * @return The number of bytes written
+     * @throws java.nio.BufferOverflowException If the buffer has insufficient space remaining
+     */
+    int serialize(Object object, ByteBuffer buffer);
+
+    /**
+     * Deserializes an object from the given region of the given array, without copying the data.
+     *
+     * @param serializedData An array containing the serialized object
+     * @param offset The offset of the serialized object within the array
+     * @param length The length of the serialized object
+     * @return The deserialized object
+     */
+    Object deserialize(byte[] serializedData, int offset, int length);
+
+    /**
+     * Deserializes an object from the given buffer, starting at its current position, and advances the position of the
+     * buffer past the data read.
+     *
+     * @param buffer The buffer from which the object should be read
+     * @return The deserialized object
+     */
+    Object deserialize(ByteBuffer buffer);
+
+    /**
+     * Serializes the given object to the given stream, writing the serialized data to the stream incrementally as it
+     * is produced, such that the serialized form is never held in memory in its entirety. The stream is flushed but
+     * not closed.
+     *
+     * @param object The object to serialize
+     * @param outputStream The stream to which the object should be written
+     */
+    void serialize(Object object, OutputStream outputStream);
+
+    /**
+     * Deserializes an object from the given stream, reading the serialized data incrementally as it is consumed. The
+     * stream might be read beyond the end of the serialized object, and is not closed.
+     *
+     * @param inputStream The stream from which the object should be read
+     * @return The deserialized object
+     */
+    Object deserialize(InputStream inputStream);
 }
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.session.BulkData;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Kryo serializer for {@link BulkData}, which writes only the id and length of the data when a
+ * {@link BulkDataStore} is associated with the current thread, leaving the data itself to be sent as a raw segment
+ * on the connection. Otherwise, or if the data is smaller than {@link BulkDataStore#MIN_SIDE_CHANNEL_BYTES}, it
+ * writes the data inline.
+ *
+ * @author Niall Gallagher
+ */
+public class BulkDataSerializer extends com.esotericsoftware.kryo.Serializer<BulkData> {
+
+    public BulkDataSerializer() {
+        super(false, true);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, BulkData bulkData) {
+        BulkDataStore bulkDataStore = BulkDataStore.getCurrentStore();
+        long length = bulkData.getLength();
+        if (bulkDataStore != null && length >= BulkDataStore.MIN_SIDE_CHANNEL_BYTES) {
+            output.writeBoolean(true);
+            output.writeLong(bulkDataStore.registerOutgoing(bulkData), true);
+            output.writeLong(length, true);
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Bulk data of " + length + " bytes is too large to serialize inline, it can only be sent in an execution request or response: " + bulkData);
+        }
+        output.writeBoolean(false);
+        output.writeInt((int) length, true);
+        ByteBuffer buffer = bulkData.getByteBuffer();
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int chunkLength = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, chunkLength);
+            output.writeBytes(chunk, 0, chunkLength);
+        }
+    }
+
+    @Override
+    public BulkData read(Kryo kryo, Input input, Class<BulkData> type) {
+        boolean sideChannel = input.readBoolean();
+        if (!sideChannel) {
+            int length = input.readInt(true);
+            return BulkData.wrap(input.readBytes(length));
+        }
+        long bulkDataId = input.readLong(true);
+        long length = input.readLong(true);
+        BulkDataStore bulkDataStore = BulkDataStore.getCurrentStore();
+        ConnectionId connectionId = BulkDataStore.getCurrentConnectionId();
+        if (bulkDataStore == null || connectionId == null) {
+            throw new IllegalStateException("Cannot resolve bulk data with id " + bulkDataId + ", no connection is associated with the current thread");
+        }
+        BulkData bulkData = bulkDataStore.claimIncoming(connectionId, bulkDataId);
+        if (bulkData.getLength() != length) {
+            throw new IllegalStateException("Bulk data with id " + bulkDataId + " received from connection " + connectionId + " has length " + bulkData.getLength() + ", expected: " + length);
+        }
+        return bulkData;
+    }
+}
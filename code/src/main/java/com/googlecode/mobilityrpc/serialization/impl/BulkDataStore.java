@@ -0,0 +1,422 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.googlecode.mobilityrpc.common.util.IOUtil;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.OutgoingBulkData;
+import com.googlecode.mobilityrpc.session.BulkData;
+import com.googlecode.mobilityrpc.session.impl.HashedWheelTimer;
+import com.googlecode.mobilityrpc.session.impl.PendingRequestTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Assigns ids to {@link BulkData} sent to remote machines, and holds bulk data received from remote machines until
+ * the objects which refer to it are deserialized.
+ * <p/>
+ * This follows the same scheme as {@link ClassIdTable}. The store and the connection for which an object is being
+ * serialized or deserialized are associated with the thread via {@link #setCurrentConnection}, so that they are
+ * available to {@link BulkDataSerializer}. When an object is serialized, the serializer registers each block of bulk
+ * data it encounters with the store, and writes only its id and length. The thread must then enqueue the bulk data
+ * returned by {@link #takePendingOutgoing()} on the connection, before the message containing the serialized object.
+ * Bulk data is serialized inline when no store is associated with the thread.
+ * <p/>
+ * Bulk data received from a connection is read into a direct buffer, or into a temporary file if it is larger than
+ * {@code com.googlecode.mobilityrpc.bulkData.maxDirectBufferBytes} (default 16MB). Temporary files are created in
+ * the directory given by {@code com.googlecode.mobilityrpc.bulkData.temporaryDirectory}, by default
+ * {@code java.io.tmpdir}.
+ * <p/>
+ * The ids of the bulk data enqueued ahead of a message are also recorded in the message (see
+ * {@link #takeIdsSentAhead()}), so that if the remote machine discards the message without deserializing it, for
+ * example because it is a response to a request which timed out, or if deserializing it fails, it can release the
+ * bulk data via {@link #releaseIncoming}. Bulk data which is never claimed or released nonetheless expires after
+ * {@code com.googlecode.mobilityrpc.bulkData.unclaimedExpiryMillis} (default 5 minutes), and is released when its
+ * connection is closed.
+ *
+ * @author Niall Gallagher
+ */
+public class BulkDataStore {
+
+    /**
+     * Bulk data smaller than this is serialized inline, because sending it separately would not save any copying.
+     */
+    public static final long MIN_SIDE_CHANNEL_BYTES = Long.getLong("com.googlecode.mobilityrpc.bulkData.minSideChannelBytes", 65536);
+
+    static final long DEFAULT_MAX_DIRECT_BUFFER_BYTES = Long.getLong("com.googlecode.mobilityrpc.bulkData.maxDirectBufferBytes", 16 * 1024 * 1024);
+
+    static final long DEFAULT_UNCLAIMED_EXPIRY_MILLIS = Long.getLong("com.googlecode.mobilityrpc.bulkData.unclaimedExpiryMillis", 300000);
+
+    private static final long[] NO_IDS = new long[0];
+
+    private static final ThreadLocal<BulkDataStore> currentStore = new ThreadLocal<BulkDataStore>();
+    private static final ThreadLocal<ConnectionId> currentConnectionId = new ThreadLocal<ConnectionId>();
+    private static final ThreadLocal<List<OutgoingBulkData>> pendingOutgoing = new ThreadLocal<List<OutgoingBulkData>>();
+    private static final ThreadLocal<long[]> idsSentAhead = new ThreadLocal<long[]>();
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final AtomicLong nextOutgoingId = new AtomicLong();
+    private final ConcurrentMap<ConnectionId, ConcurrentMap<Long, BulkData>> incoming = new ConcurrentHashMap<ConnectionId, ConcurrentMap<Long, BulkData>>();
+
+    private final long maxDirectBufferBytes;
+    private final File temporaryDirectory;
+    private final long unclaimedExpiryMillis;
+
+    public BulkDataStore() {
+        this(DEFAULT_MAX_DIRECT_BUFFER_BYTES, getDefaultTemporaryDirectory());
+    }
+
+    /**
+     * @param maxDirectBufferBytes Bulk data received which is larger than this is stored in a temporary file
+     * @param temporaryDirectory The directory in which to create temporary files, or null for the default
+     */
+    public BulkDataStore(long maxDirectBufferBytes, File temporaryDirectory) {
+        this(maxDirectBufferBytes, temporaryDirectory, DEFAULT_UNCLAIMED_EXPIRY_MILLIS);
+    }
+
+    /**
+     * @param maxDirectBufferBytes Bulk data received which is larger than this is stored in a temporary file
+     * @param temporaryDirectory The directory in which to create temporary files, or null for the default
+     * @param unclaimedExpiryMillis The time after which bulk data received which has not been claimed is released
+     */
+    public BulkDataStore(long maxDirectBufferBytes, File temporaryDirectory, long unclaimedExpiryMillis) {
+        this.maxDirectBufferBytes = maxDirectBufferBytes;
+        this.temporaryDirectory = temporaryDirectory;
+        this.unclaimedExpiryMillis = unclaimedExpiryMillis;
+    }
+
+    /**
+     * Associates the given store and connection with the current thread, while it serializes or deserializes an
+     * object for the connection. Associating a store also discards any bulk data registered by objects previously
+     * serialized by the thread, however disassociating it (supplying null) retains that bulk data, so that
+     * {@link #takePendingOutgoing()} can be called afterwards.
+     *
+     * @param bulkDataStore The controller's store, or null to disassociate the current store
+     * @param connectionId The connection to or from which the object is being sent, or null
+     */
+    public static void setCurrentConnection(BulkDataStore bulkDataStore, ConnectionId connectionId) {
+        currentStore.set(bulkDataStore);
+        currentConnectionId.set(connectionId);
+        if (bulkDataStore != null) {
+            pendingOutgoing.remove();
+        }
+    }
+
+    /**
+     * @return The store associated with the current thread, or null if none is associated
+     */
+    public static BulkDataStore getCurrentStore() {
+        return currentStore.get();
+    }
+
+    /**
+     * @return The connection associated with the current thread, or null if none is associated
+     */
+    public static ConnectionId getCurrentConnectionId() {
+        return currentConnectionId.get();
+    }
+
+    /**
+     * Returns the bulk data registered by objects serialized by the current thread since a store was last associated
+     * with it, and forgets it.
+     *
+     * @return The bulk data to enqueue on the connection before the message, which might be empty
+     */
+    public static List<OutgoingBulkData> takePendingOutgoing() {
+        List<OutgoingBulkData> pending = pendingOutgoing.get();
+        if (pending == null) {
+            idsSentAhead.remove();
+            return Collections.emptyList();
+        }
+        pendingOutgoing.remove();
+        long[] ids = new long[pending.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = pending.get(i).getBulkDataId();
+        }
+        idsSentAhead.set(ids);
+        return pending;
+    }
+
+    /**
+     * Returns the ids of the bulk data last returned to the current thread by {@link #takePendingOutgoing()}, and
+     * forgets them. Called when converting the message which the thread enqueues after that bulk data, to record in
+     * the message the bulk data which it refers to.
+     *
+     * @return The ids of the bulk data enqueued ahead of the message, which might be empty
+     */
+    public static long[] takeIdsSentAhead() {
+        long[] ids = idsSentAhead.get();
+        if (ids == null) {
+            return NO_IDS;
+        }
+        idsSentAhead.remove();
+        return ids;
+    }
+
+    /**
+     * Assigns an id to the given bulk data, and records that the current thread must send it. If the same instance
+     * was already registered by the current thread, for example because parts of the same object were serialized
+     * separately, returns the id already assigned.
+     *
+     * @param bulkData The bulk data encountered while serializing an object
+     * @return The id assigned to the bulk data
+     */
+    public long registerOutgoing(BulkData bulkData) {
+        List<OutgoingBulkData> pending = pendingOutgoing.get();
+        if (pending == null) {
+            pending = new ArrayList<OutgoingBulkData>(1);
+            pendingOutgoing.set(pending);
+        }
+        for (OutgoingBulkData registered : pending) {
+            if (((OutgoingBulkDataAdapter) registered).bulkData == bulkData) {
+                return registered.getBulkDataId();
+            }
+        }
+        long bulkDataId = nextOutgoingId.getAndIncrement();
+        pending.add(new OutgoingBulkDataAdapter(bulkDataId, bulkData));
+        return bulkDataId;
+    }
+
+    /**
+     * Reads bulk data from a connection, and holds it until it is claimed by {@link #claimIncoming}, released by
+     * {@link #releaseIncoming}, or it expires.
+     *
+     * @param connectionId Identifies the connection from which the bulk data is being received
+     * @param bulkDataId The id assigned to the bulk data by the sending machine
+     * @param length The number of bytes to read
+     * @param source The channel from which to read exactly the given number of bytes
+     */
+    public void receiveIncoming(ConnectionId connectionId, long bulkDataId, long length, ReadableByteChannel source) {
+        BulkData bulkData = length <= maxDirectBufferBytes
+                ? readIntoDirectBuffer(source, (int) length)
+                : readIntoTemporaryFile(source, length);
+        ConcurrentMap<Long, BulkData> connectionData = incoming.get(connectionId);
+        if (connectionData == null) {
+            ConcurrentMap<Long, BulkData> newConnectionData = new ConcurrentHashMap<Long, BulkData>();
+            connectionData = incoming.putIfAbsent(connectionId, newConnectionData);
+            if (connectionData == null) {
+                connectionData = newConnectionData;
+            }
+        }
+        connectionData.put(bulkDataId, bulkData);
+        PendingRequestTable.timer.schedule(new UnclaimedBulkData(connectionId, connectionData, bulkDataId, bulkData), unclaimedExpiryMillis);
+    }
+
+    /**
+     * Returns the bulk data with the given id received from the given connection, and forgets it.
+     *
+     * @param connectionId Identifies the connection from which the bulk data was received
+     * @param bulkDataId The id assigned to the bulk data by the sending machine
+     * @return The bulk data
+     * @throws IllegalStateException If no such bulk data has been received, or it expired before it was claimed
+     */
+    public BulkData claimIncoming(ConnectionId connectionId, long bulkDataId) {
+        ConcurrentMap<Long, BulkData> connectionData = incoming.get(connectionId);
+        BulkData bulkData = connectionData == null ? null : connectionData.remove(bulkDataId);
+        if (bulkData == null) {
+            throw new IllegalStateException("No bulk data with id " + bulkDataId + " has been received from connection, or it was not claimed within " + unclaimedExpiryMillis + " milliseconds: " + connectionId);
+        }
+        return bulkData;
+    }
+
+    /**
+     * Releases any of the bulk data with the given ids received from the given connection which was not claimed,
+     * because the message which referred to it was discarded or could not be deserialized.
+     *
+     * @param connectionId Identifies the connection from which the bulk data was received
+     * @param bulkDataIds The ids of the bulk data referred to by the message, see {@link #takeIdsSentAhead()}
+     */
+    public void releaseIncoming(ConnectionId connectionId, long[] bulkDataIds) {
+        ConcurrentMap<Long, BulkData> connectionData = bulkDataIds.length == 0 ? null : incoming.get(connectionId);
+        if (connectionData == null) {
+            return;
+        }
+        for (long bulkDataId : bulkDataIds) {
+            BulkData bulkData = connectionData.remove(bulkDataId);
+            if (bulkData != null) {
+                bulkData.release();
+            }
+        }
+    }
+
+    /**
+     * @return The number of blocks of bulk data received which have not been claimed
+     */
+    public int getIncomingCount() {
+        int count = 0;
+        for (ConcurrentMap<Long, BulkData> connectionData : incoming.values()) {
+            count += connectionData.size();
+        }
+        return count;
+    }
+
+    /**
+     * Releases any bulk data received from the given connection which was not claimed.
+     *
+     * @param connectionId Identifies the connection which was closed
+     */
+    public void notifyConnectionClosed(ConnectionId connectionId) {
+        ConcurrentMap<Long, BulkData> connectionData = incoming.remove(connectionId);
+        if (connectionData != null) {
+            // Remove entries individually, so that they are not released again when they expire...
+            for (Long bulkDataId : connectionData.keySet()) {
+                BulkData bulkData = connectionData.remove(bulkDataId);
+                if (bulkData != null) {
+                    bulkData.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases all bulk data received which was not claimed.
+     */
+    public void clear() {
+        for (ConnectionId connectionId : incoming.keySet()) {
+            notifyConnectionClosed(connectionId);
+        }
+    }
+
+    BulkData readIntoDirectBuffer(ReadableByteChannel source, int length) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0) {
+                    throw new IOException("Stream was closed while reading byte " + buffer.position() + " of " + length);
+                }
+            }
+            buffer.flip();
+            return BulkData.wrap(buffer);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to read " + length + " bytes of bulk data into direct buffer", e);
+        }
+    }
+
+    BulkData readIntoTemporaryFile(ReadableByteChannel source, long length) {
+        File file = null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            file = File.createTempFile("mobility-rpc-bulk-data-", ".tmp", temporaryDirectory);
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long position = 0;
+            while (position < length) {
+                long bytesTransferred = fileChannel.transferFrom(source, position, length - position);
+                if (bytesTransferred <= 0) {
+                    // transferFrom does not distinguish end-of-stream, check for it explicitly...
+                    ByteBuffer probe = ByteBuffer.allocate(1);
+                    if (source.read(probe) < 0) {
+                        throw new IOException("Stream was closed while reading byte " + position + " of " + length);
+                    }
+                    probe.flip();
+                    fileChannel.write(probe, position);
+                    bytesTransferred = 1;
+                }
+                position += bytesTransferred;
+            }
+            randomAccessFile.close();
+            return BulkData.fromTemporaryFile(file);
+        }
+        catch (Exception e) {
+            IOUtil.closeQuietly(randomAccessFile);
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            throw new IllegalStateException("Failed to read " + length + " bytes of bulk data into temporary file: " + file, e);
+        }
+    }
+
+    static File getDefaultTemporaryDirectory() {
+        String temporaryDirectory = System.getProperty("com.googlecode.mobilityrpc.bulkData.temporaryDirectory");
+        return temporaryDirectory == null ? null : new File(temporaryDirectory);
+    }
+
+    /**
+     * Releases bulk data received which has not been claimed or released when it expires.
+     */
+    class UnclaimedBulkData implements HashedWheelTimer.Expirable {
+
+        private final ConnectionId connectionId;
+        private final ConcurrentMap<Long, BulkData> connectionData;
+        private final long bulkDataId;
+        private final BulkData bulkData;
+
+        UnclaimedBulkData(ConnectionId connectionId, ConcurrentMap<Long, BulkData> connectionData, long bulkDataId, BulkData bulkData) {
+            this.connectionId = connectionId;
+            this.connectionData = connectionData;
+            this.bulkDataId = bulkDataId;
+            this.bulkData = bulkData;
+        }
+
+        @Override
+        public boolean isDone() {
+            return connectionData.get(bulkDataId) != bulkData;
+        }
+
+        @Override
+        public void expire() {
+            if (connectionData.remove(bulkDataId, bulkData)) {
+                bulkData.release();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Released bulk data with id " + bulkDataId + " which was not claimed within " + unclaimedExpiryMillis + " milliseconds, from connection: " + connectionId);
+                }
+            }
+        }
+    }
+
+    static class OutgoingBulkDataAdapter implements OutgoingBulkData {
+
+        private final long bulkDataId;
+        private final BulkData bulkData;
+
+        OutgoingBulkDataAdapter(long bulkDataId, BulkData bulkData) {
+            this.bulkDataId = bulkDataId;
+            this.bulkData = bulkData;
+        }
+
+        @Override
+        public long getBulkDataId() {
+            return bulkDataId;
+        }
+
+        @Override
+        public long getLength() {
+            return bulkData.getLength();
+        }
+
+        @Override
+        public void transferTo(WritableByteChannel target) throws IOException {
+            bulkData.transferTo(target);
+        }
+    }
+}
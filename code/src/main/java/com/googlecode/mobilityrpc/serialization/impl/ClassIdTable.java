@@ -0,0 +1,172 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps the names of classes to small ids, for a single connection, so that the names of classes in serialized objects
+ * can be sent once and replaced by their ids in subsequent messages, when compact class ids are enabled.
+ * <p/>
+ * Each machine assigns ids for the classes it sends (outgoing ids), and learns the ids assigned by the machine at the
+ * other end of the connection for the classes it receives (incoming ids). The sender includes both the class name and
+ * its id in messages, until the machine at the other end has acknowledged processing a message containing both, by
+ * returning a successful response to it, and after that includes only the id. Therefore an id is always defined on
+ * the receiving machine before any message containing only the id can arrive, and resolving an incoming id never
+ * waits.
+ * <p/>
+ * Ids stand for class names rather than classes, and are resolved to classes by the class loader of the session
+ * deserializing the object, so the table is shared by all sessions on the connection, and is retained until the
+ * connection is closed. A session being released on one machine therefore does not invalidate ids which the machine
+ * at the other end continues to use.
+ * <p/>
+ * The table for the connection for which an object is being serialized or deserialized is associated with the
+ * thread via {@link #setCurrentTable}, so that it is available to {@link CompactClassResolver}. Class names are
+ * written in full when no table is associated with the thread.
+ * <p/>
+ * Compact class ids must be enabled on the sending machine, via system property
+ * {@code com.googlecode.mobilityrpc.compactClassIds=true}, and older versions of the library cannot read them.
+ *
+ * @author Niall Gallagher
+ */
+public class ClassIdTable {
+
+    /**
+     * Whether this machine should send compact class ids. This machine can always receive them.
+     */
+    public static final boolean COMPACT_CLASS_IDS_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.compactClassIds");
+
+    private static final ThreadLocal<ClassIdTable> currentTable = new ThreadLocal<ClassIdTable>();
+
+    // Tracked per table, so that definitions pending for one connection are never confirmed on another...
+    private final ThreadLocal<Set<String>> pendingDefinitions = new ThreadLocal<Set<String>>();
+    private final ConcurrentMap<String, Integer> outgoingIds = new ConcurrentHashMap<String, Integer>();
+    private final Set<String> definedOutgoingIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger nextOutgoingId = new AtomicInteger();
+
+    private final ConcurrentMap<Integer, String> incomingIds = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * Associates the given table with the current thread, while it serializes or deserializes an object for the
+     * relevant connection. Associating a table also discards any record of ids defined in objects previously
+     * serialized by the thread for that table, however disassociating it (supplying null) retains that record, so
+     * that {@link #takeOutgoingDefinitions()} can be called after the object has been serialized.
+     *
+     * @param classIdTable The table for the relevant connection, or null to disassociate the current table
+     */
+    public static void setCurrentTable(ClassIdTable classIdTable) {
+        currentTable.set(classIdTable);
+        if (classIdTable != null) {
+            classIdTable.pendingDefinitions.remove();
+        }
+    }
+
+    /**
+     * @return The table associated with the current thread, or null if none is associated
+     */
+    public static ClassIdTable getCurrentTable() {
+        return currentTable.get();
+    }
+
+    /**
+     * Returns the id for the given class name, assigning a new id if necessary.
+     *
+     * @param className The name of the class to send
+     * @return The id for the class name
+     */
+    public int getOutgoingId(String className) {
+        Integer id = outgoingIds.get(className);
+        if (id == null) {
+            Integer newId = nextOutgoingId.getAndIncrement();
+            id = outgoingIds.putIfAbsent(className, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns true if the class name must be sent along with its id, because the machine at the other end has not
+     * acknowledged a message defining the id yet, and the object being serialized by the current thread has not
+     * already defined it. In that case, records that the object being serialized by the current thread defines the id.
+     *
+     * @param className The name of the class to send
+     * @return True if the class name must be sent, false if sending its id is sufficient
+     */
+    public boolean requiresOutgoingDefinition(String className) {
+        if (definedOutgoingIds.contains(className)) {
+            return false;
+        }
+        Set<String> definitions = pendingDefinitions.get();
+        if (definitions == null) {
+            definitions = new HashSet<String>();
+            pendingDefinitions.set(definitions);
+        }
+        return definitions.add(className);
+    }
+
+    /**
+     * Called after the current thread has serialized an object with this table, to take the record of the ids which
+     * the object defined, which should be passed to {@link #confirmOutgoingDefinitions(Collection)} if and when the
+     * machine at the other end acknowledges processing the message containing the object.
+     *
+     * @return The names of the classes whose ids the object defined, possibly empty
+     */
+    public Set<String> takeOutgoingDefinitions() {
+        Set<String> definitions = pendingDefinitions.get();
+        pendingDefinitions.remove();
+        return definitions == null ? Collections.<String>emptySet() : definitions;
+    }
+
+    /**
+     * Called after the machine at the other end has acknowledged processing a message containing the given
+     * definitions, to record that subsequent messages can omit the class names.
+     *
+     * @param definitions The names of the classes whose ids the message defined
+     */
+    public void confirmOutgoingDefinitions(Collection<String> definitions) {
+        definedOutgoingIds.addAll(definitions);
+    }
+
+    /**
+     * Records the class name for an id defined by the machine at the other end of the connection.
+     *
+     * @param id The id
+     * @param className The name of the class for which it stands
+     */
+    public void defineIncomingId(int id, String className) {
+        incomingIds.put(id, className);
+    }
+
+    /**
+     * Returns the class name for an id defined by the machine at the other end of the connection.
+     *
+     * @param id The id
+     * @return The name of the class for which it stands
+     * @throws IllegalStateException If the id has not been defined
+     */
+    public String resolveIncomingId(int id) {
+        String className = incomingIds.get(id);
+        if (className == null) {
+            throw new IllegalStateException("Class id has not been defined on this connection: " + id);
+        }
+        return className;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.esotericsoftware.kryo.util.ObjectMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Kryo class resolver which writes the classes of unregistered objects as compact ids from the
+ * {@link ClassIdTable} associated with the current thread, instead of writing their names in every message.
+ * <p/>
+ * Compact ids are written with a reserved class registration id, {@link #COMPACT_CLASS_REGISTRATION_ID}, which
+ * distinguishes them from class names and from registered classes, such that objects serialized with or without
+ * compact ids can always be read. When no table is associated with the current thread, this behaves the same as
+ * {@link DefaultClassResolver}.
+ *
+ * @author Niall Gallagher
+ */
+public class CompactClassResolver extends DefaultClassResolver {
+
+    /**
+     * The registration id reserved to indicate that a compact class id follows. Ids below 126 are written in one byte.
+     */
+    static final int COMPACT_CLASS_REGISTRATION_ID = 100;
+
+    /**
+     * Registers the placeholder class which reserves {@link #COMPACT_CLASS_REGISTRATION_ID} with the given Kryo
+     * instance, such that Kryo does not assign the id to other classes.
+     *
+     * @param kryo The Kryo instance using this class resolver
+     */
+    static void reserveRegistrationId(Kryo kryo) {
+        kryo.register(CompactClassId.class, COMPACT_CLASS_REGISTRATION_ID);
+    }
+
+    @Override
+    public Registration writeClass(Output output, Class type) {
+        ClassIdTable classIdTable = ClassIdTable.getCurrentTable();
+        if (classIdTable == null || type == null) {
+            return super.writeClass(output, type);
+        }
+        Registration registration = kryo.getRegistration(type);
+        if (registration.getId() != NAME) {
+            // A registered class, which is already written as an id...
+            return super.writeClass(output, type);
+        }
+        String className = type.getName();
+        int classId = classIdTable.getOutgoingId(className);
+        boolean requiresDefinition = classIdTable.requiresOutgoingDefinition(className);
+        output.writeVarInt(COMPACT_CLASS_REGISTRATION_ID + 2, true);
+        // The lowest bit indicates whether the class name follows...
+        output.writeVarInt(classId << 1 | (requiresDefinition ? 1 : 0), true);
+        if (requiresDefinition) {
+            output.writeString(className);
+        }
+        return registration;
+    }
+
+    @Override
+    public Registration readClass(Input input) {
+        int classRegistrationId = input.readVarInt(true);
+        switch (classRegistrationId) {
+            case Kryo.NULL:
+                return null;
+            case NAME + 2:
+                return readName(input);
+            case COMPACT_CLASS_REGISTRATION_ID + 2:
+                return readCompactClassId(input);
+        }
+        Registration registration = kryo.getRegistration(classRegistrationId - 2);
+        if (registration == null) {
+            throw new KryoException("Encountered unregistered class ID: " + (classRegistrationId - 2));
+        }
+        return registration;
+    }
+
+    Registration readCompactClassId(Input input) {
+        int value = input.readVarInt(true);
+        int classId = value >>> 1;
+        ClassIdTable classIdTable = ClassIdTable.getCurrentTable();
+        if (classIdTable == null) {
+            throw new KryoException("Encountered compact class id, but no class id table is associated with the current thread: " + classId);
+        }
+        String className;
+        if ((value & 1) != 0) {
+            className = input.readString();
+            classIdTable.defineIncomingId(classId, className);
+        }
+        else {
+            className = classIdTable.resolveIncomingId(classId);
+        }
+        return kryo.getRegistration(loadClass(className));
+    }
+
+    /**
+     * Loads the given class via the class loader of the Kryo instance, caching the result in the same map as class
+     * names read by {@link DefaultClassResolver}, which is discarded when the Kryo instance is reused by another
+     * session.
+     */
+    Class<?> loadClass(String className) {
+        Class<?> type = nameToClass == null ? null : nameToClass.get(className);
+        if (type == null) {
+            try {
+                type = Class.forName(className, false, kryo.getClassLoader());
+            }
+            catch (ClassNotFoundException e) {
+                throw new KryoException("Unable to find class: " + className, e);
+            }
+            if (nameToClass == null) {
+                nameToClass = new ObjectMap<String, Class>();
+            }
+            nameToClass.put(className, type);
+        }
+        return type;
+    }
+
+    /**
+     * Discards the implicit registrations (and with them the serializers Kryo created) for classes which are not
+     * visible to the given class loader, along with all cached class names. Registrations for classes which are
+     * visible to it, such as JDK and library classes, are retained, so that the Kryo instance can be reused by
+     * another session without rebuilding their serializers. See {@link SharedKryoPool}.
+     *
+     * @param libraryClassLoader The class loader of the library, which session class loaders delegate to
+     * @return The number of registrations discarded
+     */
+    int discardRegistrationsNotVisibleTo(ClassLoader libraryClassLoader) {
+        List<Class> typesToDiscard = new ArrayList<Class>();
+        for (ObjectMap.Entry<Class, Registration> entry : classToRegistration.entries()) {
+            if (entry.value.getId() == NAME && !isVisibleTo(entry.key, libraryClassLoader)) {
+                typesToDiscard.add(entry.key);
+            }
+        }
+        for (Class type : typesToDiscard) {
+            classToRegistration.remove(type);
+        }
+        if (nameToClass != null) {
+            nameToClass.clear();
+        }
+        // Replace the memoized result of the last lookup, which might refer to a discarded class...
+        getRegistration(String.class);
+        return typesToDiscard.size();
+    }
+
+    static boolean isVisibleTo(Class<?> type, ClassLoader classLoader) {
+        ClassLoader typeClassLoader = type.getClassLoader();
+        if (typeClassLoader == null) {
+            // Loaded by the bootstrap class loader...
+            return true;
+        }
+        for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+            if (loader == typeClassLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A placeholder which reserves the registration id indicating compact class ids. Never serialized.
+     */
+    static final class CompactClassId {
+    }
+}
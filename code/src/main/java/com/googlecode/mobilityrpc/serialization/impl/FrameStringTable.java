@@ -0,0 +1,178 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps the strings which appear in stack trace elements (class names, method names and file names) to small ids, for
+ * a single connection, so that they can be sent once and replaced by their ids in subsequent exceptions sent on the
+ * connection. Failures tend to repeat, and so the same frames appear in many exceptions.
+ * <p/>
+ * Each machine assigns ids for the strings it sends. Serialized exceptions only ever contain ids; the strings for ids
+ * which have not been sent on the connection yet are taken from the table via {@link #takeOutgoingDefinitions()} and
+ * sent in the header of the message which contains the exception. The receiving machine defines them as soon as it
+ * decodes the message, which it does in the order messages were enqueued on the connection, and regardless of whether
+ * the message is subsequently processed or discarded (for example a response to a request which has timed out).
+ * Therefore unlike {@link ClassIdTable}, definitions can be confirmed via {@link #confirmOutgoingDefinitions} as soon
+ * as the message has been enqueued, and an incoming id which is not defined when it is resolved is an error rather
+ * than something to wait for.
+ * <p/>
+ * The table for the connection on which an exception is being serialized or deserialized is associated with the
+ * thread via {@link #setCurrentTable}, so that it is available to {@link StackTraceElementSerializer}. Strings are
+ * written in full when no table is associated with the thread.
+ * <p/>
+ * Interning is enabled via system property
+ * {@code com.googlecode.mobilityrpc.exceptionTransport.internFrameStrings=true}. It changes the format in which stack
+ * trace elements are serialized, and so must be enabled on both machines, and older versions of the library cannot
+ * read interned frames.
+ *
+ * @author Niall Gallagher
+ */
+public class FrameStringTable {
+
+    /**
+     * Whether this machine should intern the strings in stack trace elements it sends.
+     */
+    public static final boolean FRAME_STRING_INTERNING_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.exceptionTransport.internFrameStrings");
+
+    /**
+     * The maximum number of distinct strings which will be interned per connection. Strings beyond this limit are
+     * written in full, so that a remote machine cannot be made to accumulate strings without bound.
+     */
+    static final int MAX_INTERNED_STRINGS = Integer.getInteger("com.googlecode.mobilityrpc.exceptionTransport.maxInternedFrameStrings", 16384);
+
+    private static final ThreadLocal<FrameStringTable> currentTable = new ThreadLocal<FrameStringTable>();
+
+    // Tracked per table, so that definitions pending for one connection are never sent on another...
+    private final ThreadLocal<Set<String>> pendingDefinitions = new ThreadLocal<Set<String>>();
+    private final ConcurrentMap<String, Integer> outgoingIds = new ConcurrentHashMap<String, Integer>();
+    private final Set<String> definedOutgoingIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger nextOutgoingId = new AtomicInteger();
+
+    private final ConcurrentMap<Integer, String> incomingIds = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * Associates the given table with the current thread, while it serializes or deserializes an exception for the
+     * relevant connection. Associating a table also discards any definitions recorded by the thread for an exception
+     * previously serialized, which have not been taken via {@link #takeOutgoingDefinitions()}.
+     *
+     * @param frameStringTable The table for the relevant connection, or null to disassociate the current table
+     */
+    public static void setCurrentTable(FrameStringTable frameStringTable) {
+        currentTable.set(frameStringTable);
+        if (frameStringTable != null) {
+            frameStringTable.pendingDefinitions.remove();
+        }
+    }
+
+    /**
+     * @return The table associated with the current thread, or null if none is associated
+     */
+    public static FrameStringTable getCurrentTable() {
+        return currentTable.get();
+    }
+
+    /**
+     * Returns the id for the given string, assigning a new id if necessary. If no message defining the id has been
+     * enqueued on the connection yet, records that the message containing the exception being serialized by the
+     * current thread must define it.
+     *
+     * @param string The string to send
+     * @return The id for the string, or -1 if the table is full and the string should be written in full
+     */
+    public int getOutgoingId(String string) {
+        Integer id = outgoingIds.get(string);
+        if (id == null) {
+            if (outgoingIds.size() >= MAX_INTERNED_STRINGS) {
+                return -1;
+            }
+            Integer newId = nextOutgoingId.getAndIncrement();
+            id = outgoingIds.putIfAbsent(string, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        if (!definedOutgoingIds.contains(string)) {
+            Set<String> definitions = pendingDefinitions.get();
+            if (definitions == null) {
+                definitions = new HashSet<String>();
+                pendingDefinitions.set(definitions);
+            }
+            definitions.add(string);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ids which the exception serialized by the current thread refers to but which have not been defined
+     * on the connection yet, along with the strings for which they stand, and clears that record. These must be sent
+     * in the message which contains the exception.
+     *
+     * @return The ids which the message must define, mapped to the strings for which they stand
+     */
+    public Map<Integer, String> takeOutgoingDefinitions() {
+        Set<String> definitions = pendingDefinitions.get();
+        if (definitions == null) {
+            return Collections.emptyMap();
+        }
+        pendingDefinitions.remove();
+        Map<Integer, String> idsToStrings = new HashMap<Integer, String>(definitions.size());
+        for (String string : definitions) {
+            idsToStrings.put(outgoingIds.get(string), string);
+        }
+        return idsToStrings;
+    }
+
+    /**
+     * Called after a message containing the given definitions has been enqueued on the connection, to record that
+     * subsequent messages need not define them again.
+     *
+     * @param strings The strings whose ids were defined by the message
+     */
+    public void confirmOutgoingDefinitions(Collection<String> strings) {
+        definedOutgoingIds.addAll(strings);
+    }
+
+    /**
+     * Records the string for an id defined by the machine at the other end of the connection. Called as soon as the
+     * message containing the definition is decoded.
+     *
+     * @param id The id
+     * @param string The string for which it stands
+     */
+    public void defineIncomingId(int id, String string) {
+        incomingIds.put(id, string);
+    }
+
+    /**
+     * Returns the string for an id defined by the machine at the other end of the connection.
+     *
+     * @param id The id
+     * @return The string for which it stands
+     * @throws IllegalStateException If the id has not been defined
+     */
+    public String resolveIncomingId(int id) {
+        String string = incomingIds.get(id);
+        if (string == null) {
+            throw new IllegalStateException("Frame string id has not been defined on this connection: " + id);
+        }
+        return string;
+    }
+}
@@ -19,16 +19,24 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.factories.SerializerFactory;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.io.UnsafeInput;
+import com.esotericsoftware.kryo.io.UnsafeOutput;
 import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
 import com.googlecode.mobilityrpc.serialization.Serializer;
+import com.googlecode.mobilityrpc.session.BulkData;
+import com.googlecode.mobilityrpc.session.impl.ExceptionTransport;
 import de.javakaffee.kryoserializers.*;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationHandler;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.GregorianCalendar;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A serializer which serializes regular Java objects to/from binary using the
@@ -36,15 +44,105 @@ import java.util.GregorianCalendar;
  * <p/>
  * The advantages of this framework over Java's built-in serialization, are: speed, compact data sizes, and an ability
  * to serialize regular Java objects without requiring them to implement {@link java.io.Serializable}.
+ * <p/>
+ * Kryo instances are not thread-safe, so this serializer maintains a pool of identically configured instances, and
+ * each call borrows an instance for its exclusive use. This allows the threads of a session to serialize objects
+ * concurrently. Instances are created on demand when the pool is empty, and up to
+ * {@code com.googlecode.mobilityrpc.kryoPool.maxSize} idle instances (default twice the number of processors) are
+ * retained for reuse.
+ * <p/>
+ * Each pooled instance retains the {@link Output} and {@link Input} it uses, so serializing and deserializing do not
+ * allocate streams or buffers per call. The output buffer grows to the size of the largest object the instance has
+ * serialized, such that it adapts to the typical size of objects serialized in the session, but it is discarded after
+ * serializing an object larger than {@code com.googlecode.mobilityrpc.kryoPool.maxRetainedBufferBytes}
+ * (default 1MB), so that occasional large objects do not cause large buffers to be retained. Objects serialized to
+ * or deserialized from streams instead use a small buffer of fixed size, which is flushed or refilled as it is used,
+ * so that memory use does not depend on the size of the object.
+ * <p/>
+ * Optionally, the serializer can use Kryo's {@link UnsafeOutput} and {@link UnsafeInput}, which read and write
+ * primitive values and arrays via unsafe memory access instead of byte by byte. This is faster for primitive-heavy
+ * object graphs such as arrays of doubles or longs, but the data is in the native byte order of the machine, and
+ * primitive values are not variable-length encoded, so it is larger. See
+ * {@link com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat#KRYO_UNSAFE}.
+ * <p/>
+ * If a {@link SharedKryoPool} is supplied, Kryo instances are borrowed from it instead of being created when this
+ * serializer's own pool is empty, and are returned to it when this serializer's own pool is full or when the
+ * serializer is {@link #close() closed}. This allows short-lived sessions to reuse the serializers which other sessions
+ * built for JDK and library classes.
  *
  * @author Niall Gallagher
  */
 public class KryoSerializer implements Serializer {
 
-    private final Kryo kryo;
+    public static final int DEFAULT_MAX_POOL_SIZE = Integer.getInteger("com.googlecode.mobilityrpc.kryoPool.maxSize", Runtime.getRuntime().availableProcessors() * 2);
+
+    static final int MAX_RETAINED_BUFFER_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.kryoPool.maxRetainedBufferBytes", 1024 * 1024);
+
+    static final int INITIAL_BUFFER_BYTES = 4096;
+
+    static final int STREAM_BUFFER_BYTES = 8192;
+
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+
+    private final ClassLoader classLoader;
+    private final boolean unsafe;
+    private final SharedKryoPool sharedKryoPool;
+    private final BlockingQueue<PooledKryo> pool;
+    private volatile boolean closed = false;
 
     public KryoSerializer(ClassLoader classLoader) {
-        kryo = new Kryo();
+        this(classLoader, DEFAULT_MAX_POOL_SIZE);
+    }
+
+    public KryoSerializer(ClassLoader classLoader, int maxPoolSize) {
+        this(classLoader, maxPoolSize, false);
+    }
+
+    /**
+     * @param classLoader The class loader from which classes of deserialized objects should be loaded
+     * @param maxPoolSize The maximum number of idle Kryo instances to retain for reuse
+     * @param unsafe True to use Kryo's unsafe memory-based input and output, see {@link #isUnsafeAvailable()}
+     */
+    public KryoSerializer(ClassLoader classLoader, int maxPoolSize, boolean unsafe) {
+        this(classLoader, maxPoolSize, unsafe, null);
+    }
+
+    /**
+     * @param classLoader The class loader from which classes of deserialized objects should be loaded
+     * @param maxPoolSize The maximum number of idle Kryo instances to retain for reuse
+     * @param unsafe True to use Kryo's unsafe memory-based input and output, see {@link #isUnsafeAvailable()}
+     * @param sharedKryoPool A pool from which to borrow Kryo instances instead of creating them, or null
+     */
+    public KryoSerializer(ClassLoader classLoader, int maxPoolSize, boolean unsafe, SharedKryoPool sharedKryoPool) {
+        this.classLoader = classLoader;
+        this.unsafe = unsafe;
+        this.sharedKryoPool = sharedKryoPool;
+        this.pool = new ArrayBlockingQueue<PooledKryo>(Math.max(maxPoolSize, 1));
+    }
+
+    /**
+     * @return True if unsafe memory access is available in this JVM, such that unsafe input and output can be used
+     */
+    public static boolean isUnsafeAvailable() {
+        try {
+            // Write and read back a value, as the unsafe classes fail on first use if unsafe access is unavailable...
+            UnsafeOutput output = new UnsafeOutput(8);
+            output.writeLong(1L);
+            return new UnsafeInput(output.toBytes()).readLong() == 1L;
+        }
+        catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a Kryo instance configured with the serializers used by this serializer and the given class loader.
+     *
+     * @param classLoader The class loader from which classes of deserialized objects should be loaded
+     * @return A new Kryo instance
+     */
+    static Kryo createKryo(ClassLoader classLoader) {
+        Kryo kryo = new Kryo(new CompactClassResolver(), new MapReferenceResolver());
         kryo.setDefaultSerializer(new SerializerFactory() {
             @Override
             public com.esotericsoftware.kryo.Serializer makeSerializer(Kryo kryo, Class<?> type) {
@@ -66,29 +164,179 @@ public class KryoSerializer implements Serializer {
         // Configure Kryo to use our session class loader to load byte code from remote machines...
         kryo.setClassLoader(classLoader);
 
+        // Reserve the registration id which indicates compact class ids, before Kryo assigns ids to other classes...
+        CompactClassResolver.reserveRegistrationId(kryo);
+
         // Register additional serializers which are not built-in to Kryo 3.0...
         kryo.register(Arrays.asList().getClass(), new ArraysAsListSerializer());
         kryo.register( GregorianCalendar.class, new GregorianCalendarSerializer() );
         kryo.register( InvocationHandler.class, new JdkProxySerializer() );
         UnmodifiableCollectionsSerializer.registerSerializers(kryo);
         SynchronizedCollectionsSerializer.registerSerializers(kryo);
+
+        // Send bulk data as raw segments on the connection, instead of copying it into the serialized form...
+        kryo.register(BulkData.class, new BulkDataSerializer());
+
+        // Write the strings in stack trace elements as ids, when they have been sent on the connection before.
+        // This changes the serialized format of stack traces, so only when compact exceptions or interning are enabled...
+        if (FrameStringTable.FRAME_STRING_INTERNING_ENABLED || ExceptionTransport.DEFAULT_MODE == ExceptionTransport.Mode.COMPACT) {
+            kryo.register(StackTraceElement.class, new StackTraceElementSerializer());
+        }
+        return kryo;
+    }
+
+    PooledKryo borrowKryo() {
+        PooledKryo pooledKryo = pool.poll();
+        if (pooledKryo != null) {
+            return pooledKryo;
+        }
+        Kryo kryo = sharedKryoPool != null ? sharedKryoPool.borrow(classLoader) : createKryo(classLoader);
+        return new PooledKryo(kryo, createOutput(), unsafe ? new UnsafeInput() : new Input());
+    }
+
+    void releaseKryo(PooledKryo pooledKryo) {
+        if (pooledKryo.output.getBuffer().length > MAX_RETAINED_BUFFER_BYTES) {
+            pooledKryo.output = createOutput();
+        }
+        pooledKryo.output.clear();
+        // Do not retain a reference to the caller's data...
+        pooledKryo.input.setBuffer(EMPTY_BUFFER);
+        // Return the instance to the shared pool, or discard it, if the pool is already full...
+        if ((closed || !pool.offer(pooledKryo)) && sharedKryoPool != null) {
+            sharedKryoPool.release(pooledKryo.kryo);
+        }
+    }
+
+    /**
+     * Returns the idle Kryo instances of this serializer to the shared pool, if one was supplied. Instances in use
+     * are returned when released. The serializer remains usable, but will no longer retain idle instances.
+     */
+    public void close() {
+        closed = true;
+        for (PooledKryo pooledKryo = pool.poll(); pooledKryo != null; pooledKryo = pool.poll()) {
+            if (sharedKryoPool != null) {
+                sharedKryoPool.release(pooledKryo.kryo);
+            }
+        }
+    }
+
+    Output createOutput() {
+        return unsafe ? new UnsafeOutput(INITIAL_BUFFER_BYTES, -1) : new Output(INITIAL_BUFFER_BYTES, -1);
+    }
+
+    /**
+     * @return The number of idle Kryo instances in the pool
+     */
+    int getPoolSize() {
+        return pool.size();
     }
 
     @Override
     public byte[] serialize(Object object) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Output output = new Output(baos);
-        kryo.writeClassAndObject(output, object);
-        output.flush();
-        output.close();
-        return baos.toByteArray();
+        PooledKryo pooledKryo = borrowKryo();
+        try {
+            Output output = pooledKryo.output;
+            pooledKryo.kryo.writeClassAndObject(output, object);
+            return output.toBytes();
+        }
+        finally {
+            releaseKryo(pooledKryo);
+        }
+    }
+
+    @Override
+    public int serialize(Object object, ByteBuffer buffer) {
+        PooledKryo pooledKryo = borrowKryo();
+        try {
+            Output output = pooledKryo.output;
+            pooledKryo.kryo.writeClassAndObject(output, object);
+            buffer.put(output.getBuffer(), 0, output.position());
+            return output.position();
+        }
+        finally {
+            releaseKryo(pooledKryo);
+        }
     }
 
     @Override
     public Object deserialize(byte[] serializedData) {
-        Input input = new Input(new ByteArrayInputStream(serializedData));
-        Object object = kryo.readClassAndObject(input);
-        input.close();
-        return object;
+        return deserialize(serializedData, 0, serializedData.length);
+    }
+
+    @Override
+    public Object deserialize(byte[] serializedData, int offset, int length) {
+        PooledKryo pooledKryo = borrowKryo();
+        try {
+            Input input = pooledKryo.input;
+            input.setBuffer(serializedData, offset, length);
+            return pooledKryo.kryo.readClassAndObject(input);
+        }
+        finally {
+            releaseKryo(pooledKryo);
+        }
+    }
+
+    @Override
+    public Object deserialize(ByteBuffer buffer) {
+        if (!buffer.hasArray()) {
+            // A direct buffer, copy its contents...
+            byte[] serializedData = new byte[buffer.remaining()];
+            buffer.get(serializedData);
+            return deserialize(serializedData);
+        }
+        PooledKryo pooledKryo = borrowKryo();
+        try {
+            Input input = pooledKryo.input;
+            int offset = buffer.arrayOffset() + buffer.position();
+            input.setBuffer(buffer.array(), offset, buffer.remaining());
+            Object object = pooledKryo.kryo.readClassAndObject(input);
+            buffer.position(buffer.position() + (input.position() - offset));
+            return object;
+        }
+        finally {
+            releaseKryo(pooledKryo);
+        }
+    }
+
+    @Override
+    public void serialize(Object object, OutputStream outputStream) {
+        PooledKryo pooledKryo = borrowKryo();
+        try {
+            // Use a small buffer of fixed size which is flushed to the stream whenever it fills,
+            // rather than the pooled output, whose buffer grows to hold the entire object...
+            Output output = unsafe ? new UnsafeOutput(outputStream, STREAM_BUFFER_BYTES) : new Output(outputStream, STREAM_BUFFER_BYTES);
+            pooledKryo.kryo.writeClassAndObject(output, object);
+            output.flush();
+        }
+        finally {
+            releaseKryo(pooledKryo);
+        }
+    }
+
+    @Override
+    public Object deserialize(InputStream inputStream) {
+        PooledKryo pooledKryo = borrowKryo();
+        try {
+            Input input = unsafe ? new UnsafeInput(inputStream, STREAM_BUFFER_BYTES) : new Input(inputStream, STREAM_BUFFER_BYTES);
+            return pooledKryo.kryo.readClassAndObject(input);
+        }
+        finally {
+            releaseKryo(pooledKryo);
+        }
+    }
+
+    /**
+     * A Kryo instance in the pool, along with the output and input it uses.
+     */
+    static class PooledKryo {
+        final Kryo kryo;
+        final Input input;
+        Output output;
+
+        PooledKryo(Kryo kryo, Output output, Input input) {
+            this.kryo = kryo;
+            this.output = output;
+            this.input = input;
+        }
     }
 }
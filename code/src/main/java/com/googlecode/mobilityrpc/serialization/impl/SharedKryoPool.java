@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.ClassResolver;
+import com.esotericsoftware.kryo.Kryo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A controller-wide pool of configured Kryo instances, which {@link KryoSerializer}s of different sessions draw from
+ * and return to, so that creating a session does not require creating and configuring new Kryo instances.
+ * <p/>
+ * Configuring a Kryo instance involves registering the additional collection serializers, and, as objects are
+ * serialized, reflectively building a serializer for each class encountered. For JDK and library classes this work is
+ * the same in every session. When a Kryo instance is returned to this pool, the registrations and serializers it built
+ * for classes loaded by session class loaders (i.e. mobile code) are discarded, and those for classes visible to the
+ * library class loader are retained, so the next session which borrows the instance reuses them.
+ * <p/>
+ * Up to {@code com.googlecode.mobilityrpc.sharedKryoPool.maxSize} idle instances (default four times the number of
+ * processors) are retained.
+ *
+ * @author Niall Gallagher
+ */
+public class SharedKryoPool {
+
+    static final int DEFAULT_MAX_SIZE = Integer.getInteger("com.googlecode.mobilityrpc.sharedKryoPool.maxSize", Runtime.getRuntime().availableProcessors() * 4);
+
+    private final ClassLoader libraryClassLoader;
+    private final BlockingQueue<Kryo> pool;
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    /**
+     * @param libraryClassLoader The class loader of the library, which session class loaders delegate to
+     */
+    public SharedKryoPool(ClassLoader libraryClassLoader) {
+        this(libraryClassLoader, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param libraryClassLoader The class loader of the library, which session class loaders delegate to
+     * @param maxSize The maximum number of idle Kryo instances to retain
+     */
+    public SharedKryoPool(ClassLoader libraryClassLoader, int maxSize) {
+        this.libraryClassLoader = libraryClassLoader;
+        this.pool = new ArrayBlockingQueue<Kryo>(Math.max(maxSize, 1));
+    }
+
+    /**
+     * Returns an idle Kryo instance from the pool, or a new instance if the pool is empty, configured to load classes
+     * from the given class loader.
+     *
+     * @param classLoader The class loader from which classes of deserialized objects should be loaded
+     * @return A Kryo instance for the exclusive use of the caller, until it is returned via {@link #release(Kryo)}
+     */
+    public Kryo borrow(ClassLoader classLoader) {
+        Kryo kryo = pool.poll();
+        if (kryo == null) {
+            createdCount.incrementAndGet();
+            return KryoSerializer.createKryo(classLoader);
+        }
+        reusedCount.incrementAndGet();
+        kryo.setClassLoader(classLoader);
+        return kryo;
+    }
+
+    /**
+     * Returns a Kryo instance to the pool, discarding its registrations for classes of mobile code. The caller must
+     * not use the instance afterwards. The instance is discarded if the pool is full.
+     *
+     * @param kryo A Kryo instance previously obtained from {@link #borrow(ClassLoader)}
+     */
+    public void release(Kryo kryo) {
+        ClassResolver classResolver = kryo.getClassResolver();
+        if (!(classResolver instanceof CompactClassResolver)) {
+            // Not configured by this library...
+            return;
+        }
+        ((CompactClassResolver) classResolver).discardRegistrationsNotVisibleTo(libraryClassLoader);
+        // Do not retain a reference to the session class loader...
+        kryo.setClassLoader(libraryClassLoader);
+        pool.offer(kryo);
+    }
+
+    /**
+     * @return The number of idle Kryo instances in the pool
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * @return The number of Kryo instances this pool has created because it was empty
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return The number of times an idle Kryo instance was reused from this pool
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * Discards all idle Kryo instances.
+     */
+    public void clear() {
+        pool.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SharedKryoPool{" +
+                "size=" + pool.size() +
+                ", createdCount=" + createdCount.get() +
+                ", reusedCount=" + reusedCount.get() +
+                '}';
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A Kryo serializer for {@link StackTraceElement}s, which writes the class name, method name and file name of each
+ * frame as compact ids from the {@link FrameStringTable} associated with the current thread, if interning is
+ * enabled. Otherwise it writes the strings in full.
+ * <p/>
+ * Each string is written as a tag: 0 for null, 1 for a string which follows in full, or otherwise an id plus 2. The
+ * strings for ids are not written here, they are sent in the header of the message containing the exception, see
+ * {@link FrameStringTable}.
+ *
+ * @author Niall Gallagher
+ */
+public class StackTraceElementSerializer extends com.esotericsoftware.kryo.Serializer<StackTraceElement> {
+
+    public StackTraceElementSerializer() {
+        super(false, true);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, StackTraceElement element) {
+        writeElement(output, FrameStringTable.FRAME_STRING_INTERNING_ENABLED ? FrameStringTable.getCurrentTable() : null, element);
+    }
+
+    @Override
+    public StackTraceElement read(Kryo kryo, Input input, Class<StackTraceElement> type) {
+        return readElement(input, FrameStringTable.getCurrentTable());
+    }
+
+    static void writeElement(Output output, FrameStringTable frameStringTable, StackTraceElement element) {
+        writeString(output, frameStringTable, element.getClassName());
+        writeString(output, frameStringTable, element.getMethodName());
+        writeString(output, frameStringTable, element.getFileName());
+        // Line numbers can be negative, for unknown and native frames...
+        output.writeInt(element.getLineNumber(), false);
+    }
+
+    static StackTraceElement readElement(Input input, FrameStringTable frameStringTable) {
+        String className = readString(input, frameStringTable);
+        String methodName = readString(input, frameStringTable);
+        String fileName = readString(input, frameStringTable);
+        int lineNumber = input.readInt(false);
+        return new StackTraceElement(className, methodName, fileName, lineNumber);
+    }
+
+    static void writeString(Output output, FrameStringTable frameStringTable, String string) {
+        if (string == null) {
+            output.writeVarInt(0, true);
+            return;
+        }
+        int id = frameStringTable == null ? -1 : frameStringTable.getOutgoingId(string);
+        if (id < 0) {
+            output.writeVarInt(1, true);
+            output.writeString(string);
+            return;
+        }
+        output.writeVarInt(id + 2, true);
+    }
+
+    static String readString(Input input, FrameStringTable frameStringTable) {
+        int tag = input.readVarInt(true);
+        switch (tag) {
+            case 0:
+                return null;
+            case 1:
+                return input.readString();
+        }
+        int id = tag - 2;
+        if (frameStringTable == null) {
+            throw new KryoException("Encountered interned frame string, but no frame string table is associated with the current thread: " + id);
+        }
+        return frameStringTable.resolveIncomingId(id);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.googlecode.mobilityrpc.network.ConnectionId;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks which connections the {@link com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat#KRYO_UNSAFE}
+ * serialization format can be sent on.
+ * <p/>
+ * The unsafe format is written in the native byte order of the sending machine, and older versions of the library
+ * cannot read it at all, so a machine only sends it to a machine at the other end of a connection once it has learned
+ * that that machine supports it with the same byte order. Each machine advertises the byte order in which it supports
+ * the format (see {@link #getAdvertisedByteOrder()}) in every execution request and execution response it sends, and
+ * records the byte order advertised by the other machine (see {@link #recordRemoteByteOrder}) in every execution
+ * request and execution response it receives. Therefore the first request sent on a connection always uses the
+ * regular format, and subsequent requests and responses may use the unsafe format.
+ * <p/>
+ * The unsafe format can be disabled on this machine via system property
+ * {@code com.googlecode.mobilityrpc.unsafeFormat.disabled=true}, in which case this machine will neither advertise
+ * nor send it.
+ *
+ * @author Niall Gallagher
+ */
+public class UnsafeFormatNegotiator {
+
+    public static final int BYTE_ORDER_UNSUPPORTED = 0;
+    public static final int BYTE_ORDER_LITTLE_ENDIAN = 1;
+    public static final int BYTE_ORDER_BIG_ENDIAN = 2;
+
+    /**
+     * The native byte order of this machine, in which it reads and writes the unsafe format.
+     */
+    public static final int LOCAL_BYTE_ORDER = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? BYTE_ORDER_LITTLE_ENDIAN : BYTE_ORDER_BIG_ENDIAN;
+
+    /**
+     * Whether this machine supports the unsafe format, i.e. unsafe memory access is available and the format has not
+     * been disabled.
+     */
+    public static final boolean UNSAFE_FORMAT_SUPPORTED = !Boolean.getBoolean("com.googlecode.mobilityrpc.unsafeFormat.disabled") && KryoSerializer.isUnsafeAvailable();
+
+    private final ConcurrentMap<ConnectionId, Boolean> acceptingConnections = new ConcurrentHashMap<ConnectionId, Boolean>();
+
+    /**
+     * @return The byte order this machine should advertise in outgoing execution requests and responses, or
+     * {@link #BYTE_ORDER_UNSUPPORTED} if it does not support the unsafe format
+     */
+    public int getAdvertisedByteOrder() {
+        return UNSAFE_FORMAT_SUPPORTED ? LOCAL_BYTE_ORDER : BYTE_ORDER_UNSUPPORTED;
+    }
+
+    /**
+     * Records the byte order advertised by the machine at the other end of the given connection, in an incoming
+     * execution request or response.
+     *
+     * @param connectionId Identifies the connection on which the request or response was received
+     * @param remoteByteOrder The byte order advertised by the remote machine, or {@link #BYTE_ORDER_UNSUPPORTED}
+     */
+    public void recordRemoteByteOrder(ConnectionId connectionId, int remoteByteOrder) {
+        if (UNSAFE_FORMAT_SUPPORTED && remoteByteOrder == LOCAL_BYTE_ORDER) {
+            acceptingConnections.put(connectionId, Boolean.TRUE);
+        }
+        else {
+            acceptingConnections.remove(connectionId);
+        }
+    }
+
+    /**
+     * @param connectionId Identifies a connection
+     * @return True if the unsafe format can be sent on the given connection
+     */
+    public boolean isAccepted(ConnectionId connectionId) {
+        return acceptingConnections.containsKey(connectionId);
+    }
+
+    /**
+     * Discards the record for the given connection, such that the format would need to be negotiated again if a new
+     * connection is opened to the same machine, which might be running a different version of the library.
+     *
+     * @param connectionId Identifies the connection which was closed
+     */
+    public void notifyConnectionClosed(ConnectionId connectionId) {
+        acceptingConnections.remove(connectionId);
+    }
+
+    /**
+     * Discards the records for all connections.
+     */
+    public void clear() {
+        acceptingConnections.clear();
+    }
+}
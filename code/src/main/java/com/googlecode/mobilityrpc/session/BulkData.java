@@ -0,0 +1,242 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+import com.googlecode.mobilityrpc.common.util.IOUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A block of binary data, such as the contents of a byte array, a {@link ByteBuffer} or a file, which
+ * {@link Runnable} or {@link java.util.concurrent.Callable} objects can carry to remote machines without it being
+ * copied into their serialized form.
+ * <p/>
+ * When an object carrying bulk data is sent in an execution request or returned in a response, the data is written
+ * to the connection as a separate raw segment ahead of the message which refers to it, and only its id and length
+ * are serialized with the object. Files are written to the connection from their {@link FileChannel} via
+ * {@link FileChannel#transferTo}, without being read into the heap.
+ * <p/>
+ * On the receiving machine the data is read from the connection into a direct buffer, or if it is larger than
+ * {@code com.googlecode.mobilityrpc.bulkData.maxDirectBufferBytes} (default 16MB) into a temporary file, which is
+ * memory-mapped only when {@link #getByteBuffer()} is first called. The temporary file is deleted when it has been
+ * mapped, when {@link #release()} is called, or when the JVM exits.
+ * <p/>
+ * Bulk data smaller than {@code com.googlecode.mobilityrpc.bulkData.minSideChannelBytes} (default 64KB) is serialized
+ * inline with the object, as are objects which are {@link Immutable} or {@link Memoizable}, whose serialized form
+ * must not depend on the connection.
+ *
+ * @author Niall Gallagher
+ */
+public final class BulkData {
+
+    private final ByteBuffer buffer;
+    private final File file;
+    private final boolean temporaryFile;
+    private final long length;
+
+    private volatile ByteBuffer mappedBuffer;
+
+    private BulkData(ByteBuffer buffer, File file, boolean temporaryFile, long length) {
+        this.buffer = buffer;
+        this.file = file;
+        this.temporaryFile = temporaryFile;
+        this.length = length;
+    }
+
+    /**
+     * Wraps the given byte array. The array is not copied, and so should not be modified until the object
+     * carrying it has been sent.
+     *
+     * @param data The data to wrap
+     * @return Bulk data backed by the given array
+     */
+    public static BulkData wrap(byte[] data) {
+        return wrap(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Wraps the bytes remaining in the given buffer, between its position and limit. The content of the buffer is
+     * not copied, and so should not be modified until the object carrying it has been sent.
+     *
+     * @param buffer The buffer to wrap, heap or direct
+     * @return Bulk data backed by the given buffer
+     */
+    public static BulkData wrap(ByteBuffer buffer) {
+        ByteBuffer slice = buffer.slice().asReadOnlyBuffer();
+        return new BulkData(slice, null, false, slice.remaining());
+    }
+
+    /**
+     * Wraps the contents of the given file. The length of the file is recorded now, and the file should not be
+     * modified until the object carrying it has been sent.
+     *
+     * @param file The file to wrap
+     * @return Bulk data backed by the given file
+     */
+    public static BulkData fromFile(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No such file: " + file);
+        }
+        return new BulkData(null, file, false, file.length());
+    }
+
+    /**
+     * Wraps the contents of the given file, taking ownership of it, such that it will be deleted when the data is
+     * released, or when it has been memory-mapped.
+     *
+     * @param file The file to wrap
+     * @return Bulk data backed by the given file
+     */
+    public static BulkData fromTemporaryFile(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No such file: " + file);
+        }
+        file.deleteOnExit();
+        return new BulkData(null, file, true, file.length());
+    }
+
+    /**
+     * @return The number of bytes of data
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a read-only buffer containing the data, positioned at the start of the data. Data backed by a file is
+     * memory-mapped when this method is first called.
+     *
+     * @return A read-only buffer containing the data
+     * @throws IllegalStateException If the data is backed by a file which is too large to map into a single buffer,
+     * or which cannot be mapped
+     */
+    public ByteBuffer getByteBuffer() {
+        if (buffer != null) {
+            return buffer.duplicate();
+        }
+        ByteBuffer mapped = mappedBuffer;
+        if (mapped == null) {
+            synchronized (this) {
+                mapped = mappedBuffer;
+                if (mapped == null) {
+                    mapped = mapFile();
+                    mappedBuffer = mapped;
+                }
+            }
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * Copies the data into a new byte array.
+     *
+     * @return A byte array containing a copy of the data
+     * @throws IllegalStateException If the data is too large for a byte array
+     */
+    public byte[] toByteArray() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Bulk data of " + length + " bytes is too large for a byte array");
+        }
+        byte[] data = new byte[(int) length];
+        getByteBuffer().get(data);
+        return data;
+    }
+
+    /**
+     * Writes the data to the given channel. Data backed by a file which has not been memory-mapped is written
+     * directly from the file's channel via {@link FileChannel#transferTo}.
+     *
+     * @param target The channel to which the data should be written
+     * @throws IOException If an error occurs writing to the channel, or reading the file
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        if (buffer != null || mappedBuffer != null) {
+            ByteBuffer source = getByteBuffer();
+            while (source.hasRemaining()) {
+                target.write(source);
+            }
+            return;
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = inputStream.getChannel();
+            long position = 0;
+            while (position < length) {
+                long bytesTransferred = fileChannel.transferTo(position, length - position, target);
+                if (bytesTransferred <= 0) {
+                    throw new IOException("File was truncated to " + fileChannel.size() + " bytes while transferring " + length + " bytes: " + file);
+                }
+                position += bytesTransferred;
+            }
+        }
+        finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Deletes the temporary file backing data received from a remote machine, if it has not been deleted already.
+     * Data backed by memory or by a file supplied by the application is unaffected.
+     */
+    public void release() {
+        if (temporaryFile && mappedBuffer == null) {
+            synchronized (this) {
+                if (mappedBuffer == null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private MappedByteBuffer mapFile() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Bulk data of " + length + " bytes is too large to map into a single buffer: " + file);
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (temporaryFile) {
+                // The mapping remains valid after the file is deleted, on platforms which allow it to be deleted...
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            return mapped;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to map bulk data of " + length + " bytes from file: " + file, e);
+        }
+        finally {
+            IOUtil.closeQuietly(randomAccessFile);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BulkData{" +
+                "length=" + length +
+                (file == null ? "" : ", file=" + file) +
+                '}';
+    }
+}
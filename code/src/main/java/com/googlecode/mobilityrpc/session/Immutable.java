@@ -0,0 +1,40 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+/**
+ * A marker interface which can be implemented by {@link Runnable} or {@link java.util.concurrent.Callable} objects
+ * sent to remote machines, to declare that they are immutable: that their serialized form never changes, and that a
+ * single deserialized copy can safely be executed any number of times, including concurrently. Typical examples are
+ * singletons, and classes without fields.
+ * <p/>
+ * When the same instance of an immutable object is sent repeatedly:
+ * <ul>
+ *     <li>The sending machine serializes it once, and reuses its serialized form for subsequent requests in the
+ *     same session</li>
+ *     <li>The remote machine may deserialize it once, and reuse the deserialized object for subsequent requests in
+ *     the same session which contain an identical serialized form</li>
+ * </ul>
+ * Objects should therefore not implement this interface if they have mutable state, or if any state they carry is
+ * expected to be sent again when it changes.
+ * <p/>
+ * The number of objects cached on each machine per session can be configured via system property
+ * {@code com.googlecode.mobilityrpc.immutableCache.maxEntries} (default 1000).
+ *
+ * @author Niall Gallagher
+ */
+public interface Immutable {
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+/**
+ * A marker interface which can be implemented by {@link java.util.concurrent.Callable} objects sent to remote
+ * machines, to declare that they are deterministic: that executing identical copies of the object will always return
+ * the same result, and has no side effects which must occur for each copy.
+ * <p/>
+ * When the remote machine receives a memoizable object, it may:
+ * <ul>
+ *     <li>Collapse concurrent identical requests into a single execution, and return its result to all of them</li>
+ *     <li>Return a cached copy of the serialized result of a previous identical request, without deserializing or
+ *     executing the object at all</li>
+ * </ul>
+ * Requests are considered identical when their serialized form is byte-identical and they were sent in the same
+ * session, or by clients which declare the same codebase (see {@code com.googlecode.mobilityrpc.codebaseId}), so
+ * objects should only implement this interface if their serialized form captures all of their inputs.
+ * <p/>
+ * Results are cached for a bounded time and up to a bounded total size, which can be configured on the remote
+ * machine via system properties:
+ * <ul>
+ *     <li>{@code com.googlecode.mobilityrpc.memoization.timeToLiveMillis} (default 10000)</li>
+ *     <li>{@code com.googlecode.mobilityrpc.memoization.maxSizeBytes} (default 16777216, 16MB)</li>
+ * </ul>
+ * Exceptions thrown by memoizable objects are not cached, but are returned to any concurrent identical requests.
+ *
+ * @author Niall Gallagher
+ */
+public interface Memoizable {
+}
@@ -20,6 +20,7 @@ import com.googlecode.mobilityrpc.network.ConnectionId;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionMode;
 import com.googlecode.mobilityrpc.session.impl.SessionClassLoader;
 
+import java.util.Iterator;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 
@@ -63,6 +64,30 @@ import java.util.concurrent.Callable;
  *              gathers data itself and returns it back to the local application</li>
  *          </ul>
  *     </li>
+ *     <li>
+ *          <b>{@code RemoteIterator<T> executeStreaming(String, Callable<Iterator<T>>)}</b> or<br/>
+ *          <b>{@code RemoteIterator<T> executeStreaming(ConnectionId, Callable<Iterator<T>>)}</b>
+ *          <ul>
+ *              <li>Transfers the given <code>Callable</code> object to the given remote machine and executes it
+ *              there, similar to the methods above, but the {@code call()} method returns an {@link Iterator}
+ *              whose elements are transferred back to the local application incrementally, as it consumes them</li>
+ *              <li>This is useful for processing large result sets, which would not fit in memory if they were
+ *              transferred in a single response</li>
+ *          </ul>
+ *     </li>
+ *     <li>
+ *          <b>{@code RemoteHandle<T> executeForHandle(String, Callable<T>)}</b> or<br/>
+ *          <b>{@code RemoteHandle<T> executeForHandle(ConnectionId, Callable<T>)}</b>
+ *          <ul>
+ *              <li>Transfers the given <code>Callable</code> object to the given remote machine and executes it
+ *              there, similar to the methods above, but the object returned by the {@code call()} method stays on
+ *              the remote machine, and a {@link RemoteHandle} to it is returned to the local application instead</li>
+ *              <li>The local application can send the handle back to the remote machine with subsequent objects,
+ *              which can then access the object via the handle without it ever being transferred</li>
+ *              <li>This is useful for building up state on a remote machine over a number of requests, or for
+ *              working with objects which are too large or too expensive to transfer</li>
+ *          </ul>
+ *     </li>
  * </ul>
  * <p/>
  * The methods above take the following arguments:
@@ -254,6 +279,123 @@ public interface MobilitySession {
      */
     <T> T execute(ConnectionId connectionId, ExecutionMode executionMode, long executionResponseTimeoutMs, Callable<T> callable);
 
+    /**
+     * Transfers the given <code>Callable</code> object, and any objects it references, to the given remote machine,
+     * and executes it (calls the {@link Callable#call()} method) on the remote machine. Transfers the elements
+     * provided by the {@link Iterator} returned by the <code>call</code> method on the remote machine back to the local
+     * application incrementally, as the local application consumes them.
+     * <p/>
+     * This is a convenience method for calling {@link #executeStreaming(ConnectionId, Callable)}
+     * with default port 5739 in the connection id.
+     *
+     * @param address The address (ip or name) of the remote machine
+     * @param callable The object to send to the remote machine
+     * @return An iterator which provides the elements produced on the remote machine, as they arrive
+     */
+    <T> RemoteIterator<T> executeStreaming(String address, Callable<? extends Iterator<T>> callable);
+
+    /**
+     * Transfers the given <code>Callable</code> object, and any objects it references, to the given remote machine,
+     * and executes it (calls the {@link Callable#call()} method) on the remote machine. Transfers the elements
+     * provided by the {@link Iterator} returned by the <code>call</code> method on the remote machine back to the local
+     * application incrementally, as the local application consumes them.
+     * <p/>
+     * This is a convenience method for calling {@link #executeStreaming(ConnectionId, long, Callable)}
+     * with the default timeout.
+     *
+     * @param connectionId The address/port of the remote machine
+     * @param callable The object to send to the remote machine
+     * @return An iterator which provides the elements produced on the remote machine, as they arrive
+     */
+    <T> RemoteIterator<T> executeStreaming(ConnectionId connectionId, Callable<? extends Iterator<T>> callable);
+
+    /**
+     * Transfers the given <code>Callable</code> object, and any objects it references, to the given remote machine,
+     * and executes it (calls the {@link Callable#call()} method) on the remote machine. Transfers the elements
+     * provided by the {@link Iterator} returned by the <code>call</code> method on the remote machine back to the local
+     * application incrementally, as the local application consumes them.
+     * <p/>
+     * The remote machine sends elements in chunks, and it will only send a few chunks ahead of those which the local
+     * application has consumed. Therefore memory usage on both machines stays bounded regardless of the total number
+     * of elements.
+     *
+     * @param connectionId The address/port of the remote machine
+     * @param executionResponseTimeoutMs The timeout in milliseconds to wait for each chunk of elements to arrive
+     * @param callable The object to send to the remote machine
+     * @return An iterator which provides the elements produced on the remote machine, as they arrive
+     */
+    <T> RemoteIterator<T> executeStreaming(ConnectionId connectionId, long executionResponseTimeoutMs, Callable<? extends Iterator<T>> callable);
+
+    /**
+     * Transfers the given <code>Callable</code> object, and any objects it references, to the given remote machine,
+     * and executes it (calls the {@link Callable#call()} method) on the remote machine. The object returned by the
+     * <code>call</code> method is retained on the remote machine, and a {@link RemoteHandle} to it is returned to the
+     * local application.
+     * <p/>
+     * This is a convenience method for calling {@link #executeForHandle(ConnectionId, Callable)}
+     * with default port 5739 in the connection id.
+     *
+     * @param address The address (ip or name) of the remote machine
+     * @param callable The object to send to the remote machine
+     * @return A handle to the object returned by the <code>call</code> method on the remote machine
+     */
+    <T> RemoteHandle<T> executeForHandle(String address, Callable<T> callable);
+
+    /**
+     * Transfers the given <code>Callable</code> object, and any objects it references, to the given remote machine,
+     * and executes it (calls the {@link Callable#call()} method) on the remote machine. The object returned by the
+     * <code>call</code> method is retained on the remote machine, and a {@link RemoteHandle} to it is returned to the
+     * local application.
+     * <p/>
+     * This is a convenience method for calling {@link #executeForHandle(ConnectionId, long, Callable)}
+     * with the default lease duration of 10 minutes.
+     *
+     * @param connectionId The address/port of the remote machine
+     * @param callable The object to send to the remote machine
+     * @return A handle to the object returned by the <code>call</code> method on the remote machine
+     */
+    <T> RemoteHandle<T> executeForHandle(ConnectionId connectionId, Callable<T> callable);
+
+    /**
+     * Transfers the given <code>Callable</code> object, and any objects it references, to the given remote machine,
+     * and executes it (calls the {@link Callable#call()} method) on the remote machine. The object returned by the
+     * <code>call</code> method is retained on the remote machine, and a {@link RemoteHandle} to it is returned to the
+     * local application.
+     * <p/>
+     * The remote machine will hold the object until the lease expires without the object being accessed, or until
+     * the handle is garbage collected on the local machine, or until the session is released on the remote machine.
+     * See {@link RemoteHandle} for details.
+     *
+     * @param connectionId The address/port of the remote machine
+     * @param leaseMs The duration in milliseconds for which the remote machine should hold the object without it
+     * being accessed
+     * @param callable The object to send to the remote machine
+     * @return A handle to the object returned by the <code>call</code> method on the remote machine
+     */
+    <T> RemoteHandle<T> executeForHandle(ConnectionId connectionId, long leaseMs, Callable<T> callable);
+
+    /**
+     * Returns the {@link ObjectSpace} associated with this session, in which objects can be stored for later
+     * retrieval by other objects executing in the same session. The object space is cleared when the session is
+     * released.
+     *
+     * @return The object space associated with this session
+     */
+    ObjectSpace getObjectSpace();
+
+    /**
+     * Sets whether objects sent from this session, and their results, should be serialized in the
+     * {@link com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat#KRYO_UNSAFE} format where the remote
+     * machine supports it. See {@link UnsafeSerializable}, which requests the same for individual objects.
+     * <p/>
+     * The default is false, unless system property {@code com.googlecode.mobilityrpc.unsafeFormat.defaultEnabled}
+     * is set to true.
+     *
+     * @param unsafeSerializationEnabled True to use the unsafe format where supported, false to use the regular format
+     * except for objects which implement {@link UnsafeSerializable}
+     */
+    void setUnsafeSerializationEnabled(boolean unsafeSerializationEnabled);
+
     /**
      * Returns the class loader associated with this session.
      *
@@ -15,25 +15,446 @@
  */
 package com.googlecode.mobilityrpc.session;
 
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import com.googlecode.mobilityrpc.common.util.ObjectSizeEstimator;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A class for mapping UUIDs to objects, such that an object with a given UUID can be retrieved later. This can
  * be useful to allow mobile objects to access other objects shared by the host application, or by other mobile objects.
+ * <p/>
+ * <b>Scopes</b><br/>
+ * Each {@link MobilitySession} has its own object space, accessible via {@link MobilitySession#getObjectSpace()},
+ * which is cleared when the session is released. There is also a global object space, accessible via
+ * {@link #getGlobalObjectSpace()}, which is shared by the host application and all sessions.
+ * <p/>
+ * The static methods {@link #setUuidObject(UUID, Object)} and {@link #getUuidObject(Class, UUID)} select the scope
+ * automatically: when called by mobile code executing in a session, objects are stored in the object space of that
+ * session, and looked up in the object space of that session and then in the global object space. When called by
+ * the host application, they use the global object space.
+ * <p/>
+ * <b>Eviction</b><br/>
+ * Object spaces can be bounded. Objects are evicted when any of the following limits is exceeded:
+ * <ul>
+ *     <li>The time-to-live of the object, measured from when it was stored</li>
+ *     <li>The maximum idle time, measured from when the object was last stored or retrieved</li>
+ *     <li>The maximum number of objects, in which case the least recently used objects are evicted</li>
+ *     <li>The maximum estimated size of all objects, in which case the least recently used objects are evicted.
+ *     Sizes are estimated when objects are stored, by walking the graph of objects reachable from them. Sizes are
+ *     only estimated when this limit is set</li>
+ * </ul>
+ * A limit of zero indicates no limit. The default limits of session object spaces can be configured via system
+ * properties:
+ * <ul>
+ *     <li>{@code com.googlecode.mobilityrpc.objectspace.maxEntries} (default 10000)</li>
+ *     <li>{@code com.googlecode.mobilityrpc.objectspace.maxEstimatedSizeBytes} (default 268435456, 256MB)</li>
+ *     <li>{@code com.googlecode.mobilityrpc.objectspace.timeToLiveMillis} (default 0, no limit)</li>
+ *     <li>{@code com.googlecode.mobilityrpc.objectspace.maxIdleMillis} (default 0, no limit)</li>
+ * </ul>
+ * The global object space holds objects on behalf of the host application, so it is unbounded unless limits are
+ * configured via the equivalent {@code com.googlecode.mobilityrpc.objectspace.global.*} system properties, e.g.
+ * {@code com.googlecode.mobilityrpc.objectspace.global.maxEntries}.
+ * Applications can be notified of evictions by registering an {@link EvictionListener}, and can monitor the
+ * effectiveness of an object space via {@link #getStatistics()}.
  *
  * @author Niall Gallagher
  */
 public class ObjectSpace {
 
-    private static final Map<UUID, Object> uuidObjectRegistry = new ConcurrentHashMap<UUID, Object>();
+    static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("com.googlecode.mobilityrpc.objectspace.maxEntries", 10000);
+    static final long DEFAULT_MAX_ESTIMATED_SIZE_BYTES = Long.getLong("com.googlecode.mobilityrpc.objectspace.maxEstimatedSizeBytes", 256L * 1024 * 1024);
+    static final long DEFAULT_TIME_TO_LIVE_MILLIS = Long.getLong("com.googlecode.mobilityrpc.objectspace.timeToLiveMillis", 0);
+    static final long DEFAULT_MAX_IDLE_MILLIS = Long.getLong("com.googlecode.mobilityrpc.objectspace.maxIdleMillis", 0);
+
+    static final int GLOBAL_MAX_ENTRIES = Integer.getInteger("com.googlecode.mobilityrpc.objectspace.global.maxEntries", 0);
+    static final long GLOBAL_MAX_ESTIMATED_SIZE_BYTES = Long.getLong("com.googlecode.mobilityrpc.objectspace.global.maxEstimatedSizeBytes", 0);
+    static final long GLOBAL_TIME_TO_LIVE_MILLIS = Long.getLong("com.googlecode.mobilityrpc.objectspace.global.timeToLiveMillis", 0);
+    static final long GLOBAL_MAX_IDLE_MILLIS = Long.getLong("com.googlecode.mobilityrpc.objectspace.global.maxIdleMillis", 0);
+
+    /**
+     * The minimum interval in millis between sweeps of an object space to evict expired objects.
+     */
+    static final long EXPIRY_CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final ObjectSpace globalObjectSpace = new ObjectSpace(GLOBAL_MAX_ENTRIES, GLOBAL_MAX_ESTIMATED_SIZE_BYTES, GLOBAL_TIME_TO_LIVE_MILLIS, GLOBAL_MAX_IDLE_MILLIS);
+
+    /**
+     * The reasons for which objects can be evicted from an object space.
+     */
+    public enum EvictionCause {
+        /** The time-to-live of the object elapsed. */
+        EXPIRED,
+        /** The object was not accessed within the maximum idle time. */
+        IDLE,
+        /** The object was the least recently used, when the maximum number or estimated size of objects was exceeded. */
+        CAPACITY,
+        /** The object space was cleared, for example because its session was released. */
+        CLEARED
+    }
+
+    /**
+     * A listener which can be registered with an object space, to be notified when objects are evicted from it.
+     * <p/>
+     * Listeners are notified synchronously by the thread which caused the eviction, after the object has been
+     * removed. Listeners are not notified when objects are replaced or removed explicitly.
+     */
+    public interface EvictionListener {
+        void onEviction(UUID uuid, Object object, EvictionCause cause);
+    }
+
+    /**
+     * A snapshot of the statistics of an object space.
+     */
+    public static class Statistics {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final int size;
+        private final long estimatedSizeBytes;
+
+        public Statistics(long hitCount, long missCount, long evictionCount, int size, long estimatedSizeBytes) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.size = size;
+            this.estimatedSizeBytes = estimatedSizeBytes;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * @return The ratio of hits to total lookups, or 1.0 if no lookups have been performed
+         */
+        public double getHitRate() {
+            long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getEstimatedSizeBytes() {
+            return estimatedSizeBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{" +
+                    "hitCount=" + hitCount +
+                    ", missCount=" + missCount +
+                    ", evictionCount=" + evictionCount +
+                    ", size=" + size +
+                    ", estimatedSizeBytes=" + estimatedSizeBytes +
+                    '}';
+        }
+    }
+
+    static class Entry {
+        final Object object;
+        final long estimatedSizeBytes;
+        final long expiryTimeMillis;
+        long lastAccessTimeMillis;
+
+        Entry(Object object, long estimatedSizeBytes, long expiryTimeMillis, long lastAccessTimeMillis) {
+            this.object = object;
+            this.estimatedSizeBytes = estimatedSizeBytes;
+            this.expiryTimeMillis = expiryTimeMillis;
+            this.lastAccessTimeMillis = lastAccessTimeMillis;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final int maxEntries;
+    private final long maxEstimatedSizeBytes;
+    private final long timeToLiveMillis;
+    private final long maxIdleMillis;
+
+    // Access-ordered, so that iteration starts from the least recently used entry. Guarded by synchronizing on it...
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<UUID, Entry>(16, 0.75f, true);
+    private final List<EvictionListener> evictionListeners = new CopyOnWriteArrayList<EvictionListener>();
+
+    private long estimatedSizeBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long nextExpiryCheckMillis = 0;
+
+    /**
+     * Creates an object space with the default limits of session object spaces, which can be configured via system
+     * properties.
+     */
+    public ObjectSpace() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_ESTIMATED_SIZE_BYTES, DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    /**
+     * Creates an object space with the given limits. A limit of zero indicates no limit.
+     *
+     * @param maxEntries The maximum number of objects
+     * @param maxEstimatedSizeBytes The maximum estimated size of all objects
+     * @param timeToLiveMillis The default time-to-live of objects, measured from when they are stored
+     * @param maxIdleMillis The maximum idle time of objects, measured from when they were last stored or retrieved
+     */
+    public ObjectSpace(int maxEntries, long maxEstimatedSizeBytes, long timeToLiveMillis, long maxIdleMillis) {
+        this.maxEntries = maxEntries;
+        this.maxEstimatedSizeBytes = maxEstimatedSizeBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.maxIdleMillis = maxIdleMillis;
+    }
 
+    /**
+     * Stores the given object in the object space of the current session if called by mobile code executing in a
+     * session, otherwise in the global object space.
+     *
+     * @param uuid The UUID with which the object can be retrieved
+     * @param object The object to store, or null to remove any object stored with the UUID
+     */
     public static <T> void setUuidObject(UUID uuid, T object) {
-        uuidObjectRegistry.put(uuid, object);
+        if (MobilityContext.hasCurrentSession()) {
+            MobilityContext.getCurrentSession().getObjectSpace().put(uuid, object);
+        }
+        else {
+            globalObjectSpace.put(uuid, object);
+        }
     }
 
+    /**
+     * Retrieves an object from the object space of the current session if called by mobile code executing in a
+     * session, falling back to the global object space if not found.
+     *
+     * @param expectedType The type of object expected
+     * @param uuid The UUID with which the object was stored
+     * @return The object stored with the UUID, or null if no such object was found
+     * @throws ClassCastException If the object is not of the expected type
+     */
     public static <T> T getUuidObject(Class<T> expectedType, UUID uuid) {
-        return expectedType.cast(uuidObjectRegistry.get(uuid));
+        if (MobilityContext.hasCurrentSession()) {
+            T object = MobilityContext.getCurrentSession().getObjectSpace().get(expectedType, uuid);
+            if (object != null) {
+                return object;
+            }
+        }
+        return globalObjectSpace.get(expectedType, uuid);
+    }
+
+    /**
+     * @return The global object space, shared by the host application and all sessions
+     */
+    public static ObjectSpace getGlobalObjectSpace() {
+        return globalObjectSpace;
+    }
+
+    /**
+     * Stores the given object, with the default time-to-live of this object space.
+     *
+     * @param uuid The UUID with which the object can be retrieved
+     * @param object The object to store, or null to remove any object stored with the UUID
+     */
+    public void put(UUID uuid, Object object) {
+        put(uuid, object, timeToLiveMillis);
+    }
+
+    /**
+     * Stores the given object, with the given time-to-live.
+     *
+     * @param uuid The UUID with which the object can be retrieved
+     * @param object The object to store, or null to remove any object stored with the UUID
+     * @param timeToLiveMillis The time-to-live of the object, or zero for no limit
+     */
+    public void put(UUID uuid, Object object, long timeToLiveMillis) {
+        if (object == null) {
+            remove(uuid);
+            return;
+        }
+        // Estimate size outside of the lock, as this can be expensive for large object graphs...
+        final long objectSizeBytes = maxEstimatedSizeBytes > 0 ? ObjectSizeEstimator.estimateRetainedSize(object) : 0;
+        final long now = System.currentTimeMillis();
+        final Entry entry = new Entry(object, objectSizeBytes, timeToLiveMillis > 0 ? now + timeToLiveMillis : Long.MAX_VALUE, now);
+        List<Map.Entry<UUID, Entry>> evicted = new ArrayList<Map.Entry<UUID, Entry>>();
+        List<EvictionCause> causes = new ArrayList<EvictionCause>();
+        synchronized (entries) {
+            Entry previous = entries.put(uuid, entry);
+            if (previous != null) {
+                estimatedSizeBytes -= previous.estimatedSizeBytes;
+            }
+            estimatedSizeBytes += objectSizeBytes;
+            evictExpired(now, evicted, causes);
+            // Evict least recently used entries while limits are exceeded...
+            Iterator<Map.Entry<UUID, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext() && ((maxEntries > 0 && entries.size() > maxEntries) || (maxEstimatedSizeBytes > 0 && estimatedSizeBytes > maxEstimatedSizeBytes))) {
+                Map.Entry<UUID, Entry> eldest = iterator.next();
+                iterator.remove();
+                estimatedSizeBytes -= eldest.getValue().estimatedSizeBytes;
+                evicted.add(eldest);
+                causes.add(EvictionCause.CAPACITY);
+            }
+            evictionCount += evicted.size();
+        }
+        notifyEvictionListeners(evicted, causes);
+    }
+
+    /**
+     * Retrieves an object, and renews its idle time.
+     *
+     * @param expectedType The type of object expected
+     * @param uuid The UUID with which the object was stored
+     * @return The object stored with the UUID, or null if no such object was found
+     * @throws ClassCastException If the object is not of the expected type
+     */
+    public <T> T get(Class<T> expectedType, UUID uuid) {
+        final long now = System.currentTimeMillis();
+        List<Map.Entry<UUID, Entry>> evicted = Collections.emptyList();
+        List<EvictionCause> causes = Collections.emptyList();
+        Object object = null;
+        synchronized (entries) {
+            Entry entry = entries.get(uuid);
+            if (entry != null) {
+                EvictionCause cause = getExpiryCause(entry, now);
+                if (cause == null) {
+                    entry.lastAccessTimeMillis = now;
+                    object = entry.object;
+                }
+                else {
+                    entries.remove(uuid);
+                    estimatedSizeBytes -= entry.estimatedSizeBytes;
+                    evictionCount++;
+                    evicted = Collections.<Map.Entry<UUID, Entry>>singletonList(new AbstractMap.SimpleImmutableEntry<UUID, Entry>(uuid, entry));
+                    causes = Collections.singletonList(cause);
+                }
+            }
+            if (object == null) {
+                missCount++;
+            }
+            else {
+                hitCount++;
+            }
+        }
+        notifyEvictionListeners(evicted, causes);
+        return expectedType.cast(object);
+    }
+
+    /**
+     * Removes an object. Eviction listeners are not notified.
+     *
+     * @param uuid The UUID with which the object was stored
+     * @return The object which was removed, or null if no such object was found
+     */
+    public Object remove(UUID uuid) {
+        synchronized (entries) {
+            Entry entry = entries.remove(uuid);
+            if (entry == null) {
+                return null;
+            }
+            estimatedSizeBytes -= entry.estimatedSizeBytes;
+            return entry.object;
+        }
+    }
+
+    /**
+     * Removes all objects, notifying eviction listeners with cause {@link EvictionCause#CLEARED}.
+     */
+    public void clear() {
+        List<Map.Entry<UUID, Entry>> evicted;
+        synchronized (entries) {
+            evicted = new ArrayList<Map.Entry<UUID, Entry>>(entries.entrySet());
+            entries.clear();
+            estimatedSizeBytes = 0;
+            evictionCount += evicted.size();
+        }
+        notifyEvictionListeners(evicted, Collections.nCopies(evicted.size(), EvictionCause.CLEARED));
+    }
+
+    /**
+     * @return The number of objects in this object space, including any which have expired but have not been
+     * evicted yet
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The estimated number of bytes of memory retained by objects in this object space, or zero if this
+     * object space has no limit on estimated size, in which case sizes are not estimated
+     */
+    public long getEstimatedSizeBytes() {
+        synchronized (entries) {
+            return estimatedSizeBytes;
+        }
+    }
+
+    public Statistics getStatistics() {
+        synchronized (entries) {
+            return new Statistics(hitCount, missCount, evictionCount, entries.size(), estimatedSizeBytes);
+        }
+    }
+
+    public void addEvictionListener(EvictionListener evictionListener) {
+        evictionListeners.add(evictionListener);
+    }
+
+    public void removeEvictionListener(EvictionListener evictionListener) {
+        evictionListeners.remove(evictionListener);
+    }
+
+    // Must be called while synchronized on entries...
+    void evictExpired(long now, List<Map.Entry<UUID, Entry>> evicted, List<EvictionCause> causes) {
+        if (now < nextExpiryCheckMillis) {
+            return;
+        }
+        nextExpiryCheckMillis = now + EXPIRY_CHECK_INTERVAL_MILLIS;
+        for (Iterator<Map.Entry<UUID, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<UUID, Entry> mapEntry = iterator.next();
+            EvictionCause cause = getExpiryCause(mapEntry.getValue(), now);
+            if (cause != null) {
+                iterator.remove();
+                estimatedSizeBytes -= mapEntry.getValue().estimatedSizeBytes;
+                evicted.add(mapEntry);
+                causes.add(cause);
+            }
+        }
+    }
+
+    EvictionCause getExpiryCause(Entry entry, long now) {
+        if (now > entry.expiryTimeMillis) {
+            return EvictionCause.EXPIRED;
+        }
+        if (maxIdleMillis > 0 && now - entry.lastAccessTimeMillis > maxIdleMillis) {
+            return EvictionCause.IDLE;
+        }
+        return null;
+    }
+
+    void notifyEvictionListeners(List<Map.Entry<UUID, Entry>> evicted, List<EvictionCause> causes) {
+        if (evicted.isEmpty() || evictionListeners.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < evicted.size(); i++) {
+            Map.Entry<UUID, Entry> mapEntry = evicted.get(i);
+            for (EvictionListener evictionListener : evictionListeners) {
+                try {
+                    evictionListener.onEviction(mapEntry.getKey(), mapEntry.getValue().object, causes.get(i));
+                }
+                catch (Exception e) {
+                    logger.log(Level.WARNING, "Eviction listener threw exception for object with uuid: " + mapEntry.getKey(), e);
+                }
+            }
+        }
     }
 }
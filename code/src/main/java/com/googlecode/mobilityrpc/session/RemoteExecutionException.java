@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+/**
+ * Stands in for an exception thrown by code executed on a remote machine, when the remote machine sent a compact
+ * record of the exception instead of the exception itself, and the exception could not be reconstructed on this
+ * machine. Exceptions can only be reconstructed from a record if their class has no state beyond a message, and has
+ * a public constructor accepting a message.
+ * <p/>
+ * The class name, message, stack trace and cause of the original exception are preserved, and {@link #toString()}
+ * reports the original class name, so printed stack traces read as if the original exception had been thrown.
+ * <p/>
+ * Remote machines send records of exceptions when configured to do so via system property
+ * {@code com.googlecode.mobilityrpc.exceptionTransport.mode=COMPACT}, or when an exception could not be serialized.
+ *
+ * @author Niall Gallagher
+ */
+public class RemoteExecutionException extends RuntimeException {
+
+    private final String remoteClassName;
+
+    public RemoteExecutionException(String remoteClassName, String message) {
+        super(message);
+        this.remoteClassName = remoteClassName;
+    }
+
+    /**
+     * @return The name of the class of the exception thrown on the remote machine
+     */
+    public String getRemoteClassName() {
+        return remoteClassName;
+    }
+
+    @Override
+    public String toString() {
+        String message = getLocalizedMessage();
+        return message != null ? remoteClassName + ": " + message : remoteClassName;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+import com.googlecode.mobilityrpc.session.impl.MobilitySessionInternal;
+
+import java.util.UUID;
+
+/**
+ * A lightweight reference to an object which stays on a remote machine, returned by the {@code executeForHandle}
+ * methods of {@link MobilitySession}.
+ * <p/>
+ * The local application can send handles to the same remote machine as arguments of subsequent {@link Runnable} or
+ * {@link java.util.concurrent.Callable} objects, and when those objects execute on the remote machine, they can call
+ * {@link #get()} to access the object directly. Only the handle itself is transferred, the object it refers to is
+ * never serialized.
+ * <p/>
+ * The remote machine holds the object for the duration of a lease, which is renewed whenever the object is accessed
+ * via its handle. The object will be released on the remote machine when any of the following occurs:
+ * <ul>
+ *     <li>The lease expires without the object being accessed</li>
+ *     <li>The handle returned to the local application is garbage collected, in which case the library will notify
+ *     the remote machine on the next request sent by the same session</li>
+ *     <li>The session is released on the remote machine</li>
+ * </ul>
+ *
+ * @author Niall Gallagher
+ */
+public class RemoteHandle<T> {
+
+    private final UUID handleId;
+    private final UUID sessionId;
+
+    public RemoteHandle(UUID handleId, UUID sessionId) {
+        this.handleId = handleId;
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Returns the object to which this handle refers, and renews its lease. This method can only be called by code
+     * executing in the same session on the machine which holds the object.
+     *
+     * @return The object to which this handle refers
+     * @throws IllegalStateException If called on a machine other than the one which holds the object, or in a
+     * different session, or if the object has already been released
+     */
+    public T get() {
+        if (!MobilityContext.hasCurrentSession()) {
+            throw new IllegalStateException("A remote handle can only be resolved by code executing on the machine which holds the object: " + this);
+        }
+        MobilitySession currentSession = MobilityContext.getCurrentSession();
+        if (!sessionId.equals(currentSession.getSessionId())) {
+            throw new IllegalStateException("A remote handle can only be resolved in the session in which it was created, current session: " + currentSession.getSessionId() + ", handle: " + this);
+        }
+        @SuppressWarnings({"unchecked", "UnnecessaryLocalVariable"})
+        T object = (T) ((MobilitySessionInternal) currentSession).getRemoteHandleRegistry().get(handleId);
+        return object;
+    }
+
+    public UUID getHandleId() {
+        return handleId;
+    }
+
+    public UUID getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RemoteHandle that = (RemoteHandle) o;
+
+        return handleId.equals(that.handleId);
+    }
+
+    @Override
+    public int hashCode() {
+        return handleId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteHandle{" +
+                "handleId=" + handleId +
+                ", sessionId=" + sessionId +
+                '}';
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} over the results of a {@link java.util.concurrent.Callable} object which is executing on a
+ * remote machine, and which is streaming its results back to the local application in chunks.
+ * <p/>
+ * Elements are transferred from the remote machine as the local application consumes them, and so the
+ * {@link #hasNext()} method may block while the next chunk of elements is in transit. The remote machine will only
+ * ever be a few chunks ahead of the local application.
+ * <p/>
+ * If the remote machine encounters an exception while producing elements, the exception will be re-thrown by
+ * {@link #hasNext()} or {@link #next()} (wrapped in an {@link IllegalStateException}) when the local application
+ * reaches that point in the stream.
+ * <p/>
+ * Applications which stop consuming elements before reaching the end of the stream should call {@link #close()},
+ * to have the remote machine stop producing elements.
+ * <p/>
+ * Iterators returned by the library do not support {@link #remove()}.
+ *
+ * @author Niall Gallagher
+ */
+public interface RemoteIterator<T> extends Iterator<T> {
+
+    /**
+     * Asks the remote machine to stop producing elements, and discards any elements which have already been
+     * transferred but not consumed. Subsequent calls to {@link #hasNext()} will return false.
+     * <p/>
+     * This method has no effect if the end of the stream has already been reached.
+     */
+    void close();
+}
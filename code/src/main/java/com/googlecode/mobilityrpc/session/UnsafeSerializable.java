@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+/**
+ * A marker interface which can be implemented by {@link Runnable} or {@link java.util.concurrent.Callable} objects
+ * sent to remote machines, to request that they and their results be serialized in the
+ * {@link com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat#KRYO_UNSAFE} format.
+ * <p/>
+ * That format reads and writes primitive values and arrays via unsafe memory access, which is substantially faster
+ * for objects carrying large arrays of primitives, such as {@code double[]} or {@code long[]} data sets, but is
+ * typically larger on the wire for objects consisting mostly of small integers or strings.
+ * <p/>
+ * The format is used only if both machines support it with the same byte order, which they discover from the first
+ * request and response exchanged on the connection. Otherwise objects are serialized in the regular format, so
+ * implementing this interface never prevents an object from being sent.
+ * <p/>
+ * The format can alternatively be requested for all objects sent in a session, via
+ * {@link MobilitySession#setUnsafeSerializationEnabled(boolean)}.
+ *
+ * @author Niall Gallagher
+ */
+public interface UnsafeSerializable {
+}
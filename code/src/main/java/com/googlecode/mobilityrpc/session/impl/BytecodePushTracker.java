@@ -0,0 +1,373 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
+import com.googlecode.mobilityrpc.protocol.processors.impl.ResourceRequestMessageProcessor;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks which classes each session has sent on each connection, and selects the bytecode to push to a remote machine
+ * along with an execution request, so that the remote machine does not have to request the classes of the executable
+ * object from this machine one round trip at a time. A single tracker is shared by all sessions of the controller,
+ * and discards what it knows about a connection when the connection is closed, and about a session when the session
+ * is released. Classes are tracked per session as well as per connection, because the remote machine loads the
+ * classes pushed in each session into the class loader of that session.
+ * <p/>
+ * The classes selected are the runtime classes of the objects reachable from the executable object (which the remote
+ * machine will need in order to deserialize it), along with their superclasses and interfaces, excluding classes which
+ * the remote machine can be expected to have already: JDK classes, classes of this library, and classes which the
+ * session has already pushed to or served to the remote machine.
+ * <p/>
+ * Discovering the classes reachable from an object requires walking its object graph reflectively, so the pushable
+ * classes discovered from the first object of each executable class sent are cached, and reused for subsequent objects
+ * of the same class, in all sessions. Should a later object of the same class reach some other class, the remote
+ * machine will request it on demand.
+ * <p/>
+ * If the remote machine nonetheless lacks some class, for example one which is only referenced when the executable
+ * object runs, it will request it via the regular on-demand mechanism. If the remote machine already has some class
+ * which is pushed, the pushed bytecode is simply ignored, as the remote machine's parent class loader takes precedence.
+ * <p/>
+ * Can be tuned via system properties:
+ * <ul>
+ *     <li>
+ *         {@code com.googlecode.mobilityrpc.bytecodePush.disabled} - set to {@code true} to disable pushing bytecode
+ *     </li>
+ *     <li>
+ *         {@code com.googlecode.mobilityrpc.bytecodePush.maxBytes} - the maximum amount of bytecode to push with a
+ *         single request, default 262144 bytes; classes beyond this will be requested on demand
+ *     </li>
+ * </ul>
+ *
+ * @author Niall Gallagher
+ */
+public class BytecodePushTracker {
+
+    static final boolean BYTECODE_PUSH_ENABLED = !Boolean.getBoolean("com.googlecode.mobilityrpc.bytecodePush.disabled");
+    static final int MAX_PUSH_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.bytecodePush.maxBytes", 262144);
+
+    /**
+     * The maximum number of objects to visit when discovering the classes reachable from an executable object.
+     */
+    static final int MAX_OBJECTS_VISITED = 1000;
+
+    private static final URL LIBRARY_CODE_SOURCE_LOCATION = getCodeSourceLocation(BytecodePushTracker.class);
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    // Names of the resources sent in each session on each connection...
+    private final ConcurrentMap<ConnectionId, ConcurrentMap<UUID, Set<String>>> resourcesSent = new ConcurrentHashMap<ConnectionId, ConcurrentMap<UUID, Set<String>>>();
+
+    // The pushable classes reachable from the first object of each executable class sent. Keys are weak and values
+    // refer to classes weakly, so that class loaders are not retained. Guarded by synchronizing on it...
+    private final Map<Class<?>, List<WeakReference<Class<?>>>> pushableClassesByExecutableClass = new WeakHashMap<Class<?>, List<WeakReference<Class<?>>>>();
+
+    /**
+     * Returns the bytecode of classes reachable from the given executable object, which the given session has not yet
+     * sent on the given connection, and records that it has now been sent.
+     *
+     * @param connectionId Identifies the connection on which the executable object will be sent
+     * @param sessionId Identifies the session in which the executable object will be sent
+     * @param executableObject The Runnable or Callable object which will be sent
+     * @return Bytecode of classes to send along with the executable object, an empty list if none
+     */
+    public List<ResourceResponse.ResourceData> getResourcesToPush(ConnectionId connectionId, UUID sessionId, Object executableObject) {
+        if (!BYTECODE_PUSH_ENABLED) {
+            return Collections.emptyList();
+        }
+        try {
+            Set<String> sentInSession = getResourcesSent(connectionId, sessionId);
+            List<ResourceResponse.ResourceData> resourcesToPush = new ArrayList<ResourceResponse.ResourceData>();
+            int totalBytes = 0;
+            for (Class<?> clazz : getPushableClasses(executableObject)) {
+                String resourceName = clazz.getName().replace('.', '/') + ".class";
+                if (sentInSession.contains(resourceName)) {
+                    continue;
+                }
+                byte[] bytecode;
+                try {
+                    bytecode = ResourceRequestMessageProcessor.getResourceFromClassLoader(resourceName, clazz.getClassLoader());
+                }
+                catch (Exception e) {
+                    // Bytecode not available, e.g. a generated class, remote machine will have to request it...
+                    continue;
+                }
+                if (totalBytes + bytecode.length > MAX_PUSH_BYTES) {
+                    break;
+                }
+                // Record the resource as sent before actually sending it. If the request is lost,
+                // the remote machine will fall back to requesting the class on demand...
+                if (sentInSession.add(resourceName)) {
+                    resourcesToPush.add(new ResourceResponse.ResourceData(resourceName, bytecode));
+                    totalBytes += bytecode.length;
+                }
+            }
+            if (logger.isLoggable(Level.FINER) && !resourcesToPush.isEmpty()) {
+                logger.log(Level.FINER, "Pushing " + resourcesToPush.size() + " classes, " + totalBytes + " bytes to " + connectionId + " with executable object: " + executableObject.getClass().getName());
+            }
+            return resourcesToPush;
+        }
+        catch (Exception e) {
+            // Pushing bytecode is only an optimization, never fail the request because of it...
+            logger.log(Level.FINE, "Failed to determine bytecode to push to " + connectionId, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Records that the given classes or resources have been sent in the given session on the given connection, for
+     * example in response to a resource request from the remote machine, so that they will not subsequently be pushed.
+     *
+     * @param connectionId Identifies the connection
+     * @param sessionId Identifies the session
+     * @param resourceNames The names of the classes or resources sent
+     */
+    public void recordResourcesSent(ConnectionId connectionId, UUID sessionId, Collection<String> resourceNames) {
+        getResourcesSent(connectionId, sessionId).addAll(resourceNames);
+    }
+
+    /**
+     * Forgets which classes have been sent on the given connection, called when the connection is closed.
+     *
+     * @param connectionId Identifies the connection
+     */
+    public void notifyConnectionClosed(ConnectionId connectionId) {
+        resourcesSent.remove(connectionId);
+    }
+
+    /**
+     * Forgets which classes have been sent in the given session, called when the session is released.
+     *
+     * @param sessionId Identifies the session
+     */
+    public void releaseSession(UUID sessionId) {
+        for (ConcurrentMap<UUID, Set<String>> sentOnConnection : resourcesSent.values()) {
+            sentOnConnection.remove(sessionId);
+        }
+    }
+
+    /**
+     * Forgets which classes have been sent on all connections, and the classes discovered from executable objects.
+     */
+    public void clear() {
+        resourcesSent.clear();
+        synchronized (pushableClassesByExecutableClass) {
+            pushableClassesByExecutableClass.clear();
+        }
+    }
+
+    Set<String> getResourcesSent(ConnectionId connectionId, UUID sessionId) {
+        ConcurrentMap<UUID, Set<String>> sentOnConnection = resourcesSent.get(connectionId);
+        if (sentOnConnection == null) {
+            ConcurrentMap<UUID, Set<String>> newMap = new ConcurrentHashMap<UUID, Set<String>>();
+            sentOnConnection = resourcesSent.putIfAbsent(connectionId, newMap);
+            if (sentOnConnection == null) {
+                sentOnConnection = newMap;
+            }
+        }
+        Set<String> sentInSession = sentOnConnection.get(sessionId);
+        if (sentInSession == null) {
+            Set<String> newSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            sentInSession = sentOnConnection.putIfAbsent(sessionId, newSet);
+            if (sentInSession == null) {
+                sentInSession = newSet;
+            }
+        }
+        return sentInSession;
+    }
+
+    /**
+     * Returns the pushable classes reachable from the given executable object, from the cache if the classes
+     * reachable from an object of the same class were discovered previously, otherwise by walking its object graph.
+     *
+     * @param executableObject The Runnable or Callable object which will be sent
+     * @return The pushable classes reachable from the object
+     */
+    List<Class<?>> getPushableClasses(Object executableObject) {
+        Class<?> executableClass = executableObject.getClass();
+        synchronized (pushableClassesByExecutableClass) {
+            List<WeakReference<Class<?>>> cachedClasses = pushableClassesByExecutableClass.get(executableClass);
+            if (cachedClasses != null) {
+                List<Class<?>> pushableClasses = new ArrayList<Class<?>>(cachedClasses.size());
+                for (WeakReference<Class<?>> classReference : cachedClasses) {
+                    Class<?> clazz = classReference.get();
+                    if (clazz == null) {
+                        // A class was unloaded, discover the classes again...
+                        pushableClasses = null;
+                        break;
+                    }
+                    pushableClasses.add(clazz);
+                }
+                if (pushableClasses != null) {
+                    return pushableClasses;
+                }
+            }
+        }
+        // Walk the object graph outside of the lock...
+        List<Class<?>> pushableClasses = new ArrayList<Class<?>>();
+        List<WeakReference<Class<?>>> classReferences = new ArrayList<WeakReference<Class<?>>>();
+        for (Class<?> clazz : getReachableClasses(executableObject)) {
+            if (isPushable(clazz)) {
+                pushableClasses.add(clazz);
+                classReferences.add(new WeakReference<Class<?>>(clazz));
+            }
+        }
+        synchronized (pushableClassesByExecutableClass) {
+            pushableClassesByExecutableClass.put(executableClass, classReferences);
+        }
+        return pushableClasses;
+    }
+
+    /**
+     * Returns the runtime classes of the objects reachable from the given object, along with their superclasses and
+     * interfaces, in the order in which they were discovered. Visits at most {@link #MAX_OBJECTS_VISITED} objects.
+     *
+     * @param root The object from which to start
+     * @return The classes discovered
+     */
+    static Set<Class<?>> getReachableClasses(Object root) {
+        Set<Class<?>> classesFound = new LinkedHashSet<Class<?>>();
+        Map<Class<?>, List<Field>> fieldCache = new HashMap<Class<?>, List<Field>>();
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Deque<Object> pending = new ArrayDeque<Object>();
+        pending.add(root);
+        while (!pending.isEmpty() && visited.size() < MAX_OBJECTS_VISITED) {
+            Object object = pending.poll();
+            if (!visited.add(object)) {
+                continue;
+            }
+            Class<?> clazz = object.getClass();
+            addClassHierarchy(clazz, classesFound);
+            if (clazz.getClassLoader() == null) {
+                // A JDK class, contents of which are not of interest, except for elements of arrays and collections...
+                if (clazz.isArray() && !clazz.getComponentType().isPrimitive()) {
+                    for (int i = 0, n = Array.getLength(object); i < n; i++) {
+                        Object element = Array.get(object, i);
+                        if (element != null) {
+                            pending.add(element);
+                        }
+                    }
+                }
+                else if (object instanceof Collection) {
+                    pending.addAll(nonNullElements((Collection<?>) object));
+                }
+                else if (object instanceof Map) {
+                    pending.addAll(nonNullElements(((Map<?, ?>) object).keySet()));
+                    pending.addAll(nonNullElements(((Map<?, ?>) object).values()));
+                }
+                continue;
+            }
+            for (Field field : getReferenceFields(clazz, fieldCache)) {
+                try {
+                    Object value = field.get(object);
+                    if (value != null) {
+                        pending.add(value);
+                    }
+                }
+                catch (Exception e) {
+                    // Skip fields we cannot read...
+                }
+            }
+        }
+        return classesFound;
+    }
+
+    static void addClassHierarchy(Class<?> clazz, Set<Class<?>> classesFound) {
+        while (clazz.isArray()) {
+            clazz = clazz.getComponentType();
+        }
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            if (!classesFound.add(current)) {
+                break;
+            }
+            for (Class<?> interfaceClass : current.getInterfaces()) {
+                addClassHierarchy(interfaceClass, classesFound);
+            }
+        }
+    }
+
+    static List<Field> getReferenceFields(Class<?> clazz, Map<Class<?>, List<Field>> fieldCache) {
+        List<Field> fields = fieldCache.get(clazz);
+        if (fields == null) {
+            fields = new ArrayList<Field>();
+            for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                    catch (Exception e) {
+                        // Skip fields we cannot make accessible...
+                    }
+                }
+            }
+            fieldCache.put(clazz, fields);
+        }
+        return fields;
+    }
+
+    static List<Object> nonNullElements(Collection<?> collection) {
+        List<Object> elements = new ArrayList<Object>(collection.size());
+        for (Object element : collection) {
+            if (element != null) {
+                elements.add(element);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * @param clazz A class reachable from an executable object
+     * @return True if the class is one which the remote machine is unlikely to have, and so which should be pushed
+     */
+    static boolean isPushable(Class<?> clazz) {
+        if (clazz.isPrimitive() || clazz.getClassLoader() == null) {
+            return false;
+        }
+        String className = clazz.getName();
+        if (className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("sun.") || className.startsWith("com.sun.")) {
+            return false;
+        }
+        URL location = getCodeSourceLocation(clazz);
+        return location == null || !location.equals(LIBRARY_CODE_SOURCE_LOCATION);
+    }
+
+    static URL getCodeSourceLocation(Class<?> clazz) {
+        try {
+            CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+            return codeSource == null ? null : codeSource.getLocation();
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.common.util.ClassFileParser;
+import com.googlecode.mobilityrpc.protocol.processors.impl.ResourceRequestMessageProcessor;
+import com.googlecode.mobilityrpc.serialization.Serializer;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects references to enclosing objects which are captured by anonymous and inner classes, but which the code of
+ * those classes never uses, so that they can be excluded when the objects are sent to remote machines, and reports
+ * which fields of objects contribute most to the size of their serialized form.
+ * <p/>
+ * The serializer deliberately serializes synthetic fields, because an anonymous {@code Runnable} or {@code Callable}
+ * typically uses the state of its enclosing object. However the compiler adds a reference to the enclosing object
+ * ({@code this$0}) to every inner class, whether or not it is used, and so an inner class declared in a service
+ * object will carry the whole service object, and everything it references, to the remote machine.
+ * <p/>
+ * This class reads the bytecode of the class of an object, and of the inner classes it declares, to find synthetic
+ * fields which are never read by a {@code getfield} instruction. Such fields are set to null in a shallow copy of the
+ * object, which is serialized instead of the original object. The original object is not modified. Only the
+ * fields of the object itself are analyzed, not the fields of the objects it references. If bytecode is not
+ * available for any of the classes, no fields are excluded. Note that the code of a subclass declared elsewhere
+ * could in principle read the fields of an inner class, which this analysis does not detect.
+ * <p/>
+ * Capture analysis is enabled via system property {@code com.googlecode.mobilityrpc.captureAnalysis=true}. When
+ * enabled, the size of each serialized executable object is also checked:
+ * <ul>
+ *     <li>If it exceeds {@code com.googlecode.mobilityrpc.captureAnalysis.reportThresholdBytes} (default 1MB), a
+ *     warning is logged which lists the serialized size of each field of the object</li>
+ *     <li>If it exceeds {@code com.googlecode.mobilityrpc.captureAnalysis.maxPayloadBytes} (default 0, no limit),
+ *     the object is not sent, and an exception containing the same report is thrown</li>
+ * </ul>
+ *
+ * @author Niall Gallagher
+ */
+public class ClosureCaptureAnalyzer {
+
+    public static final boolean CAPTURE_ANALYSIS_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.captureAnalysis");
+
+    static final int REPORT_THRESHOLD_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.captureAnalysis.reportThresholdBytes", 1024 * 1024);
+    static final int MAX_PAYLOAD_BYTES = Integer.getInteger("com.googlecode.mobilityrpc.captureAnalysis.maxPayloadBytes", 0);
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final int reportThresholdBytes;
+    private final int maxPayloadBytes;
+
+    // The names of the unread synthetic fields declared by each class analyzed. The values do not refer to the
+    // classes, so classes loaded by session class loaders can be garbage collected. Guarded by synchronizing on it...
+    private final Map<Class<?>, List<String>> unreadSyntheticFieldNames = new WeakHashMap<Class<?>, List<String>>();
+
+    public ClosureCaptureAnalyzer() {
+        this(REPORT_THRESHOLD_BYTES, MAX_PAYLOAD_BYTES);
+    }
+
+    /**
+     * @param reportThresholdBytes The serialized size above which a report is logged, or 0 for no reports
+     * @param maxPayloadBytes The serialized size above which objects are rejected, or 0 for no limit
+     */
+    public ClosureCaptureAnalyzer(int reportThresholdBytes, int maxPayloadBytes) {
+        this.reportThresholdBytes = reportThresholdBytes;
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * Returns a shallow copy of the given object in which the synthetic fields its code never reads are set to null,
+     * or the object itself if it has no such fields which are non-null.
+     *
+     * @param executableObject The object to be serialized
+     * @return The object to serialize instead
+     */
+    public Object stripUnreadSyntheticFields(Object executableObject) {
+        if (executableObject == null) {
+            return null;
+        }
+        try {
+            List<Field> fieldsToStrip = new ArrayList<Field>();
+            for (Field field : getUnreadSyntheticFields(executableObject.getClass())) {
+                if (field.get(executableObject) != null) {
+                    fieldsToStrip.add(field);
+                }
+            }
+            if (fieldsToStrip.isEmpty()) {
+                return executableObject;
+            }
+            Object copy = shallowCopy(executableObject);
+            for (Field field : fieldsToStrip) {
+                field.set(copy, null);
+            }
+            if (logger.isLoggable(Level.FINER)) {
+                logger.log(Level.FINER, "Excluded unused captured fields " + fieldsToStrip + " from object of type: " + executableObject.getClass().getName());
+            }
+            return copy;
+        }
+        catch (Exception e) {
+            logger.log(Level.FINE, "Failed to exclude unused captured fields from object of type: " + executableObject.getClass().getName() + ", the object will be serialized as-is", e);
+            return executableObject;
+        }
+    }
+
+    /**
+     * Checks the size of the serialized form of an object against the configured thresholds, logging a report of
+     * the serialized size of each of its fields, or throwing an exception containing that report, if they are
+     * exceeded.
+     *
+     * @param executableObject The object which was serialized
+     * @param serializedSize The size of its serialized form in bytes
+     * @param serializer The serializer which serialized it, used to measure the size of its fields
+     * @throws IllegalStateException If the size exceeds the maximum payload size
+     */
+    public void checkPayloadSize(Object executableObject, int serializedSize, Serializer serializer) {
+        boolean exceedsMax = maxPayloadBytes > 0 && serializedSize > maxPayloadBytes;
+        boolean exceedsReportThreshold = reportThresholdBytes > 0 && serializedSize > reportThresholdBytes;
+        if (!exceedsMax && !exceedsReportThreshold) {
+            return;
+        }
+        String report = "Serialized object of type " + executableObject.getClass().getName() + " is " + serializedSize + " bytes, serialized size of its fields: " + getFieldSizeReport(executableObject, serializer);
+        if (exceedsMax) {
+            throw new IllegalStateException("Refusing to send object which exceeds the maximum payload size of " + maxPayloadBytes + " bytes. " + report);
+        }
+        logger.log(Level.WARNING, report);
+    }
+
+    /**
+     * Returns the instance fields of the given object and their serialized sizes, largest first, in the form
+     * {@code [this$0 (com.foo.Service)=5242880 bytes, val$id (java.lang.Long)=10 bytes]}.
+     *
+     * @param object The object whose fields should be measured
+     * @param serializer The serializer with which to serialize each field
+     * @return A report of the serialized sizes of the fields of the object
+     */
+    public static String getFieldSizeReport(Object object, Serializer serializer) {
+        List<Map.Entry<String, Integer>> fieldSizes = new ArrayList<Map.Entry<String, Integer>>();
+        for (Class<?> type = object.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                int size;
+                Object value = null;
+                try {
+                    field.setAccessible(true);
+                    value = field.get(object);
+                    size = serializer.serialize(value).length;
+                }
+                catch (Exception e) {
+                    size = -1;
+                }
+                String description = field.getName() + " (" + (value == null ? field.getType().getName() : value.getClass().getName()) + ")";
+                fieldSizes.add(new AbstractMap.SimpleEntry<String, Integer>(description, size));
+            }
+        }
+        Collections.sort(fieldSizes, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        List<String> report = new ArrayList<String>(fieldSizes.size());
+        for (Map.Entry<String, Integer> fieldSize : fieldSizes) {
+            report.add(fieldSize.getKey() + "=" + (fieldSize.getValue() < 0 ? "unknown" : fieldSize.getValue() + " bytes"));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns the synthetic reference-typed instance fields, declared by the given class or its superclasses, which
+     * are never read by the code of the class which declares them or of its inner classes.
+     *
+     * @param type The class of an object to be serialized
+     * @return The unread synthetic fields, made accessible
+     */
+    List<Field> getUnreadSyntheticFields(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            List<String> fieldNames;
+            synchronized (unreadSyntheticFieldNames) {
+                fieldNames = unreadSyntheticFieldNames.get(current);
+            }
+            if (fieldNames == null) {
+                fieldNames = analyze(current);
+                synchronized (unreadSyntheticFieldNames) {
+                    unreadSyntheticFieldNames.put(current, fieldNames);
+                }
+            }
+            for (String fieldName : fieldNames) {
+                try {
+                    Field field = current.getDeclaredField(fieldName);
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+                catch (Exception e) {
+                    // Should not happen, the name was read from the class...
+                    logger.log(Level.FINE, "Failed to access field " + fieldName + " of class: " + current.getName(), e);
+                }
+            }
+        }
+        return fields;
+    }
+
+    List<String> analyze(Class<?> type) {
+        List<Field> syntheticFields = new ArrayList<Field>();
+        for (Field field : type.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (field.isSynthetic() && !Modifier.isStatic(modifiers) && !field.getType().isPrimitive()) {
+                syntheticFields.add(field);
+            }
+        }
+        if (syntheticFields.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            String internalName = type.getName().replace('.', '/');
+            byte[] bytecode = getBytecode(type.getClassLoader(), internalName);
+            if (bytecode == null) {
+                return Collections.emptyList();
+            }
+            List<ClassFileParser.FieldReads> fieldReadsList = new ArrayList<ClassFileParser.FieldReads>();
+            ClassFileParser.FieldReads fieldReads = ClassFileParser.getFieldReads(bytecode);
+            fieldReadsList.add(fieldReads);
+            // Inner classes of the class can also read its fields, e.g. to access the outer object from a nested
+            // anonymous class...
+            for (String innerClassName : fieldReads.getInnerClassNames()) {
+                if (innerClassName.startsWith(internalName + "$")) {
+                    byte[] innerBytecode = getBytecode(type.getClassLoader(), innerClassName);
+                    if (innerBytecode == null) {
+                        // We cannot prove that the fields are unused...
+                        return Collections.emptyList();
+                    }
+                    fieldReadsList.add(ClassFileParser.getFieldReads(innerBytecode));
+                }
+            }
+            List<String> unreadFieldNames = new ArrayList<String>();
+            for (Field field : syntheticFields) {
+                boolean read = false;
+                for (ClassFileParser.FieldReads reads : fieldReadsList) {
+                    if (reads.isFieldRead(internalName, field.getName())) {
+                        read = true;
+                        break;
+                    }
+                }
+                if (!read) {
+                    unreadFieldNames.add(field.getName());
+                }
+            }
+            return unreadFieldNames;
+        }
+        catch (Exception e) {
+            logger.log(Level.FINE, "Failed to analyze bytecode of class: " + type.getName(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Returns the bytecode of the given class, without requesting it from a remote machine, or null if it is not
+     * available.
+     */
+    static byte[] getBytecode(ClassLoader classLoader, String internalName) {
+        if (classLoader == null) {
+            return null;
+        }
+        String resourceName = internalName + ".class";
+        if (classLoader instanceof SessionClassLoader) {
+            return ((SessionClassLoader) classLoader).getReceivedResourceData(resourceName);
+        }
+        try {
+            return ResourceRequestMessageProcessor.getResourceFromClassLoader(resourceName, classLoader);
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    static Object shallowCopy(Object object) throws IllegalAccessException {
+        Class<?> type = object.getClass();
+        Object copy = new StdInstantiatorStrategy().newInstantiatorOf(type).newInstance();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                field.set(copy, field.get(object));
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of class bytecode and other resources received from remote machines, keyed by the hash of their content,
+ * which is shared by all sessions in a controller.
+ * <p/>
+ * Resources are loaded into sessions by name, and a resource with a given name may differ between sessions (e.g.
+ * between sessions from clients running different builds of an application). Therefore a session class loader does
+ * not look up resources in this cache by name. Instead it asks the remote machine for the content hashes of the
+ * resources it needs, and only transfers the resources whose hashes are not found in this cache.
+ * <p/>
+ * The cache is bounded by the total size of resources it contains, and evicts the least recently used resources.
+ * The bound can be configured via system property {@code com.googlecode.mobilityrpc.contentCache.maxBytes}, default
+ * 64MB. A value of zero disables the cache.
+ * <p/>
+ * The cache can optionally be backed by a {@link PersistentResourceStore}, which holds resources on disk across
+ * restarts of the application. Resources not found in memory are then looked up in the store, and resources added to
+ * the cache are also appended to the store. See {@link PersistentResourceStore} for how to enable it.
+ *
+ * @author Niall Gallagher
+ */
+public class ContentAddressedResourceCache {
+
+    static final long DEFAULT_MAX_BYTES = Long.getLong("com.googlecode.mobilityrpc.contentCache.maxBytes", 64L * 1024 * 1024);
+
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final long maxBytes;
+    private final PersistentResourceStore persistentStore;
+
+    // Access-ordered, so that iteration visits least recently used entries first...
+    private final LinkedHashMap<ContentHash, byte[]> entries = new LinkedHashMap<ContentHash, byte[]>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public ContentAddressedResourceCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_BYTES > 0 ? PersistentResourceStore.openConfiguredStore() : null);
+    }
+
+    public ContentAddressedResourceCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param maxBytes The bound on the total size of resources held in memory
+     * @param persistentStore An on-disk store backing the cache, or null to hold resources only in memory
+     */
+    public ContentAddressedResourceCache(long maxBytes, PersistentResourceStore persistentStore) {
+        this.maxBytes = maxBytes;
+        this.persistentStore = persistentStore;
+    }
+
+    /**
+     * @return True if the cache is enabled, i.e. it has a non-zero size bound
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the resource with the given content hash, if cached.
+     *
+     * @param contentHash The content hash of the resource
+     * @return The resource with the given content hash, or null if not cached
+     */
+    public byte[] get(byte[] contentHash) {
+        ContentHash key = new ContentHash(contentHash);
+        synchronized (entries) {
+            byte[] resourceData = entries.get(key);
+            if (resourceData != null || persistentStore == null) {
+                return resourceData;
+            }
+        }
+        // Not in memory, look up the persistent store...
+        byte[] resourceData;
+        try {
+            resourceData = persistentStore.get(contentHash);
+        }
+        catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to read from persistent resource store", e);
+            return null;
+        }
+        if (resourceData != null) {
+            addToMemory(key, resourceData);
+        }
+        return resourceData;
+    }
+
+    /**
+     * Adds the given resource to the cache, evicting least recently used resources if necessary to stay within the
+     * size bound. Resources larger than the bound are not cached.
+     *
+     * @param resourceData The resource to cache
+     */
+    public void put(byte[] resourceData) {
+        if (resourceData.length > maxBytes) {
+            return;
+        }
+        ContentHash contentHash = new ContentHash(computeContentHash(resourceData));
+        if (addToMemory(contentHash, resourceData) && persistentStore != null) {
+            try {
+                persistentStore.put(contentHash.hash, resourceData);
+            }
+            catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to write to persistent resource store", e);
+            }
+        }
+    }
+
+    /**
+     * @return True if the resource was added, false if it was already present
+     */
+    boolean addToMemory(ContentHash contentHash, byte[] resourceData) {
+        synchronized (entries) {
+            if (entries.containsKey(contentHash)) {
+                return false;
+            }
+            entries.put(contentHash, resourceData);
+            totalBytes += resourceData.length;
+            for (Iterator<byte[]> iterator = entries.values().iterator(); totalBytes > maxBytes && iterator.hasNext(); ) {
+                totalBytes -= iterator.next().length;
+                iterator.remove();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return True if the cache contains no resources, in memory or in the persistent store
+     */
+    public boolean isEmpty() {
+        synchronized (entries) {
+            if (!entries.isEmpty()) {
+                return false;
+            }
+        }
+        return persistentStore == null || persistentStore.isEmpty();
+    }
+
+    /**
+     * @return The number of resources held in memory
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The total size in bytes of resources held in memory
+     */
+    public long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Removes all resources from memory, and closes the persistent store if any. Resources in the persistent store
+     * remain on disk for subsequent use.
+     */
+    public void close() {
+        clear();
+        if (persistentStore != null) {
+            persistentStore.close();
+        }
+    }
+
+    /**
+     * Removes all resources from memory. Resources in the persistent store are unaffected.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * Computes the content hash of the given resource, as used both by this cache and by the remote machine when it
+     * returns content hashes instead of resources.
+     *
+     * @param resourceData The resource
+     * @return The SHA-256 hash of the resource
+     */
+    public static byte[] computeContentHash(byte[] resourceData) {
+        try {
+            return MessageDigest.getInstance(CONTENT_HASH_ALGORITHM).digest(resourceData);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to compute " + CONTENT_HASH_ALGORITHM + " hash of " + resourceData.length + " bytes", e);
+        }
+    }
+
+    static class ContentHash {
+        final byte[] hash;
+        final int hashCode;
+
+        ContentHash(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(hash, ((ContentHash) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.session.RemoteExecutionException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Prepares exceptions thrown by code executed on this machine to be returned to clients, and reconstructs exceptions
+ * returned by remote machines.
+ * <p/>
+ * In {@link Mode#FULL} mode (the default), the exception itself is serialized, including its cause chain, stack
+ * traces and any objects referenced by its fields. In {@link Mode#COMPACT} mode, a compact {@link ExceptionRecord}
+ * is sent instead, which preserves the class name, message and stack trace of each exception in the cause chain, but
+ * not its other fields; and in which:
+ * <ul>
+ *     <li>Stack frames which a cause has in common with the exception it caused are omitted, and restored by the
+ *     client from the enclosing exception, as in {@link Throwable#printStackTrace()}</li>
+ *     <li>At most {@code maxStackFrames} frames unique to each exception are sent</li>
+ *     <li>At most {@code maxCauseDepth} causes are sent</li>
+ * </ul>
+ * The client reconstructs an exception of the original class from a record if the class has no state beyond a
+ * message and has a public constructor accepting a message, otherwise it substitutes a
+ * {@link RemoteExecutionException} which reports the original class name. A record is also sent in {@code FULL} mode
+ * if the exception cannot be serialized, for example because its fields reference objects which cannot be
+ * serialized.
+ * <p/>
+ * The mode and limits can be configured via system properties
+ * {@code com.googlecode.mobilityrpc.exceptionTransport.mode} ({@code FULL} or {@code COMPACT}),
+ * {@code com.googlecode.mobilityrpc.exceptionTransport.maxStackFrames} (default 32) and
+ * {@code com.googlecode.mobilityrpc.exceptionTransport.maxCauseDepth} (default 8). Clients can always read either
+ * form, however in {@code COMPACT} mode stack trace elements are serialized in a compact format (see
+ * {@link com.googlecode.mobilityrpc.serialization.impl.StackTraceElementSerializer}), which clients can only read if
+ * they are also configured with {@code COMPACT} mode or with frame string interning.
+ *
+ * @author Niall Gallagher
+ */
+public class ExceptionTransport {
+
+    public enum Mode {
+        FULL, COMPACT
+    }
+
+    /**
+     * The mode configured for this machine, which also determines whether stack trace elements are serialized in the
+     * compact format.
+     */
+    public static final Mode DEFAULT_MODE = Mode.valueOf(System.getProperty("com.googlecode.mobilityrpc.exceptionTransport.mode", Mode.FULL.name()).toUpperCase());
+    static final int DEFAULT_MAX_STACK_FRAMES = Integer.getInteger("com.googlecode.mobilityrpc.exceptionTransport.maxStackFrames", 32);
+    static final int DEFAULT_MAX_CAUSE_DEPTH = Integer.getInteger("com.googlecode.mobilityrpc.exceptionTransport.maxCauseDepth", 8);
+
+    private final Mode mode;
+    private final int maxStackFrames;
+    private final int maxCauseDepth;
+
+    public ExceptionTransport() {
+        this(DEFAULT_MODE, DEFAULT_MAX_STACK_FRAMES, DEFAULT_MAX_CAUSE_DEPTH);
+    }
+
+    public ExceptionTransport(Mode mode, int maxStackFrames, int maxCauseDepth) {
+        this.mode = mode;
+        this.maxStackFrames = maxStackFrames;
+        this.maxCauseDepth = maxCauseDepth;
+    }
+
+    /**
+     * Returns the object which should be serialized to return the given exception to a client: the exception itself
+     * in {@link Mode#FULL} mode, or an {@link ExceptionRecord} in {@link Mode#COMPACT} mode.
+     *
+     * @param exception The exception thrown
+     * @return The object to serialize
+     */
+    public Object toTransportForm(Throwable exception) {
+        return mode == Mode.FULL ? exception : toRecord(exception);
+    }
+
+    /**
+     * Creates a compact record of the given exception and its causes.
+     *
+     * @param exception The exception thrown
+     * @return A record of the exception
+     */
+    public ExceptionRecord toRecord(Throwable exception) {
+        Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        return toRecord(exception, new StackTraceElement[0], 0, visited);
+    }
+
+    ExceptionRecord toRecord(Throwable exception, StackTraceElement[] enclosingTrace, int depth, Set<Throwable> visited) {
+        visited.add(exception);
+        StackTraceElement[] trace = exception.getStackTrace();
+        int framesInCommon = countFramesInCommon(trace, enclosingTrace);
+        ExceptionRecord record = new ExceptionRecord();
+        record.className = exception.getClass().getName();
+        record.message = exception.getMessage();
+        record.reconstructable = isReconstructable(exception.getClass());
+        record.stackTrace = Arrays.copyOf(trace, Math.min(trace.length - framesInCommon, maxStackFrames));
+        record.framesInCommon = framesInCommon;
+        Throwable cause = exception.getCause();
+        if (cause != null && depth < maxCauseDepth && !visited.contains(cause)) {
+            // Compare the cause with the trace the client will restore, which might have been trimmed...
+            record.cause = toRecord(cause, record.restoreStackTrace(enclosingTrace), depth + 1, visited);
+        }
+        return record;
+    }
+
+    /**
+     * Returns the exception represented by an object returned by a remote machine, reconstructing it if it is an
+     * {@link ExceptionRecord}.
+     *
+     * @param transportForm The object deserialized
+     * @param classLoader The class loader from which to load the classes of exceptions to reconstruct
+     * @return The exception, or null if the object is neither an exception nor a record of one
+     */
+    public static Throwable fromTransportForm(Object transportForm, ClassLoader classLoader) {
+        if (transportForm instanceof Throwable) {
+            return (Throwable) transportForm;
+        }
+        if (transportForm instanceof ExceptionRecord) {
+            return ((ExceptionRecord) transportForm).toThrowable(new StackTraceElement[0], classLoader);
+        }
+        return null;
+    }
+
+    static int countFramesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosingTrace) {
+        int m = trace.length - 1, n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        return trace.length - 1 - m;
+    }
+
+    /**
+     * Returns true if an exception of the given class can be reconstructed from its message: if the class has a
+     * public constructor accepting a message, and declares no fields beyond those of {@link Throwable}. Fields
+     * declared by classes in the JDK, which hold details of its implementation, and transient fields are disregarded.
+     *
+     * @param exceptionClass The class of the exception
+     * @return True if an exception of the class can be reconstructed from its message
+     */
+    static boolean isReconstructable(Class<?> exceptionClass) {
+        try {
+            exceptionClass.getConstructor(String.class);
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+        for (Class<?> type = exceptionClass; type != Throwable.class; type = type.getSuperclass()) {
+            if (type.getName().startsWith("java.")) {
+                continue;
+            }
+            for (Field field : type.getDeclaredFields()) {
+                if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A compact record of an exception thrown on a remote machine, and its causes.
+     */
+    public static class ExceptionRecord {
+        String className;
+        String message;
+        StackTraceElement[] stackTrace;
+        int framesInCommon;
+        boolean reconstructable;
+        ExceptionRecord cause;
+
+        /**
+         * @param enclosingTrace The restored stack trace of the exception which this exception caused, or an empty
+         * array if this is the outermost exception
+         * @return The frames sent for this exception, followed by the frames it had in common with the enclosing
+         * exception
+         */
+        StackTraceElement[] restoreStackTrace(StackTraceElement[] enclosingTrace) {
+            StackTraceElement[] restored = Arrays.copyOf(stackTrace, stackTrace.length + framesInCommon);
+            System.arraycopy(enclosingTrace, enclosingTrace.length - framesInCommon, restored, stackTrace.length, framesInCommon);
+            return restored;
+        }
+
+        Throwable toThrowable(StackTraceElement[] enclosingTrace, ClassLoader classLoader) {
+            Throwable exception = reconstructable ? instantiate(classLoader) : null;
+            if (exception == null) {
+                exception = new RemoteExecutionException(className, message);
+            }
+            StackTraceElement[] restoredTrace = restoreStackTrace(enclosingTrace);
+            exception.setStackTrace(restoredTrace);
+            if (cause != null) {
+                try {
+                    exception.initCause(cause.toThrowable(restoredTrace, classLoader));
+                }
+                catch (IllegalStateException e) {
+                    // The constructor already set a cause...
+                }
+            }
+            return exception;
+        }
+
+        Throwable instantiate(ClassLoader classLoader) {
+            try {
+                Class<?> exceptionClass = Class.forName(className, false, classLoader);
+                if (!Throwable.class.isAssignableFrom(exceptionClass)) {
+                    return null;
+                }
+                return (Throwable) exceptionClass.getConstructor(String.class).newInstance(message);
+            }
+            catch (Exception e) {
+                return null;
+            }
+            catch (LinkageError e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ExceptionRecord{" +
+                    "className='" + className + '\'' +
+                    ", message='" + message + '\'' +
+                    ", stackTrace=" + stackTrace.length + " frames" +
+                    ", framesInCommon=" + framesInCommon +
+                    ", reconstructable=" + reconstructable +
+                    ", cause=" + cause +
+                    '}';
+        }
+    }
+}
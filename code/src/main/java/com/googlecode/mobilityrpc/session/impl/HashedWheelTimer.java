@@ -0,0 +1,198 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timer which expires large numbers of timeouts cheaply, using a single background thread and a hashed wheel of
+ * buckets, each of which holds the timeouts due in a particular tick of the wheel.
+ * <p/>
+ * Scheduling a timeout is a lock-free enqueue. Timeouts are moved from the queue into the wheel by the timer thread,
+ * and on each tick the timer thread expires all of the timeouts due in the current bucket in bulk. Timeouts whose
+ * targets complete before they expire are not removed from the wheel eagerly, but are discarded when their bucket is
+ * next visited.
+ * <p/>
+ * Timeouts fire within one tick after their deadline. The timer thread is a daemon thread, started when the first
+ * timeout is scheduled.
+ *
+ * @author Niall Gallagher
+ */
+public class HashedWheelTimer {
+
+    /**
+     * Implemented by objects which can be expired by the timer.
+     */
+    public interface Expirable {
+
+        /**
+         * @return True if the object has already completed, such that it no longer needs to be expired
+         */
+        boolean isDone();
+
+        /**
+         * Called by the timer thread when the object's deadline has passed, if it has not completed.
+         */
+        void expire();
+    }
+
+    static class Timeout {
+        final Expirable target;
+        final long deadlineMillis;
+        long deadlineTick;
+
+        Timeout(Expirable target, long deadlineMillis) {
+            this.target = target;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final long tickMillis;
+    private final int mask;
+    // Accessed only by the timer thread...
+    private final List<Timeout>[] wheel;
+    private final Queue<Timeout> scheduledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final String threadName;
+
+    private volatile Thread timerThread;
+    private long startTimeMillis;
+
+    /**
+     * @param threadName The name of the timer thread
+     * @param tickMillis The duration of each tick of the wheel
+     * @param wheelSize The number of buckets in the wheel, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String threadName, long tickMillis, int wheelSize) {
+        this.threadName = threadName;
+        this.tickMillis = tickMillis;
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+    }
+
+    /**
+     * Schedules the given object to be expired after the given timeout, unless it completes first.
+     *
+     * @param target The object to expire
+     * @param timeoutMillis The timeout in milliseconds, large values such as {@link Long#MAX_VALUE} effectively
+     * disabling the timeout
+     */
+    public void schedule(Expirable target, long timeoutMillis) {
+        ensureStarted();
+        scheduledTimeouts.add(new Timeout(target, computeDeadlineMillis(System.currentTimeMillis(), timeoutMillis)));
+    }
+
+    /**
+     * @return The given time plus the given timeout, saturated at {@link Long#MAX_VALUE} instead of overflowing
+     */
+    static long computeDeadlineMillis(long nowMillis, long timeoutMillis) {
+        long deadlineMillis = nowMillis + timeoutMillis;
+        return timeoutMillis > 0 && deadlineMillis < nowMillis ? Long.MAX_VALUE : deadlineMillis;
+    }
+
+    void ensureStarted() {
+        if (timerThread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (timerThread == null) {
+                startTimeMillis = System.currentTimeMillis();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTimer();
+                    }
+                }, threadName);
+                thread.setDaemon(true);
+                thread.start();
+                timerThread = thread;
+            }
+        }
+    }
+
+    void runTimer() {
+        long tick = 0;
+        while (true) {
+            try {
+                // Sleep until the start of the next tick...
+                final long tickStartMillis = startTimeMillis + (tick + 1) * tickMillis;
+                long sleepMillis = tickStartMillis - System.currentTimeMillis();
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+                tick++;
+                transferScheduledTimeouts(tick);
+                expireTimeouts(wheel[(int) (tick & mask)], tick);
+            }
+            catch (InterruptedException e) {
+                // Timer thread is a daemon and is never stopped intentionally, ignore...
+            }
+            catch (Throwable t) {
+                logger.log(Level.WARNING, "Unexpected exception in timer thread", t);
+            }
+        }
+    }
+
+    void transferScheduledTimeouts(long currentTick) {
+        Timeout timeout;
+        while ((timeout = scheduledTimeouts.poll()) != null) {
+            if (timeout.target.isDone()) {
+                continue;
+            }
+            // Round up, so that timeouts never fire before their deadline, without overflowing for distant deadlines...
+            long millisFromStart = timeout.deadlineMillis - startTimeMillis;
+            long deadlineTick = millisFromStart / tickMillis + (millisFromStart % tickMillis > 0 ? 1 : 0);
+            timeout.deadlineTick = Math.max(deadlineTick, currentTick);
+            wheel[(int) (timeout.deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    void expireTimeouts(List<Timeout> bucket, long currentTick) {
+        // Compact the bucket in place, retaining only timeouts due in later rotations of the wheel...
+        int retained = 0;
+        for (int i = 0, size = bucket.size(); i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.target.isDone()) {
+                continue;
+            }
+            if (timeout.deadlineTick <= currentTick) {
+                try {
+                    timeout.target.expire();
+                }
+                catch (Throwable t) {
+                    logger.log(Level.WARNING, "Unexpected exception expiring timeout", t);
+                }
+                continue;
+            }
+            bucket.set(retained++, timeout);
+        }
+        bucket.subList(retained, bucket.size()).clear();
+    }
+}
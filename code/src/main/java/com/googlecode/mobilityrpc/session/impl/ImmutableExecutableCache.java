@@ -0,0 +1,256 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Caches {@link com.googlecode.mobilityrpc.session.Immutable} executable objects for a session, on both sides of a
+ * connection:
+ * <ul>
+ *     <li>On the sending machine, the serialized form of each instance sent, keyed on the identity of the instance,
+ *     so that sending the same instance again does not serialize it again. Instances are referenced weakly, so that
+ *     the cache does not prevent them from being garbage collected. Instances of classes which have no instance fields
+ *     all have the same serialized form, so those are keyed on their class instead, such that an application which
+ *     creates a new instance for each request (e.g. {@code new StatelessTask()}) still benefits</li>
+ *     <li>On the receiving machine, the object deserialized from each serialized form received, keyed on the content
+ *     of the serialized form, so that receiving an identical serialized form again does not deserialize it again</li>
+ * </ul>
+ * Both caches are bounded and evict the least recently used entries, see {@link #DEFAULT_MAX_ENTRIES}.
+ *
+ * @author Niall Gallagher
+ */
+public class ImmutableExecutableCache {
+
+    static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("com.googlecode.mobilityrpc.immutableCache.maxEntries", 1000);
+
+    /**
+     * A key based on the identity of an executable object, and the format in which it was serialized. References the
+     * object weakly, and once the object has been garbage collected, is equal only to itself.
+     */
+    static class InstanceKey extends WeakReference<Object> {
+        private final SerializationFormat serializationFormat;
+        private final int hashCode;
+
+        InstanceKey(Object executableObject, SerializationFormat serializationFormat, ReferenceQueue<Object> referenceQueue) {
+            super(executableObject, referenceQueue);
+            this.serializationFormat = serializationFormat;
+            this.hashCode = 31 * System.identityHashCode(executableObject) + serializationFormat.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            InstanceKey that = (InstanceKey) o;
+            Object executableObject = get();
+
+            return executableObject != null && executableObject == that.get() && serializationFormat == that.serializationFormat;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * A key based on the class of an executable object which has no instance fields, and the format in which it was
+     * serialized.
+     */
+    static class ClassKey {
+        private final Class<?> executableClass;
+        private final SerializationFormat serializationFormat;
+
+        ClassKey(Class<?> executableClass, SerializationFormat serializationFormat) {
+            this.executableClass = executableClass;
+            this.serializationFormat = serializationFormat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ClassKey that = (ClassKey) o;
+
+            return executableClass == that.executableClass && serializationFormat == that.serializationFormat;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * executableClass.hashCode() + serializationFormat.hashCode();
+        }
+    }
+
+    /**
+     * A key based on the content of a serialized executable object.
+     */
+    static class SerializedFormKey {
+        private final byte[] serializedForm;
+        private final SerializationFormat serializationFormat;
+        private final int hashCode;
+
+        SerializedFormKey(byte[] serializedForm, SerializationFormat serializationFormat) {
+            this.serializedForm = serializedForm;
+            this.serializationFormat = serializationFormat;
+            this.hashCode = 31 * Arrays.hashCode(serializedForm) + serializationFormat.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            SerializedFormKey that = (SerializedFormKey) o;
+
+            return hashCode == that.hashCode
+                    && serializationFormat == that.serializationFormat
+                    && Arrays.equals(serializedForm, that.serializedForm);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // Access-ordered and bounded, each guarded by synchronizing on it. Keys of serialized forms are InstanceKeys or
+    // ClassKeys...
+    private final Map<Object, byte[]> serializedForms;
+    private final Map<SerializedFormKey, Object> deserializedObjects;
+    // Guarded by synchronizing on serializedForms...
+    private final ReferenceQueue<Object> collectedInstances = new ReferenceQueue<Object>();
+    private final Map<Class<?>, Boolean> fieldlessClasses = new WeakHashMap<Class<?>, Boolean>();
+
+    public ImmutableExecutableCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ImmutableExecutableCache(final int maxEntries) {
+        this.serializedForms = new LinkedHashMap<Object, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.deserializedObjects = new LinkedHashMap<SerializedFormKey, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SerializedFormKey, Object> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param executableObject An executable object about to be sent
+     * @param serializationFormat The format in which it is to be serialized
+     * @return The serialized form of the same instance (or of another instance of the same class, if it has no
+     * instance fields) in the same format, if previously cached, otherwise null
+     */
+    public byte[] getSerializedForm(Object executableObject, SerializationFormat serializationFormat) {
+        synchronized (serializedForms) {
+            expungeCollectedInstances();
+            return serializedForms.get(createKey(executableObject, serializationFormat));
+        }
+    }
+
+    /**
+     * @param executableObject An executable object which was serialized
+     * @param serializationFormat The format in which it was serialized
+     * @param serializedForm The serialized form of the object
+     */
+    public void putSerializedForm(Object executableObject, SerializationFormat serializationFormat, byte[] serializedForm) {
+        synchronized (serializedForms) {
+            expungeCollectedInstances();
+            serializedForms.put(createKey(executableObject, serializationFormat), serializedForm);
+        }
+    }
+
+    Object createKey(Object executableObject, SerializationFormat serializationFormat) {
+        Class<?> executableClass = executableObject.getClass();
+        Boolean fieldless = fieldlessClasses.get(executableClass);
+        if (fieldless == null) {
+            fieldless = !hasInstanceFields(executableClass);
+            fieldlessClasses.put(executableClass, fieldless);
+        }
+        return fieldless
+                ? new ClassKey(executableClass, serializationFormat)
+                : new InstanceKey(executableObject, serializationFormat, collectedInstances);
+    }
+
+    void expungeCollectedInstances() {
+        for (Object key = collectedInstances.poll(); key != null; key = collectedInstances.poll()) {
+            serializedForms.remove(key);
+        }
+    }
+
+    static boolean hasInstanceFields(Class<?> type) {
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param serializedForm The serialized form of an executable object received
+     * @param serializationFormat The format in which it was serialized
+     * @return The object previously deserialized from an identical serialized form, otherwise null
+     */
+    public Object getDeserializedObject(byte[] serializedForm, SerializationFormat serializationFormat) {
+        synchronized (deserializedObjects) {
+            return deserializedObjects.get(new SerializedFormKey(serializedForm, serializationFormat));
+        }
+    }
+
+    /**
+     * @param serializedForm The serialized form of an executable object received
+     * @param serializationFormat The format in which it was serialized
+     * @param deserializedObject The object deserialized from it
+     */
+    public void putDeserializedObject(byte[] serializedForm, SerializationFormat serializationFormat, Object deserializedObject) {
+        synchronized (deserializedObjects) {
+            deserializedObjects.put(new SerializedFormKey(serializedForm, serializationFormat), deserializedObject);
+        }
+    }
+
+    /**
+     * Removes all cached serialized forms and deserialized objects.
+     */
+    public void clear() {
+        synchronized (serializedForms) {
+            serializedForms.clear();
+            fieldlessClasses.clear();
+        }
+        synchronized (deserializedObjects) {
+            deserializedObjects.clear();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionResponse;
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Memoizes the responses to execution requests for {@link com.googlecode.mobilityrpc.session.Memoizable} objects,
+ * keyed on a namespace and the content hash of their serialized form.
+ * <p/>
+ * A single cache is shared by all sessions of the controller, so that identical requests from different clients
+ * can be deduplicated. The namespace identifies the classes with which the serialized form would be deserialized:
+ * sessions which share a class loader by codebase (see {@link SharedClassLoaderRegistry}) use their codebase
+ * fingerprint, so that their requests share responses, and other sessions use their session id.
+ * <p/>
+ * Concurrent requests for identical objects are collapsed into a single execution (single-flight): the first thread
+ * to request a response executes the object, and other threads wait for its response. Successful responses are then
+ * cached in serialized form for a bounded time, so that subsequent identical requests can be answered without
+ * deserializing or executing the object at all. Keys retain only the hash of the serialized form, and the cache is
+ * bounded by the total size of the responses it holds, evicting the least recently used responses.
+ *
+ * @author Niall Gallagher
+ */
+public class MemoizedResponseCache {
+
+    static final long DEFAULT_TIME_TO_LIVE_MILLIS = Long.getLong("com.googlecode.mobilityrpc.memoization.timeToLiveMillis", 10000);
+    static final long DEFAULT_MAX_SIZE_BYTES = Long.getLong("com.googlecode.mobilityrpc.memoization.maxSizeBytes", 16L * 1024 * 1024);
+
+    /**
+     * An estimate of the memory retained by each entry in addition to the serialized response, used to bound the
+     * cache by bytes.
+     */
+    static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    /**
+     * The outcome of executing a memoizable object, independent of the request which caused it to be executed.
+     */
+    public static class MemoizedResponse {
+        private final ExecutionResponse.ExecutionOutcome executionOutcome;
+        private final byte[] serializedReturnObject;
+        private final SerializationFormat serializationFormat;
+
+        public MemoizedResponse(ExecutionResponse.ExecutionOutcome executionOutcome, byte[] serializedReturnObject, SerializationFormat serializationFormat) {
+            this.executionOutcome = executionOutcome;
+            this.serializedReturnObject = serializedReturnObject;
+            this.serializationFormat = serializationFormat;
+        }
+
+        public ExecutionResponse.ExecutionOutcome getExecutionOutcome() {
+            return executionOutcome;
+        }
+
+        public byte[] getSerializedReturnObject() {
+            return serializedReturnObject;
+        }
+
+        public SerializationFormat getSerializationFormat() {
+            return serializationFormat;
+        }
+    }
+
+    /**
+     * A key based on a namespace and the content hash of a serialized executable object.
+     */
+    static class ExecutableKey {
+        private final byte[] namespace;
+        private final byte[] contentHash;
+        private final SerializationFormat serializationFormat;
+        private final int hashCode;
+
+        ExecutableKey(byte[] namespace, byte[] contentHash, SerializationFormat serializationFormat) {
+            this.namespace = namespace;
+            this.contentHash = contentHash;
+            this.serializationFormat = serializationFormat;
+            this.hashCode = 31 * (31 * Arrays.hashCode(namespace) + Arrays.hashCode(contentHash)) + serializationFormat.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ExecutableKey that = (ExecutableKey) o;
+
+            return hashCode == that.hashCode
+                    && serializationFormat == that.serializationFormat
+                    && Arrays.equals(contentHash, that.contentHash)
+                    && Arrays.equals(namespace, that.namespace);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        int getEstimatedSizeBytes() {
+            return namespace.length + contentHash.length;
+        }
+    }
+
+    static class CacheEntry {
+        final MemoizedResponse response;
+        final long expiryTimeMillis;
+        final long estimatedSizeBytes;
+
+        CacheEntry(MemoizedResponse response, long expiryTimeMillis, long estimatedSizeBytes) {
+            this.response = response;
+            this.expiryTimeMillis = expiryTimeMillis;
+            this.estimatedSizeBytes = estimatedSizeBytes;
+        }
+    }
+
+    /**
+     * An execution in progress, which threads requesting identical objects can wait for.
+     */
+    static class InFlightExecution {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile MemoizedResponse response;
+        private volatile Exception exception;
+
+        synchronized void complete(MemoizedResponse response) {
+            if (completed.getCount() > 0) {
+                this.response = response;
+                completed.countDown();
+            }
+        }
+
+        synchronized void fail(Exception exception) {
+            if (completed.getCount() > 0) {
+                this.exception = exception;
+                completed.countDown();
+            }
+        }
+
+        MemoizedResponse await() throws Exception {
+            completed.await();
+            if (exception != null) {
+                throw new IllegalStateException("Failed to execute identical request which was in progress", exception);
+            }
+            return response;
+        }
+    }
+
+    private final long maxSizeBytes;
+    private final long timeToLiveMillis;
+    private final ConcurrentMap<ExecutableKey, InFlightExecution> inFlightExecutions = new ConcurrentHashMap<ExecutableKey, InFlightExecution>();
+    // Access-ordered, so that iteration starts from the least recently used entry. Guarded by synchronizing on it...
+    private final Map<ExecutableKey, CacheEntry> cachedResponses = new LinkedHashMap<ExecutableKey, CacheEntry>(16, 0.75f, true);
+    private long estimatedSizeBytes = 0;
+
+    public MemoizedResponseCache() {
+        this(DEFAULT_MAX_SIZE_BYTES, DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    /**
+     * @param maxSizeBytes The maximum estimated size of the responses cached
+     * @param timeToLiveMillis The time for which responses are cached
+     */
+    public MemoizedResponseCache(long maxSizeBytes, long timeToLiveMillis) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Returns the response for the given serialized executable object, either from the cache, or from an identical
+     * execution which is already in progress, or by calling the given response producer to execute the object.
+     *
+     * @param namespace Identifies the classes with which the object would be deserialized, responses are shared only
+     * between requests with the same namespace
+     * @param serializedExecutableObject The serialized executable object
+     * @param serializationFormat The format in which the object was serialized
+     * @param responseProducer Deserializes and executes the object, called only if no response was available
+     * @return The response for the object
+     * @throws Exception If the response producer threw an exception, in this thread or in the thread executing an
+     * identical object
+     */
+    public MemoizedResponse getResponse(byte[] namespace, byte[] serializedExecutableObject, SerializationFormat serializationFormat, Callable<MemoizedResponse> responseProducer) throws Exception {
+        final ExecutableKey key = new ExecutableKey(namespace, ContentAddressedResourceCache.computeContentHash(serializedExecutableObject), serializationFormat);
+        MemoizedResponse response = getCachedResponse(key);
+        if (response != null) {
+            return response;
+        }
+        InFlightExecution inFlightExecution = new InFlightExecution();
+        InFlightExecution existingExecution = inFlightExecutions.putIfAbsent(key, inFlightExecution);
+        if (existingExecution != null) {
+            // Another thread is executing an identical object, wait for its response...
+            return existingExecution.await();
+        }
+        try {
+            // Check the cache again, in case another thread completed an execution
+            // after we checked the cache above but before we registered our execution...
+            response = getCachedResponse(key);
+            if (response == null) {
+                response = responseProducer.call();
+                if (response.getExecutionOutcome() != ExecutionResponse.ExecutionOutcome.FAILURE) {
+                    putCachedResponse(key, response);
+                }
+            }
+            inFlightExecution.complete(response);
+            return response;
+        }
+        catch (Exception e) {
+            inFlightExecution.fail(e);
+            throw e;
+        }
+        finally {
+            inFlightExecutions.remove(key, inFlightExecution);
+            // Ensure waiting threads are released, even if an Error was thrown above...
+            inFlightExecution.fail(new IllegalStateException("Execution did not complete"));
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        synchronized (cachedResponses) {
+            cachedResponses.clear();
+            estimatedSizeBytes = 0;
+        }
+    }
+
+    /**
+     * @return The estimated size of the responses cached
+     */
+    public long getEstimatedSizeBytes() {
+        synchronized (cachedResponses) {
+            return estimatedSizeBytes;
+        }
+    }
+
+    MemoizedResponse getCachedResponse(ExecutableKey key) {
+        synchronized (cachedResponses) {
+            CacheEntry cacheEntry = cachedResponses.get(key);
+            if (cacheEntry == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() > cacheEntry.expiryTimeMillis) {
+                cachedResponses.remove(key);
+                estimatedSizeBytes -= cacheEntry.estimatedSizeBytes;
+                return null;
+            }
+            return cacheEntry.response;
+        }
+    }
+
+    void putCachedResponse(ExecutableKey key, MemoizedResponse response) {
+        byte[] serializedReturnObject = response.getSerializedReturnObject();
+        long entrySizeBytes = ENTRY_OVERHEAD_BYTES + key.getEstimatedSizeBytes() + (serializedReturnObject == null ? 0 : serializedReturnObject.length);
+        if (entrySizeBytes > maxSizeBytes) {
+            // Caching this response would evict every other response...
+            return;
+        }
+        synchronized (cachedResponses) {
+            CacheEntry previous = cachedResponses.put(key, new CacheEntry(response, System.currentTimeMillis() + timeToLiveMillis, entrySizeBytes));
+            if (previous != null) {
+                estimatedSizeBytes -= previous.estimatedSizeBytes;
+            }
+            estimatedSizeBytes += entrySizeBytes;
+            // Evict least recently used entries while the bound is exceeded...
+            Iterator<CacheEntry> iterator = cachedResponses.values().iterator();
+            while (estimatedSizeBytes > maxSizeBytes && iterator.hasNext()) {
+                estimatedSizeBytes -= iterator.next().estimatedSizeBytes;
+                iterator.remove();
+            }
+        }
+    }
+}
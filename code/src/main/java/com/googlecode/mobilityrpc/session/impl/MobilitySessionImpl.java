@@ -17,14 +17,36 @@ package com.googlecode.mobilityrpc.session.impl;
 
 import com.googlecode.mobilityrpc.controller.MobilityController;
 import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
+import com.googlecode.mobilityrpc.network.Connection;
 import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.OutgoingBulkData;
 import com.googlecode.mobilityrpc.protocol.pojo.*;
 import com.googlecode.mobilityrpc.quickstart.EmbeddedMobilityServer;
 import com.googlecode.mobilityrpc.serialization.Serializer;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+import com.googlecode.mobilityrpc.serialization.impl.ClassIdTable;
+import com.googlecode.mobilityrpc.serialization.impl.FrameStringTable;
 import com.googlecode.mobilityrpc.serialization.impl.KryoSerializer;
+import com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator;
+import com.googlecode.mobilityrpc.session.Immutable;
+import com.googlecode.mobilityrpc.session.Memoizable;
+import com.googlecode.mobilityrpc.session.MobilityContext;
+import com.googlecode.mobilityrpc.session.ObjectSpace;
+import com.googlecode.mobilityrpc.session.RemoteHandle;
+import com.googlecode.mobilityrpc.session.RemoteIterator;
+import com.googlecode.mobilityrpc.session.UnsafeSerializable;
 
-import java.util.UUID;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,15 +61,119 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
      */
     private static final long DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS = 60000;
 
+    /**
+     * The maximum number of elements which will be sent in each chunk, when streaming results to a remote machine.
+     */
+    private static final int STREAM_CHUNK_SIZE = 256;
+
+    /**
+     * The number of chunks which may be sent to a remote machine before it has granted any credits, when streaming
+     * results to it. The remote machine grants one credit for each chunk it consumes, therefore this is also the
+     * maximum number of chunks which may be in transit or awaiting consumption at any time.
+     * <p/>
+     * Note this is part of the protocol, both machines must agree on this value.
+     */
+    private static final int STREAM_INITIAL_CREDITS = 4;
+
+    /**
+     * The size in bytes of the chunks in which remote machines should stream the objects returned by {@link Callable}
+     * objects executed in {@link ExecutionMode#RETURN_RESPONSE} mode, if the serialized object exceeds this size.
+     * Zero disables streamed results, in which case objects returned are sent in a single response.
+     */
+    static final int STREAMED_RESULT_CHUNK_SIZE = Integer.getInteger("com.googlecode.mobilityrpc.streamedResults.chunkSize", 1024 * 1024);
+
+    /**
+     * The largest chunk size in bytes which this machine will use to stream objects to clients, regardless of the
+     * chunk size requested by the client, so that a client cannot make this machine allocate large buffers.
+     */
+    static final int MAX_STREAMED_RESULT_CHUNK_SIZE = Integer.getInteger("com.googlecode.mobilityrpc.streamedResults.maxChunkSize", 4 * 1024 * 1024);
+
+    /**
+     * The size in bytes of the buffer in which objects returned to clients which accept streamed results are
+     * initially serialized. The buffer grows up to the chunk size as necessary, so that small objects do not cost a
+     * buffer of the chunk size.
+     */
+    static final int STREAMED_RESULT_INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * How long in millis remote machines should hold objects referenced by {@link RemoteHandle}s without them being
+     * accessed, by default.
+     */
+    private static final long DEFAULT_REMOTE_HANDLE_LEASE_MILLIS = 600000;
+
+    /**
+     * How often in millis a session checks for {@link RemoteHandle}s and streaming iterators which the application
+     * discarded, while the application holds any which were returned by the session.
+     */
+    private static final long REFERENCE_SWEEP_INTERVAL_MILLIS = 5000;
+
+    /**
+     * Runs the sweeps for discarded references which the timer schedules, on a thread of its own rather than on the
+     * timer thread, because sweeps send messages to remote machines.
+     */
+    private static final ExecutorService referenceSweepService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MobilityRPC-ReferenceSweep");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Whether sessions should use the unsafe serialization format where supported, by default.
+     */
+    private static final boolean UNSAFE_SERIALIZATION_DEFAULT_ENABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.unsafeFormat.defaultEnabled");
+
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     private final UUID sessionId;
     private final MobilityControllerInternal mobilityController;
-    private final SessionClassLoader sessionClassLoader;
-    private final Serializer defaultSerializer;
+    private final RequestIdGenerator requestIdGenerator;
+    // Created when first needed, as the session may share the class loader of other sessions with the same codebase,
+    // which is known only when the first execution request arrives...
+    private volatile SessionClassLoader sessionClassLoader;
+    private volatile KryoSerializer defaultSerializer;
+    // Created when first needed, as most sessions do not use the unsafe format...
+    private volatile KryoSerializer unsafeSerializer;
+    // The codebase fingerprint with which a shared class loader was acquired, or null if not shared...
+    private byte[] sharedCodebaseFingerprint;
+    // The number of resources received by the shared class loader which have been verified against our client...
+    private int sharedResourcesVerified;
     private final SerializationFormat defaultSerializationFormat;
+    private volatile boolean unsafeSerializationEnabled = UNSAFE_SERIALIZATION_DEFAULT_ENABLED;
+
+    private final PendingRequestTable<ExecutionResponse> pendingExecutionResponses = new PendingRequestTable<ExecutionResponse>();
+    final ConcurrentMap<RequestIdentifier, StreamingResponseReference> streamingResponses = new ConcurrentHashMap<RequestIdentifier, StreamingResponseReference>();
+    // Iterators which the local application discarded without closing, which we track so we can ask remote machines
+    // to stop streaming to them...
+    private final ReferenceQueue<StreamingResponseIterator<?>> abandonedStreamingResponses = new ReferenceQueue<StreamingResponseIterator<?>>();
+    final ConcurrentMap<RequestIdentifier, StreamedResultInputStream> streamedResults = new ConcurrentHashMap<RequestIdentifier, StreamedResultInputStream>();
+    // Chunks of streamed results which arrived before the requesting thread registered a stream to receive them.
+    // Guarded by synchronizing on it, which also guards registering streams in streamedResults...
+    final Map<RequestIdentifier, List<StreamChunk>> earlyStreamedChunks = new HashMap<RequestIdentifier, List<StreamChunk>>();
+    final ConcurrentMap<OutgoingStreamKey, OutgoingStream> outgoingStreams = new ConcurrentHashMap<OutgoingStreamKey, OutgoingStream>();
+
+    // Serialized forms of Immutable objects sent, and Immutable objects received...
+    private final ImmutableExecutableCache immutableExecutableCache = new ImmutableExecutableCache();
+
+    // Selects the form in which exceptions thrown by objects executed in this session are returned to clients...
+    private final ExceptionTransport exceptionTransport = new ExceptionTransport();
 
-    private final ConcurrentMap<RequestIdentifier, FutureExecutionResponse> futureExecutionResponses = new ConcurrentHashMap<RequestIdentifier, FutureExecutionResponse>();
+    // Excludes unused references to enclosing objects from objects sent, if enabled...
+    private final ClosureCaptureAnalyzer closureCaptureAnalyzer = ClosureCaptureAnalyzer.CAPTURE_ANALYSIS_ENABLED ? new ClosureCaptureAnalyzer() : null;
+
+    // Objects stored by mobile code executing in this session...
+    private final ObjectSpace objectSpace = new ObjectSpace();
+
+    // Objects held on this machine on behalf of remote machines...
+    private final RemoteHandleRegistry remoteHandleRegistry = new RemoteHandleRegistry();
+    // Handles returned to the local application, which we track so we can ask remote machines to release the objects
+    // they refer to when they are garbage collected...
+    private final ReferenceQueue<RemoteHandle<?>> collectedRemoteHandles = new ReferenceQueue<RemoteHandle<?>>();
+    private final Set<RemoteHandleReference> remoteHandleReferences = Collections.newSetFromMap(new ConcurrentHashMap<RemoteHandleReference, Boolean>());
+    private final ReferenceSweep referenceSweep = new ReferenceSweep();
+    private final AtomicBoolean referenceSweepScheduled = new AtomicBoolean();
 
     private final AtomicInteger numRemoteThreadsExecutingInThisSession = new AtomicInteger(); // TODO: ..use Semaphore instead?
     private volatile boolean sessionReleaseRequested = false;
@@ -55,8 +181,7 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
     public MobilitySessionImpl(UUID sessionId, MobilityControllerInternal mobilityController) {
         this.sessionId = sessionId;
         this.mobilityController = mobilityController;
-        this.sessionClassLoader = new SessionClassLoader(mobilityController, sessionId);
-        this.defaultSerializer = new KryoSerializer(sessionClassLoader);
+        this.requestIdGenerator = new RequestIdGenerator();
         this.defaultSerializationFormat = SerializationFormat.KRYO;
     }
 
@@ -87,16 +212,24 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
 
     @Override
     public void execute(ConnectionId connectionId, ExecutionMode executionMode, long executionResponseTimeoutMs, Runnable runnable) {
+        releaseCollectedRemoteHandles();
         // Serialize the object...
-        final byte[] serializedExecutableObject = serialize(runnable, defaultSerializationFormat);
+        final SerializationFormat serializationFormat = selectSerializationFormat(connectionId, runnable);
+        final List<String> classIdDefinitions = new ArrayList<String>();
+        final byte[] serializedExecutableObject = serializeExecutableObject(connectionId, runnable, serializationFormat, classIdDefinitions);
 
         // Prepare an ExecutionRequest object which we will send to remote machine...
-        RequestIdentifier requestIdentifier = new RequestIdentifier(sessionId, UUID.randomUUID(), null);
+        RequestIdentifier requestIdentifier = new RequestIdentifier(sessionId, requestIdGenerator.nextRequestId(), null);
         ExecutionRequest outgoingRequest = new ExecutionRequest(
                 serializedExecutableObject,
-                defaultSerializationFormat,
+                serializationFormat,
                 executionMode,
-                requestIdentifier
+                requestIdentifier,
+                false,
+                mobilityController.getBytecodePushTracker().getResourcesToPush(connectionId, sessionId, runnable),
+                SharedClassLoaderRegistry.LOCAL_CODEBASE_FINGERPRINT,
+                mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder(),
+                runnable instanceof Immutable
         );
         switch (executionMode) {
             case FIRE_AND_FORGET:
@@ -104,7 +237,7 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
 
                 // Send execution request to remote machine, and then return without blocking...
                 try {
-                    mobilityController.sendOutgoingMessage(connectionId, outgoingRequest);
+                    sendExecutionRequest(connectionId, outgoingRequest);
                 }
                 catch (Exception e) {
                     // This exception is unlikely, should only occur if our outgoing queue to machine specified is full...
@@ -115,29 +248,39 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                 // Send request and block waiting for response from remote machine.
 
                 final ExecutionResponse executionResponse;
+                // Register a pending request in the table, which the thread processing a response to this
+                // request can later look up to notify this thread of the outcome of executing the request...
+                final PendingRequestTable.PendingRequest<ExecutionResponse> pendingRequest = pendingExecutionResponses.register(
+                        requestIdentifier.getRequestId().getLeastSignificantBits(), executionResponseTimeoutMs
+                );
                 try {
-                    // Register a FutureExecutionResponse object in the map, which the thread processing a response to this
-                    // request can later look up to notify this thread of the outcome of executing the request...
-                    FutureExecutionResponse futureExecutionResponse = new FutureExecutionResponse(requestIdentifier);
-                    futureExecutionResponses.put(requestIdentifier, futureExecutionResponse);
-
                     // Send the execution request to the remote machine...
-                    mobilityController.sendOutgoingMessage(connectionId, outgoingRequest);
+                    sendExecutionRequest(connectionId, outgoingRequest);
 
                     // Now block this thread until we get a response, or we time out...
-                    executionResponse = futureExecutionResponse.getResponse(executionResponseTimeoutMs, TimeUnit.MILLISECONDS);
+                    executionResponse = pendingRequest.awaitResponse();
                 }
                 catch (Exception e) {
+                    pendingRequest.cancel();
                     throw new IllegalStateException("Failed to receive response for execution request sent to remote machine in RETURN_RESPONSE mode for request identifier: " + requestIdentifier + ", connection id: " + connectionId, e);
                 }
+                // Record whether the remote machine supports the unsafe serialization format...
+                mobilityController.getUnsafeFormatNegotiator().recordRemoteByteOrder(connectionId, executionResponse.getUnsafeFormatByteOrder());
 
                 // Decipher the execution response and return control normally to the client,
                 // or throw exception as necessary...
                 final ExecutionResponse.ExecutionOutcome executionOutcome = executionResponse.getExecutionOutcome();
+                if (executionOutcome != ExecutionResponse.ExecutionOutcome.FAILURE) {
+                    // The remote machine has deserialized the request, so subsequent requests can refer to the
+                    // classes it defined by id...
+                    confirmClassIdDefinitions(connectionId, classIdDefinitions);
+                }
 
                 // Indicate to the class loader that should this thread require classes when deserializing
                 // the response that they can be obtained from this remote machine...
-                sessionClassLoader.setThreadLocalConnectionId(connectionId);
+                getSessionClassLoader().setThreadLocalConnectionId(connectionId, sessionId);
+                // ...and that any bulk data it refers to was received from this remote machine...
+                BulkDataStore.setCurrentConnection(mobilityController.getBulkDataStore(), connectionId);
                 try {
                     switch (executionOutcome) {
                         case VOID_RETURNED:
@@ -146,7 +289,7 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                         case FAILURE:
                             // The code threw an exception on the remote machine.
                             // Deserialize the exception and throw it to the caller on this machine...
-                            Object responseObject = deserialize(executionResponse.getSerializedReturnObject(), executionResponse.getSerializationFormat());
+                            Object responseObject = deserializeException(connectionId, executionResponse.getSerializedReturnObject(), executionResponse.getSerializationFormat());
                             // Sanity check to validate that indeed an exception was serialized as expected...
                             if (!(responseObject instanceof Throwable)) {
                                 throw new IllegalStateException("Unexpected response object returned for execution outcome FAILURE: " + responseObject);
@@ -162,7 +305,10 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                 finally {
                     // Null-out the connection id for this calling thread,
                     // now that response has been deserialized...
-                    sessionClassLoader.setThreadLocalConnectionId(null);
+                    getSessionClassLoader().setThreadLocalConnectionId(null, null);
+                    BulkDataStore.setCurrentConnection(null, null);
+                    // Release any bulk data the response referred to which was not claimed, if deserializing it failed...
+                    mobilityController.getBulkDataStore().releaseIncoming(connectionId, executionResponse.getBulkDataIds());
                 }
             default:
                 throw new IllegalStateException("Unexpected ExecutionMode specified: " + executionMode);
@@ -191,16 +337,25 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
 
     @Override
     public <T> T execute(ConnectionId connectionId, ExecutionMode executionMode, long executionResponseTimeoutMs, Callable<T> callable) {
+        releaseCollectedRemoteHandles();
         // Serialize the object...
-        final byte[] serializedExecutableObject = serialize(callable, defaultSerializationFormat);
+        final SerializationFormat serializationFormat = selectSerializationFormat(connectionId, callable);
+        final List<String> classIdDefinitions = new ArrayList<String>();
+        final byte[] serializedExecutableObject = serializeExecutableObject(connectionId, callable, serializationFormat, classIdDefinitions);
 
         // Prepare an ExecutionRequest object which we will send to remote machine...
-        RequestIdentifier requestIdentifier = new RequestIdentifier(sessionId, UUID.randomUUID(), null);
+        RequestIdentifier requestIdentifier = new RequestIdentifier(sessionId, requestIdGenerator.nextRequestId(), null);
         ExecutionRequest outgoingRequest = new ExecutionRequest(
                 serializedExecutableObject,
-                defaultSerializationFormat,
+                serializationFormat,
                 executionMode,
-                requestIdentifier
+                requestIdentifier,
+                callable instanceof Memoizable,
+                mobilityController.getBytecodePushTracker().getResourcesToPush(connectionId, sessionId, callable),
+                SharedClassLoaderRegistry.LOCAL_CODEBASE_FINGERPRINT,
+                mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder(),
+                callable instanceof Immutable,
+                executionMode == ExecutionMode.RETURN_RESPONSE ? STREAMED_RESULT_CHUNK_SIZE : 0
         );
         switch (executionMode) {
             case FIRE_AND_FORGET:
@@ -208,7 +363,7 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
 
                 // Send execution request to remote machine, and then return without blocking...
                 try {
-                    mobilityController.sendOutgoingMessage(connectionId, outgoingRequest);
+                    sendExecutionRequest(connectionId, outgoingRequest);
                 }
                 catch (Exception e) {
                     // This exception is unlikely, should only occur if our outgoing queue to machine specified is full...
@@ -219,29 +374,48 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                 // Send request and block waiting for response from remote machine.
 
                 final ExecutionResponse executionResponse;
+                // Register a pending request in the table, which the thread processing a response to this
+                // request can later look up to notify this thread of the outcome of executing the request...
+                final PendingRequestTable.PendingRequest<ExecutionResponse> pendingRequest = pendingExecutionResponses.register(
+                        requestIdentifier.getRequestId().getLeastSignificantBits(), executionResponseTimeoutMs
+                );
                 try {
-                    // Register a FutureExecutionResponse object in the map, which the thread processing a response to this
-                    // request can later look up to notify this thread of the outcome of executing the request...
-                    FutureExecutionResponse futureExecutionResponse = new FutureExecutionResponse(requestIdentifier);
-                    futureExecutionResponses.put(requestIdentifier, futureExecutionResponse);
-
                     // Send the execution request to the remote machine...
-                    mobilityController.sendOutgoingMessage(connectionId, outgoingRequest);
+                    sendExecutionRequest(connectionId, outgoingRequest);
 
                     // Now block this thread until we get a response, or we time out...
-                    executionResponse = futureExecutionResponse.getResponse(executionResponseTimeoutMs, TimeUnit.MILLISECONDS);
+                    executionResponse = pendingRequest.awaitResponse();
                 }
                 catch (Exception e) {
+                    pendingRequest.cancel();
+                    if (STREAMED_RESULT_CHUNK_SIZE > 0) {
+                        // Ask the remote machine not to stream the object, if it was about to...
+                        cancelStreamedResult(connectionId, requestIdentifier);
+                    }
                     throw new IllegalStateException("Failed to receive response for execution request sent to remote machine in RETURN_RESPONSE mode for request identifier: " + requestIdentifier + ", connection id: " + connectionId, e);
                 }
+                // Record whether the remote machine supports the unsafe serialization format...
+                mobilityController.getUnsafeFormatNegotiator().recordRemoteByteOrder(connectionId, executionResponse.getUnsafeFormatByteOrder());
 
+                // Only if the remote machine is streaming the object because it is large, register a stream to
+                // receive its chunks...
+                final StreamedResultInputStream streamedResult = STREAMED_RESULT_CHUNK_SIZE > 0 && executionResponse.isStreamed()
+                        ? registerStreamedResult(requestIdentifier, connectionId, executionResponseTimeoutMs)
+                        : null;
                 // Decipher the execution response and return control normally to the client,
                 // or throw exception as necessary...
                 final ExecutionResponse.ExecutionOutcome executionOutcome = executionResponse.getExecutionOutcome();
+                if (executionOutcome != ExecutionResponse.ExecutionOutcome.FAILURE) {
+                    // The remote machine has deserialized the request, so subsequent requests can refer to the
+                    // classes it defined by id...
+                    confirmClassIdDefinitions(connectionId, classIdDefinitions);
+                }
 
                 // Indicate to the class loader that should this thread require classes when deserializing
                 // the response that they can be obtained from this remote machine...
-                sessionClassLoader.setThreadLocalConnectionId(connectionId);
+                getSessionClassLoader().setThreadLocalConnectionId(connectionId, sessionId);
+                // ...and that any bulk data it refers to was received from this remote machine...
+                BulkDataStore.setCurrentConnection(mobilityController.getBulkDataStore(), connectionId);
                 try {
                     switch (executionOutcome) {
                         case VOID_RETURNED:
@@ -250,7 +424,7 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                         case FAILURE:
                             // The code threw an exception on the remote machine.
                             // Deserialize the exception and throw it to the caller on this machine...
-                            Object throwable = deserialize(executionResponse.getSerializedReturnObject(), executionResponse.getSerializationFormat());
+                            Object throwable = deserializeException(connectionId, executionResponse.getSerializedReturnObject(), executionResponse.getSerializationFormat());
                             // Sanity check to validate that indeed an exception was serialized as expected...
                             if (!(throwable instanceof Throwable)) {
                                 throw new IllegalStateException("Unexpected response object returned for execution outcome FAILURE: " + throwable);
@@ -259,6 +433,14 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                         case VALUE_RETURNED:
                             // The callable returned an object when executed on the remote machine, return it to
                             // the caller of this method...
+                            if (executionResponse.isStreamed()) {
+                                if (streamedResult == null) {
+                                    throw new IllegalStateException("Unexpected streamed response, streamed results were not requested: " + executionResponse);
+                                }
+                                @SuppressWarnings({"unchecked", "UnnecessaryLocalVariable"})
+                                T objectStreamed = (T) deserializeStreamedResult(streamedResult, executionResponse.getSerializationFormat());
+                                return objectStreamed;
+                            }
                             @SuppressWarnings({"unchecked", "UnnecessaryLocalVariable"})
                             T objectReturned = (T) deserialize(executionResponse.getSerializedReturnObject(), executionResponse.getSerializationFormat());
                             return objectReturned;
@@ -269,17 +451,284 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
                 finally {
                     // Null-out the connection id for this calling thread,
                     // now that response has been deserialized...
-                    sessionClassLoader.setThreadLocalConnectionId(null);
+                    getSessionClassLoader().setThreadLocalConnectionId(null, null);
+                    BulkDataStore.setCurrentConnection(null, null);
+                    // Release any bulk data the response referred to which was not claimed, if deserializing it failed...
+                    mobilityController.getBulkDataStore().releaseIncoming(connectionId, executionResponse.getBulkDataIds());
                 }
             default:
                 throw new IllegalStateException("Unexpected ExecutionMode specified: " + executionMode);
         }
     }
 
-    public void receiveIncomingExecutionRequest(ConnectionId connectionId, ExecutionRequest executionRequest) {
+    @Override
+    public <T> RemoteIterator<T> executeStreaming(String address, Callable<? extends Iterator<T>> callable) {
+        return executeStreaming(new ConnectionId(address, EmbeddedMobilityServer.DEFAULT_PORT), callable);
+    }
+
+    @Override
+    public <T> RemoteIterator<T> executeStreaming(ConnectionId connectionId, Callable<? extends Iterator<T>> callable) {
+        return executeStreaming(connectionId, DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS, callable);
+    }
+
+    @Override
+    public <T> RemoteIterator<T> executeStreaming(ConnectionId connectionId, long executionResponseTimeoutMs, Callable<? extends Iterator<T>> callable) {
+        releaseCollectedRemoteHandles();
+        reclaimAbandonedStreamingResponses();
+        // Serialize the object...
+        final SerializationFormat serializationFormat = selectSerializationFormat(connectionId, callable);
+        // Compact class ids defined by the request are not confirmed, as streamed responses do not acknowledge it...
+        final byte[] serializedExecutableObject = serializeExecutableObject(connectionId, callable, serializationFormat, new ArrayList<String>());
+
+        // Prepare an ExecutionRequest object which we will send to remote machine...
+        RequestIdentifier requestIdentifier = new RequestIdentifier(sessionId, requestIdGenerator.nextRequestId(), null);
+        ExecutionRequest outgoingRequest = new ExecutionRequest(
+                serializedExecutableObject,
+                serializationFormat,
+                ExecutionMode.STREAM_RESPONSE,
+                requestIdentifier,
+                false,
+                mobilityController.getBytecodePushTracker().getResourcesToPush(connectionId, sessionId, callable),
+                SharedClassLoaderRegistry.LOCAL_CODEBASE_FINGERPRINT,
+                mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder(),
+                callable instanceof Immutable
+        );
+        // Register the iterator in the map, which the threads processing chunks of the response can later look up to
+        // pass the chunks to the thread consuming the stream. The map references the iterator weakly, so that it can
+        // be reclaimed if the application discards it without closing it...
+        StreamingResponseIterator<T> streamingResponseIterator = new StreamingResponseIterator<T>(requestIdentifier, connectionId, executionResponseTimeoutMs);
+        streamingResponses.put(requestIdentifier, new StreamingResponseReference(streamingResponseIterator, abandonedStreamingResponses));
+        scheduleReferenceSweep();
+        try {
+            sendExecutionRequest(connectionId, outgoingRequest);
+        }
+        catch (Exception e) {
+            streamingResponses.remove(requestIdentifier);
+            throw new IllegalStateException("Failed to submit Callable object in STREAM_RESPONSE mode for execution on remote machine: " + connectionId, e);
+        }
+        // Return the iterator without blocking, the calling thread will block when it tries to consume elements
+        // which have not arrived yet...
+        return streamingResponseIterator;
+    }
+
+    @Override
+    public <T> RemoteHandle<T> executeForHandle(String address, Callable<T> callable) {
+        return executeForHandle(new ConnectionId(address, EmbeddedMobilityServer.DEFAULT_PORT), callable);
+    }
+
+    @Override
+    public <T> RemoteHandle<T> executeForHandle(ConnectionId connectionId, Callable<T> callable) {
+        return executeForHandle(connectionId, DEFAULT_REMOTE_HANDLE_LEASE_MILLIS, callable);
+    }
+
+    @Override
+    public <T> RemoteHandle<T> executeForHandle(ConnectionId connectionId, long leaseMs, Callable<T> callable) {
+        // Generate the handle id on this machine, and wrap the callable in an object which will register the object
+        // it returns under that handle id on the remote machine, instead of returning it...
+        final UUID handleId = UUID.randomUUID();
+        execute(connectionId, ExecutionMode.RETURN_RESPONSE, new RemoteHandleRegisteringCallable<T>(handleId, leaseMs, callable));
+
+        RemoteHandle<T> remoteHandle = new RemoteHandle<T>(handleId, sessionId);
+        // Track the handle so that we can ask the remote machine to release the object when the handle is garbage
+        // collected...
+        remoteHandleReferences.add(new RemoteHandleReference(remoteHandle, connectionId, collectedRemoteHandles));
+        scheduleReferenceSweep();
+        return remoteHandle;
+    }
+
+    /**
+     * Asks remote machines to release objects referenced by {@link RemoteHandle}s which have been garbage collected
+     * on this machine. Handles are grouped by connection, and released via a single request in
+     * {@link ExecutionMode#FIRE_AND_FORGET} mode per connection.
+     * <p/>
+     * This is called by threads sending requests in this session, and periodically by the {@link ReferenceSweep} while
+     * the application holds any handles, so that objects are released even if the session is otherwise idle.
+     */
+    void releaseCollectedRemoteHandles() {
+        Map<ConnectionId, List<UUID>> handleIdsByConnection = null;
+        Reference<? extends RemoteHandle<?>> reference;
+        while ((reference = collectedRemoteHandles.poll()) != null) {
+            RemoteHandleReference remoteHandleReference = (RemoteHandleReference) reference;
+            remoteHandleReferences.remove(remoteHandleReference);
+            if (handleIdsByConnection == null) {
+                handleIdsByConnection = new HashMap<ConnectionId, List<UUID>>();
+            }
+            List<UUID> handleIds = handleIdsByConnection.get(remoteHandleReference.connectionId);
+            if (handleIds == null) {
+                handleIds = new ArrayList<UUID>();
+                handleIdsByConnection.put(remoteHandleReference.connectionId, handleIds);
+            }
+            handleIds.add(remoteHandleReference.handleId);
+        }
+        if (handleIdsByConnection == null) {
+            return;
+        }
+        for (Map.Entry<ConnectionId, List<UUID>> entry : handleIdsByConnection.entrySet()) {
+            try {
+                execute(entry.getKey(), ExecutionMode.FIRE_AND_FORGET, new RemoteHandleReleasingRunnable(entry.getValue()));
+            }
+            catch (Exception e) {
+                // The remote machine will release the objects anyway when their leases expire...
+                logger.log(Level.FINE, "Failed to send request to release remote handles to remote machine: " + entry.getKey() + ", handle ids: " + entry.getValue(), e);
+            }
+        }
+    }
+
+    /**
+     * Asks remote machines to stop streaming results to {@link StreamingResponseIterator}s which the local application
+     * discarded without closing, and discards any chunks which arrived for them.
+     * <p/>
+     * This is called by threads opening streams or processing chunks in this session, and periodically by the
+     * {@link ReferenceSweep} while any streams are open.
+     */
+    void reclaimAbandonedStreamingResponses() {
+        Reference<? extends StreamingResponseIterator<?>> reference;
+        while ((reference = abandonedStreamingResponses.poll()) != null) {
+            reclaimAbandonedStreamingResponse((StreamingResponseReference) reference);
+        }
+    }
+
+    void reclaimAbandonedStreamingResponse(StreamingResponseReference streamingResponseReference) {
+        if (!streamingResponses.remove(streamingResponseReference.requestIdentifier, streamingResponseReference)) {
+            // The iterator was finished or closed before it was discarded...
+            return;
+        }
+        streamingResponseReference.incomingChunks.clear();
+        try {
+            mobilityController.sendOutgoingMessage(streamingResponseReference.connectionId, new StreamCredit(0, true, streamingResponseReference.requestIdentifier));
+        }
+        catch (Exception e) {
+            // The remote machine will stop producing elements anyway when it times out waiting for credits...
+            logger.log(Level.FINE, "Failed to send request to cancel abandoned stream to remote machine: " + streamingResponseReference.connectionId + ", request identifier: " + streamingResponseReference.requestIdentifier, e);
+        }
+        logger.log(Level.FINER, "Reclaimed stream abandoned without being closed: {0}", streamingResponseReference.requestIdentifier);
+    }
+
+    /**
+     * Schedules the {@link ReferenceSweep} to run after the sweep interval, unless it is already scheduled.
+     */
+    void scheduleReferenceSweep() {
+        if (referenceSweepScheduled.compareAndSet(false, true)) {
+            PendingRequestTable.timer.schedule(referenceSweep, REFERENCE_SWEEP_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Releases objects on remote machines referenced by {@link RemoteHandle}s which were garbage collected, and cancels
+     * streams whose iterators were discarded, and then reschedules itself if the application still holds any handles
+     * or iterators returned by this session.
+     */
+    class ReferenceSweep implements HashedWheelTimer.Expirable, Runnable {
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+
+        @Override
+        public void expire() {
+            referenceSweepService.execute(this);
+        }
+
+        @Override
+        public void run() {
+            referenceSweepScheduled.set(false);
+            releaseCollectedRemoteHandles();
+            reclaimAbandonedStreamingResponses();
+            if (!remoteHandleReferences.isEmpty() || !streamingResponses.isEmpty()) {
+                scheduleReferenceSweep();
+            }
+        }
+    }
+
+    /**
+     * A weak reference to a {@link StreamingResponseIterator} returned to the local application, which retains the
+     * sequence of chunks arriving for it, and the details necessary to cancel the stream after the iterator is garbage
+     * collected.
+     */
+    static class StreamingResponseReference extends WeakReference<StreamingResponseIterator<?>> {
+        final RequestIdentifier requestIdentifier;
+        final ConnectionId connectionId;
+        final IncomingChunkSequence incomingChunks;
+
+        StreamingResponseReference(StreamingResponseIterator<?> streamingResponseIterator, ReferenceQueue<? super StreamingResponseIterator<?>> referenceQueue) {
+            super(streamingResponseIterator, referenceQueue);
+            this.requestIdentifier = streamingResponseIterator.requestIdentifier;
+            this.connectionId = streamingResponseIterator.connectionId;
+            this.incomingChunks = streamingResponseIterator.incomingChunks;
+        }
+    }
+
+    /**
+     * Wraps a {@link Callable} object sent to a remote machine by {@link #executeForHandle}, and registers the object
+     * it returns in the remote machine's {@link RemoteHandleRegistry} for the session, instead of returning it.
+     */
+    static class RemoteHandleRegisteringCallable<T> implements Callable<Void> {
+        private final UUID handleId;
+        private final long leaseMillis;
+        private final Callable<T> wrappedCallable;
+
+        RemoteHandleRegisteringCallable(UUID handleId, long leaseMillis, Callable<T> wrappedCallable) {
+            this.handleId = handleId;
+            this.leaseMillis = leaseMillis;
+            this.wrappedCallable = wrappedCallable;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            T object = wrappedCallable.call();
+            MobilitySessionInternal session = (MobilitySessionInternal) MobilityContext.getCurrentSession();
+            session.getRemoteHandleRegistry().register(handleId, object, leaseMillis);
+            return null;
+        }
+    }
+
+    /**
+     * Sent to a remote machine to release objects referenced by {@link RemoteHandle}s which have been garbage
+     * collected on this machine.
+     */
+    static class RemoteHandleReleasingRunnable implements Runnable {
+        private final List<UUID> handleIds;
+
+        RemoteHandleReleasingRunnable(List<UUID> handleIds) {
+            this.handleIds = handleIds;
+        }
+
+        @Override
+        public void run() {
+            MobilitySessionInternal session = (MobilitySessionInternal) MobilityContext.getCurrentSession();
+            for (UUID handleId : handleIds) {
+                session.getRemoteHandleRegistry().release(handleId);
+            }
+        }
+    }
+
+    /**
+     * A weak reference to a {@link RemoteHandle} returned to the local application, which retains the details
+     * necessary to release the object it refers to on the remote machine, after the handle is garbage collected.
+     */
+    static class RemoteHandleReference extends WeakReference<RemoteHandle<?>> {
+        final UUID handleId;
+        final ConnectionId connectionId;
+
+        RemoteHandleReference(RemoteHandle<?> remoteHandle, ConnectionId connectionId, ReferenceQueue<? super RemoteHandle<?>> referenceQueue) {
+            super(remoteHandle, referenceQueue);
+            this.handleId = remoteHandle.getHandleId();
+            this.connectionId = connectionId;
+        }
+    }
+
+    public void receiveIncomingExecutionRequest(final ConnectionId connectionId, final ExecutionRequest executionRequest) {
         // Indicate to the class loader that should this thread require classes when processing this request
         // that the classes can be requested via the connection from which we received the request...
-        sessionClassLoader.setThreadLocalConnectionId(connectionId);
+        SessionClassLoader sessionClassLoader = bindSessionClassLoader(executionRequest.getCodebaseFingerprint(), executionRequest.getPushedResourceData());
+        sessionClassLoader.setThreadLocalConnectionId(connectionId, sessionId);
+        // Check that a shared class loader has not loaded classes which differ from our client's...
+        sessionClassLoader = verifySharedClassLoader(connectionId, sessionClassLoader, executionRequest.getPushedResourceData());
+        // Cache any bytecode which the client sent along with the request, before we deserialize the request...
+        sessionClassLoader.addPushedResources(executionRequest.getPushedResourceData());
+        // Record whether the client supports the unsafe serialization format, for requests we send to it...
+        mobilityController.getUnsafeFormatNegotiator().recordRemoteByteOrder(connectionId, executionRequest.getUnsafeFormatByteOrder());
 
         // Outer try-catch to catch and log all exceptions
         // so as not to kill a processing thread on a bad request...
@@ -288,80 +737,73 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
             // Inner try-catch to catch unexpected exceptions
             // and add additional context information to exception messages...
             try {
-                // Deserialize the Runnable or Callable object sent by the client,
-                // using a (de)serializer appropriate to the format indicated in the request...
-                byte[] serializeExecutableObject = executionRequest.getSerializedExecutableObject();
-                final SerializationFormat serializationFormat = executionRequest.getSerializationFormat();
-                final Object executableObject = deserialize(serializeExecutableObject, serializationFormat);
-
-                Throwable exceptionThrown = null;
-                Object objectReturned = null;
-                try {
-                    // Set the current session details into a thread-local variable, so code can access its own session...
-                    MobilityContextInternal.setCurrentSession(this);
-                    MobilityContextInternal.setCurrentConnectionId(connectionId);
-
-                    // Determine if object is Runnable or Callable...
-                    if (executableObject instanceof Runnable) {
-                        // Execute as Runnable...
-                        Runnable runnable = (Runnable) executableObject;
-                        runnable.run();
-                    }
-                    else if (executableObject instanceof Callable) {
-                        Callable callable = (Callable) executableObject;
-                        objectReturned = callable.call();
-                    }
-                    else {
-                        throw new IllegalStateException("Unexpected type of deserialized executable object, expected Runnable or Callable: " + (executableObject == null ? null : executableObject.getClass().getName()));
-                    }
-                }
-                catch (Throwable e) {
-                    // Catch Throwable, because we have no idea what client-supplied code might throw...
-                    exceptionThrown = e;
-                }
-                finally {
-                    // Unset current session details from the thread-local variable...
-                    MobilityContextInternal.setCurrentSession(null);
-                    MobilityContextInternal.setCurrentConnectionId(null);
-                }
-                final ExecutionResponse executionResponse;
                 switch (executionRequest.getExecutionMode()) {
                     case FIRE_AND_FORGET:
+                        invokeExecutableObject(connectionId, executionRequest);
                         // No need to send response to client.
                         if (logger.isLoggable(Level.FINER)) {
                             logger.log(Level.FINER, "Processed execution task and skipped sending response to client, for connection id: " + connectionId + ", execution request: " + executionRequest);
                         }
                         break;
                     case RETURN_RESPONSE:
-                        if (objectReturned != null) {
-                            executionResponse = new ExecutionResponse(
-                                    ExecutionResponse.ExecutionOutcome.VALUE_RETURNED,
-                                    serialize(objectReturned, defaultSerializationFormat),
-                                    defaultSerializationFormat,
-                                    executionRequest.getRequestIdentifier()
+                        final ExecutionResponse executionResponse;
+                        if (executionRequest.isMemoizable()) {
+                            // Return a cached response, or wait for an identical request in progress,
+                            // or execute the object if neither is available...
+                            MemoizedResponseCache.MemoizedResponse memoizedResponse = mobilityController.getMemoizedResponseCache().getResponse(
+                                    getMemoizationNamespace(),
+                                    executionRequest.getSerializedExecutableObject(),
+                                    executionRequest.getSerializationFormat(),
+                                    new Callable<MemoizedResponseCache.MemoizedResponse>() {
+                                        @Override
+                                        public MemoizedResponseCache.MemoizedResponse call() throws Exception {
+                                            // The response might be returned on any connection, so is not created for this one...
+                                            ExecutionResponse response = createExecutionResponse(null, invokeExecutableObject(connectionId, executionRequest), executionRequest.getRequestIdentifier(), executionRequest.getSerializationFormat());
+                                            return new MemoizedResponseCache.MemoizedResponse(response.getExecutionOutcome(), response.getSerializedReturnObject(), response.getSerializationFormat());
+                                        }
+                                    }
                             );
-                        }
-                        else if (exceptionThrown != null) {
                             executionResponse = new ExecutionResponse(
-                                    ExecutionResponse.ExecutionOutcome.FAILURE,
-                                    serialize(exceptionThrown, defaultSerializationFormat),
-                                    defaultSerializationFormat,
-                                    executionRequest.getRequestIdentifier()
+                                    memoizedResponse.getExecutionOutcome(),
+                                    memoizedResponse.getSerializedReturnObject(),
+                                    memoizedResponse.getSerializationFormat(),
+                                    executionRequest.getRequestIdentifier(),
+                                    mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder()
                             );
                         }
                         else {
-                            executionResponse = new ExecutionResponse(
-                                    ExecutionResponse.ExecutionOutcome.VOID_RETURNED,
-                                    serialize(null, defaultSerializationFormat),
-                                    defaultSerializationFormat,
-                                    executionRequest.getRequestIdentifier()
-                            );
+                            InvocationResult invocationResult = invokeExecutableObject(connectionId, executionRequest);
+                            // Bulk data in the result is sent separately, ahead of the response...
+                            BulkDataStore.setCurrentConnection(mobilityController.getBulkDataStore(), connectionId);
+                            try {
+                                if (executionRequest.getStreamedResultChunkSize() > 0 && invocationResult.objectReturned != null) {
+                                    // The client accepts large objects in chunks, null is returned if it was streamed...
+                                    executionResponse = createStreamedExecutionResponse(connectionId, invocationResult.objectReturned, executionRequest);
+                                }
+                                else {
+                                    executionResponse = createExecutionResponse(connectionId, invocationResult, executionRequest.getRequestIdentifier(), executionRequest.getSerializationFormat());
+                                }
+                            }
+                            finally {
+                                BulkDataStore.setCurrentConnection(null, null);
+                            }
+                            sendPendingBulkData(connectionId);
+                        }
+                        if (executionResponse != null) {
+                            mobilityController.sendOutgoingMessage(connectionId, executionResponse);
+                            confirmOutgoingFrameStrings(connectionId, executionResponse.getFrameStringDefinitions());
                         }
-                        mobilityController.sendOutgoingMessage(connectionId, executionResponse);
                         if (logger.isLoggable(Level.FINER)) {
                             logger.log(Level.FINER, "Processed execution task and sent response to client, for connection id: " + connectionId + ", execution request: " + executionRequest);
                         }
                         break;
+                    case STREAM_RESPONSE:
+                        InvocationResult invocationResult = invokeExecutableObject(connectionId, executionRequest);
+                        streamResults(connectionId, executionRequest.getRequestIdentifier(), invocationResult.objectReturned, invocationResult.exceptionThrown);
+                        if (logger.isLoggable(Level.FINER)) {
+                            logger.log(Level.FINER, "Processed execution task and streamed results to client, for connection id: " + connectionId + ", execution request: " + executionRequest);
+                        }
+                        break;
                     default:
                         throw new IllegalStateException("Unexpected execution mode specified in request: " + executionRequest.getExecutionMode());
                 }
@@ -396,122 +838,1509 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
             logger.log(Level.SEVERE, "Unexpected exception processing execution task, for connection id: " + connectionId + ", execution request: " + executionRequest, e);
         }
         // Null-out the connection id for this thread, which we set earlier above...
-        sessionClassLoader.setThreadLocalConnectionId(null);
+        sessionClassLoader.setThreadLocalConnectionId(null, null);
     }
 
+    /**
+     * Deserializes the Runnable or Callable object sent by the client and executes it, setting the current session
+     * details into thread-local variables while it executes.
+     *
+     * @param connectionId The connection from which the execution request was received
+     * @param executionRequest The execution request
+     * @return The object returned or the exception thrown by the executable object
+     */
+    InvocationResult invokeExecutableObject(ConnectionId connectionId, ExecutionRequest executionRequest) {
+        // Deserialize the Runnable or Callable object sent by the client,
+        // using a (de)serializer appropriate to the format indicated in the request...
+        byte[] serializeExecutableObject = executionRequest.getSerializedExecutableObject();
+        final SerializationFormat serializationFormat = executionRequest.getSerializationFormat();
+        final Object executableObject;
+        try {
+            executableObject = executionRequest.isImmutable()
+                    ? getImmutableExecutableObject(connectionId, serializeExecutableObject, serializationFormat)
+                    : deserializeExecutableObject(connectionId, serializeExecutableObject, serializationFormat);
+        }
+        finally {
+            // Release any bulk data the request referred to which was not claimed, if deserializing it failed...
+            mobilityController.getBulkDataStore().releaseIncoming(connectionId, executionRequest.getBulkDataIds());
+        }
+
+        InvocationResult invocationResult = new InvocationResult();
+        try {
+            // Set the current session details into a thread-local variable, so code can access its own session...
+            MobilityContextInternal.setCurrentSession(this);
+            MobilityContextInternal.setCurrentConnectionId(connectionId);
 
-    public void receiveExecutionResponse(ExecutionResponse executionResponse) {
-        RequestIdentifier requestIdentifier = executionResponse.getRequestIdentifier();
-        FutureExecutionResponse futureExecutionResponse = futureExecutionResponses.get(requestIdentifier);
-        if (futureExecutionResponse == null) {
-            // Request must have timed out...
-            logger.log(Level.FINER, "Ignored ExecutionResponse, no pending request found, request must have timed out: {0}", executionResponse);
-            return;
+            // Determine if object is Runnable or Callable...
+            if (executableObject instanceof Runnable) {
+                // Execute as Runnable...
+                Runnable runnable = (Runnable) executableObject;
+                runnable.run();
+            }
+            else if (executableObject instanceof Callable) {
+                Callable callable = (Callable) executableObject;
+                invocationResult.objectReturned = callable.call();
+            }
+            else {
+                throw new IllegalStateException("Unexpected type of deserialized executable object, expected Runnable or Callable: " + (executableObject == null ? null : executableObject.getClass().getName()));
+            }
         }
-        futureExecutionResponse.setResponse(executionResponse);
-        logger.log(Level.FINER, "Accepted ExecutionResponse, passed to request thread: {0}", executionResponse);
+        catch (Throwable e) {
+            // Catch Throwable, because we have no idea what client-supplied code might throw...
+            invocationResult.exceptionThrown = e;
+        }
+        finally {
+            // Unset current session details from the thread-local variable...
+            MobilityContextInternal.setCurrentSession(null);
+            MobilityContextInternal.setCurrentConnectionId(null);
+        }
+        return invocationResult;
     }
 
     /**
-     * Represents an {@link ExecutionResponse} which will materialize in the future.
-     * <p/>
-     * Note this would be similar to {@link java.util.concurrent.Future}&lt;ExecutionResponse&gt;, but we don't
-     * implement {@code Future} because it would require us to implement more methods than we really need here.
-     * <p/>
-     * The a client thread calling into the {@link #execute} methods will will register this object in a map, then
-     * send an {@link ExecutionRequest} object to a remote machine.
-     * The client thread will then block on the {@link #getResponse} method of this object.
-     * <p/>
-     * When a {@link ExecutionResponse} arrives from the remote machine, the thread processing it will look up this
-     * object in the map and call {@link #setResponse}. At that point the blocked client thread will receive the
-     * ExecutionResponse and will continue its work.
-     * <p/>
-     * Note that only calls to the {@link #execute} methods which specify that responses are required will cause
-     * the client thread to block.
+     * Creates an {@link ExecutionResponse} to return the outcome of executing an object to the client.
+     *
+     * @param connectionId The connection on which the response will be sent, or null if it might be sent on any
+     * connection
+     * @param invocationResult The object returned or the exception thrown by the executable object
+     * @param requestIdentifier The request identifier of the execution request
+     * @param requestSerializationFormat The serialization format of the execution request, the response is serialized
+     * in the unsafe format if the request was
+     * @return An execution response for the given outcome
      */
-    class FutureExecutionResponse {
-        private final RequestIdentifier requestIdentifier;
-
-        private final BlockingQueue<ExecutionResponse> responseQueue = new ArrayBlockingQueue<ExecutionResponse>(1);
-
-        FutureExecutionResponse(RequestIdentifier requestIdentifier) {
-            this.requestIdentifier = requestIdentifier;
+    ExecutionResponse createExecutionResponse(ConnectionId connectionId, InvocationResult invocationResult, RequestIdentifier requestIdentifier, SerializationFormat requestSerializationFormat) {
+        SerializationFormat serializationFormat = getResponseSerializationFormat(requestSerializationFormat);
+        int advertisedByteOrder = mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder();
+        if (invocationResult.objectReturned != null) {
+            return new ExecutionResponse(
+                    ExecutionResponse.ExecutionOutcome.VALUE_RETURNED,
+                    serialize(invocationResult.objectReturned, serializationFormat),
+                    serializationFormat,
+                    requestIdentifier,
+                    advertisedByteOrder
+            );
         }
+        else if (invocationResult.exceptionThrown != null) {
+            Map<Integer, String> frameStringDefinitions = new HashMap<Integer, String>();
+            return new ExecutionResponse(
+                    ExecutionResponse.ExecutionOutcome.FAILURE,
+                    serializeException(connectionId, invocationResult.exceptionThrown, serializationFormat, frameStringDefinitions),
+                    serializationFormat,
+                    requestIdentifier,
+                    advertisedByteOrder,
+                    false,
+                    frameStringDefinitions
+            );
+        }
+        else {
+            return new ExecutionResponse(
+                    ExecutionResponse.ExecutionOutcome.VOID_RETURNED,
+                    serialize(null, serializationFormat),
+                    serializationFormat,
+                    requestIdentifier,
+                    advertisedByteOrder
+            );
+        }
+    }
 
-        public ExecutionResponse getResponse(long timeout, TimeUnit unit) {
-            try {
-                ExecutionResponse executionResponse = responseQueue.poll(timeout, unit);
-                if (executionResponse == null) {
-                    throw new TimeoutException();
-                }
-                return executionResponse;
-            }
-            catch (TimeoutException e) {
-                throw new IllegalStateException("Timed out waiting to receive execution response within timeout of " + timeout + " " + unit.name().toLowerCase(), e);
-            }
-            catch (Exception e) {
-                throw new IllegalStateException("Unexpected exception waiting to receive execution response", e);
-            }
-            finally {
-                futureExecutionResponses.remove(this.requestIdentifier);
+    /**
+     * Creates an {@link ExecutionResponse} to return an object returned by a {@link Callable} object to a client
+     * which accepts streamed results, or streams the object to the client if its serialized form exceeds the chunk
+     * size requested by the client.
+     * <p/>
+     * The object is serialized directly into a {@link StreamedResultOutputStream}. If the serialized object fits in a
+     * single chunk, it is returned in an ordinary response. Otherwise this method sends a response flagged as
+     * streamed, followed by {@link StreamChunk.ChunkType#BYTES} chunks as the serializer produces them, and a final
+     * {@link StreamChunk.ChunkType#END_OF_STREAM} chunk; so that neither machine needs to hold the entire serialized
+     * object in memory.
+     *
+     * @param connectionId The connection from which the execution request was received
+     * @param objectReturned The object returned by the {@code call()} method
+     * @param executionRequest The execution request
+     * @return An execution response containing the object, or null if the object was streamed to the client
+     */
+    ExecutionResponse createStreamedExecutionResponse(ConnectionId connectionId, Object objectReturned, ExecutionRequest executionRequest) {
+        RequestIdentifier requestIdentifier = executionRequest.getRequestIdentifier();
+        SerializationFormat serializationFormat = getResponseSerializationFormat(executionRequest.getSerializationFormat());
+        StreamedResultOutputStream outputStream = new StreamedResultOutputStream(connectionId, requestIdentifier, serializationFormat, executionRequest.getStreamedResultChunkSize());
+        try {
+            serialize(objectReturned, serializationFormat, outputStream);
+        }
+        catch (RuntimeException e) {
+            if (!outputStream.isStreaming()) {
+                throw e;
             }
+            // The client is already reading the stream, so notify it of the failure there...
+            outputStream.fail(e);
+            return null;
         }
-
-        public boolean setResponse(ExecutionResponse executionResponse) {
-            return responseQueue.add(executionResponse);
+        if (!outputStream.isStreaming()) {
+            return new ExecutionResponse(
+                    ExecutionResponse.ExecutionOutcome.VALUE_RETURNED,
+                    outputStream.toByteArray(),
+                    serializationFormat,
+                    requestIdentifier,
+                    mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder()
+            );
         }
+        outputStream.finish();
+        return null;
     }
 
-    @Override
-    public SessionClassLoader getSessionClassLoader() {
-        return sessionClassLoader;
+    SerializationFormat getResponseSerializationFormat(SerializationFormat requestSerializationFormat) {
+        // The client sent the unsafe format only because it knows we support it with the same byte order...
+        return requestSerializationFormat == SerializationFormat.KRYO_UNSAFE ? SerializationFormat.KRYO_UNSAFE : defaultSerializationFormat;
     }
 
-    @Override
-    public MobilityController getMobilityController() {
-        return this.mobilityController;
+    /**
+     * The outcome of executing an object sent by a client: either the object it returned, or the exception it threw.
+     */
+    static class InvocationResult {
+        Object objectReturned;
+        Throwable exceptionThrown;
     }
 
-    @Override
-    public void release() {
-        if (MobilityContextInternal.hasCurrentSession()) {
-            // This is being called by a thread executing a request from a remote machine.
-            // Defer releasing the session until all threads processing remote requests in this session have finished.
-            // Set a flag to signal that last such thread to finish, should release the session...
-            this.sessionReleaseRequested = true;
+    public boolean receiveExecutionResponse(ExecutionResponse executionResponse) {
+        UUID requestId = executionResponse.getRequestIdentifier().getRequestId();
+        if (executionResponse.isStreamed()) {
+            // Chunks of the object might be processed before the requesting thread registers a stream to receive
+            // them, so buffer them until it does...
+            bufferEarlyStreamedChunk(executionResponse.getRequestIdentifier(), null);
         }
-        else {
-            // This is being called by a thread from the local application.
-            // Check if remote threads are executing in the session...
-            if (numRemoteThreadsExecutingInThisSession.get() == 0) {
-                // No remote threads are executing in this session, release the session...
-                doRelease();
-            }
-            else {
-                // Some remote threads are executing in the session,
-                // set the flag to have those threads release the session...
-                this.sessionReleaseRequested = true;
-            }
+        if (!RequestIdentifier.isSequentialRequestId(requestId)
+                || !pendingExecutionResponses.complete(requestId.getLeastSignificantBits(), executionResponse)) {
+            // Request must have timed out...
+            logger.log(Level.FINER, "Ignored ExecutionResponse, no pending request found, request must have timed out: {0}", executionResponse);
+            return false;
         }
+        logger.log(Level.FINER, "Accepted ExecutionResponse, passed to request thread: {0}", executionResponse);
+        return true;
     }
 
-    void doRelease() {
-        mobilityController.releaseSession(this.sessionId);
-    }
-
-    private Object deserialize(byte[] serializedObject, SerializationFormat serializationFormat) {
-        try {
-            switch (serializationFormat) {
-                case KRYO:
-                    // Note: we only support one serialization format now,
-                    // however the protocol allows for others in future...
-                    return defaultSerializer.deserialize(serializedObject);
-                default:
-                    throw new IllegalStateException("Unsupported serialization format: " + serializationFormat);
+    public boolean receiveStreamChunk(StreamChunk streamChunk) {
+        RequestIdentifier requestIdentifier = streamChunk.getRequestIdentifier();
+        reclaimAbandonedStreamingResponses();
+        StreamingResponseReference streamingResponseReference = streamingResponses.get(requestIdentifier);
+        if (streamingResponseReference != null) {
+            if (streamingResponseReference.get() == null) {
+                // The application discarded the iterator without closing it...
+                reclaimAbandonedStreamingResponse(streamingResponseReference);
+                logger.log(Level.FINER, "Ignored StreamChunk, iterator was discarded without being closed: {0}", streamChunk);
+                return false;
             }
+            streamingResponseReference.incomingChunks.receiveChunk(streamChunk);
+            logger.log(Level.FINER, "Accepted StreamChunk, passed to iterator: {0}", streamChunk);
+            return true;
         }
-        catch (Exception e) {
-            throw new IllegalStateException("Exception deserializing object from " + serializedObject.length + " bytes data in " + serializationFormat + " format", e);
+        StreamedResultInputStream streamedResult = streamedResults.get(requestIdentifier);
+        if (streamedResult != null) {
+            streamedResult.receiveChunk(streamChunk);
+            logger.log(Level.FINER, "Accepted StreamChunk, passed to streamed result: {0}", streamChunk);
+            return true;
+        }
+        if (bufferEarlyStreamedChunk(requestIdentifier, streamChunk)) {
+            logger.log(Level.FINER, "Accepted StreamChunk, buffered until streamed result is registered: {0}", streamChunk);
+            return true;
+        }
+        // Stream must have been closed, or timed out...
+        logger.log(Level.FINER, "Ignored StreamChunk, no open stream found, stream must have been closed or timed out: {0}", streamChunk);
+        return false;
+    }
+
+    /**
+     * Buffers a chunk of a streamed result which arrived before the requesting thread registered a stream to receive
+     * it, if the request is still awaiting a response, or if a response indicating that the result is streamed has
+     * arrived. Otherwise the client has given up on the result.
+     *
+     * @param requestIdentifier Identifies the request
+     * @param streamChunk The chunk to buffer, or null to only prepare to buffer chunks for the request
+     * @return True if the chunk was buffered, or was passed to a stream registered in the meantime
+     */
+    boolean bufferEarlyStreamedChunk(RequestIdentifier requestIdentifier, StreamChunk streamChunk) {
+        final StreamedResultInputStream streamedResult;
+        synchronized (earlyStreamedChunks) {
+            streamedResult = streamedResults.get(requestIdentifier);
+            if (streamedResult == null) {
+                List<StreamChunk> chunks = earlyStreamedChunks.get(requestIdentifier);
+                if (chunks == null) {
+                    UUID requestId = requestIdentifier.getRequestId();
+                    if (!RequestIdentifier.isSequentialRequestId(requestId) || !pendingExecutionResponses.contains(requestId.getLeastSignificantBits())) {
+                        return false;
+                    }
+                    chunks = new ArrayList<StreamChunk>();
+                    earlyStreamedChunks.put(requestIdentifier, chunks);
+                }
+                if (streamChunk != null) {
+                    chunks.add(streamChunk);
+                }
+                return true;
+            }
+        }
+        if (streamChunk != null) {
+            streamedResult.receiveChunk(streamChunk);
+        }
+        return true;
+    }
+
+    /**
+     * Registers a stream to receive the chunks of an object which a remote machine is streaming to the requesting
+     * thread, and passes it any chunks which arrived before it was registered.
+     */
+    StreamedResultInputStream registerStreamedResult(RequestIdentifier requestIdentifier, ConnectionId connectionId, long timeoutMillis) {
+        StreamedResultInputStream streamedResult = new StreamedResultInputStream(requestIdentifier, connectionId, timeoutMillis);
+        final List<StreamChunk> chunksArrived;
+        synchronized (earlyStreamedChunks) {
+            chunksArrived = earlyStreamedChunks.remove(requestIdentifier);
+            streamedResults.put(requestIdentifier, streamedResult);
+        }
+        if (chunksArrived != null) {
+            for (StreamChunk streamChunk : chunksArrived) {
+                streamedResult.receiveChunk(streamChunk);
+            }
+        }
+        return streamedResult;
+    }
+
+    /**
+     * Discards any chunks of a streamed result which arrived for a request which the requesting thread gave up on,
+     * and asks the remote machine not to stream the object, in case it was about to.
+     */
+    void cancelStreamedResult(ConnectionId connectionId, RequestIdentifier requestIdentifier) {
+        final List<StreamChunk> discardedChunks;
+        synchronized (earlyStreamedChunks) {
+            discardedChunks = earlyStreamedChunks.remove(requestIdentifier);
+        }
+        if (discardedChunks != null) {
+            BulkDataStore bulkDataStore = mobilityController.getBulkDataStore();
+            for (StreamChunk discardedChunk : discardedChunks) {
+                bulkDataStore.releaseIncoming(connectionId, discardedChunk.getBulkDataIds());
+            }
+        }
+        try {
+            mobilityController.sendOutgoingMessage(connectionId, new StreamCredit(0, true, requestIdentifier));
+        }
+        catch (Exception e) {
+            // The remote machine will stop streaming anyway when it times out waiting for credits...
+            logger.log(Level.FINE, "Failed to send request to cancel streamed result to remote machine: " + connectionId + ", request identifier: " + requestIdentifier, e);
+        }
+    }
+
+    public void receiveStreamCredit(ConnectionId connectionId, StreamCredit streamCredit) {
+        OutgoingStreamKey outgoingStreamKey = new OutgoingStreamKey(connectionId, streamCredit.getRequestIdentifier());
+        OutgoingStream outgoingStream = outgoingStreams.get(outgoingStreamKey);
+        if (outgoingStream == null) {
+            if (!streamCredit.isCancel()) {
+                // Stream must have finished, or timed out...
+                logger.log(Level.FINER, "Ignored StreamCredit, no outgoing stream found, stream must have finished or timed out: {0}", streamCredit);
+                return;
+            }
+            // The cancel might have overtaken the execution request, which a thread has not started streaming yet.
+            // Register the stream as cancelled, and remember it until the client would have given up on it...
+            OutgoingStream cancelledStream = new OutgoingStream();
+            cancelledStream.cancel();
+            outgoingStream = outgoingStreams.putIfAbsent(outgoingStreamKey, cancelledStream);
+            if (outgoingStream == null) {
+                PendingRequestTable.timer.schedule(new UnclaimedOutgoingStream(outgoingStreamKey, cancelledStream), DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS);
+                logger.log(Level.FINER, "Registered StreamCredit cancelling stream which has not started yet: {0}", streamCredit);
+                return;
+            }
+        }
+        if (streamCredit.isCancel()) {
+            outgoingStream.cancel();
+        }
+        else {
+            outgoingStream.grantCredits(streamCredit.getCredits());
+        }
+        logger.log(Level.FINER, "Accepted StreamCredit, passed to outgoing stream: {0}", streamCredit);
+    }
+
+    /**
+     * Sends the elements provided by the {@link Iterator} or {@link Iterable} returned by a {@link Callable} object
+     * executed in {@link ExecutionMode#STREAM_RESPONSE} mode to the client, in chunks.
+     * <p/>
+     * After sending the initial allowance of chunks, this method will block before sending each additional chunk
+     * until the client has granted a credit to send it, so that the client controls the rate at which elements are
+     * produced.
+     * <p/>
+     * The stream is terminated with an {@link StreamChunk.ChunkType#END_OF_STREAM} chunk, or with a
+     * {@link StreamChunk.ChunkType#FAILURE} chunk if the {@code call()} method, or the iterator it returned, threw
+     * an exception.
+     *
+     * @param connectionId The connection from which the execution request was received
+     * @param requestIdentifier The request identifier of the execution request
+     * @param objectReturned The object returned by the {@code call()} method, if any
+     * @param exceptionThrown The exception thrown by the {@code call()} method, if any
+     */
+    void streamResults(ConnectionId connectionId, RequestIdentifier requestIdentifier, Object objectReturned, Throwable exceptionThrown) {
+        OutgoingStreamKey outgoingStreamKey = new OutgoingStreamKey(connectionId, requestIdentifier);
+        OutgoingStream outgoingStream = new OutgoingStream();
+        OutgoingStream cancelledStream = outgoingStreams.putIfAbsent(outgoingStreamKey, outgoingStream);
+        if (cancelledStream != null) {
+            // The client cancelled the stream before this thread started it,
+            // no elements will be sent because no credits can be acquired...
+            outgoingStream = cancelledStream;
+        }
+        long sequenceNumber = 0;
+        try {
+            if (exceptionThrown == null) {
+                // Set the current session details into thread-local variables again,
+                // because the iterator might produce elements lazily when we call it...
+                MobilityContextInternal.setCurrentSession(this);
+                MobilityContextInternal.setCurrentConnectionId(connectionId);
+                try {
+                    final Iterator<?> iterator;
+                    if (objectReturned == null) {
+                        iterator = Collections.emptyList().iterator();
+                    }
+                    else if (objectReturned instanceof Iterator) {
+                        iterator = (Iterator<?>) objectReturned;
+                    }
+                    else if (objectReturned instanceof Iterable) {
+                        iterator = ((Iterable<?>) objectReturned).iterator();
+                    }
+                    else {
+                        throw new IllegalStateException("Unexpected type of object returned in STREAM_RESPONSE mode, expected Iterator or Iterable: " + objectReturned.getClass().getName());
+                    }
+                    try {
+                        while (iterator.hasNext()) {
+                            if (!outgoingStream.acquireCredit(DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS)) {
+                                // The client closed the stream, or stopped consuming it.
+                                // Stop producing elements, and don't send anything further...
+                                if (logger.isLoggable(Level.FINER)) {
+                                    logger.log(Level.FINER, "Stopped streaming results, stream was closed by client or no credit was received within timeout of " + DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS + " milliseconds, for connection id: " + connectionId + ", request identifier: " + requestIdentifier);
+                                }
+                                return;
+                            }
+                            ArrayList<Object> elements = new ArrayList<Object>(STREAM_CHUNK_SIZE);
+                            while (elements.size() < STREAM_CHUNK_SIZE && iterator.hasNext()) {
+                                elements.add(iterator.next());
+                            }
+                            mobilityController.sendOutgoingMessage(connectionId, new StreamChunk(
+                                    StreamChunk.ChunkType.ELEMENTS,
+                                    sequenceNumber++,
+                                    serialize(elements, defaultSerializationFormat),
+                                    defaultSerializationFormat,
+                                    requestIdentifier
+                            ));
+                        }
+                    }
+                    finally {
+                        // Release any resources held by the iterator, for example if it is backed by a cursor...
+                        if (iterator instanceof Closeable) {
+                            ((Closeable) iterator).close();
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    // Catch Throwable, because we have no idea what client-supplied code might throw...
+                    exceptionThrown = e;
+                }
+                finally {
+                    // Unset current session details from the thread-local variables...
+                    MobilityContextInternal.setCurrentSession(null);
+                    MobilityContextInternal.setCurrentConnectionId(null);
+                }
+            }
+            if (exceptionThrown == null) {
+                mobilityController.sendOutgoingMessage(connectionId, new StreamChunk(
+                        StreamChunk.ChunkType.END_OF_STREAM,
+                        sequenceNumber,
+                        new byte[0],
+                        defaultSerializationFormat,
+                        requestIdentifier
+                ));
+            }
+            else {
+                Map<Integer, String> frameStringDefinitions = new HashMap<Integer, String>();
+                mobilityController.sendOutgoingMessage(connectionId, new StreamChunk(
+                        StreamChunk.ChunkType.FAILURE,
+                        sequenceNumber,
+                        serializeException(connectionId, exceptionThrown, defaultSerializationFormat, frameStringDefinitions),
+                        defaultSerializationFormat,
+                        requestIdentifier,
+                        frameStringDefinitions
+                ));
+                confirmOutgoingFrameStrings(connectionId, frameStringDefinitions);
+            }
+        }
+        finally {
+            outgoingStreams.remove(outgoingStreamKey);
+        }
+    }
+
+    /**
+     * Identifies a stream of results being sent by this machine. Request ids are only unique within a session on the
+     * machine which sent the request, so streams are identified by the connection from which the request was received
+     * as well as its request identifier.
+     */
+    static class OutgoingStreamKey {
+        private final ConnectionId connectionId;
+        private final RequestIdentifier requestIdentifier;
+
+        OutgoingStreamKey(ConnectionId connectionId, RequestIdentifier requestIdentifier) {
+            this.connectionId = connectionId;
+            this.requestIdentifier = requestIdentifier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            OutgoingStreamKey that = (OutgoingStreamKey) o;
+
+            return connectionId.equals(that.connectionId)
+                    && requestIdentifier.equals(that.requestIdentifier);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = connectionId.hashCode();
+            result = 31 * result + requestIdentifier.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * Tracks the credits granted by a client, for a stream of results being sent to it by a thread on this machine.
+     */
+    static class OutgoingStream {
+        private final Semaphore credits = new Semaphore(STREAM_INITIAL_CREDITS);
+        private volatile boolean cancelled = false;
+
+        /**
+         * Blocks until the client grants a credit to send the next chunk, or until the timeout elapses, or until the
+         * client cancels the stream.
+         *
+         * @param timeoutMillis The maximum time to wait for a credit
+         * @return True if a credit was acquired, false if the client cancelled the stream or the timeout elapsed
+         * @throws InterruptedException If the thread is interrupted while waiting
+         */
+        boolean acquireCredit(long timeoutMillis) throws InterruptedException {
+            return !cancelled && credits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS) && !cancelled;
+        }
+
+        void grantCredits(int numCredits) {
+            credits.release(numCredits);
+        }
+
+        void cancel() {
+            cancelled = true;
+            // Wake up the thread if it is waiting for a credit...
+            credits.release();
+        }
+    }
+
+    /**
+     * A stream which a client cancelled before the thread which would send it had started, which is discarded if that
+     * thread has not claimed it when the timeout elapses.
+     */
+    class UnclaimedOutgoingStream implements HashedWheelTimer.Expirable {
+        private final OutgoingStreamKey outgoingStreamKey;
+        private final OutgoingStream cancelledStream;
+
+        UnclaimedOutgoingStream(OutgoingStreamKey outgoingStreamKey, OutgoingStream cancelledStream) {
+            this.outgoingStreamKey = outgoingStreamKey;
+            this.cancelledStream = cancelledStream;
+        }
+
+        @Override
+        public boolean isDone() {
+            return outgoingStreams.get(outgoingStreamKey) != cancelledStream;
+        }
+
+        @Override
+        public void expire() {
+            outgoingStreams.remove(outgoingStreamKey, cancelledStream);
+        }
+    }
+
+    /**
+     * Provides the results of a {@link Callable} object executed on a remote machine in
+     * {@link ExecutionMode#STREAM_RESPONSE} mode, to the client thread which is consuming them.
+     * <p/>
+     * Threads processing {@link StreamChunk}s which arrive from the remote machine will look up the sequence of chunks
+     * for this object in a map, via a weak reference to this object. Those threads might process chunks in a different
+     * order than they were sent, and so the {@link IncomingChunkSequence} restores their order.
+     * <p/>
+     * The client thread will block in {@link #hasNext()} until the next chunk in the sequence arrives. When it takes
+     * a chunk of elements, this object will grant the remote machine a credit to send another chunk.
+     */
+    class StreamingResponseIterator<T> implements RemoteIterator<T> {
+        private final RequestIdentifier requestIdentifier;
+        private final ConnectionId connectionId;
+        private final IncomingChunkSequence incomingChunks;
+
+        private Iterator<?> currentElements = Collections.emptyList().iterator();
+        private boolean finished = false;
+
+        StreamingResponseIterator(RequestIdentifier requestIdentifier, ConnectionId connectionId, long timeoutMillis) {
+            this.requestIdentifier = requestIdentifier;
+            this.connectionId = connectionId;
+            this.incomingChunks = new IncomingChunkSequence(requestIdentifier, connectionId, timeoutMillis);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!currentElements.hasNext()) {
+                if (finished) {
+                    return false;
+                }
+                final StreamChunk streamChunk;
+                try {
+                    streamChunk = incomingChunks.takeNextChunk();
+                }
+                catch (RuntimeException e) {
+                    // Timed out or interrupted, ask the remote machine to stop producing elements...
+                    close();
+                    throw e;
+                }
+                switch (streamChunk.getChunkType()) {
+                    case ELEMENTS:
+                        currentElements = deserializeElements(streamChunk);
+                        // Grant the remote machine a credit to send another chunk,
+                        // now that we have taken this one...
+                        mobilityController.sendOutgoingMessage(connectionId, new StreamCredit(1, false, requestIdentifier));
+                        break;
+                    case END_OF_STREAM:
+                        finish();
+                        return false;
+                    case FAILURE:
+                        finish();
+                        // The code threw an exception on the remote machine.
+                        // Deserialize the exception and throw it to the caller on this machine...
+                        final Object throwable;
+                        getSessionClassLoader().setThreadLocalConnectionId(connectionId, sessionId);
+                        try {
+                            throwable = deserializeException(connectionId, streamChunk.getSerializedElements(), streamChunk.getSerializationFormat());
+                        }
+                        finally {
+                            getSessionClassLoader().setThreadLocalConnectionId(null, null);
+                        }
+                        // Sanity check to validate that indeed an exception was serialized as expected...
+                        if (!(throwable instanceof Throwable)) {
+                            throw new IllegalStateException("Unexpected object returned for stream chunk type FAILURE: " + throwable);
+                        }
+                        throw new IllegalStateException("An exception was thrown while producing elements on the remote machine: " + connectionId, (Throwable) throwable);
+                    default:
+                        finish();
+                        throw new IllegalStateException("Unexpected ChunkType returned: " + streamChunk.getChunkType());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            @SuppressWarnings({"unchecked", "UnnecessaryLocalVariable"})
+            T element = (T) currentElements.next();
+            return element;
+        }
+
+        /**
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+        @Override
+        public void close() {
+            if (finished) {
+                return;
+            }
+            finish();
+            currentElements = Collections.emptyList().iterator();
+            try {
+                mobilityController.sendOutgoingMessage(connectionId, new StreamCredit(0, true, requestIdentifier));
+            }
+            catch (Exception e) {
+                // The remote machine will stop producing elements anyway when it times out waiting for credits...
+                logger.log(Level.FINE, "Failed to send request to cancel stream to remote machine: " + connectionId + ", request identifier: " + requestIdentifier, e);
+            }
+        }
+
+        Iterator<?> deserializeElements(StreamChunk streamChunk) {
+            Object elements = deserializeWithConnection(streamChunk.getSerializedElements(), streamChunk.getSerializationFormat());
+            // Sanity check to validate that indeed a list was serialized as expected...
+            if (!(elements instanceof List)) {
+                throw new IllegalStateException("Unexpected object returned for stream chunk type ELEMENTS: " + elements);
+            }
+            return ((List<?>) elements).iterator();
+        }
+
+        Object deserializeWithConnection(byte[] serializedObject, SerializationFormat serializationFormat) {
+            // Indicate to the class loader that should this thread require classes when deserializing
+            // the elements that they can be obtained from this remote machine...
+            getSessionClassLoader().setThreadLocalConnectionId(connectionId, sessionId);
+            try {
+                return deserialize(serializedObject, serializationFormat);
+            }
+            finally {
+                // Null-out the connection id for this calling thread,
+                // now that the elements have been deserialized...
+                getSessionClassLoader().setThreadLocalConnectionId(null, null);
+            }
+        }
+
+        void finish() {
+            finished = true;
+            streamingResponses.remove(requestIdentifier);
+            incomingChunks.clear();
+        }
+    }
+
+    /**
+     * Restores the order of {@link StreamChunk}s arriving from a remote machine for a particular request, which threads
+     * processing them might pass to this object in a different order than they were sent.
+     */
+    static class IncomingChunkSequence {
+        private final RequestIdentifier requestIdentifier;
+        private final ConnectionId connectionId;
+        private final long timeoutMillis;
+
+        private final Map<Long, StreamChunk> arrivedChunks = new HashMap<Long, StreamChunk>();
+        private long nextSequenceNumber = 0;
+
+        IncomingChunkSequence(RequestIdentifier requestIdentifier, ConnectionId connectionId, long timeoutMillis) {
+            this.requestIdentifier = requestIdentifier;
+            this.connectionId = connectionId;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void receiveChunk(StreamChunk streamChunk) {
+            synchronized (arrivedChunks) {
+                arrivedChunks.put(streamChunk.getSequenceNumber(), streamChunk);
+                arrivedChunks.notifyAll();
+            }
+        }
+
+        /**
+         * Blocks until the next chunk in the sequence arrives, and returns it.
+         *
+         * @return The next chunk in the sequence
+         * @throws IllegalStateException If the chunk does not arrive within the timeout, or if the thread is interrupted
+         */
+        StreamChunk takeNextChunk() {
+            final long deadline = HashedWheelTimer.computeDeadlineMillis(System.currentTimeMillis(), timeoutMillis);
+            synchronized (arrivedChunks) {
+                try {
+                    StreamChunk streamChunk;
+                    while ((streamChunk = arrivedChunks.remove(nextSequenceNumber)) == null) {
+                        long remainingMillis = deadline - System.currentTimeMillis();
+                        if (remainingMillis <= 0) {
+                            throw new IllegalStateException("Timed out waiting to receive stream chunk " + nextSequenceNumber + " within timeout of " + timeoutMillis + " milliseconds, for request identifier: " + requestIdentifier + ", connection id: " + connectionId);
+                        }
+                        arrivedChunks.wait(remainingMillis);
+                    }
+                    nextSequenceNumber++;
+                    return streamChunk;
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException("Interrupted while waiting to receive stream chunk " + nextSequenceNumber + ", for request identifier: " + requestIdentifier, e);
+                }
+            }
+        }
+
+        /**
+         * Discards any chunks which arrived but were not taken.
+         *
+         * @return The chunks discarded
+         */
+        List<StreamChunk> clear() {
+            synchronized (arrivedChunks) {
+                List<StreamChunk> discardedChunks = new ArrayList<StreamChunk>(arrivedChunks.values());
+                arrivedChunks.clear();
+                return discardedChunks;
+            }
+        }
+    }
+
+    /**
+     * Receives the serialized form of an object returned by a {@link Callable} object executed on this machine, and
+     * sends it to the client in {@link StreamChunk.ChunkType#BYTES} chunks if it exceeds the chunk size requested by
+     * the client.
+     * <p/>
+     * Bytes are accumulated in a buffer which grows up to the chunk size, which is capped at
+     * {@link #MAX_STREAMED_RESULT_CHUNK_SIZE}. If the buffer fills at the chunk size, this stream sends the client an
+     * {@link ExecutionResponse} flagged as streamed, and from then on sends the contents of the buffer in a chunk
+     * whenever it fills. Before sending each chunk, it waits for a credit from the client, in the same way as
+     * {@link #streamResults}, so that the client controls how many chunks are in transit at any time.
+     */
+    class StreamedResultOutputStream extends OutputStream {
+        private final ConnectionId connectionId;
+        private final RequestIdentifier requestIdentifier;
+        private final SerializationFormat serializationFormat;
+        private final int chunkSize;
+        private byte[] buffer;
+        private int count = 0;
+
+        private OutgoingStreamKey outgoingStreamKey;
+        private OutgoingStream outgoingStream;
+        private long sequenceNumber = 0;
+
+        StreamedResultOutputStream(ConnectionId connectionId, RequestIdentifier requestIdentifier, SerializationFormat serializationFormat, int chunkSize) {
+            this.connectionId = connectionId;
+            this.requestIdentifier = requestIdentifier;
+            this.serializationFormat = serializationFormat;
+            // The chunk size is requested by the client, so do not trust it...
+            this.chunkSize = Math.min(chunkSize, MAX_STREAMED_RESULT_CHUNK_SIZE);
+            this.buffer = new byte[Math.min(this.chunkSize, STREAMED_RESULT_INITIAL_BUFFER_SIZE)];
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buffer.length) {
+                makeRoom();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    makeRoom();
+                }
+                int bytesToCopy = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, bytesToCopy);
+                count += bytesToCopy;
+                offset += bytesToCopy;
+                length -= bytesToCopy;
+            }
+        }
+
+        /**
+         * Grows the buffer when it is full, or sends its contents in a chunk if it has reached the chunk size.
+         */
+        void makeRoom() {
+            if (buffer.length < chunkSize) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, chunkSize));
+            }
+            else {
+                sendChunk();
+            }
+        }
+
+        /**
+         * @return The size of the buffer currently allocated
+         */
+        int getBufferCapacity() {
+            return buffer.length;
+        }
+
+        /**
+         * @return True if the object is being streamed to the client, false if all bytes written so far are buffered
+         */
+        boolean isStreaming() {
+            return outgoingStream != null;
+        }
+
+        /**
+         * @return A copy of the bytes buffered, when the object is not being streamed
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, count);
+        }
+
+        void sendChunk() {
+            if (outgoingStream == null) {
+                // The serialized object exceeds the chunk size,
+                // tell the client to read it from chunks which will follow...
+                outgoingStreamKey = new OutgoingStreamKey(connectionId, requestIdentifier);
+                outgoingStream = new OutgoingStream();
+                OutgoingStream cancelledStream = outgoingStreams.putIfAbsent(outgoingStreamKey, outgoingStream);
+                if (cancelledStream != null) {
+                    // The client gave up on the response before this thread started streaming it,
+                    // no chunks will be sent because no credits can be acquired...
+                    outgoingStream = cancelledStream;
+                }
+                mobilityController.sendOutgoingMessage(connectionId, new ExecutionResponse(
+                        ExecutionResponse.ExecutionOutcome.VALUE_RETURNED,
+                        new byte[0],
+                        serializationFormat,
+                        requestIdentifier,
+                        mobilityController.getUnsafeFormatNegotiator().getAdvertisedByteOrder(),
+                        true
+                ));
+            }
+            try {
+                if (!outgoingStream.acquireCredit(DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS)) {
+                    throw new IllegalStateException("Stopped streaming result, stream was closed by client or no credit was received within timeout of " + DEFAULT_EXECUTION_RESPONSE_TIMEOUT_MILLIS + " milliseconds, for connection id: " + connectionId + ", request identifier: " + requestIdentifier);
+                }
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted while waiting for credit to stream result, for connection id: " + connectionId + ", request identifier: " + requestIdentifier, e);
+            }
+            // Bulk data referred to by the bytes in this chunk must arrive before it...
+            sendPendingBulkData(connectionId);
+            // The message is converted to protobuf synchronously, so the buffer can be reused when this returns...
+            mobilityController.sendOutgoingMessage(connectionId, new StreamChunk(
+                    StreamChunk.ChunkType.BYTES,
+                    sequenceNumber++,
+                    count == buffer.length ? buffer : Arrays.copyOf(buffer, count),
+                    serializationFormat,
+                    requestIdentifier
+            ));
+            count = 0;
+        }
+
+        /**
+         * Sends any bytes remaining in the buffer, followed by an {@link StreamChunk.ChunkType#END_OF_STREAM} chunk.
+         */
+        void finish() {
+            try {
+                if (count > 0) {
+                    sendChunk();
+                }
+                mobilityController.sendOutgoingMessage(connectionId, new StreamChunk(
+                        StreamChunk.ChunkType.END_OF_STREAM,
+                        sequenceNumber,
+                        new byte[0],
+                        serializationFormat,
+                        requestIdentifier
+                ));
+            }
+            catch (RuntimeException e) {
+                fail(e);
+            }
+            finally {
+                outgoingStreams.remove(outgoingStreamKey);
+            }
+        }
+
+        /**
+         * Terminates the stream with a {@link StreamChunk.ChunkType#FAILURE} chunk, after serialization failed or the
+         * client stopped consuming the stream.
+         *
+         * @param exception The exception which caused serialization to fail
+         */
+        void fail(RuntimeException exception) {
+            try {
+                if (logger.isLoggable(Level.FINER)) {
+                    logger.log(Level.FINER, "Failed to stream result, for connection id: " + connectionId + ", request identifier: " + requestIdentifier, exception);
+                }
+                // Discard bulk data registered by the part of the object not yet sent, which the client will not read...
+                BulkDataStore.takePendingOutgoing();
+                byte[] serializedException;
+                Map<Integer, String> frameStringDefinitions = new HashMap<Integer, String>();
+                try {
+                    serializedException = serializeException(connectionId, exception, serializationFormat, frameStringDefinitions);
+                }
+                catch (Exception e) {
+                    // The client will report the failure without the exception...
+                    serializedException = new byte[0];
+                    frameStringDefinitions.clear();
+                    BulkDataStore.takePendingOutgoing();
+                }
+                // Bulk data referred to by the exception must arrive before the chunk...
+                sendPendingBulkData(connectionId);
+                mobilityController.sendOutgoingMessage(connectionId, new StreamChunk(
+                        StreamChunk.ChunkType.FAILURE,
+                        sequenceNumber,
+                        serializedException,
+                        serializationFormat,
+                        requestIdentifier,
+                        frameStringDefinitions
+                ));
+                confirmOutgoingFrameStrings(connectionId, frameStringDefinitions);
+            }
+            catch (Exception e) {
+                // The client will time out waiting for the next chunk...
+                logger.log(Level.FINE, "Failed to send failure of streamed result to client: " + connectionId + ", request identifier: " + requestIdentifier, e);
+            }
+            finally {
+                outgoingStreams.remove(outgoingStreamKey);
+            }
+        }
+    }
+
+    /**
+     * Provides the serialized form of an object returned by a {@link Callable} object executed on a remote machine,
+     * which the remote machine streamed because it was large, to the client thread which is deserializing it.
+     * <p/>
+     * The client thread will block in {@code read()} until the next {@link StreamChunk.ChunkType#BYTES} chunk in the
+     * sequence arrives. When it takes a chunk, this object will grant the remote machine a credit to send another
+     * chunk.
+     */
+    class StreamedResultInputStream extends InputStream {
+        private final RequestIdentifier requestIdentifier;
+        private final ConnectionId connectionId;
+        private final IncomingChunkSequence incomingChunks;
+
+        private final List<long[]> bulkDataIdsTaken = new ArrayList<long[]>();
+
+        private byte[] currentBytes = new byte[0];
+        private int position = 0;
+        private boolean finished = false;
+        private StreamChunk failureChunk;
+
+        StreamedResultInputStream(RequestIdentifier requestIdentifier, ConnectionId connectionId, long timeoutMillis) {
+            this.requestIdentifier = requestIdentifier;
+            this.connectionId = connectionId;
+            this.incomingChunks = new IncomingChunkSequence(requestIdentifier, connectionId, timeoutMillis);
+        }
+
+        void receiveChunk(StreamChunk streamChunk) {
+            incomingChunks.receiveChunk(streamChunk);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return currentBytes[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int bytesToCopy = Math.min(length, currentBytes.length - position);
+            System.arraycopy(currentBytes, position, bytes, offset, bytesToCopy);
+            position += bytesToCopy;
+            return bytesToCopy;
+        }
+
+        /**
+         * Takes the next chunk if all bytes of the current chunk have been read, blocking until it arrives.
+         *
+         * @return True if bytes are available, false if the end of the stream was reached
+         * @throws IOException If the remote machine failed to stream the object
+         */
+        boolean fill() throws IOException {
+            while (position == currentBytes.length) {
+                if (finished) {
+                    return false;
+                }
+                StreamChunk streamChunk = incomingChunks.takeNextChunk();
+                switch (streamChunk.getChunkType()) {
+                    case BYTES:
+                        currentBytes = streamChunk.getSerializedElements();
+                        position = 0;
+                        // Bytes in subsequent chunks might also refer to the bulk data sent ahead of this one...
+                        bulkDataIdsTaken.add(streamChunk.getBulkDataIds());
+                        // Grant the remote machine a credit to send another chunk,
+                        // now that we have taken this one...
+                        mobilityController.sendOutgoingMessage(connectionId, new StreamCredit(1, false, requestIdentifier));
+                        break;
+                    case END_OF_STREAM:
+                        finish();
+                        return false;
+                    case FAILURE:
+                        finish();
+                        failureChunk = streamChunk;
+                        throw new IOException("The remote machine failed to stream the object returned, for request identifier: " + requestIdentifier + ", connection id: " + connectionId);
+                    default:
+                        finish();
+                        throw new IllegalStateException("Unexpected ChunkType returned: " + streamChunk.getChunkType());
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The {@link StreamChunk.ChunkType#FAILURE} chunk sent by the remote machine, if it failed to stream
+         * the object, otherwise null
+         */
+        StreamChunk getFailureChunk() {
+            return failureChunk;
+        }
+
+        /**
+         * Asks the remote machine to stop streaming the object, if it has not finished.
+         */
+        @Override
+        public void close() {
+            if (finished) {
+                return;
+            }
+            finish();
+            try {
+                mobilityController.sendOutgoingMessage(connectionId, new StreamCredit(0, true, requestIdentifier));
+            }
+            catch (Exception e) {
+                // The remote machine will stop streaming anyway when it times out waiting for credits...
+                logger.log(Level.FINE, "Failed to send request to cancel streamed result to remote machine: " + connectionId + ", request identifier: " + requestIdentifier, e);
+            }
+        }
+
+        void finish() {
+            finished = true;
+            streamedResults.remove(requestIdentifier);
+            List<StreamChunk> discardedChunks = incomingChunks.clear();
+            // Release any bulk data sent ahead of the chunks which was not claimed, because deserializing the object
+            // failed or was abandoned...
+            BulkDataStore bulkDataStore = mobilityController.getBulkDataStore();
+            for (long[] bulkDataIds : bulkDataIdsTaken) {
+                bulkDataStore.releaseIncoming(connectionId, bulkDataIds);
+            }
+            for (StreamChunk discardedChunk : discardedChunks) {
+                bulkDataStore.releaseIncoming(connectionId, discardedChunk.getBulkDataIds());
+            }
+        }
+    }
+
+    @Override
+    public ObjectSpace getObjectSpace() {
+        return objectSpace;
+    }
+
+    @Override
+    public RemoteHandleRegistry getRemoteHandleRegistry() {
+        return remoteHandleRegistry;
+    }
+
+    @Override
+    public void recordResourcesSent(ConnectionId connectionId, List<String> resourceNames) {
+        mobilityController.getBytecodePushTracker().recordResourcesSent(connectionId, sessionId, resourceNames);
+    }
+
+    @Override
+    public SessionClassLoader getSessionClassLoader() {
+        SessionClassLoader classLoader = sessionClassLoader;
+        return classLoader != null ? classLoader : bindSessionClassLoader(null, Collections.<ResourceResponse.ResourceData>emptyList());
+    }
+
+    /**
+     * Returns the class loader of this session, creating it if this session does not have one yet. If a codebase
+     * fingerprint is supplied, tries to share the class loader of other sessions with the same codebase, otherwise
+     * creates a class loader for this session alone.
+     *
+     * @param codebaseFingerprint The codebase fingerprint sent by the client, or null
+     * @param pushedResourceData Bytecode which the client pushed with its request
+     * @return The class loader of this session
+     */
+    synchronized SessionClassLoader bindSessionClassLoader(byte[] codebaseFingerprint, List<ResourceResponse.ResourceData> pushedResourceData) {
+        if (sessionClassLoader != null) {
+            return sessionClassLoader;
+        }
+        SessionClassLoader classLoader = null;
+        if (codebaseFingerprint != null) {
+            classLoader = mobilityController.getSharedClassLoaderRegistry().acquire(codebaseFingerprint, pushedResourceData);
+            if (classLoader != null) {
+                sharedCodebaseFingerprint = codebaseFingerprint;
+            }
+        }
+        if (classLoader == null) {
+            classLoader = new SessionClassLoader(mobilityController, sessionId, requestIdGenerator);
+        }
+        // Kryo instances are borrowed from the controller, so that they need not be configured for each session...
+        defaultSerializer = new KryoSerializer(classLoader, KryoSerializer.DEFAULT_MAX_POOL_SIZE, false, mobilityController.getSharedKryoPool());
+        sessionClassLoader = classLoader;
+        return classLoader;
+    }
+
+    /**
+     * If this session shares a class loader with other sessions, verifies that the classes which the shared class
+     * loader has loaded are consistent with those of the client which sent the current request, and if not, detaches
+     * this session from the shared class loader, such that it uses its own class loader instead. Objects which this
+     * session deserialized previously will retain their classes from the shared class loader.
+     *
+     * @param connectionId The connection from which the current request was received
+     * @param classLoader The class loader bound to this session, registered with the connection for the current thread
+     * @param pushedResourceData Bytecode which the client pushed with the current request
+     * @return The class loader to use for the current request, registered with the connection for the current thread
+     */
+    SessionClassLoader verifySharedClassLoader(ConnectionId connectionId, SessionClassLoader classLoader, List<ResourceResponse.ResourceData> pushedResourceData) {
+        int resourcesVerified;
+        synchronized (this) {
+            if (sharedCodebaseFingerprint == null || classLoader != sessionClassLoader) {
+                return classLoader;
+            }
+            resourcesVerified = sharedResourcesVerified;
+        }
+        SharedClassLoaderRegistry registry = mobilityController.getSharedClassLoaderRegistry();
+        try {
+            resourcesVerified = registry.isConsistentWithPushedResources(classLoader, pushedResourceData)
+                    ? registry.verifyReceivedResources(classLoader, sessionId, resourcesVerified)
+                    : -1;
+        }
+        catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to verify classes of shared class loader with client, session will use its own class loader: " + sessionId, e);
+            resourcesVerified = -1;
+        }
+        synchronized (this) {
+            if (resourcesVerified >= 0) {
+                sharedResourcesVerified = Math.max(sharedResourcesVerified, resourcesVerified);
+                return classLoader;
+            }
+            if (classLoader == sessionClassLoader) {
+                registry.release(sharedCodebaseFingerprint);
+                sharedCodebaseFingerprint = null;
+                sessionClassLoader = null;
+                // Return idle Kryo instances bound to the shared class loader to the controller...
+                defaultSerializer.close();
+                if (unsafeSerializer != null) {
+                    unsafeSerializer.close();
+                    unsafeSerializer = null;
+                }
+            }
+        }
+        classLoader.setThreadLocalConnectionId(null, null);
+        SessionClassLoader ownClassLoader = getSessionClassLoader();
+        ownClassLoader.setThreadLocalConnectionId(connectionId, sessionId);
+        return ownClassLoader;
+    }
+
+    /**
+     * Returns the namespace in which responses to requests for memoizable objects received in this session are shared
+     * with other sessions: the codebase fingerprint if this session shares a class loader with other sessions,
+     * otherwise the id of this session, so that responses are only shared between requests whose objects would be
+     * deserialized with the same classes.
+     *
+     * @return The namespace of this session in the memoized response cache
+     */
+    synchronized byte[] getMemoizationNamespace() {
+        if (sharedCodebaseFingerprint != null) {
+            return sharedCodebaseFingerprint;
+        }
+        return ByteBuffer.allocate(16).putLong(sessionId.getMostSignificantBits()).putLong(sessionId.getLeastSignificantBits()).array();
+    }
+
+    Serializer getDefaultSerializer() {
+        getSessionClassLoader();
+        return defaultSerializer;
+    }
+
+    Serializer getUnsafeSerializer() {
+        KryoSerializer serializer = unsafeSerializer;
+        if (serializer != null) {
+            return serializer;
+        }
+        if (!UnsafeFormatNegotiator.UNSAFE_FORMAT_SUPPORTED) {
+            throw new IllegalStateException("The " + SerializationFormat.KRYO_UNSAFE + " serialization format is not supported or is disabled on this machine");
+        }
+        getSessionClassLoader();
+        synchronized (this) {
+            if (unsafeSerializer == null) {
+                unsafeSerializer = new KryoSerializer(sessionClassLoader, KryoSerializer.DEFAULT_MAX_POOL_SIZE, true, mobilityController.getSharedKryoPool());
+            }
+            return unsafeSerializer;
+        }
+    }
+
+    @Override
+    public void setUnsafeSerializationEnabled(boolean unsafeSerializationEnabled) {
+        this.unsafeSerializationEnabled = unsafeSerializationEnabled;
+    }
+
+    /**
+     * Selects the format in which to serialize an executable object to send to the given connection: the unsafe
+     * format if it was requested for the object or for this session and the remote machine supports it, otherwise
+     * the default format.
+     */
+    SerializationFormat selectSerializationFormat(ConnectionId connectionId, Object executableObject) {
+        if ((unsafeSerializationEnabled || executableObject instanceof UnsafeSerializable)
+                && mobilityController.getUnsafeFormatNegotiator().isAccepted(connectionId)) {
+            return SerializationFormat.KRYO_UNSAFE;
+        }
+        return defaultSerializationFormat;
+    }
+
+    @Override
+    public MobilityController getMobilityController() {
+        return this.mobilityController;
+    }
+
+    @Override
+    public void release() {
+        if (MobilityContextInternal.hasCurrentSession()) {
+            // This is being called by a thread executing a request from a remote machine.
+            // Defer releasing the session until all threads processing remote requests in this session have finished.
+            // Set a flag to signal that last such thread to finish, should release the session...
+            this.sessionReleaseRequested = true;
+        }
+        else {
+            // This is being called by a thread from the local application.
+            // Check if remote threads are executing in the session...
+            if (numRemoteThreadsExecutingInThisSession.get() == 0) {
+                // No remote threads are executing in this session, release the session...
+                doRelease();
+            }
+            else {
+                // Some remote threads are executing in the session,
+                // set the flag to have those threads release the session...
+                this.sessionReleaseRequested = true;
+            }
+        }
+    }
+
+    void doRelease() {
+        remoteHandleRegistry.clear();
+        objectSpace.clear();
+        immutableExecutableCache.clear();
+        mobilityController.getBytecodePushTracker().releaseSession(sessionId);
+        synchronized (this) {
+            // Return idle Kryo instances to the controller, for use by other sessions...
+            if (defaultSerializer != null) {
+                defaultSerializer.close();
+            }
+            if (unsafeSerializer != null) {
+                unsafeSerializer.close();
+            }
+            if (sharedCodebaseFingerprint != null) {
+                mobilityController.getSharedClassLoaderRegistry().release(sharedCodebaseFingerprint);
+                sharedCodebaseFingerprint = null;
+            }
+        }
+        mobilityController.releaseSession(this.sessionId);
+    }
+
+    /**
+     * Serializes an executable object to send to the given connection, using compact class ids if enabled, and
+     * registering any bulk data it carries to be sent separately by {@link #sendExecutionRequest}. The names of any
+     * classes whose compact ids the object defines are added to the given collection, and should be confirmed via
+     * {@link #confirmClassIdDefinitions} if the remote machine returns a successful response to the request.
+     * Memoizable objects are serialized without compact class ids or separate bulk data, because the remote machine
+     * identifies identical requests by their serialized form, which should not depend on the connection. Immutable
+     * objects are serialized once in the same way, and their serialized form is reused for subsequent requests.
+     */
+    byte[] serializeExecutableObject(ConnectionId connectionId, Object executableObject, SerializationFormat serializationFormat, Collection<String> classIdDefinitions) {
+        if (executableObject instanceof Immutable) {
+            // Serialized without compact class ids, so that the serialized form can be reused on any connection...
+            byte[] serializedForm = immutableExecutableCache.getSerializedForm(executableObject, serializationFormat);
+            if (serializedForm == null) {
+                serializedForm = serializeCapturedObject(executableObject, serializationFormat);
+                immutableExecutableCache.putSerializedForm(executableObject, serializationFormat, serializedForm);
+            }
+            return serializedForm;
+        }
+        if (executableObject instanceof Memoizable) {
+            return serializeCapturedObject(executableObject, serializationFormat);
+        }
+        BulkDataStore.setCurrentConnection(mobilityController.getBulkDataStore(), connectionId);
+        ClassIdTable classIdTable = ClassIdTable.COMPACT_CLASS_IDS_ENABLED ? mobilityController.getClassIdTable(connectionId) : null;
+        ClassIdTable.setCurrentTable(classIdTable);
+        try {
+            return serializeCapturedObject(executableObject, serializationFormat);
+        }
+        finally {
+            ClassIdTable.setCurrentTable(null);
+            if (classIdTable != null) {
+                classIdDefinitions.addAll(classIdTable.takeOutgoingDefinitions());
+            }
+            BulkDataStore.setCurrentConnection(null, null);
+        }
+    }
+
+    /**
+     * Records that the remote machine has processed a request which defined the given compact class ids, such that
+     * subsequent requests can omit the class names. Definitions sent in requests which are not acknowledged by a
+     * successful response (in {@link ExecutionMode#FIRE_AND_FORGET} or {@link ExecutionMode#STREAM_RESPONSE} modes,
+     * or which fail or time out) are never confirmed, and so the class names are sent again in subsequent requests.
+     */
+    void confirmClassIdDefinitions(ConnectionId connectionId, Collection<String> classIdDefinitions) {
+        if (!classIdDefinitions.isEmpty()) {
+            mobilityController.getClassIdTable(connectionId).confirmOutgoingDefinitions(classIdDefinitions);
+        }
+    }
+
+    /**
+     * Serializes an executable object, first excluding references to enclosing objects which it never uses, and
+     * afterwards checking the size of its serialized form, if capture analysis is enabled.
+     */
+    byte[] serializeCapturedObject(Object executableObject, SerializationFormat serializationFormat) {
+        if (closureCaptureAnalyzer == null) {
+            return serialize(executableObject, serializationFormat);
+        }
+        Object objectToSerialize = closureCaptureAnalyzer.stripUnreadSyntheticFields(executableObject);
+        byte[] serializedObject = serialize(objectToSerialize, serializationFormat);
+        Serializer serializer = serializationFormat == SerializationFormat.KRYO_UNSAFE ? getUnsafeSerializer() : getDefaultSerializer();
+        closureCaptureAnalyzer.checkPayloadSize(objectToSerialize, serializedObject.length, serializer);
+        return serializedObject;
+    }
+
+    Object deserializeExecutableObject(ConnectionId connectionId, byte[] serializedObject, SerializationFormat serializationFormat) {
+        // The remote machine might have used compact class ids, and sent bulk data separately...
+        ClassIdTable.setCurrentTable(mobilityController.getClassIdTable(connectionId));
+        BulkDataStore.setCurrentConnection(mobilityController.getBulkDataStore(), connectionId);
+        try {
+            return deserialize(serializedObject, serializationFormat);
+        }
+        finally {
+            ClassIdTable.setCurrentTable(null);
+            BulkDataStore.setCurrentConnection(null, null);
+        }
+    }
+
+    /**
+     * Returns the object previously deserialized from an identical serialized form, or deserializes the object and
+     * caches it if it is indeed {@link Immutable}.
+     */
+    Object getImmutableExecutableObject(ConnectionId connectionId, byte[] serializedObject, SerializationFormat serializationFormat) {
+        Object executableObject = immutableExecutableCache.getDeserializedObject(serializedObject, serializationFormat);
+        if (executableObject == null) {
+            executableObject = deserializeExecutableObject(connectionId, serializedObject, serializationFormat);
+            // Do not rely on the flag in the request alone...
+            if (executableObject instanceof Immutable) {
+                immutableExecutableCache.putDeserializedObject(serializedObject, serializationFormat, executableObject);
+            }
+        }
+        return executableObject;
+    }
+
+    void sendExecutionRequest(ConnectionId connectionId, ExecutionRequest executionRequest) {
+        sendPendingBulkData(connectionId);
+        mobilityController.sendOutgoingMessage(connectionId, executionRequest);
+    }
+
+    /**
+     * Enqueues any bulk data registered while the current thread serialized an object on the given connection, such
+     * that the remote machine receives it before the message containing the object.
+     */
+    void sendPendingBulkData(ConnectionId connectionId) {
+        List<OutgoingBulkData> pendingBulkData = BulkDataStore.takePendingOutgoing();
+        if (pendingBulkData.isEmpty()) {
+            return;
+        }
+        Connection connection = mobilityController.getConnectionManager().getConnection(connectionId);
+        for (OutgoingBulkData bulkData : pendingBulkData) {
+            connection.enqueueOutgoingBulkData(bulkData);
+        }
+    }
+
+    /**
+     * Deserializes an object which the remote machine streamed because it was large, from the chunks which arrive.
+     * Note the caller should indicate the connection from which classes and bulk data can be obtained.
+     *
+     * @param streamedResult The stream of chunks
+     * @param serializationFormat The serialization format indicated in the execution response
+     * @return The object deserialized
+     * @throws IllegalStateException If the object could not be deserialized, with the exception which caused the
+     * remote machine to fail to stream it if applicable
+     */
+    Object deserializeStreamedResult(StreamedResultInputStream streamedResult, SerializationFormat serializationFormat) {
+        final Object objectReturned;
+        try {
+            objectReturned = deserialize(streamedResult, serializationFormat);
+        }
+        catch (RuntimeException e) {
+            streamedResult.close();
+            StreamChunk failureChunk = streamedResult.getFailureChunk();
+            if (failureChunk == null) {
+                throw e;
+            }
+            if (failureChunk.getSerializedElements().length == 0) {
+                throw new IllegalStateException("The remote machine failed to stream the object returned by the Callable object, and could not serialize the exception: " + streamedResult.connectionId, e);
+            }
+            Object throwable;
+            try {
+                throwable = deserializeException(streamedResult.connectionId, failureChunk.getSerializedElements(), failureChunk.getSerializationFormat());
+            }
+            finally {
+                mobilityController.getBulkDataStore().releaseIncoming(streamedResult.connectionId, failureChunk.getBulkDataIds());
+            }
+            // Sanity check to validate that indeed an exception was serialized as expected...
+            if (!(throwable instanceof Throwable)) {
+                throw new IllegalStateException("Unexpected object returned for stream chunk type FAILURE: " + throwable);
+            }
+            throw new IllegalStateException("An exception was thrown while streaming the object returned by the Callable object on the remote machine: " + streamedResult.connectionId, (Throwable) throwable);
+        }
+        // The object is complete, only the END_OF_STREAM chunk remains...
+        streamedResult.finish();
+        return objectReturned;
+    }
+
+    /**
+     * Serializes an exception thrown by an object executed on this machine, to return to a client, in the form
+     * selected by the {@link ExceptionTransport}. Falls back to a compact record of the exception if it cannot be
+     * serialized in full.
+     * <p/>
+     * If frame string interning is enabled, strings in stack traces are interned for the given connection. The
+     * strings for ids which have not been sent on the connection yet are added to the given map, which must be sent in
+     * the message containing the exception, and {@link #confirmOutgoingFrameStrings} must be called after the message
+     * is sent.
+     *
+     * @param connectionId The connection on which the exception will be sent, or null if it might be sent on any
+     * connection
+     * @param exception The exception thrown
+     * @param serializationFormat The serialization format to use
+     * @param frameStringDefinitions A map to which the ids the message must define are added, along with the strings
+     * for which they stand
+     * @return The serialized exception
+     */
+    byte[] serializeException(ConnectionId connectionId, Throwable exception, SerializationFormat serializationFormat, Map<Integer, String> frameStringDefinitions) {
+        FrameStringTable frameStringTable = FrameStringTable.FRAME_STRING_INTERNING_ENABLED && connectionId != null ? mobilityController.getFrameStringTable(connectionId) : null;
+        FrameStringTable.setCurrentTable(frameStringTable);
+        try {
+            Object transportForm = exceptionTransport.toTransportForm(exception);
+            try {
+                return serialize(transportForm, serializationFormat);
+            }
+            catch (RuntimeException e) {
+                if (transportForm != exception) {
+                    throw e;
+                }
+                logger.log(Level.FINE, "Failed to serialize exception, returning a record of it instead: " + exception, e);
+                // Discard strings defined by the partially serialized exception, which will not be sent...
+                FrameStringTable.setCurrentTable(frameStringTable);
+                return serialize(exceptionTransport.toRecord(exception), serializationFormat);
+            }
+        }
+        finally {
+            if (frameStringTable != null) {
+                frameStringDefinitions.putAll(frameStringTable.takeOutgoingDefinitions());
+            }
+            FrameStringTable.setCurrentTable(null);
+        }
+    }
+
+    void confirmOutgoingFrameStrings(ConnectionId connectionId, Map<Integer, String> frameStringDefinitions) {
+        if (!frameStringDefinitions.isEmpty()) {
+            // The remote machine defines the strings as soon as it decodes the message, which it will do before any
+            // message enqueued after it, so subsequent exceptions can refer to them by id...
+            mobilityController.getFrameStringTable(connectionId).confirmOutgoingDefinitions(frameStringDefinitions.values());
+        }
+    }
+
+    /**
+     * Deserializes an exception returned by a remote machine, reconstructing it if the remote machine sent a record
+     * of it. Note the caller should indicate the connection from which classes can be obtained.
+     *
+     * @param connectionId The connection from which the exception was received
+     * @param serializedException The serialized exception
+     * @param serializationFormat The serialization format indicated in the message
+     * @return The exception, or the object deserialized if it was neither an exception nor a record of one
+     */
+    Object deserializeException(ConnectionId connectionId, byte[] serializedException, SerializationFormat serializationFormat) {
+        // Strings in stack traces might refer to those sent in earlier exceptions on the connection...
+        FrameStringTable.setCurrentTable(mobilityController.getFrameStringTable(connectionId));
+        final Object transportForm;
+        try {
+            transportForm = deserialize(serializedException, serializationFormat);
+        }
+        finally {
+            FrameStringTable.setCurrentTable(null);
+        }
+        Throwable exception = ExceptionTransport.fromTransportForm(transportForm, getSessionClassLoader());
+        return exception != null ? exception : transportForm;
+    }
+
+    private Object deserialize(byte[] serializedObject, SerializationFormat serializationFormat) {
+        try {
+            switch (serializationFormat) {
+                case KRYO:
+                    // Note: we only support Kryo-based formats now,
+                    // however the protocol allows for others in future...
+                    return getDefaultSerializer().deserialize(serializedObject);
+                case KRYO_UNSAFE:
+                    return getUnsafeSerializer().deserialize(serializedObject);
+                default:
+                    throw new IllegalStateException("Unsupported serialization format: " + serializationFormat);
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Exception deserializing object from " + serializedObject.length + " bytes data in " + serializationFormat + " format", e);
         }
     }
 
@@ -519,7 +2348,9 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
         try {
             switch (serializationFormat) {
                 case KRYO:
-                    return defaultSerializer.serialize(object);
+                    return getDefaultSerializer().serialize(object);
+                case KRYO_UNSAFE:
+                    return getUnsafeSerializer().serialize(object);
                 default:
                     throw new IllegalStateException("Unsupported serialization format: " + serializationFormat);
             }
@@ -529,6 +2360,40 @@ public class MobilitySessionImpl implements MobilitySessionInternal {
         }
     }
 
+    private Object deserialize(InputStream inputStream, SerializationFormat serializationFormat) {
+        try {
+            switch (serializationFormat) {
+                case KRYO:
+                    return getDefaultSerializer().deserialize(inputStream);
+                case KRYO_UNSAFE:
+                    return getUnsafeSerializer().deserialize(inputStream);
+                default:
+                    throw new IllegalStateException("Unsupported serialization format: " + serializationFormat);
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Exception deserializing object from stream in " + serializationFormat + " format", e);
+        }
+    }
+
+    private void serialize(Object object, SerializationFormat serializationFormat, OutputStream outputStream) {
+        try {
+            switch (serializationFormat) {
+                case KRYO:
+                    getDefaultSerializer().serialize(object, outputStream);
+                    break;
+                case KRYO_UNSAFE:
+                    getUnsafeSerializer().serialize(object, outputStream);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported serialization format: " + serializationFormat);
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Exception serializing object to stream in " + serializationFormat + " format: " + object, e);
+        }
+    }
+
     @Override
     public String toString() {
         return "MobilitySession{" +
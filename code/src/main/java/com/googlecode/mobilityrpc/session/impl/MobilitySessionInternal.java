@@ -18,8 +18,12 @@ package com.googlecode.mobilityrpc.session.impl;
 import com.googlecode.mobilityrpc.network.ConnectionId;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionRequest;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionResponse;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamCredit;
 import com.googlecode.mobilityrpc.session.MobilitySession;
 
+import java.util.List;
+
 /**
  * Internal interface used by the library, extends the public {@link MobilitySession} interface with methods for
  * processing incoming requests, as required by the library.
@@ -49,7 +53,52 @@ public interface MobilitySessionInternal extends MobilitySession {
      *
      * @param executionResponse A response from a remote machine for an execution request sent by a thread on this
      * machine
+     * @return True if the response was passed to the waiting thread, false if it was ignored because the request
+     * timed out, in which case the caller should release any bulk data it refers to
+     */
+    public boolean receiveExecutionResponse(ExecutionResponse executionResponse);
+
+    /**
+     * Called when we receive an incoming {@link StreamChunk} object from a remote machine addressed to this
+     * session.
+     * <p/>
+     * This method will pass the chunk to the iterator from which the relevant thread is consuming the stream.
+     *
+     * @param streamChunk A chunk of the results of an execution request sent by a thread on this machine in
+     * {@link com.googlecode.mobilityrpc.protocol.pojo.ExecutionMode#STREAM_RESPONSE} mode
+     * @return True if the chunk was passed to the stream, false if it was ignored because the stream was closed or
+     * timed out, in which case the caller should release any bulk data it refers to
+     */
+    public boolean receiveStreamChunk(StreamChunk streamChunk);
+
+    /**
+     * Called when we receive an incoming {@link StreamCredit} object from a remote machine addressed to this
+     * session.
+     * <p/>
+     * This method will allow the thread on this machine which is streaming results to the remote machine to send
+     * additional chunks, or will ask it to stop.
+     *
+     * @param connectionId Indicates the connection from which we received the credits
+     * @param streamCredit Credits granted by the remote machine for a stream of results being sent by this machine
+     */
+    public void receiveStreamCredit(ConnectionId connectionId, StreamCredit streamCredit);
+
+    /**
+     * Returns the registry which holds objects on this machine on behalf of remote machines, which refer to them via
+     * {@link com.googlecode.mobilityrpc.session.RemoteHandle}s.
+     *
+     * @return The registry of objects referenced by remote handles in this session
+     */
+    public RemoteHandleRegistry getRemoteHandleRegistry();
+
+    /**
+     * Called when this session has sent classes or resources to a remote machine in response to a resource request
+     * from that machine, so that the session will not subsequently push the same bytecode to the remote machine along
+     * with execution requests.
+     *
+     * @param connectionId Indicates the connection to which the resources were sent
+     * @param resourceNames The names of the classes or resources which were sent
      */
-    public void receiveExecutionResponse(ExecutionResponse executionResponse);
+    public void recordResourcesSent(ConnectionId connectionId, List<String> resourceNames);
 
 }
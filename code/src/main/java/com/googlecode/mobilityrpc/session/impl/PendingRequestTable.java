@@ -0,0 +1,267 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracks requests sent to remote machines which are awaiting responses, keyed on the sequence numbers of their
+ * request ids (see {@link RequestIdGenerator}).
+ * <p/>
+ * A thread sending a request will {@link #register} a {@link PendingRequest} in this table, send the request to the
+ * remote machine, and then block in {@link PendingRequest#awaitResponse()}. When the response arrives, the thread
+ * processing it will call {@link #complete}, which will remove the pending request from this table and unblock the
+ * waiting thread.
+ * <p/>
+ * The table is an open-addressing hash table with primitive long keys, so registering and completing requests
+ * allocates only the {@link PendingRequest} object itself. Waiting threads are parked and unparked directly.
+ * Timeouts are not enforced by the waiting threads; instead all pending requests are scheduled with a single shared
+ * {@link HashedWheelTimer}, which expires overdue requests in bulk.
+ *
+ * @author Niall Gallagher
+ */
+public class PendingRequestTable<R> {
+
+    /**
+     * The timer shared by all tables, and by other objects in sessions which expire after timeouts, and by the
+     * {@link com.googlecode.mobilityrpc.serialization.impl.BulkDataStore} to expire bulk data which is never claimed.
+     * Ticks every 10 milliseconds, with a wheel which spans about 10 seconds.
+     */
+    public static final HashedWheelTimer timer = new HashedWheelTimer("MobilityRPC-PendingRequestTimer", 10, 1024);
+
+    static final int PENDING = 0, COMPLETED = 1, EXPIRED = 2, CANCELLED = 3;
+
+    /**
+     * A request awaiting a response.
+     */
+    public static class PendingRequest<R> implements HashedWheelTimer.Expirable {
+        private final PendingRequestTable<R> table;
+        private final long requestKey;
+        private final long timeoutMillis;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile R response;
+        private volatile Thread waiter;
+
+        PendingRequest(PendingRequestTable<R> table, long requestKey, long timeoutMillis) {
+            this.table = table;
+            this.requestKey = requestKey;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Blocks until the response arrives, or the request times out.
+         *
+         * @return The response
+         * @throws IllegalStateException If the request timed out or was cancelled, or if the thread is interrupted
+         */
+        public R awaitResponse() {
+            waiter = Thread.currentThread();
+            try {
+                int currentState;
+                while ((currentState = state.get()) == PENDING) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        cancel();
+                        throw new IllegalStateException("Interrupted while waiting to receive response for request: " + requestKey);
+                    }
+                }
+                switch (currentState) {
+                    case COMPLETED:
+                        return response;
+                    case EXPIRED:
+                        throw new IllegalStateException("Timed out waiting to receive response within timeout of " + timeoutMillis + " milliseconds, for request: " + requestKey);
+                    default:
+                        throw new IllegalStateException("Request was cancelled: " + requestKey);
+                }
+            }
+            finally {
+                waiter = null;
+            }
+        }
+
+        /**
+         * Cancels the request, if it has not completed already, so that a response arriving later will be ignored.
+         */
+        public void cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                table.remove(requestKey, this);
+                unparkWaiter();
+            }
+        }
+
+        boolean complete(R response) {
+            this.response = response;
+            if (state.compareAndSet(PENDING, COMPLETED)) {
+                unparkWaiter();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return state.get() != PENDING;
+        }
+
+        @Override
+        public void expire() {
+            if (state.compareAndSet(PENDING, EXPIRED)) {
+                table.remove(requestKey, this);
+                unparkWaiter();
+            }
+        }
+
+        void unparkWaiter() {
+            Thread thread = waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    // Open-addressing table with linear probing, guarded by synchronizing on this object.
+    // A slot is empty if its value is null...
+    private long[] keys = new long[16];
+    private Object[] values = new Object[16];
+    private int size = 0;
+
+    /**
+     * Registers a pending request with the given key, and schedules it to expire after the given timeout.
+     *
+     * @param requestKey The key of the request, typically the sequence number of its request id
+     * @param timeoutMillis The timeout in milliseconds
+     * @return The pending request, on which the calling thread can wait for the response
+     */
+    public PendingRequest<R> register(long requestKey, long timeoutMillis) {
+        PendingRequest<R> pendingRequest = new PendingRequest<R>(this, requestKey, timeoutMillis);
+        synchronized (this) {
+            if ((size + 1) * 2 > values.length) {
+                resize(values.length * 2);
+            }
+            int slot = findSlot(keys, values, requestKey);
+            if (values[slot] == null) {
+                size++;
+            }
+            keys[slot] = requestKey;
+            values[slot] = pendingRequest;
+        }
+        timer.schedule(pendingRequest, timeoutMillis);
+        return pendingRequest;
+    }
+
+    /**
+     * Completes the pending request with the given key, unblocking the thread waiting for it.
+     *
+     * @param requestKey The key of the request
+     * @param response The response
+     * @return True if a pending request was found and completed, false if no such request was pending, for example
+     * because it timed out
+     */
+    public boolean complete(long requestKey, R response) {
+        final PendingRequest<R> pendingRequest;
+        synchronized (this) {
+            int slot = findSlot(keys, values, requestKey);
+            @SuppressWarnings("unchecked")
+            PendingRequest<R> found = (PendingRequest<R>) values[slot];
+            if (found == null) {
+                return false;
+            }
+            removeSlot(slot);
+            pendingRequest = found;
+        }
+        return pendingRequest.complete(response);
+    }
+
+    /**
+     * @param requestKey The key of the request
+     * @return True if a request with the given key is awaiting a response
+     */
+    public synchronized boolean contains(long requestKey) {
+        return values[findSlot(keys, values, requestKey)] != null;
+    }
+
+    /**
+     * @return The number of pending requests
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    synchronized void remove(long requestKey, PendingRequest<R> pendingRequest) {
+        int slot = findSlot(keys, values, requestKey);
+        if (values[slot] == pendingRequest) {
+            removeSlot(slot);
+        }
+    }
+
+    // Must be called while synchronized...
+    void removeSlot(int slot) {
+        values[slot] = null;
+        size--;
+        // Shift subsequent entries in the same probe sequence backwards, so that lookups do not need tombstones...
+        final int mask = values.length - 1;
+        int emptySlot = slot;
+        for (int current = (slot + 1) & mask; values[current] != null; current = (current + 1) & mask) {
+            int home = hash(keys[current], mask);
+            // Move the entry into the empty slot, unless its home slot lies cyclically in (emptySlot, current]...
+            boolean homeBetween = emptySlot <= current
+                    ? (home > emptySlot && home <= current)
+                    : (home > emptySlot || home <= current);
+            if (!homeBetween) {
+                keys[emptySlot] = keys[current];
+                values[emptySlot] = values[current];
+                values[current] = null;
+                emptySlot = current;
+            }
+        }
+    }
+
+    // Must be called while synchronized...
+    void resize(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        long[] newKeys = new long[newCapacity];
+        Object[] newValues = new Object[newCapacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = findSlot(newKeys, newValues, oldKeys[i]);
+                newKeys[slot] = oldKeys[i];
+                newValues[slot] = oldValues[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    /**
+     * Returns the slot containing the given key, or the empty slot in which it should be inserted.
+     */
+    static int findSlot(long[] keys, Object[] values, long key) {
+        final int mask = values.length - 1;
+        int slot = hash(key, mask);
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static int hash(long key, int mask) {
+        // Fibonacci hashing, spreads sequential keys across the table...
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+}
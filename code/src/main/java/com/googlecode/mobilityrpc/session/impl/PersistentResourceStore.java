@@ -0,0 +1,446 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.common.util.IOUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk store of class bytecode and other resources, keyed by content hash, which allows the
+ * {@link ContentAddressedResourceCache} to survive restarts of the application, so that a restarted server does not
+ * need to re-learn the bytecode of its clients over the network.
+ * <p/>
+ * Resources are appended to a data file, as records of the form
+ * {@code [int length][32-byte SHA-256 hash][length bytes of data]}. Records are read via a read-only memory mapping of
+ * the file. An index from hash to record position is held in memory, and is rebuilt by scanning the file when the
+ * store is opened. A partially written record at the end of the file (e.g. due to a crash) is truncated when the
+ * store is opened, and resources read from the store are verified against their hash before being returned.
+ * <p/>
+ * When the data file grows beyond its size bound, the store is compacted: the most recently used resources are copied
+ * to a new data file, up to half of the bound, which then replaces the old data file.
+ * <p/>
+ * The configured file itself holds only the generation number of the current data file, which is stored alongside
+ * it as {@code <file>.<generation>}. Compaction writes and syncs the next generation of the data file before updating
+ * the generation number, so a crash during compaction leaves either the old or the new data file in use, never
+ * neither. Leftover data files of other generations are deleted when the store is opened.
+ * <p/>
+ * The store is disabled by default. It can be enabled by setting system property
+ * {@code com.googlecode.mobilityrpc.persistentCache.file} to the path of the file to use, and its size bound can be
+ * configured via {@code com.googlecode.mobilityrpc.persistentCache.maxBytes}, default 256MB (at most 2GB). The file
+ * is locked while in use, including during compaction, and if another process holds the lock, the store is disabled
+ * for this process.
+ *
+ * @author Niall Gallagher
+ */
+public class PersistentResourceStore {
+
+    static final String FILE_PROPERTY = "com.googlecode.mobilityrpc.persistentCache.file";
+    static final long DEFAULT_MAX_BYTES = Long.getLong("com.googlecode.mobilityrpc.persistentCache.maxBytes", 256L * 1024 * 1024);
+
+    private static final int HASH_LENGTH = 32;
+    private static final int RECORD_HEADER_LENGTH = 4 + HASH_LENGTH;
+    private static final int GENERATION_LENGTH = 8;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final File file;
+    private final long maxBytes;
+
+    private RandomAccessFile generationRandomAccessFile;
+    private FileChannel generationChannel;
+    private FileLock fileLock;
+    private long generation;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mappedBuffer;
+    private long fileLength;
+
+    // Access-ordered, so that iteration visits least recently used records first...
+    private final LinkedHashMap<ContentAddressedResourceCache.ContentHash, Record> index = new LinkedHashMap<ContentAddressedResourceCache.ContentHash, Record>(16, 0.75f, true);
+
+    /**
+     * Opens the store in the given file, creating the file if it does not exist.
+     *
+     * @param file The file which records the current generation of the data file, and which is locked while the
+     * store is open
+     * @param maxBytes The size bound of the file
+     * @throws IllegalStateException If the file could not be opened, or is locked by another process
+     */
+    public PersistentResourceStore(File file, long maxBytes) {
+        if (maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Size bound must not exceed " + Integer.MAX_VALUE + " bytes: " + maxBytes);
+        }
+        this.file = file;
+        this.maxBytes = maxBytes;
+        open();
+    }
+
+    /**
+     * Opens the store in the file indicated by system property {@code com.googlecode.mobilityrpc.persistentCache.file},
+     * if set.
+     *
+     * @return The store, or null if the property is not set or if the store could not be opened
+     */
+    public static PersistentResourceStore openConfiguredStore() {
+        String path = System.getProperty(FILE_PROPERTY);
+        if (path == null || path.length() == 0) {
+            return null;
+        }
+        try {
+            return new PersistentResourceStore(new File(path), Math.min(DEFAULT_MAX_BYTES, Integer.MAX_VALUE));
+        }
+        catch (Exception e) {
+            Logger.getLogger(PersistentResourceStore.class.getName()).log(Level.WARNING, "Failed to open persistent resource store, continuing without it: " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the resource with the given content hash, if stored.
+     *
+     * @param contentHash The content hash of the resource
+     * @return The resource, or null if not stored, or if the stored copy is corrupt
+     */
+    public synchronized byte[] get(byte[] contentHash) {
+        if (channel == null) {
+            return null;
+        }
+        ContentAddressedResourceCache.ContentHash key = new ContentAddressedResourceCache.ContentHash(contentHash);
+        Record record = index.get(key);
+        if (record == null) {
+            return null;
+        }
+        try {
+            byte[] resourceData = new byte[record.length];
+            ByteBuffer buffer = getMappedBuffer(record.dataPosition + record.length).duplicate();
+            buffer.position((int) record.dataPosition);
+            buffer.get(resourceData);
+            if (!Arrays.equals(contentHash, ContentAddressedResourceCache.computeContentHash(resourceData))) {
+                logger.log(Level.WARNING, "Discarding corrupt record at position " + record.dataPosition + " in persistent resource store: " + file);
+                index.remove(key);
+                return null;
+            }
+            return resourceData;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to read " + record.length + " bytes at position " + record.dataPosition + " from persistent resource store: " + file, e);
+        }
+    }
+
+    /**
+     * Appends the given resource to the store, unless a resource with the same content hash is already stored.
+     * Compacts the store if this causes it to exceed its size bound.
+     *
+     * @param contentHash The content hash of the resource
+     * @param resourceData The resource
+     */
+    public synchronized void put(byte[] contentHash, byte[] resourceData) {
+        if (channel == null || contentHash.length != HASH_LENGTH || RECORD_HEADER_LENGTH + resourceData.length > maxBytes / 2) {
+            return;
+        }
+        ContentAddressedResourceCache.ContentHash key = new ContentAddressedResourceCache.ContentHash(contentHash);
+        if (index.containsKey(key)) {
+            return;
+        }
+        try {
+            if (fileLength + RECORD_HEADER_LENGTH + resourceData.length > maxBytes) {
+                compact();
+            }
+            long recordPosition = fileLength;
+            writeRecord(channel, recordPosition, contentHash, resourceData);
+            fileLength = recordPosition + RECORD_HEADER_LENGTH + resourceData.length;
+            index.put(key, new Record(recordPosition + RECORD_HEADER_LENGTH, resourceData.length));
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to append " + resourceData.length + " bytes to persistent resource store: " + file, e);
+        }
+    }
+
+    /**
+     * @return True if the store contains no resources
+     */
+    public synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return The number of resources in the store
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The current length of the file backing the store
+     */
+    public synchronized long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return The data file currently backing the store
+     */
+    synchronized File getDataFile() {
+        return getDataFile(generation);
+    }
+
+    File getDataFile(long generation) {
+        return new File(file.getPath() + "." + generation);
+    }
+
+    /**
+     * Closes the files backing the store, and releases the lock on them. The resources stored remain in the files.
+     */
+    public synchronized void close() {
+        index.clear();
+        unmap(mappedBuffer);
+        mappedBuffer = null;
+        IOUtil.closeQuietly(channel);
+        IOUtil.closeQuietly(randomAccessFile);
+        channel = null;
+        randomAccessFile = null;
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+        }
+        catch (Exception ignore) {
+            // Ignore
+        }
+        fileLock = null;
+        IOUtil.closeQuietly(generationChannel);
+        IOUtil.closeQuietly(generationRandomAccessFile);
+        generationChannel = null;
+        generationRandomAccessFile = null;
+    }
+
+    void open() {
+        try {
+            generationRandomAccessFile = new RandomAccessFile(file, "rw");
+            generationChannel = generationRandomAccessFile.getChannel();
+            fileLock = generationChannel.tryLock();
+            if (fileLock == null) {
+                throw new IllegalStateException("File is locked by another process");
+            }
+            generation = readGeneration();
+            // Delete data files left behind by a compaction which was interrupted before or after the swap...
+            deleteDataFile(generation - 1);
+            deleteDataFile(generation + 1);
+            randomAccessFile = new RandomAccessFile(getDataFile(generation), "rw");
+            channel = randomAccessFile.getChannel();
+            mappedBuffer = null;
+            fileLength = rebuildIndex();
+            if (fileLength < channel.size()) {
+                // Discard a partially written record at the end of the file...
+                unmap(mappedBuffer);
+                mappedBuffer = null;
+                channel.truncate(fileLength);
+            }
+            logger.log(Level.FINE, "Opened persistent resource store containing " + index.size() + " resources, " + fileLength + " bytes: " + getDataFile(generation));
+        }
+        catch (Exception e) {
+            close();
+            throw new IllegalStateException("Failed to open persistent resource store: " + file, e);
+        }
+    }
+
+    /**
+     * Scans the records in the file, adding them to the index.
+     *
+     * @return The length of the file up to the end of the last complete record
+     */
+    long rebuildIndex() throws Exception {
+        index.clear();
+        long size = Math.min(channel.size(), Integer.MAX_VALUE);
+        ByteBuffer buffer = getMappedBuffer(size);
+        long position = 0;
+        while (position + RECORD_HEADER_LENGTH <= size) {
+            int length = buffer.getInt((int) position);
+            if (length < 0 || position + RECORD_HEADER_LENGTH + length > size) {
+                break;
+            }
+            byte[] hash = new byte[HASH_LENGTH];
+            ByteBuffer hashBuffer = buffer.duplicate();
+            hashBuffer.position((int) position + 4);
+            hashBuffer.get(hash);
+            index.put(new ContentAddressedResourceCache.ContentHash(hash), new Record(position + RECORD_HEADER_LENGTH, length));
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        return position;
+    }
+
+    /**
+     * Copies the most recently used resources, up to half of the size bound, to the next generation of the data file,
+     * which then replaces the current data file. The lock on the store is held throughout. If compaction fails before
+     * the generation number has been updated, the store continues to use the current data file.
+     */
+    void compact() throws Exception {
+        long compactedGeneration = generation + 1;
+        File compactedFile = getDataFile(compactedGeneration);
+        RandomAccessFile compactedRandomAccessFile = new RandomAccessFile(compactedFile, "rw");
+        int numResourcesBefore = index.size();
+        try {
+            FileChannel compactedChannel = compactedRandomAccessFile.getChannel();
+            compactedChannel.truncate(0);
+            // Determine which resources to keep, most recently used first...
+            ContentAddressedResourceCache.ContentHash[] keys = index.keySet().toArray(new ContentAddressedResourceCache.ContentHash[index.size()]);
+            long bytesKept = 0;
+            int firstKept = keys.length;
+            while (firstKept > 0) {
+                Record record = index.get(keys[firstKept - 1]);
+                if (bytesKept + RECORD_HEADER_LENGTH + record.length > maxBytes / 2) {
+                    break;
+                }
+                bytesKept += RECORD_HEADER_LENGTH + record.length;
+                firstKept--;
+            }
+            // Write the resources in least-to-most recently used order, such that the order is preserved on reopening...
+            ByteBuffer buffer = getMappedBuffer(fileLength);
+            long position = 0;
+            for (int i = firstKept; i < keys.length; i++) {
+                Record record = index.get(keys[i]);
+                byte[] resourceData = new byte[record.length];
+                ByteBuffer recordBuffer = buffer.duplicate();
+                recordBuffer.position((int) record.dataPosition);
+                recordBuffer.get(resourceData);
+                writeRecord(compactedChannel, position, keys[i].hash, resourceData);
+                position += RECORD_HEADER_LENGTH + record.length;
+            }
+            compactedChannel.force(false);
+            // Switch to the compacted file. This is the point at which the compacted file takes effect on reopening...
+            writeGeneration(compactedGeneration);
+        }
+        catch (Exception e) {
+            IOUtil.closeQuietly(compactedRandomAccessFile);
+            deleteDataFile(compactedGeneration);
+            throw e;
+        }
+        // Replace the current data file with the compacted file...
+        File previousFile = getDataFile(generation);
+        RandomAccessFile previousRandomAccessFile = randomAccessFile;
+        unmap(mappedBuffer);
+        mappedBuffer = null;
+        IOUtil.closeQuietly(channel);
+        IOUtil.closeQuietly(previousRandomAccessFile);
+        generation = compactedGeneration;
+        randomAccessFile = compactedRandomAccessFile;
+        channel = compactedRandomAccessFile.getChannel();
+        fileLength = rebuildIndex();
+        if (!previousFile.delete()) {
+            logger.log(Level.FINE, "Failed to delete previous data file of persistent resource store, will retry on reopening: " + previousFile);
+        }
+        logger.log(Level.FINE, "Compacted persistent resource store from " + numResourcesBefore + " to " + index.size() + " resources: " + file);
+    }
+
+    long readGeneration() throws Exception {
+        if (generationChannel.size() < GENERATION_LENGTH) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(GENERATION_LENGTH);
+        while (buffer.hasRemaining()) {
+            if (generationChannel.read(buffer, buffer.position()) < 0) {
+                throw new IllegalStateException("Unexpected end of file reading generation number: " + file);
+            }
+        }
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    void writeGeneration(long generation) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(GENERATION_LENGTH);
+        buffer.putLong(generation);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            generationChannel.write(buffer, buffer.position());
+        }
+        generationChannel.force(false);
+    }
+
+    void deleteDataFile(long generation) {
+        File dataFile = getDataFile(generation);
+        if (dataFile.exists() && !dataFile.delete()) {
+            logger.log(Level.FINE, "Failed to delete stale data file of persistent resource store: " + dataFile);
+        }
+    }
+
+    ByteBuffer getMappedBuffer(long requiredLength) throws Exception {
+        if (mappedBuffer == null || mappedBuffer.capacity() < requiredLength) {
+            // The file has grown since it was last mapped, map it again...
+            unmap(mappedBuffer);
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+        }
+        return mappedBuffer;
+    }
+
+    /**
+     * Releases the given mapping eagerly, rather than when it is garbage collected, such that the file can be deleted
+     * on platforms which do not allow mapped files to be deleted (Windows). This is done via the non-public cleaner of
+     * the buffer, and is skipped on JVMs which do not allow access to it. The buffer must not be accessed afterwards.
+     *
+     * @param buffer The buffer to unmap, can be null
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        }
+        catch (Exception ignore) {
+            // Not supported on this JVM, the mapping will be released when the buffer is garbage collected
+        }
+    }
+
+    static void writeRecord(FileChannel channel, long position, byte[] contentHash, byte[] resourceData) throws Exception {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + resourceData.length);
+        record.putInt(resourceData.length);
+        record.put(contentHash);
+        record.put(resourceData);
+        record.flip();
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+    }
+
+    static class Record {
+        final long dataPosition;
+        final int length;
+
+        Record(long dataPosition, int length) {
+            this.dataPosition = dataPosition;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds objects on behalf of remote machines, which refer to them via
+ * {@link com.googlecode.mobilityrpc.session.RemoteHandle}s.
+ * <p/>
+ * Each object is held for the duration of a lease, which is renewed whenever the object is accessed. Leases are
+ * scheduled with the {@link HashedWheelTimer} shared by sessions, which reclaims objects when their leases expire,
+ * whether or not the session is otherwise in use.
+ *
+ * @author Niall Gallagher
+ */
+public class RemoteHandleRegistry {
+
+    private final ConcurrentMap<UUID, Lease> leases = new ConcurrentHashMap<UUID, Lease>();
+
+    /**
+     * Registers the given object under the given handle id, to be held for the given lease duration.
+     *
+     * @param handleId The handle id, generated by the remote machine
+     * @param object The object to hold
+     * @param leaseMillis The duration in millis for which the object should be held without being accessed
+     */
+    public void register(UUID handleId, Object object, long leaseMillis) {
+        Lease lease = new Lease(handleId, object, leaseMillis);
+        leases.put(handleId, lease);
+        PendingRequestTable.timer.schedule(lease, leaseMillis);
+    }
+
+    /**
+     * Returns the object registered under the given handle id, and renews its lease.
+     *
+     * @param handleId The handle id
+     * @return The object registered under the given handle id
+     * @throws IllegalStateException If no object is registered under the handle id, or its lease has expired
+     */
+    public Object get(UUID handleId) {
+        Lease lease = leases.get(handleId);
+        final long now = System.currentTimeMillis();
+        if (lease == null || lease.isExpired(now)) {
+            leases.remove(handleId);
+            throw new IllegalStateException("No object is registered for remote handle id, it was released or its lease expired: " + handleId);
+        }
+        lease.renew(now);
+        return lease.object;
+    }
+
+    /**
+     * Releases the object registered under the given handle id, if any.
+     *
+     * @param handleId The handle id
+     * @return True if an object was registered under the handle id, false if not
+     */
+    public boolean release(UUID handleId) {
+        return leases.remove(handleId) != null;
+    }
+
+    /**
+     * Releases all objects in the registry.
+     */
+    public void clear() {
+        leases.clear();
+    }
+
+    /**
+     * @return The number of objects in the registry, including any whose leases have expired but have not been
+     * reclaimed yet
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    /**
+     * Holds an object until it is released, or its lease expires. The timer calls {@link #expire()} when the lease
+     * was due to expire, at which point the lease is rescheduled if it was renewed in the meantime.
+     */
+    class Lease implements HashedWheelTimer.Expirable {
+        final UUID handleId;
+        final Object object;
+        final long leaseMillis;
+        volatile long expiryTimeMillis;
+
+        Lease(UUID handleId, Object object, long leaseMillis) {
+            this.handleId = handleId;
+            this.object = object;
+            this.leaseMillis = leaseMillis;
+            this.expiryTimeMillis = HashedWheelTimer.computeDeadlineMillis(System.currentTimeMillis(), leaseMillis);
+        }
+
+        boolean isExpired(long now) {
+            return now > expiryTimeMillis;
+        }
+
+        void renew(long now) {
+            expiryTimeMillis = HashedWheelTimer.computeDeadlineMillis(now, leaseMillis);
+        }
+
+        @Override
+        public boolean isDone() {
+            // Released, or replaced by another registration under the same handle id...
+            return leases.get(handleId) != this;
+        }
+
+        @Override
+        public void expire() {
+            final long now = System.currentTimeMillis();
+            if (isExpired(now)) {
+                leases.remove(handleId, this);
+            }
+            else {
+                // The object was accessed since the lease was scheduled...
+                PendingRequestTable.timer.schedule(this, expiryTimeMillis - now);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates request ids for requests sent by a session, from a sequence.
+ * <p/>
+ * This is much cheaper than generating random UUIDs, which draw from a contended {@link java.security.SecureRandom},
+ * and allows request ids to be transferred compactly. Request ids only need to be unique within the session on the
+ * machine which sends the requests, because they are only used to route responses back to the threads waiting for
+ * them on that machine.
+ *
+ * @author Niall Gallagher
+ */
+public class RequestIdGenerator {
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @return The next request id in the sequence
+     */
+    public UUID nextRequestId() {
+        return RequestIdentifier.sequentialRequestId(sequence.incrementAndGet());
+    }
+}
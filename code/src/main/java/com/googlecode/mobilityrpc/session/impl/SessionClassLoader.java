@@ -15,6 +15,7 @@
  */
 package com.googlecode.mobilityrpc.session.impl;
 
+import com.googlecode.mobilityrpc.common.util.ClassFileParser;
 import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
 import com.googlecode.mobilityrpc.network.ConnectionId;
 import com.googlecode.mobilityrpc.protocol.pojo.ResourceRequest;
@@ -24,6 +25,7 @@ import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
@@ -37,6 +39,20 @@ import java.util.logging.Logger;
  */
 public class SessionClassLoader extends ClassLoader {
 
+    static {
+        // Register as parallel capable, so that the JVM locks per class name instead of on the class loader as a whole
+        // when loading classes, allowing threads to load different classes from remote machines concurrently.
+        // This is invoked reflectively because the method is not available in Java 6...
+        try {
+            Method registerAsParallelCapable = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            registerAsParallelCapable.setAccessible(true);
+            registerAsParallelCapable.invoke(null);
+        }
+        catch (Exception e) {
+            Logger.getLogger(SessionClassLoader.class.getName()).log(Level.FINE, "Could not register class loader as parallel capable, classes will be loaded serially", e);
+        }
+    }
+
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     /**
@@ -44,18 +60,62 @@ public class SessionClassLoader extends ClassLoader {
      */
     private static final long RESOURCE_REQUEST_TIMEOUT_MILLIS = 10000;
 
+    /**
+     * The maximum number of levels of dependencies of a class which the class loader will prefetch from the remote
+     * machine, after it receives the bytecode of a class it needed. Each level costs one round trip.
+     * Configurable via system property {@code com.googlecode.mobilityrpc.classPrefetch.maxDepth}, 0 disables prefetch.
+     */
+    static final int MAX_PREFETCH_DEPTH = Integer.getInteger("com.googlecode.mobilityrpc.classPrefetch.maxDepth", 8);
+
+    /**
+     * The maximum number of classes which the class loader will request from the remote machine in a single
+     * request when prefetching dependencies.
+     */
+    static final int MAX_PREFETCH_RESOURCES_PER_REQUEST = Integer.getInteger("com.googlecode.mobilityrpc.classPrefetch.maxResourcesPerRequest", 256);
+
+    /**
+     * The maximum number of names of resources which the remote machine reported that it could not locate, which the
+     * class loader will remember in order to avoid requesting them again. Beyond this, the names are forgotten.
+     */
+    static final int MAX_MISSING_RESOURCES = 10000;
+
     private final MobilityControllerInternal mobilityController;
     private final UUID sessionId;
+    private final RequestIdGenerator requestIdGenerator;
     private final ThreadLocal<ConnectionId> threadLocalConnectionIds = new ThreadLocal<ConnectionId>();
+    private final ThreadLocal<UUID> threadLocalSessionIds = new ThreadLocal<UUID>();
+
+    private final PendingRequestTable<ResourceResponse> pendingResourceResponses = new PendingRequestTable<ResourceResponse>();
 
-    private final ConcurrentMap<RequestIdentifier, FutureResourceResponse> futureResourceResponses = new ConcurrentHashMap<RequestIdentifier, FutureResourceResponse>();
+    private final SessionResourceCache resourceDataCache;
 
-    private final Map<String, byte[]> resourceDataCache = new ConcurrentHashMap<String, byte[]>();
+    // Resources currently being fetched from the remote machine, which other threads needing them can wait for...
+    private final ConcurrentMap<String, InFlightFetch> inFlightFetches = new ConcurrentHashMap<String, InFlightFetch>();
+    // Resources which the remote machine reported that it could not locate...
+    private final Set<String> missingResources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // For class loaders shared by several sessions, the resources received in order of arrival, null otherwise...
+    private final List<ReceivedResource> receivedResources;
+    private final ConcurrentMap<String, ReceivedResource> receivedResourcesByName;
 
-    public SessionClassLoader(MobilityControllerInternal mobilityController, UUID sessionId) {
+    public SessionClassLoader(MobilityControllerInternal mobilityController, UUID sessionId, RequestIdGenerator requestIdGenerator) {
+        this(mobilityController, sessionId, requestIdGenerator, false);
+    }
+
+    /**
+     * @param mobilityController The mobility controller
+     * @param sessionId The id of the session with which the class loader is created
+     * @param requestIdGenerator Generates ids of requests for resources sent by the class loader
+     * @param shared True if the class loader will be shared by several sessions (see {@link SharedClassLoaderRegistry}),
+     * in which case it records the session via which it received each resource
+     */
+    public SessionClassLoader(MobilityControllerInternal mobilityController, UUID sessionId, RequestIdGenerator requestIdGenerator, boolean shared) {
         super(SessionClassLoader.class.getClassLoader());
         this.mobilityController = mobilityController;
         this.sessionId = sessionId;
+        this.requestIdGenerator = requestIdGenerator;
+        this.resourceDataCache = new SessionResourceCache(mobilityController.getContentAddressedResourceCache());
+        this.receivedResources = shared ? new ArrayList<ReceivedResource>() : null;
+        this.receivedResourcesByName = shared ? new ConcurrentHashMap<String, ReceivedResource>() : null;
     }
 
     /**
@@ -69,7 +129,52 @@ public class SessionClassLoader extends ClassLoader {
      * @param connectionId Indicates the current connection in use by a thread processing an execution request
      */
     public void setThreadLocalConnectionId(ConnectionId connectionId) {
+        setThreadLocalConnectionId(connectionId, null);
+    }
+
+    /**
+     * A variant of {@link #setThreadLocalConnectionId(ConnectionId)} for class loaders shared by several sessions,
+     * which additionally indicates the session on whose behalf the thread is executing, such that requests for
+     * classes are sent, and responses are routed back, via that session.
+     *
+     * @param connectionId Indicates the current connection in use by a thread processing an execution request
+     * @param sessionId Indicates the session in which the thread is processing the request, or null to send requests
+     * via the session id with which this class loader was created
+     */
+    public void setThreadLocalConnectionId(ConnectionId connectionId, UUID sessionId) {
         threadLocalConnectionIds.set(connectionId);
+        threadLocalSessionIds.set(sessionId);
+    }
+
+    /**
+     * Returns bytecode or resource data which this class loader has already received from remote machines, without
+     * requesting it from any remote machine.
+     *
+     * @param resourceName The name of the resource, e.g. {@code com/foo/Bar.class}
+     * @return The resource data received, or null if this class loader has not received the resource
+     */
+    public byte[] getReceivedResourceData(String resourceName) {
+        return resourceDataCache.get(resourceName);
+    }
+
+    /**
+     * Called by threads processing an execution request from a remote machine, to cache bytecode which the remote
+     * machine sent along with the request in anticipation of this class loader needing it, such that this class loader
+     * will not need to request those classes individually.
+     * <p/>
+     * Resources already cached are not replaced, so a class which has already been defined from cached bytecode
+     * remains consistent with that bytecode.
+     *
+     * @param pushedResources Bytecode of classes sent by the remote machine
+     */
+    public void addPushedResources(List<ResourceResponse.ResourceData> pushedResources) {
+        for (ResourceResponse.ResourceData resourceData : pushedResources) {
+            cacheReceivedResource(resourceData.getResourceName(), resourceData.getResourceData());
+        }
+        addToContentCache(pushedResources);
+        if (logger.isLoggable(Level.FINER) && !pushedResources.isEmpty()) {
+            logger.log(Level.FINER, "Cached " + pushedResources.size() + " classes pushed by remote machine for session: " + sessionId);
+        }
     }
 
     /**
@@ -81,14 +186,13 @@ public class SessionClassLoader extends ClassLoader {
      * loaded.
      */
     public void processResourceResponse(ResourceResponse resourceResponse) {
-        RequestIdentifier requestIdentifier = resourceResponse.getRequestIdentifier();
-        FutureResourceResponse futureResourceResponse = futureResourceResponses.get(requestIdentifier);
-        if (futureResourceResponse == null) {
+        UUID requestId = resourceResponse.getRequestIdentifier().getRequestId();
+        if (!RequestIdentifier.isSequentialRequestId(requestId)
+                || !pendingResourceResponses.complete(requestId.getLeastSignificantBits(), resourceResponse)) {
             // Request must have timed out...
             logger.log(Level.FINE, "Ignored ResourceResponse, no pending request found, request must have timed out: {0}", resourceResponse);
             return;
         }
-        futureResourceResponse.setResponse(resourceResponse);
         logger.log(Level.FINE, "Accepted ResourceResponse, passed to request thread: {0}", resourceResponse);
     }
 
@@ -110,7 +214,8 @@ public class SessionClassLoader extends ClassLoader {
             // Retrieve resource from cache...
             byte[] requiredResourceData = resourceDataCache.get(resourceName);
             if (requiredResourceData != null) {
-                return defineClass(name, requiredResourceData, 0, requiredResourceData.length);
+                verifyReceivedViaOtherSession(resourceName);
+                return defineCachedClass(name, resourceName, requiredResourceData);
             }
 
             // Not cached.
@@ -130,24 +235,18 @@ public class SessionClassLoader extends ClassLoader {
             // We have a connection, therefore we are executing/deserializing code from a client.
             // Request the resource from the client...
 
-            // Wrap our required class in a singleton list.
-            // Note the protocol intentionally supports requesting a list of classes at once as an optimization,
-            // however this optimization has not yet been implemented.
+            // Request only the class we need now. Classes it depends on will be prefetched below
+            // in one request per level of dependencies, once we can parse its bytecode...
             List<String> requiredClasses = Collections.singletonList(resourceName);
 
-            // Send a request to the remote machine for the required class(es)...
-            FutureResourceResponse futureResponse = sendResourceRequest(requiredClasses);
-
-            // Block here until the response arrives, or we time out...
-            ResourceResponse resourceResponse = futureResponse.getResponse(RESOURCE_REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            // Fetch the required class(es) from the remote machine or from the content-addressed cache,
+            // blocking until the response arrives, or we time out...
+            List<ResourceResponse.ResourceData> resourcesFetched = fetchResources(requiredClasses);
 
-            // Search the potentially multiple classes returned for the class we need.
-            // Note: again, the protocol supports returning multiple classes,
-            // however implementing this optimization is reserved for future work.
-            for (ResourceResponse.ResourceData resourceData : resourceResponse.getResourceDataResponses()) {
+            // Search the classes returned for the class we need...
+            for (ResourceResponse.ResourceData resourceData : resourcesFetched) {
                 if (resourceName.equals(resourceData.getResourceName())) {
                     requiredResourceData = resourceData.getResourceData();
-                    resourceDataCache.put(resourceName, requiredResourceData);
                     break;
                 }
             }
@@ -157,13 +256,79 @@ public class SessionClassLoader extends ClassLoader {
                 // i.e. it could not locate the required class (this is an unexpected condition)...
                 throw new ClassNotFoundException("The remote machine could not locate bytecode for the requested class: " + name + ", resource name: " + resourceName);
             }
-            return defineClass(name, requiredResourceData, 0, requiredResourceData.length);
+            // Fetch classes referenced by this class which we will likely need next,
+            // before defining it causes them to be requested one at a time...
+            prefetchDependencies(resourceName, requiredResourceData);
+            // Another thread might have fetched the bytecode on behalf of another session...
+            verifyReceivedViaOtherSession(resourceName);
+            return defineCachedClass(name, resourceName, requiredResourceData);
         }
         catch (Throwable t) {
             throw new ClassNotFoundException("Could not locate bytecode for the requested class: " + name, t);
         }
     }
 
+    /**
+     * For class loaders shared by several sessions, verifies that bytecode which was received via a session other
+     * than the one on whose behalf the current thread is about to define a class is identical to that of the client
+     * of the current session, by requesting its content hash from the client. The session may not have verified it
+     * yet, because it was received while the session was processing its current request.
+     *
+     * @param resourceName The resource name of the class about to be defined
+     * @throws IllegalStateException If the bytecode differs from that of the client of the current session
+     */
+    void verifyReceivedViaOtherSession(String resourceName) {
+        if (receivedResourcesByName == null) {
+            return;
+        }
+        ReceivedResource receivedResource = receivedResourcesByName.get(resourceName);
+        UUID threadLocalSessionId = threadLocalSessionIds.get();
+        if (receivedResource == null || threadLocalSessionId == null || threadLocalSessionId.equals(receivedResource.receivedViaSessionId)) {
+            return;
+        }
+        byte[] clientContentHash = requestContentHashes(Collections.singletonList(resourceName)).get(resourceName);
+        if (!Arrays.equals(receivedResource.contentHash, clientContentHash)) {
+            throw new IllegalStateException("The bytecode which this shared class loader received via another session differs from that of the client of session: " + threadLocalSessionId + ", resource name: " + resourceName);
+        }
+    }
+
+    /**
+     * Requests the content hashes of the given resources from the remote machine indicated by the thread-local
+     * connection id.
+     *
+     * @param resourceNames The names of the resources
+     * @return The content hashes of the resources which the remote machine could locate, keyed by resource name
+     */
+    Map<String, byte[]> requestContentHashes(List<String> resourceNames) {
+        Map<String, byte[]> contentHashes = new HashMap<String, byte[]>();
+        for (ResourceResponse.ResourceData resourceData : sendResourceRequest(resourceNames, true).awaitResponse().getResourceDataResponses()) {
+            byte[] contentHash = resourceData.getContentHash();
+            if (contentHash == null) {
+                // The remote machine does not support returning hashes, and returned the resource data instead...
+                contentHash = ContentAddressedResourceCache.computeContentHash(resourceData.getResourceData());
+            }
+            contentHashes.put(resourceData.getResourceName(), contentHash);
+        }
+        return contentHashes;
+    }
+
+    Class<?> defineCachedClass(String name, String resourceName, byte[] bytecode) {
+        Class<?> definedClass = defineClass(name, bytecode, 0, bytecode.length);
+        // The JVM will not ask for this class again, so the bytecode is now only needed to serve other machines...
+        resourceDataCache.releaseDefinedClass(resourceName);
+        return definedClass;
+    }
+
+    /**
+     * Returns the cache of resources which this class loader has received from remote machines, which provides
+     * statistics on the resources cached.
+     *
+     * @return The cache of resources which this class loader has received from remote machines
+     */
+    public SessionResourceCache getResourceCache() {
+        return resourceDataCache;
+    }
+
     /**
      * Tries to find resources by requesting requesting from remote machines. This method will be called by the
      * superclass implementation of {@link #getResource(String)} when the parent class loader cannot locate the required
@@ -212,22 +377,17 @@ public class SessionClassLoader extends ClassLoader {
             // We have a connection, therefore we are executing/deserializing code from a client.
             // Request the resource from the client...
 
-            // Wrap our required resource in a singleton list.
-            // Note the protocol intentionally supports requesting a list of resources at once as an optimization,
-            // however this optimization has not yet been implemented.
+            // Wrap our required resource in a singleton list...
             List<String> requiredResources = Collections.singletonList(name);
 
-            // Send a request to the remote machine for the required resource(s)...
-            FutureResourceResponse futureResponse = sendResourceRequest(requiredResources);
-
-            // Block here until the response arrives, or we time out...
-            ResourceResponse resourceResponse = futureResponse.getResponse(RESOURCE_REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            // Fetch the required resource(s) from the remote machine or from the content-addressed cache,
+            // blocking until the response arrives, or we time out...
+            List<ResourceResponse.ResourceData> resourcesFetched = fetchResources(requiredResources);
 
             // Search the potentially multiple resources returned for the resource we need...
-            for (ResourceResponse.ResourceData resourceData : resourceResponse.getResourceDataResponses()) {
+            for (ResourceResponse.ResourceData resourceData : resourcesFetched) {
                 if (name.equals(resourceData.getResourceName())) {
                     requiredResourceData = resourceData.getResourceData();
-                    resourceDataCache.put(name, requiredResourceData);
                     break;
                 }
             }
@@ -246,6 +406,63 @@ public class SessionClassLoader extends ClassLoader {
         }
     }
 
+    /**
+     * Parses the constant pool of the given class, and requests from the remote machine, in a single request, the
+     * bytecode of all referenced classes which are neither cached nor loadable by the parent class loader.
+     * Repeats for the classes received, up to {@link #MAX_PREFETCH_DEPTH} levels, such that loading a graph of classes
+     * costs one round trip per level of the graph rather than one round trip per class.
+     * <p/>
+     * Prefetching is an optimization, so failures are logged and otherwise ignored; any classes which were not
+     * prefetched will be requested individually when needed.
+     *
+     * @param resourceName The resource name of the class whose bytecode was received
+     * @param bytecode The bytecode received
+     */
+    void prefetchDependencies(String resourceName, byte[] bytecode) {
+        if (MAX_PREFETCH_DEPTH <= 0) {
+            return;
+        }
+        try {
+            Set<String> resourcesConsidered = new HashSet<String>();
+            resourcesConsidered.add(resourceName);
+            List<byte[]> bytecodeReceived = Collections.singletonList(bytecode);
+            for (int depth = 0; depth < MAX_PREFETCH_DEPTH && !bytecodeReceived.isEmpty(); depth++) {
+                List<String> missingResources = new ArrayList<String>();
+                for (byte[] classData : bytecodeReceived) {
+                    for (String className : ClassFileParser.getReferencedClassNames(classData)) {
+                        String dependency = className + ".class";
+                        if (missingResources.size() < MAX_PREFETCH_RESOURCES_PER_REQUEST
+                                && resourcesConsidered.add(dependency)
+                                && !resourceDataCache.contains(dependency)
+                                && !missingResources.contains(dependency)
+                                && !isLoadableByParent(dependency)) {
+                            missingResources.add(dependency);
+                        }
+                    }
+                }
+                if (missingResources.isEmpty()) {
+                    break;
+                }
+                List<ResourceResponse.ResourceData> resourcesFetched = fetchResources(missingResources);
+                bytecodeReceived = new ArrayList<byte[]>(resourcesFetched.size());
+                for (ResourceResponse.ResourceData resourceData : resourcesFetched) {
+                    // Note fetchResources has already added the resource to the cache...
+                    bytecodeReceived.add(resourceData.getResourceData());
+                }
+                if (logger.isLoggable(Level.FINER)) {
+                    logger.log(Level.FINER, "Prefetched " + bytecodeReceived.size() + " of " + missingResources.size() + " classes requested at depth " + (depth + 1) + " of dependencies of: " + resourceName);
+                }
+            }
+        }
+        catch (Exception e) {
+            logger.log(Level.FINE, "Failed to prefetch dependencies of: " + resourceName, e);
+        }
+    }
+
+    boolean isLoadableByParent(String resourceName) {
+        return resourceName.startsWith("java/") || getParent().getResource(resourceName) != null;
+    }
+
     /**
      * Finds resources with the given name which are loadable by this session class loader.
      * <p/>
@@ -301,80 +518,246 @@ public class SessionClassLoader extends ClassLoader {
     }
 
     /**
-     * A helper method for {@link #findClass}, this method actually sends a request for the specified classes byteode or
-     * resources to remote machines.
+     * Fetches the given classes or resources from the remote machine, adding those received to the cache of this
+     * class loader.
+     * <p/>
+     * Concurrent fetches are deduplicated: if another thread is already fetching some of the given resources, this
+     * thread waits for that thread's request to complete instead of requesting the same resources again. Resources
+     * which the remote machine previously reported it could not locate are not requested again.
      *
      * @param requestedResources A list of the names of classes or resources required
-     * @return An object which the calling method can block on, which will return bytecode/resources when it arrives in
-     * a response from the remote machine
+     * @return The resources which the remote machine could locate
      */
-    FutureResourceResponse sendResourceRequest(List<String> requestedResources) {
-        final ConnectionId threadLocalConnectionId = threadLocalConnectionIds.get();
-        if (threadLocalConnectionId == null) {
-            throw new IllegalStateException("No thread-local connection id is registered for the thread requesting classes: " + requestedResources);
+    List<ResourceResponse.ResourceData> fetchResources(List<String> requestedResources) throws InterruptedException {
+        Map<String, InFlightFetch> fetchesOwned = new LinkedHashMap<String, InFlightFetch>();
+        Map<String, InFlightFetch> fetchesAwaited = new LinkedHashMap<String, InFlightFetch>();
+        for (String resourceName : requestedResources) {
+            if (missingResources.contains(resourceName)) {
+                continue;
+            }
+            InFlightFetch newFetch = new InFlightFetch();
+            InFlightFetch existingFetch = inFlightFetches.putIfAbsent(resourceName, newFetch);
+            if (existingFetch == null) {
+                fetchesOwned.put(resourceName, newFetch);
+            }
+            else {
+                fetchesAwaited.put(resourceName, existingFetch);
+            }
         }
-        // Create a unique RequestIdentifier for the ResourceRequest we will send...
-        UUID requestId = UUID.randomUUID();
-        RequestIdentifier requestIdentifier = new RequestIdentifier(sessionId, requestId, "Request for resources: " + requestedResources);
+        List<ResourceResponse.ResourceData> resourcesFetched = new ArrayList<ResourceResponse.ResourceData>(requestedResources.size());
+        if (!fetchesOwned.isEmpty()) {
+            try {
+                Map<String, byte[]> resourcesReceived = new HashMap<String, byte[]>();
+                for (ResourceResponse.ResourceData resourceData : fetchResourcesFromRemoteMachine(new ArrayList<String>(fetchesOwned.keySet()))) {
+                    resourcesReceived.put(resourceData.getResourceName(), resourceData.getResourceData());
+                }
+                for (Map.Entry<String, InFlightFetch> entry : fetchesOwned.entrySet()) {
+                    String resourceName = entry.getKey();
+                    byte[] resourceData = resourcesReceived.get(resourceName);
+                    if (resourceData == null) {
+                        recordMissingResource(resourceName);
+                    }
+                    else {
+                        // Cache before releasing waiters, so that threads arriving later find it in the cache...
+                        cacheReceivedResource(resourceName, resourceData);
+                        resourcesFetched.add(new ResourceResponse.ResourceData(resourceName, resourceData));
+                    }
+                    entry.getValue().complete(resourceData);
+                }
+            }
+            finally {
+                // Release waiting threads even if the request failed, in which case they will find nothing...
+                for (Map.Entry<String, InFlightFetch> entry : fetchesOwned.entrySet()) {
+                    inFlightFetches.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().complete(null);
+                }
+            }
+        }
+        for (Map.Entry<String, InFlightFetch> entry : fetchesAwaited.entrySet()) {
+            byte[] resourceData = entry.getValue().awaitResourceData(RESOURCE_REQUEST_TIMEOUT_MILLIS);
+            if (resourceData != null) {
+                resourcesFetched.add(new ResourceResponse.ResourceData(entry.getKey(), resourceData));
+            }
+        }
+        return resourcesFetched;
+    }
 
-        // Register a FutureResourceResponse in the futureResourceResponses map...
-        FutureResourceResponse futureResourceResponse = new FutureResourceResponse(requestIdentifier);
-        futureResourceResponses.put(requestIdentifier, futureResourceResponse);
+    void cacheReceivedResource(String resourceName, byte[] resourceData) {
+        if (resourceDataCache.putIfAbsent(resourceName, resourceData) && receivedResources != null) {
+            UUID threadLocalSessionId = threadLocalSessionIds.get();
+            ReceivedResource receivedResource = new ReceivedResource(
+                    resourceName,
+                    ContentAddressedResourceCache.computeContentHash(resourceData),
+                    threadLocalSessionId == null ? sessionId : threadLocalSessionId
+            );
+            synchronized (receivedResources) {
+                receivedResources.add(receivedResource);
+            }
+            receivedResourcesByName.put(resourceName, receivedResource);
+        }
+    }
 
-        // Send a ResourceRequest to the remote machine...
-        ResourceRequest resourceRequest = new ResourceRequest(requestedResources, requestIdentifier);
-        mobilityController.sendOutgoingMessage(threadLocalConnectionId, resourceRequest);
+    /**
+     * For class loaders shared by several sessions, returns the resources which the class loader received since the
+     * given index, in order of arrival.
+     *
+     * @param fromIndex The number of resources received previously, which should be skipped
+     * @return The resources received since the given index, empty if the class loader is not shared
+     */
+    List<ReceivedResource> getReceivedResources(int fromIndex) {
+        if (receivedResources == null) {
+            return Collections.emptyList();
+        }
+        synchronized (receivedResources) {
+            return fromIndex >= receivedResources.size()
+                    ? Collections.<ReceivedResource>emptyList()
+                    : new ArrayList<ReceivedResource>(receivedResources.subList(fromIndex, receivedResources.size()));
+        }
+    }
 
-        // Return our FutureResourceResponse object, which the calling method can block on until response arrives...
-        return futureResourceResponse;
+    /**
+     * A resource received by a shared class loader, along with its content hash and the session via which it was
+     * received.
+     */
+    static class ReceivedResource {
+        final String resourceName;
+        final byte[] contentHash;
+        final UUID receivedViaSessionId;
+
+        ReceivedResource(String resourceName, byte[] contentHash, UUID receivedViaSessionId) {
+            this.resourceName = resourceName;
+            this.contentHash = contentHash;
+            this.receivedViaSessionId = receivedViaSessionId;
+        }
     }
 
+    void recordMissingResource(String resourceName) {
+        if (missingResources.size() >= MAX_MISSING_RESOURCES) {
+            missingResources.clear();
+        }
+        missingResources.add(resourceName);
+    }
 
     /**
-     * Represents a {@link ResourceResponse} which will materialize in the future.
-     * <p/>
-     * Note this would be similar to {@link java.util.concurrent.Future}&lt;ResourceResponse&gt;, but we don't
-     * implement {@code Future} because it would require us to implement more methods than we really need here.
-     * <p/>
-     *
-     * The local thread requiring bytecode/resource data will register this object in a map, then send a request for the
-     * bytecode to a remote machine.
-     * The local thread will then block on the {@link #getResponse} method of this object.
-     * <p/>
-     * When a {@link ResourceResponse} arrives from the remote machine, the thread processing it will look up this
-     * object in the map and call {@link #setResponse}. At that point the blocked local thread will receive the
-     * ResourceResponse and will continue its work.
+     * Tracks a fetch of a resource from the remote machine which is in progress in one thread, which other threads
+     * needing the same resource can wait for.
      */
-    class FutureResourceResponse {
-        private final RequestIdentifier requestIdentifier;
-
-        private final BlockingQueue<ResourceResponse> responseQueue = new ArrayBlockingQueue<ResourceResponse>(1);
+    static class InFlightFetch {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile byte[] resourceData;
+
+        void complete(byte[] resourceData) {
+            if (completed.getCount() > 0) {
+                this.resourceData = resourceData;
+                completed.countDown();
+            }
+        }
 
-        FutureResourceResponse(RequestIdentifier requestIdentifier) {
-            this.requestIdentifier = requestIdentifier;
+        byte[] awaitResourceData(long timeoutMillis) throws InterruptedException {
+            if (!completed.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Timed out waiting for resource being fetched by another thread");
+            }
+            return resourceData;
         }
+    }
 
-        public ResourceResponse getResponse(long timeout, TimeUnit unit) {
-            try {
-                ResourceResponse resourceResponse = responseQueue.poll(timeout, unit);
-                if (resourceResponse == null) {
-                    throw new TimeoutException();
-                }
-                return resourceResponse;
+    /**
+     * Fetches the given classes or resources from the remote machine, avoiding transferring any which are already in
+     * the controller-wide {@link ContentAddressedResourceCache}.
+     * <p/>
+     * If the content-addressed cache contains any resources, this asks the remote machine for the content hashes of
+     * the resources. The remote machine returns the data of small resources inline along with their hashes, so a
+     * second request is sent only for the data of large resources whose hashes are not found in the cache. Resources
+     * received are added to the cache, for the benefit of other sessions.
+     *
+     * @param requestedResources A list of the names of classes or resources required
+     * @return The resources which the remote machine could locate
+     */
+    List<ResourceResponse.ResourceData> fetchResourcesFromRemoteMachine(List<String> requestedResources) {
+        ContentAddressedResourceCache contentCache = mobilityController.getContentAddressedResourceCache();
+        if (!contentCache.isEnabled() || contentCache.isEmpty()) {
+            // No resources could be found by hash, so skip asking for hashes...
+            List<ResourceResponse.ResourceData> resourcesReceived = sendResourceRequest(requestedResources, false).awaitResponse().getResourceDataResponses();
+            addToContentCache(resourcesReceived);
+            return resourcesReceived;
+        }
+        List<ResourceResponse.ResourceData> resourcesFetched = new ArrayList<ResourceResponse.ResourceData>(requestedResources.size());
+        List<String> resourcesNotCached = new ArrayList<String>();
+        for (ResourceResponse.ResourceData resourceHash : sendResourceRequest(requestedResources, true).awaitResponse().getResourceDataResponses()) {
+            if (resourceHash.getContentHash() == null) {
+                // The remote machine does not support returning hashes, and returned the resource data instead...
+                resourcesFetched.add(resourceHash);
+                continue;
             }
-            catch (TimeoutException e) {
-                throw new IllegalStateException("Timed out waiting to receive class bytecode or resource within timeout of " + timeout + " " + unit.name().toLowerCase(), e);
+            if (resourceHash.getResourceData().length > 0) {
+                // A small resource, which the remote machine returned inline...
+                contentCache.put(resourceHash.getResourceData());
+                resourcesFetched.add(new ResourceResponse.ResourceData(resourceHash.getResourceName(), resourceHash.getResourceData()));
+                continue;
             }
-            catch (Exception e) {
-                throw new IllegalStateException("Unexpected exception waiting to receive bytecode or resource", e);
+            byte[] cachedResourceData = contentCache.get(resourceHash.getContentHash());
+            if (cachedResourceData != null) {
+                resourcesFetched.add(new ResourceResponse.ResourceData(resourceHash.getResourceName(), cachedResourceData));
             }
-            finally {
-                futureResourceResponses.remove(this.requestIdentifier);
+            else {
+                resourcesNotCached.add(resourceHash.getResourceName());
             }
         }
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "Found " + (requestedResources.size() - resourcesNotCached.size()) + " of " + requestedResources.size() + " resources requested in content-addressed cache for session: " + sessionId);
+        }
+        if (!resourcesNotCached.isEmpty()) {
+            List<ResourceResponse.ResourceData> resourcesReceived = sendResourceRequest(resourcesNotCached, false).awaitResponse().getResourceDataResponses();
+            addToContentCache(resourcesReceived);
+            resourcesFetched.addAll(resourcesReceived);
+        }
+        return resourcesFetched;
+    }
 
-        public boolean setResponse(ResourceResponse resourceResponse) {
-            return responseQueue.add(resourceResponse);
+    void addToContentCache(List<ResourceResponse.ResourceData> resourcesReceived) {
+        ContentAddressedResourceCache contentCache = mobilityController.getContentAddressedResourceCache();
+        if (contentCache.isEnabled()) {
+            for (ResourceResponse.ResourceData resourceData : resourcesReceived) {
+                contentCache.put(resourceData.getResourceData());
+            }
         }
     }
+
+    /**
+     * A helper method for {@link #fetchResourcesFromRemoteMachine}, this method actually sends a request for the specified classes byteode or
+     * resources to remote machines.
+     *
+     * @param requestedResources A list of the names of classes or resources required
+     * @param contentHashesOnly True to request the content hashes of the resources instead of their data
+     * @return An object which the calling method can block on, which will return bytecode/resources when it arrives in
+     * a response from the remote machine
+     */
+    PendingRequestTable.PendingRequest<ResourceResponse> sendResourceRequest(List<String> requestedResources, boolean contentHashesOnly) {
+        final ConnectionId threadLocalConnectionId = threadLocalConnectionIds.get();
+        if (threadLocalConnectionId == null) {
+            throw new IllegalStateException("No thread-local connection id is registered for the thread requesting classes: " + requestedResources);
+        }
+        // Create a unique RequestIdentifier for the ResourceRequest we will send...
+        UUID requestId = requestIdGenerator.nextRequestId();
+        UUID threadLocalSessionId = threadLocalSessionIds.get();
+        RequestIdentifier requestIdentifier = new RequestIdentifier(threadLocalSessionId == null ? sessionId : threadLocalSessionId, requestId, "Request for resources: " + requestedResources);
+
+        // Register a pending request in the table, which will expire if no response arrives within the timeout...
+        PendingRequestTable.PendingRequest<ResourceResponse> pendingRequest = pendingResourceResponses.register(
+                requestId.getLeastSignificantBits(), RESOURCE_REQUEST_TIMEOUT_MILLIS
+        );
+
+        // Send a ResourceRequest to the remote machine...
+        ResourceRequest resourceRequest = new ResourceRequest(requestedResources, requestIdentifier, contentHashesOnly);
+        try {
+            mobilityController.sendOutgoingMessage(threadLocalConnectionId, resourceRequest);
+        }
+        catch (RuntimeException e) {
+            pendingRequest.cancel();
+            throw e;
+        }
+
+        // Return the pending request, which the calling method can block on until response arrives...
+        return pendingRequest;
+    }
 }
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds class bytecode and other resources which a {@link SessionClassLoader} received from remote machines, within a
+ * bound on the total size of resources held in memory per session.
+ * <p/>
+ * Resources are evicted least recently used first when the bound is exceeded. Bytecode of classes which have not yet
+ * been defined (e.g. pushed along with an execution request, or prefetched as a dependency) is pinned, and is not
+ * evicted until the class loader has defined the class, because the remote machine will not send it again.
+ * Pinned bytecode is counted towards the bound, but can cause it to be exceeded. Additionally, once the class loader has
+ * defined a class from its bytecode, the bytecode is needed only to serve the class to other machines, so if the
+ * controller-wide {@link ContentAddressedResourceCache} is enabled, the session releases its reference to the bytecode
+ * and retains only its content hash, by which the bytecode can be retrieved from that cache (and from the
+ * {@link PersistentResourceStore} behind it, if configured) when requested. Evicted resources are also retained by
+ * content hash in that case.
+ * <p/>
+ * The bound can be configured via system property {@code com.googlecode.mobilityrpc.sessionResourceCache.maxBytes},
+ * default 16MB.
+ *
+ * @author Niall Gallagher
+ */
+public class SessionResourceCache {
+
+    static final long DEFAULT_MAX_BYTES = Long.getLong("com.googlecode.mobilityrpc.sessionResourceCache.maxBytes", 16L * 1024 * 1024);
+
+    private final long maxBytes;
+    private final ContentAddressedResourceCache contentCache;
+
+    // Access-ordered, so that iteration visits least recently used entries first...
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    // Content hashes of resources released from memory, which can be retrieved from the content-addressed cache...
+    private final Map<String, byte[]> releasedContentHashes = new HashMap<String, byte[]>();
+    // Names of class resources which are pinned in memory until the class loader defines the class...
+    private final Set<String> undefinedClasses = new HashSet<String>();
+    private long totalBytes = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public SessionResourceCache(ContentAddressedResourceCache contentCache) {
+        this(DEFAULT_MAX_BYTES, contentCache);
+    }
+
+    /**
+     * @param maxBytes The bound on the total size of resources held in memory by the session
+     * @param contentCache The controller-wide content-addressed cache, in which resources released from memory can be
+     * found by content hash
+     */
+    public SessionResourceCache(long maxBytes, ContentAddressedResourceCache contentCache) {
+        this.maxBytes = maxBytes;
+        this.contentCache = contentCache;
+    }
+
+    /**
+     * Returns the given resource if cached, from memory or via the content-addressed cache if it was released.
+     *
+     * @param resourceName The name of the resource, e.g. {@code com/foo/Bar.class}
+     * @return The resource data, or null if not cached
+     */
+    public byte[] get(String resourceName) {
+        byte[] contentHash;
+        synchronized (this) {
+            byte[] resourceData = entries.get(resourceName);
+            if (resourceData != null) {
+                hitCount++;
+                return resourceData;
+            }
+            contentHash = releasedContentHashes.get(resourceName);
+            if (contentHash == null) {
+                missCount++;
+                return null;
+            }
+        }
+        byte[] resourceData = contentCache.get(contentHash);
+        synchronized (this) {
+            if (resourceData != null) {
+                hitCount++;
+            }
+            else {
+                // The content-addressed cache has since evicted it too...
+                releasedContentHashes.remove(resourceName);
+                missCount++;
+            }
+        }
+        return resourceData;
+    }
+
+    /**
+     * @param resourceName The name of the resource
+     * @return True if the resource is held in memory or was released to the content-addressed cache
+     */
+    public synchronized boolean contains(String resourceName) {
+        return entries.containsKey(resourceName) || releasedContentHashes.containsKey(resourceName);
+    }
+
+    /**
+     * Adds the given resource, unless a resource with the same name is already cached, such that a class which has
+     * already been defined from cached bytecode remains consistent with that bytecode.
+     * Evicts least recently used resources which are not pinned if necessary to stay within the size bound.
+     * Class resources are pinned until {@link #releaseDefinedClass(String)} is called for them.
+     *
+     * @param resourceName The name of the resource
+     * @param resourceData The resource data
+     * @return True if the resource was added, false if a resource with the same name was already cached
+     */
+    public synchronized boolean putIfAbsent(String resourceName, byte[] resourceData) {
+        if (entries.containsKey(resourceName) || releasedContentHashes.containsKey(resourceName)) {
+            return false;
+        }
+        entries.put(resourceName, resourceData);
+        totalBytes += resourceData.length;
+        if (resourceName.endsWith(".class")) {
+            undefinedClasses.add(resourceName);
+        }
+        evictIfNecessary();
+        return true;
+    }
+
+    void evictIfNecessary() {
+        for (Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator(); totalBytes > maxBytes && iterator.hasNext(); ) {
+            Map.Entry<String, byte[]> entry = iterator.next();
+            if (undefinedClasses.contains(entry.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= entry.getValue().length;
+            evictionCount++;
+            retainContentHash(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Called after the class loader has defined a class from the given resource, to unpin the bytecode, and to
+     * release it from memory if it can be retrieved from the content-addressed cache should another machine request
+     * it.
+     *
+     * @param resourceName The name of the resource from which a class was defined
+     */
+    public synchronized void releaseDefinedClass(String resourceName) {
+        if (undefinedClasses.remove(resourceName)) {
+            evictIfNecessary();
+        }
+        if (!contentCache.isEnabled()) {
+            // Keep the bytecode in memory, within the size bound, to serve it to other machines...
+            return;
+        }
+        byte[] resourceData = entries.get(resourceName);
+        if (resourceData == null) {
+            return;
+        }
+        byte[] contentHash = ContentAddressedResourceCache.computeContentHash(resourceData);
+        if (contentCache.get(contentHash) == null) {
+            // Not retrievable from the content-addressed cache (e.g. too large for it), so keep it in memory...
+            return;
+        }
+        entries.remove(resourceName);
+        totalBytes -= resourceData.length;
+        releasedContentHashes.put(resourceName, contentHash);
+    }
+
+    void retainContentHash(String resourceName, byte[] resourceData) {
+        if (contentCache.isEnabled()) {
+            releasedContentHashes.put(resourceName, ContentAddressedResourceCache.computeContentHash(resourceData));
+        }
+    }
+
+    /**
+     * @return The number of resources held in memory
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of class resources pinned in memory because their classes have not yet been defined
+     */
+    public synchronized int getPinnedCount() {
+        return undefinedClasses.size();
+    }
+
+    /**
+     * @return The total size in bytes of resources held in memory
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The number of resources released from memory which can be retrieved from the content-addressed cache
+     */
+    public synchronized int getReleasedCount() {
+        return releasedContentHashes.size();
+    }
+
+    /**
+     * @return The number of lookups which found the requested resource
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of lookups which did not find the requested resource
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The number of resources evicted from memory to stay within the size bound
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionResourceCache{" +
+                "size=" + entries.size() +
+                ", totalBytes=" + totalBytes +
+                ", maxBytes=" + maxBytes +
+                ", pinned=" + undefinedClasses.size() +
+                ", released=" + releasedContentHashes.size() +
+                ", hits=" + hitCount +
+                ", misses=" + missCount +
+                ", evictions=" + evictionCount +
+                '}';
+    }
+}
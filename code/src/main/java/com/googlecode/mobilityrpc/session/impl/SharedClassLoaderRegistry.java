@@ -0,0 +1,208 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares one {@link SessionClassLoader} between sessions whose clients declare the same codebase, so that classes
+ * sent by clients running the same build are loaded, verified and JIT-compiled once instead of once per session.
+ * <p/>
+ * Clients declare their codebase by setting system property {@code com.googlecode.mobilityrpc.codebaseId} to an
+ * identifier which changes whenever their classes change, typically a build id or version. The SHA-256 hash of the
+ * identifier is sent with execution requests as a codebase fingerprint. Sessions whose clients do not declare a
+ * codebase use their own class loaders, as before.
+ * <p/>
+ * Because the codebase id is merely declared by clients, sessions do not rely on it for isolation. Before a session
+ * joins a shared class loader, and before each request it processes thereafter, the bytecode which its client pushed
+ * with the request is compared with the bytecode already loaded by the shared class loader, and the content hashes
+ * of any resources which the shared class loader received via other sessions since the session last checked are
+ * requested from the client and compared with those received (see {@link #verifyReceivedResources}). If any
+ * resource differs, or is unknown to the client, the session detaches from the shared class loader and uses its own
+ * class loader instead. This costs a round trip to request content hashes when the shared class loader has received
+ * resources via other sessions.
+ * <p/>
+ * Requests from different sessions are processed concurrently, so the shared class loader can receive resources via
+ * other sessions while a session is processing a request. Before the shared class loader defines a class on behalf of
+ * a session from bytecode received via another session, it verifies the bytecode with the session's client in the
+ * same way (see {@link SessionClassLoader#verifyReceivedViaOtherSession}), and fails to load the class if it
+ * differs. However a class which another session's request caused the shared class loader to define during the
+ * session's request is visible to the session's request before it is verified, because the JVM does not consult the
+ * class loader again for classes it has already defined. Such classes are verified before the session's next request.
+ * Therefore clients which declare the same codebase id must be trusted not to run different builds concurrently;
+ * isolation from clients which do so is only guaranteed from their next request onwards.
+ * <p/>
+ * Shared class loaders are reference counted, and are discarded when the last session using them is released.
+ * Sharing can be disabled on the receiving machine via system property
+ * {@code com.googlecode.mobilityrpc.sharedClassLoaders.disabled}.
+ *
+ * @author Niall Gallagher
+ */
+public class SharedClassLoaderRegistry {
+
+    static final boolean SHARING_DISABLED = Boolean.getBoolean("com.googlecode.mobilityrpc.sharedClassLoaders.disabled");
+
+    static final byte[] LOCAL_CODEBASE_FINGERPRINT = computeCodebaseFingerprint(System.getProperty("com.googlecode.mobilityrpc.codebaseId"));
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final MobilityControllerInternal mobilityController;
+    private final boolean sharingEnabled;
+    private final Map<ContentAddressedResourceCache.ContentHash, SharedClassLoader> sharedClassLoaders = new HashMap<ContentAddressedResourceCache.ContentHash, SharedClassLoader>();
+
+    public SharedClassLoaderRegistry(MobilityControllerInternal mobilityController) {
+        this(mobilityController, !SHARING_DISABLED);
+    }
+
+    public SharedClassLoaderRegistry(MobilityControllerInternal mobilityController, boolean sharingEnabled) {
+        this.mobilityController = mobilityController;
+        this.sharingEnabled = sharingEnabled;
+    }
+
+    /**
+     * Returns the class loader shared by sessions with the given codebase fingerprint, creating it if no session
+     * currently uses it, and increments its reference count. Each successful call must be followed by a call to
+     * {@link #release(byte[])} when the session is released.
+     *
+     * @param codebaseFingerprint The codebase fingerprint sent by the client
+     * @param pushedResourceData Bytecode which the client pushed with its request, to be checked for consistency with
+     * the bytecode already loaded by the shared class loader
+     * @return The shared class loader, or null if sharing is disabled or the bytecode pushed is inconsistent with the
+     * shared class loader, in which case the session should use its own class loader
+     */
+    public synchronized SessionClassLoader acquire(byte[] codebaseFingerprint, List<ResourceResponse.ResourceData> pushedResourceData) {
+        if (!sharingEnabled) {
+            return null;
+        }
+        ContentAddressedResourceCache.ContentHash key = new ContentAddressedResourceCache.ContentHash(codebaseFingerprint);
+        SharedClassLoader sharedClassLoader = sharedClassLoaders.get(key);
+        if (sharedClassLoader == null) {
+            sharedClassLoader = new SharedClassLoader(new SessionClassLoader(mobilityController, UUID.randomUUID(), new RequestIdGenerator(), true));
+            sharedClassLoaders.put(key, sharedClassLoader);
+        }
+        else if (!isConsistentWithPushedResources(sharedClassLoader.classLoader, pushedResourceData)) {
+            return null;
+        }
+        sharedClassLoader.referenceCount++;
+        return sharedClassLoader.classLoader;
+    }
+
+    /**
+     * Compares the bytecode which a client pushed with a request with the bytecode already loaded by a shared class
+     * loader.
+     *
+     * @param sharedClassLoader The shared class loader
+     * @param pushedResourceData Bytecode which the client pushed with its request
+     * @return True if the shared class loader has not loaded different bytecode for any of the classes pushed
+     */
+    public boolean isConsistentWithPushedResources(SessionClassLoader sharedClassLoader, List<ResourceResponse.ResourceData> pushedResourceData) {
+        for (ResourceResponse.ResourceData resourceData : pushedResourceData) {
+            byte[] loadedResourceData = sharedClassLoader.getReceivedResourceData(resourceData.getResourceName());
+            if (loadedResourceData != null && !Arrays.equals(loadedResourceData, resourceData.getResourceData())) {
+                logger.log(Level.WARNING, "Client declared the codebase of a shared class loader, but sent different bytecode for class: " + resourceData.getResourceName() + ", session will use its own class loader");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies that the resources which a shared class loader received via other sessions since the given index are
+     * identical to those of the client of the given session, by requesting their content hashes from the client.
+     * Must be called by a thread processing a request from the client, which has registered the connection to the
+     * client with the class loader via {@link SessionClassLoader#setThreadLocalConnectionId(ConnectionId, UUID)}.
+     *
+     * @param sharedClassLoader The shared class loader
+     * @param sessionId The id of the session whose client should be checked
+     * @param fromIndex The number of resources received by the shared class loader which were verified previously
+     * @return The number of resources received by the shared class loader which have now been verified, to supply as
+     * {@code fromIndex} to the next call, or -1 if any resource differs from that of the client, in which case the
+     * session should detach from the shared class loader
+     */
+    public int verifyReceivedResources(SessionClassLoader sharedClassLoader, UUID sessionId, int fromIndex) {
+        List<SessionClassLoader.ReceivedResource> receivedResources = sharedClassLoader.getReceivedResources(fromIndex);
+        Map<String, byte[]> expectedContentHashes = new LinkedHashMap<String, byte[]>();
+        for (SessionClassLoader.ReceivedResource receivedResource : receivedResources) {
+            if (!sessionId.equals(receivedResource.receivedViaSessionId)) {
+                expectedContentHashes.put(receivedResource.resourceName, receivedResource.contentHash);
+            }
+        }
+        if (!expectedContentHashes.isEmpty()) {
+            Map<String, byte[]> clientContentHashes = sharedClassLoader.requestContentHashes(new ArrayList<String>(expectedContentHashes.keySet()));
+            for (Map.Entry<String, byte[]> entry : expectedContentHashes.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), clientContentHashes.get(entry.getKey()))) {
+                    logger.log(Level.WARNING, "Client declared the codebase of a shared class loader, but has different or no bytecode for resource: " + entry.getKey() + ", session will use its own class loader: " + sessionId);
+                    return -1;
+                }
+            }
+        }
+        return fromIndex + receivedResources.size();
+    }
+
+    /**
+     * Decrements the reference count of the class loader shared by sessions with the given codebase fingerprint,
+     * discarding it if no session uses it anymore.
+     *
+     * @param codebaseFingerprint The codebase fingerprint with which the class loader was acquired
+     */
+    public synchronized void release(byte[] codebaseFingerprint) {
+        ContentAddressedResourceCache.ContentHash key = new ContentAddressedResourceCache.ContentHash(codebaseFingerprint);
+        SharedClassLoader sharedClassLoader = sharedClassLoaders.get(key);
+        if (sharedClassLoader != null && --sharedClassLoader.referenceCount <= 0) {
+            sharedClassLoaders.remove(key);
+        }
+    }
+
+    /**
+     * @return The number of shared class loaders in use
+     */
+    public synchronized int size() {
+        return sharedClassLoaders.size();
+    }
+
+    static byte[] computeCodebaseFingerprint(String codebaseId) {
+        if (codebaseId == null || codebaseId.length() == 0) {
+            return null;
+        }
+        try {
+            return ContentAddressedResourceCache.computeContentHash(codebaseId.getBytes("UTF-8"));
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to compute codebase fingerprint for codebase id: " + codebaseId, e);
+        }
+    }
+
+    static class SharedClassLoader {
+        final SessionClassLoader classLoader;
+        int referenceCount = 0;
+
+        SharedClassLoader(SessionClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+    }
+}
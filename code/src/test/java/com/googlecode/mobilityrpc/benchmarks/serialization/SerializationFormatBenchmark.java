@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.benchmarks.serialization;
+
+import com.googlecode.mobilityrpc.serialization.Serializer;
+import com.googlecode.mobilityrpc.serialization.impl.KryoSerializer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the throughput and serialized size of the regular Kryo serialization format with the unsafe format
+ * ({@link com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat#KRYO_UNSAFE}), for a primitive-heavy object
+ * graph and for a graph of small objects.
+ *
+ * @author Niall Gallagher
+ */
+public class SerializationFormatBenchmark {
+
+    private static final int NUM_WARMUP_ITERATIONS = 2000;
+    private static final int NUM_ITERATIONS = 10000;
+    private static final int ARRAY_LENGTH = 10000;
+    private static final int NUM_SMALL_OBJECTS = 1000;
+
+    public static void main(String[] args) {
+        ClassLoader classLoader = SerializationFormatBenchmark.class.getClassLoader();
+        Serializer regularSerializer = new KryoSerializer(classLoader, 1, false);
+        Serializer unsafeSerializer = new KryoSerializer(classLoader, 1, true);
+
+        Object primitiveGraph = createPrimitiveGraph();
+        Object smallObjectGraph = createSmallObjectGraph();
+
+        System.out.println("Format\tObject Graph\tSerialized Size (bytes)\tRound Trips per sec\tLatency Per Round Trip(ns)");
+        benchmark("KRYO", "primitive arrays", regularSerializer, primitiveGraph);
+        benchmark("KRYO_UNSAFE", "primitive arrays", unsafeSerializer, primitiveGraph);
+        benchmark("KRYO", "small objects", regularSerializer, smallObjectGraph);
+        benchmark("KRYO_UNSAFE", "small objects", unsafeSerializer, smallObjectGraph);
+    }
+
+    static void benchmark(String formatName, String graphName, Serializer serializer, Object graph) {
+        int serializedSize = 0;
+        // Warm up (run the test code but discard results)...
+        for (int i = 0; i < NUM_WARMUP_ITERATIONS; i++) {
+            serializedSize = serializer.serialize(graph).length;
+            serializer.deserialize(serializer.serialize(graph));
+        }
+        // Run test...
+        long startTime = System.nanoTime();
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            serializer.deserialize(serializer.serialize(graph));
+        }
+        long timeTakenNanos = System.nanoTime() - startTime;
+        System.out.println(formatName + "\t" + graphName + "\t" + serializedSize + "\t" + (NUM_ITERATIONS / (timeTakenNanos / 1000000000.0)) + "\t" + (((double) timeTakenNanos) / NUM_ITERATIONS));
+    }
+
+    static Object createPrimitiveGraph() {
+        double[] doubles = new double[ARRAY_LENGTH];
+        long[] longs = new long[ARRAY_LENGTH];
+        for (int i = 0; i < ARRAY_LENGTH; i++) {
+            doubles[i] = Math.sqrt(i);
+            longs[i] = i * 1000000007L;
+        }
+        return new Object[] {doubles, longs};
+    }
+
+    static Object createSmallObjectGraph() {
+        List<SmallObject> smallObjects = new ArrayList<SmallObject>(NUM_SMALL_OBJECTS);
+        for (int i = 0; i < NUM_SMALL_OBJECTS; i++) {
+            smallObjects.add(new SmallObject(i, "object" + i));
+        }
+        return smallObjects;
+    }
+
+    static class SmallObject {
+        private final int id;
+        private final String name;
+
+        SmallObject(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}
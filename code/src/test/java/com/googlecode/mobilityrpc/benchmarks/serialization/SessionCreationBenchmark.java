@@ -0,0 +1,103 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.benchmarks.serialization;
+
+import com.googlecode.mobilityrpc.MobilityRPC;
+import com.googlecode.mobilityrpc.controller.MobilityController;
+import com.googlecode.mobilityrpc.serialization.impl.KryoSerializer;
+import com.googlecode.mobilityrpc.serialization.impl.SharedKryoPool;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Measures the cost of creating short-lived sessions, and the latency of serializing and deserializing the first
+ * message in a new session, with and without a {@link SharedKryoPool} from which sessions borrow configured Kryo
+ * instances.
+ *
+ * @author Niall Gallagher
+ */
+public class SessionCreationBenchmark {
+
+    private static final int NUM_WARMUP_ITERATIONS = 2000;
+    private static final int NUM_ITERATIONS = 10000;
+
+    public static void main(String[] args) {
+        ClassLoader classLoader = SessionCreationBenchmark.class.getClassLoader();
+        MobilityController mobilityController = MobilityRPC.newController();
+        try {
+            // Warm up (run the test code but discard results)...
+            benchmarkSessionCreation(mobilityController, NUM_WARMUP_ITERATIONS);
+            long sessionCreationNanos = benchmarkSessionCreation(mobilityController, NUM_ITERATIONS);
+
+            benchmarkFirstMessage(classLoader, null, NUM_WARMUP_ITERATIONS);
+            long firstMessageNanos = benchmarkFirstMessage(classLoader, null, NUM_ITERATIONS);
+
+            SharedKryoPool sharedKryoPool = new SharedKryoPool(classLoader);
+            benchmarkFirstMessage(classLoader, sharedKryoPool, NUM_WARMUP_ITERATIONS);
+            long firstMessageSharedNanos = benchmarkFirstMessage(classLoader, sharedKryoPool, NUM_ITERATIONS);
+
+            System.out.println("Session Creation Latency(ns)\tFirst Message Latency(ns)\tFirst Message Latency With Shared Kryo Pool(ns)");
+            System.out.println((((double) sessionCreationNanos) / NUM_ITERATIONS) + "\t" + (((double) firstMessageNanos) / NUM_ITERATIONS) + "\t" + (((double) firstMessageSharedNanos) / NUM_ITERATIONS));
+            System.out.println(sharedKryoPool);
+        }
+        finally {
+            mobilityController.destroy();
+        }
+    }
+
+    static long benchmarkSessionCreation(MobilityController mobilityController, int numIterations) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            mobilityController.getSession(UUID.randomUUID()).release();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    static long benchmarkFirstMessage(ClassLoader classLoader, SharedKryoPool sharedKryoPool, int numIterations) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            // A new serializer per iteration, as a new session would have...
+            KryoSerializer serializer = new KryoSerializer(classLoader, 1, false, sharedKryoPool);
+            serializer.deserialize(serializer.serialize(new SampleTask(i)));
+            serializer.close();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * A task containing the JDK collections typically found in objects sent to remote machines.
+     */
+    static class SampleTask implements Callable<Integer> {
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, Integer> counts = new HashMap<String, Integer>();
+        private final Set<Long> ids = new TreeSet<Long>();
+        private final Date created = new Date();
+
+        SampleTask(int seed) {
+            for (int i = 0; i < 10; i++) {
+                names.add("name" + (seed + i));
+                counts.put("count" + i, seed * i);
+                ids.add((long) seed + i);
+            }
+        }
+
+        @Override
+        public Integer call() {
+            return names.size() + counts.size() + ids.size();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.common.util;
+
+import com.googlecode.mobilityrpc.protocol.processors.impl.ResourceRequestMessageProcessor;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class ClassFileParserTest {
+
+    @Test
+    public void testGetReferencedClassNames() throws Exception {
+        byte[] bytecode = ResourceRequestMessageProcessor.getResourceFromClassLoader(
+                Referencing.class.getName().replace('.', '/') + ".class", getClass().getClassLoader()
+        );
+        Set<String> classNames = ClassFileParser.getReferencedClassNames(bytecode);
+        System.out.println("Referenced classes: " + classNames);
+
+        assertTrue(classNames.contains("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$Superclass"));
+        assertTrue(classNames.contains("java/lang/Runnable"));
+        assertTrue(classNames.contains("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$Instantiated"));
+        assertTrue(classNames.contains("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$ArrayElement"));
+        assertTrue(classNames.contains("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$FieldType"));
+        // The class itself should be excluded...
+        assertFalse(classNames.contains("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$Referencing"));
+    }
+
+    @Test
+    public void testGetFieldReads() throws Exception {
+        byte[] bytecode = ResourceRequestMessageProcessor.getResourceFromClassLoader(
+                Reading.class.getName().replace('.', '/') + ".class", getClass().getClassLoader()
+        );
+        ClassFileParser.FieldReads fieldReads = ClassFileParser.getFieldReads(bytecode);
+        String owner = "com/googlecode/mobilityrpc/common/util/ClassFileParserTest$Reading";
+
+        assertTrue(fieldReads.isFieldRead(owner, "read"));
+        // Written by the constructor but never read...
+        assertFalse(fieldReads.isFieldRead(owner, "written"));
+        assertTrue(fieldReads.isFieldRead("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$Holder", "fieldType"));
+        assertTrue(fieldReads.getInnerClassNames().contains("com/googlecode/mobilityrpc/common/util/ClassFileParserTest$Reading$Nested"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetReferencedClassNames_NotAClassFile() {
+        ClassFileParser.getReferencedClassNames(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    static class Superclass {
+    }
+
+    static class Instantiated {
+    }
+
+    static class ArrayElement {
+    }
+
+    static class FieldType {
+    }
+
+    static class Holder {
+        FieldType fieldType;
+    }
+
+    static class Reading implements Runnable {
+        final Object written = new Object();
+        final String read = "read";
+
+        @Override
+        public void run() {
+            // Switch statements have variable-length instructions, which the parser must skip correctly...
+            switch (read.length()) {
+                case 1: System.out.println(1); break;
+                case 2: System.out.println(2); break;
+                case 3: System.out.println(3); break;
+                default: System.out.println(read);
+            }
+            switch (read.hashCode()) {
+                case 1000: System.out.println(1000); break;
+                case -2000000: System.out.println(-2000000); break;
+                default: System.out.println(new Holder().fieldType);
+            }
+        }
+
+        static class Nested {
+        }
+    }
+
+    static class Referencing extends Superclass implements Runnable {
+        final long aLong = System.currentTimeMillis(); // An 8-byte constant occupies two constant pool entries
+        final double aDouble = Math.random();
+
+        @Override
+        public void run() {
+            new Instantiated();
+            ArrayElement[] array = new ArrayElement[1];
+            System.out.println(array.length + aLong + aDouble + 1234567890123L + 1.5d);
+            System.out.println(new Holder().fieldType);
+        }
+    }
+}
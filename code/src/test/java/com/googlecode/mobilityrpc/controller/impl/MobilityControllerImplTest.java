@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.controller.impl;
+
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.protocol.converters.MasterMessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.*;
+import com.googlecode.mobilityrpc.session.impl.MobilitySessionInternal;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link MobilityControllerImpl}.
+ */
+public class MobilityControllerImplTest {
+
+    @Test
+    public void testReceiveIncomingMessage_SlowRequestInBatchDoesNotDelayResponse() throws InterruptedException {
+        final CountDownLatch requestReleased = new CountDownLatch(1);
+        final CountDownLatch responseReceived = new CountDownLatch(1);
+        // A session which blocks while executing the request, until the response has been received...
+        final MobilitySessionInternal session = (MobilitySessionInternal) Proxy.newProxyInstance(
+                MobilitySessionInternal.class.getClassLoader(),
+                new Class<?>[] {MobilitySessionInternal.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("receiveIncomingExecutionRequest")) {
+                            requestReleased.await(10, TimeUnit.SECONDS);
+                        }
+                        else if (method.getName().equals("receiveExecutionResponse")) {
+                            responseReceived.countDown();
+                        }
+                        return null;
+                    }
+                }
+        );
+        MobilityControllerImpl controller = new MobilityControllerImpl() {
+            @Override
+            public MobilitySessionInternal getMessageHandlingSession(UUID sessionId) {
+                return session;
+            }
+        };
+        try {
+            UUID sessionId = UUID.randomUUID();
+            MasterMessageConverter masterMessageConverter = new MasterMessageConverter();
+            List<byte[]> messages = new ArrayList<byte[]>();
+            messages.add(masterMessageConverter.convertToProtobuf(new ExecutionRequest(
+                    new byte[] {1, 2, 3},
+                    SerializationFormat.KRYO,
+                    ExecutionMode.FIRE_AND_FORGET,
+                    new RequestIdentifier(sessionId, UUID.randomUUID(), "slow")
+            )));
+            messages.add(masterMessageConverter.convertToProtobuf(new ExecutionResponse(
+                    ExecutionResponse.ExecutionOutcome.VOID_RETURNED,
+                    new byte[0],
+                    SerializationFormat.KRYO,
+                    new RequestIdentifier(sessionId, UUID.randomUUID(), "fast")
+            )));
+            controller.receiveIncomingMessage(new ConnectionId("127.0.0.1", 5739), masterMessageConverter.convertToProtobuf(new Batch(messages)));
+
+            assertTrue("Response should be processed while the request in the same batch is still executing", responseReceived.await(5, TimeUnit.SECONDS));
+        }
+        finally {
+            requestReleased.countDown();
+            controller.destroy();
+        }
+    }
+
+    @Test
+    public void testDecodeIncomingMessage_DefinesFrameStringsBeforeRouting() {
+        MobilityControllerImpl controller = new MobilityControllerImpl();
+        try {
+            ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+            MasterMessageConverter masterMessageConverter = new MasterMessageConverter();
+            // A response which will be discarded when processed, because no request is pending for it...
+            byte[] messageData = masterMessageConverter.convertToProtobuf(new ExecutionResponse(
+                    ExecutionResponse.ExecutionOutcome.FAILURE,
+                    new byte[0],
+                    SerializationFormat.KRYO,
+                    new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), "timed out"),
+                    0,
+                    false,
+                    Collections.singletonMap(7, "com.example.Foo")
+            ));
+            List<Object> messages = new ArrayList<Object>();
+            controller.decodeIncomingMessage(connectionId, messageData, messages);
+
+            assertEquals(1, messages.size());
+            // Later exceptions on the connection can refer to the string, whether or not the message is processed...
+            assertEquals("com.example.Foo", controller.getFrameStringTable(connectionId).resolveIncomingId(7));
+        }
+        finally {
+            controller.destroy();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.controller.impl;
+
+import com.googlecode.mobilityrpc.network.Connection;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.OutgoingBulkData;
+import com.googlecode.mobilityrpc.protocol.converters.messages.BatchMessageConverter;
+import com.googlecode.mobilityrpc.protocol.converters.messages.EnvelopeMessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.Batch;
+import com.googlecode.mobilityrpc.protocol.pojo.Envelope;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link OutgoingMessageBatcher}.
+ *
+ * @author Niall Gallagher
+ */
+public class OutgoingMessageBatcherTest {
+
+    static final ConnectionId CONNECTION_ID = new ConnectionId("127.0.0.1", 5739);
+
+    static final long LONG_WINDOW_MICROS = TimeUnit.SECONDS.toMicros(60);
+
+    @Test
+    public void testEnqueueOutgoingMessage_CoalescedUntilWindowElapses() throws InterruptedException {
+        OutgoingMessageBatcher batcher = new OutgoingMessageBatcher(TimeUnit.MILLISECONDS.toMicros(200), 16, 1000);
+        RecordingConnection connection = new RecordingConnection();
+        try {
+            for (int i = 0; i < 3; i++) {
+                batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(i, 10));
+            }
+            // All messages are held back until the window elapses...
+            assertTrue(connection.messagesSent.isEmpty());
+
+            byte[] sent = connection.messagesSent.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Batch should be sent when the window elapses", sent);
+            assertBatchContains(sent, 0, 1, 2);
+            assertNull(connection.messagesSent.poll(300, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            batcher.destroy();
+        }
+    }
+
+    @Test
+    public void testEnqueueOutgoingMessage_FlushedWhenBatchSizeReached() {
+        OutgoingMessageBatcher batcher = new OutgoingMessageBatcher(LONG_WINDOW_MICROS, 16, 40);
+        RecordingConnection connection = new RecordingConnection();
+        try {
+            for (int i = 0; i < 3; i++) {
+                batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(i, 10));
+            }
+            assertTrue(connection.messagesSent.isEmpty());
+
+            // The fourth message brings the combined size to the limit, and so all four should be sent immediately...
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(3, 10));
+            assertEquals(1, connection.messagesSent.size());
+            assertBatchContains(connection.messagesSent.poll(), 0, 1, 2, 3);
+
+            // The next message starts a new window...
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(4, 10));
+            assertTrue(connection.messagesSent.isEmpty());
+        }
+        finally {
+            batcher.destroy();
+        }
+    }
+
+    @Test
+    public void testEnqueueOutgoingMessage_LargeMessageSentAfterPendingMessages() {
+        OutgoingMessageBatcher batcher = new OutgoingMessageBatcher(LONG_WINDOW_MICROS, 16, 1000);
+        RecordingConnection connection = new RecordingConnection();
+        try {
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(0, 10));
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(1, 10));
+            byte[] largeMessage = newMessage(2, 100);
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, largeMessage);
+
+            assertEquals(2, connection.messagesSent.size());
+            assertBatchContains(connection.messagesSent.poll(), 0, 1);
+            // The large message is sent as-is, after the messages which were enqueued before it...
+            assertSame(largeMessage, connection.messagesSent.poll());
+        }
+        finally {
+            batcher.destroy();
+        }
+    }
+
+    @Test
+    public void testEnqueueOutgoingMessage_SingleMessageSentWithoutBatch() throws InterruptedException {
+        OutgoingMessageBatcher batcher = new OutgoingMessageBatcher(TimeUnit.MILLISECONDS.toMicros(10), 16, 1000);
+        RecordingConnection connection = new RecordingConnection();
+        try {
+            byte[] message = newMessage(0, 10);
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, message);
+            assertSame(message, connection.messagesSent.poll(5, TimeUnit.SECONDS));
+        }
+        finally {
+            batcher.destroy();
+        }
+    }
+
+    @Test
+    public void testEnqueueOutgoingMessage_ConnectionsBatchedSeparately() {
+        OutgoingMessageBatcher batcher = new OutgoingMessageBatcher(LONG_WINDOW_MICROS, 16, 20);
+        RecordingConnection connection1 = new RecordingConnection();
+        RecordingConnection connection2 = new RecordingConnection();
+        ConnectionId connectionId2 = new ConnectionId("127.0.0.1", 5740);
+        try {
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection1, newMessage(0, 10));
+            batcher.enqueueOutgoingMessage(connectionId2, connection2, newMessage(1, 10));
+            assertTrue(connection1.messagesSent.isEmpty());
+            assertTrue(connection2.messagesSent.isEmpty());
+
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection1, newMessage(2, 10));
+            assertBatchContains(connection1.messagesSent.poll(), 0, 2);
+            assertTrue(connection2.messagesSent.isEmpty());
+        }
+        finally {
+            batcher.destroy();
+        }
+    }
+
+    @Test
+    public void testNotifyConnectionClosed_DiscardsPendingMessages() throws InterruptedException {
+        OutgoingMessageBatcher batcher = new OutgoingMessageBatcher(TimeUnit.MILLISECONDS.toMicros(50), 16, 1000);
+        RecordingConnection connection = new RecordingConnection();
+        try {
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(0, 10));
+            batcher.enqueueOutgoingMessage(CONNECTION_ID, connection, newMessage(1, 10));
+            batcher.notifyConnectionClosed(CONNECTION_ID);
+            assertNull(connection.messagesSent.poll(300, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            batcher.destroy();
+        }
+    }
+
+    /**
+     * Returns a message of the given length in which every byte is the given value.
+     */
+    static byte[] newMessage(int value, int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) value);
+        return message;
+    }
+
+    static void assertBatchContains(byte[] messageDataInEnvelope, int... expectedValues) {
+        Envelope envelope = new EnvelopeMessageConverter().convertFromProtobuf(messageDataInEnvelope);
+        assertEquals(Envelope.MessageType.BATCH, envelope.getMessageType());
+        List<byte[]> messages = new BatchMessageConverter().convertFromProtobuf(envelope.getMessage()).getMessages();
+        assertEquals(expectedValues.length, messages.size());
+        for (int i = 0; i < expectedValues.length; i++) {
+            assertEquals(expectedValues[i], messages.get(i)[0]);
+        }
+    }
+
+    static class RecordingConnection implements Connection {
+        final BlockingQueue<byte[]> messagesSent = new LinkedBlockingQueue<byte[]>();
+
+        @Override
+        public ConnectionId getConnectionId() {
+            return CONNECTION_ID;
+        }
+
+        @Override
+        public void enqueueOutgoingMessage(byte[] message) {
+            messagesSent.add(message);
+        }
+
+        @Override
+        public void enqueueOutgoingBulkData(OutgoingBulkData bulkData) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters;
+
+import com.googlecode.mobilityrpc.protocol.converters.messages.BatchMessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.Batch;
+import com.googlecode.mobilityrpc.protocol.pojo.Envelope;
+import com.googlecode.mobilityrpc.protocol.pojo.Ping;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Niall Gallagher
+ */
+public class BatchMessageConverterTest {
+
+    @Test
+    public void testBatchMessageConverter() {
+        MasterMessageConverter masterMessageConverter = new MasterMessageConverter();
+        List<byte[]> messages = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(masterMessageConverter.convertToProtobuf(new Ping(UUID.randomUUID(), "ping " + i)));
+        }
+        BatchMessageConverter converter = new BatchMessageConverter();
+
+        byte[] serialized = converter.convertToProtobuf(new Batch(messages));
+        System.out.println("Serialized to: " + serialized.length + " bytes");
+        Batch output = converter.convertFromProtobuf(serialized);
+        System.out.println("Output: " + output);
+
+        assertEquals(3, output.getMessages().size());
+        for (int i = 0; i < 3; i++) {
+            Ping ping = (Ping) masterMessageConverter.convertFromProtobuf(output.getMessages().get(i));
+            assertEquals("ping " + i, ping.getMessage());
+        }
+    }
+
+    @Test
+    public void testBatchInEnvelope() {
+        MasterMessageConverter masterMessageConverter = new MasterMessageConverter();
+        List<byte[]> messages = new ArrayList<byte[]>();
+        messages.add(masterMessageConverter.convertToProtobuf(new Ping(UUID.randomUUID(), "foo")));
+
+        byte[] serialized = masterMessageConverter.convertToProtobuf(new Batch(messages));
+        Envelope envelope = new MessageConverterRegistry().getConverter(Envelope.class).convertFromProtobuf(serialized);
+
+        assertEquals(Envelope.MessageType.BATCH, envelope.getMessageType());
+        Batch output = (Batch) masterMessageConverter.convertFromProtobuf(serialized);
+        assertEquals(1, output.getMessages().size());
+    }
+}
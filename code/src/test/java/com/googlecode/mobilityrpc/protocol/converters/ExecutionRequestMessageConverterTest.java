@@ -15,17 +15,24 @@
  */
 package com.googlecode.mobilityrpc.protocol.converters;
 
+import com.googlecode.mobilityrpc.protocol.converters.components.SessionAliasTable;
 import com.googlecode.mobilityrpc.protocol.converters.messages.ExecutionRequestMessageConverter;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionMode;
 import com.googlecode.mobilityrpc.protocol.pojo.ExecutionRequest;
 import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
 import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.UUID;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Niall Gallagher
@@ -54,5 +61,169 @@ public class ExecutionRequestMessageConverterTest {
         assertEquals(SerializationFormat.KRYO, output.getSerializationFormat());
         assertEquals(ExecutionMode.RETURN_RESPONSE, output.getExecutionMode());
         assertEquals(new RequestIdentifier(sessionId, requestId, "foo"), output.getRequestIdentifier());
+        assertEquals(false, output.isMemoizable());
+    }
+
+    @Test
+    public void testMessageExecutionRequestConverter_Memoizable() {
+        ExecutionRequestMessageConverter converter = new ExecutionRequestMessageConverter();
+        UUID sessionId = UUID.randomUUID();
+        UUID requestId = UUID.randomUUID();
+
+        ExecutionRequest input = new ExecutionRequest(
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                ExecutionMode.RETURN_RESPONSE,
+                new RequestIdentifier(sessionId, requestId, null),
+                true
+        );
+
+        byte[] serialized = converter.convertToProtobuf(input);
+        System.out.println("Serialized to: " + serialized.length + " bytes");
+        ExecutionRequest output = converter.convertFromProtobuf(serialized);
+        System.out.println("Output: " + output);
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, output.getSerializedExecutableObject());
+        assertEquals(true, output.isMemoizable());
+    }
+
+    @Test
+    public void testMessageExecutionRequestConverter_PushedResourceData() {
+        ExecutionRequestMessageConverter converter = new ExecutionRequestMessageConverter();
+
+        ExecutionRequest input = new ExecutionRequest(
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                ExecutionMode.RETURN_RESPONSE,
+                new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), null),
+                false,
+                Arrays.asList(
+                        new ResourceResponse.ResourceData("com/foo/Bar.class", new byte[] {6, 7, 8}),
+                        new ResourceResponse.ResourceData("com/foo/Baz.class", new byte[] {9})
+                )
+        );
+
+        byte[] serialized = converter.convertToProtobuf(input);
+        System.out.println("Serialized to: " + serialized.length + " bytes");
+        ExecutionRequest output = converter.convertFromProtobuf(serialized);
+        System.out.println("Output: " + output);
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, output.getSerializedExecutableObject());
+        assertEquals(input.getPushedResourceData(), output.getPushedResourceData());
+    }
+
+    @Test
+    public void testMessageExecutionRequestConverter_CodebaseFingerprint() {
+        ExecutionRequestMessageConverter converter = new ExecutionRequestMessageConverter();
+
+        ExecutionRequest input = new ExecutionRequest(
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                ExecutionMode.RETURN_RESPONSE,
+                new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), null),
+                false,
+                Collections.<ResourceResponse.ResourceData>emptyList(),
+                new byte[] {6, 7, 8}
+        );
+
+        ExecutionRequest output = converter.convertFromProtobuf(converter.convertToProtobuf(input));
+        assertArrayEquals(new byte[]{6, 7, 8}, output.getCodebaseFingerprint());
+        assertNull(converter.convertFromProtobuf(converter.convertToProtobuf(new ExecutionRequest(
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                ExecutionMode.RETURN_RESPONSE,
+                new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), null)
+        ))).getCodebaseFingerprint());
+    }
+
+    @Test
+    public void testMessageExecutionRequestConverter_CompactRequestIdentifiers() {
+        ExecutionRequestMessageConverter converter = new ExecutionRequestMessageConverter();
+        UUID sessionId = UUID.randomUUID();
+        SessionAliasTable senderTable = new SessionAliasTable();
+        SessionAliasTable receiverTable = new SessionAliasTable();
+
+        byte[][] serialized = new byte[2][];
+        for (int i = 0; i < serialized.length; i++) {
+            ExecutionRequest input = new ExecutionRequest(
+                    new byte[] {1,2,3,4,5},
+                    SerializationFormat.KRYO,
+                    ExecutionMode.RETURN_RESPONSE,
+                    new RequestIdentifier(sessionId, RequestIdentifier.sequentialRequestId(i + 1), "foo")
+            );
+            SessionAliasTable.setCurrentTable(senderTable);
+            try {
+                serialized[i] = converter.convertToProtobuf(input);
+                senderTable.confirmOutgoingDefinitions();
+            }
+            finally {
+                SessionAliasTable.setCurrentTable(null);
+            }
+            System.out.println("Serialized to: " + serialized[i].length + " bytes");
+        }
+        // The second message should omit the session id, which was defined by the first message...
+        assertTrue(serialized[1].length < serialized[0].length);
+
+        // The receiver should learn the alias from the first message, and resolve it for the second...
+        final ExecutionRequest[] outputs = new ExecutionRequest[2];
+        SessionAliasTable.setCurrentTable(receiverTable);
+        try {
+            outputs[0] = converter.convertFromProtobuf(serialized[0]);
+            outputs[1] = converter.convertFromProtobuf(serialized[1]);
+        }
+        finally {
+            SessionAliasTable.setCurrentTable(null);
+        }
+        for (int i = 0; i < outputs.length; i++) {
+            System.out.println("Output: " + outputs[i]);
+            assertEquals(new RequestIdentifier(sessionId, RequestIdentifier.sequentialRequestId(i + 1), null), outputs[i].getRequestIdentifier());
+        }
+    }
+
+    @Test
+    public void testMessageExecutionRequestConverter_UndefinedSessionAlias() {
+        ExecutionRequestMessageConverter converter = new ExecutionRequestMessageConverter();
+        UUID sessionId = UUID.randomUUID();
+        SessionAliasTable senderTable = new SessionAliasTable();
+        // Send a message defining the alias, so that the next message carries only the alias...
+        SessionAliasTable.setCurrentTable(senderTable);
+        try {
+            converter.convertToProtobuf(new ExecutionRequest(
+                    new byte[] {1,2,3,4,5},
+                    SerializationFormat.KRYO,
+                    ExecutionMode.RETURN_RESPONSE,
+                    new RequestIdentifier(sessionId, RequestIdentifier.sequentialRequestId(1), "foo")
+            ));
+            senderTable.confirmOutgoingDefinitions();
+        }
+        finally {
+            SessionAliasTable.setCurrentTable(null);
+        }
+        byte[] aliasOnly;
+        SessionAliasTable.setCurrentTable(senderTable);
+        try {
+            aliasOnly = converter.convertToProtobuf(new ExecutionRequest(
+                    new byte[] {1,2,3,4,5},
+                    SerializationFormat.KRYO,
+                    ExecutionMode.RETURN_RESPONSE,
+                    new RequestIdentifier(sessionId, RequestIdentifier.sequentialRequestId(2), "foo")
+            ));
+        }
+        finally {
+            SessionAliasTable.setCurrentTable(null);
+        }
+        // A receiver which never saw the definition should fail immediately, rather than wait for it...
+        long startTime = System.currentTimeMillis();
+        SessionAliasTable.setCurrentTable(new SessionAliasTable());
+        try {
+            converter.convertFromProtobuf(aliasOnly);
+            fail("Expected an exception for an undefined session alias");
+        }
+        catch (IllegalStateException expected) {
+            assertTrue(System.currentTimeMillis() - startTime < 1000);
+        }
+        finally {
+            SessionAliasTable.setCurrentTable(null);
+        }
     }
 }
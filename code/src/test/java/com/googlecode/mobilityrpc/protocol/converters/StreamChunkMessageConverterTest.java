@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters;
+
+import com.googlecode.mobilityrpc.protocol.converters.messages.StreamChunkMessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+import com.googlecode.mobilityrpc.session.BulkData;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StreamChunkMessageConverterTest {
+
+    @Test
+    public void testStreamChunkMessageConverter() {
+        StreamChunkMessageConverter converter = new StreamChunkMessageConverter();
+        UUID sessionId = UUID.randomUUID();
+        UUID requestId = UUID.randomUUID();
+
+        StreamChunk input = new StreamChunk(
+                StreamChunk.ChunkType.ELEMENTS,
+                3,
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                new RequestIdentifier(sessionId, requestId, "foo")
+        );
+
+        byte[] serialized = converter.convertToProtobuf(input);
+        System.out.println("Serialized to: " + serialized.length + " bytes");
+        StreamChunk output = converter.convertFromProtobuf(serialized);
+        System.out.println("Output: " + output);
+
+        assertEquals(StreamChunk.ChunkType.ELEMENTS, output.getChunkType());
+        assertEquals(3, output.getSequenceNumber());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, output.getSerializedElements());
+        assertEquals(SerializationFormat.KRYO, output.getSerializationFormat());
+        assertEquals(new RequestIdentifier(sessionId, requestId, "foo"), output.getRequestIdentifier());
+        assertEquals(0, output.getBulkDataIds().length);
+        assertTrue(output.getFrameStringDefinitions().isEmpty());
+    }
+
+    @Test
+    public void testFrameStringDefinitions() {
+        StreamChunkMessageConverter converter = new StreamChunkMessageConverter();
+        Map<Integer, String> frameStringDefinitions = new HashMap<Integer, String>();
+        frameStringDefinitions.put(0, "com.example.Foo");
+        frameStringDefinitions.put(1, "bar");
+        StreamChunk input = new StreamChunk(
+                StreamChunk.ChunkType.FAILURE,
+                0,
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), "foo"),
+                frameStringDefinitions
+        );
+
+        StreamChunk output = converter.convertFromProtobuf(converter.convertToProtobuf(input));
+        assertEquals(frameStringDefinitions, output.getFrameStringDefinitions());
+    }
+
+    @Test
+    public void testBulkDataIdsSentAhead() {
+        StreamChunkMessageConverter converter = new StreamChunkMessageConverter();
+        BulkDataStore bulkDataStore = new BulkDataStore();
+        BulkDataStore.setCurrentConnection(bulkDataStore, null);
+        long bulkDataId = bulkDataStore.registerOutgoing(BulkData.wrap(new byte[(int) BulkDataStore.MIN_SIDE_CHANNEL_BYTES]));
+        BulkDataStore.setCurrentConnection(null, null);
+        // The sending thread enqueues the bulk data, and then the chunk which refers to it...
+        BulkDataStore.takePendingOutgoing();
+        StreamChunk input = new StreamChunk(
+                StreamChunk.ChunkType.BYTES,
+                0,
+                new byte[] {1,2,3,4,5},
+                SerializationFormat.KRYO,
+                new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), "foo")
+        );
+
+        StreamChunk output = converter.convertFromProtobuf(converter.convertToProtobuf(input));
+        assertEquals(1, output.getBulkDataIds().length);
+        assertEquals(bulkDataId, output.getBulkDataIds()[0]);
+
+        // A subsequent message should not refer to the same bulk data...
+        output = converter.convertFromProtobuf(converter.convertToProtobuf(input));
+        assertEquals(0, output.getBulkDataIds().length);
+    }
+}
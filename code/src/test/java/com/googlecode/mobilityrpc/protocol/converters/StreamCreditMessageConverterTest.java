@@ -0,0 +1,60 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.converters;
+
+import com.googlecode.mobilityrpc.protocol.converters.messages.StreamCreditMessageConverter;
+import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamCredit;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StreamCreditMessageConverterTest {
+
+    @Test
+    public void testStreamCreditMessageConverter() {
+        StreamCreditMessageConverter converter = new StreamCreditMessageConverter();
+        UUID sessionId = UUID.randomUUID();
+        UUID requestId = UUID.randomUUID();
+
+        StreamCredit input = new StreamCredit(2, false, new RequestIdentifier(sessionId, requestId, "foo"));
+
+        byte[] serialized = converter.convertToProtobuf(input);
+        System.out.println("Serialized to: " + serialized.length + " bytes");
+        StreamCredit output = converter.convertFromProtobuf(serialized);
+        System.out.println("Output: " + output);
+
+        assertEquals(2, output.getCredits());
+        assertEquals(false, output.isCancel());
+        assertEquals(new RequestIdentifier(sessionId, requestId, "foo"), output.getRequestIdentifier());
+    }
+
+    @Test
+    public void testStreamCreditMessageConverter_Cancel() {
+        StreamCreditMessageConverter converter = new StreamCreditMessageConverter();
+        StreamCredit input = new StreamCredit(0, true, new RequestIdentifier(UUID.randomUUID(), UUID.randomUUID(), null));
+
+        StreamCredit output = converter.convertFromProtobuf(converter.convertToProtobuf(input));
+
+        assertEquals(0, output.getCredits());
+        assertEquals(true, output.isCancel());
+    }
+}
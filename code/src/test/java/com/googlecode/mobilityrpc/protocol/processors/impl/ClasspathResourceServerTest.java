@@ -0,0 +1,153 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.protocol.processors.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class ClasspathResourceServerTest {
+
+    @Test
+    public void testGetResource_Cached() {
+        CountingClassLoader classLoader = new CountingClassLoader();
+        ClasspathResourceServer resourceServer = new ClasspathResourceServer(1000, false);
+        ClasspathResourceServer.CachedResource first = resourceServer.getResource("com/foo/Bar.class", classLoader);
+        ClasspathResourceServer.CachedResource second = resourceServer.getResource("com/foo/Bar.class", classLoader);
+        assertNotNull(first);
+        assertSame(first, second);
+        assertArrayEquals("com/foo/Bar.class".getBytes(), first.getResourceData());
+        assertSame(first.getContentHash(), second.getContentHash());
+        assertEquals(1, classLoader.requests.get());
+
+        // A different class loader might supply different bytecode for the same name...
+        CountingClassLoader otherClassLoader = new CountingClassLoader();
+        assertNotNull(resourceServer.getResource("com/foo/Bar.class", otherClassLoader));
+        assertEquals(1, otherClassLoader.requests.get());
+        assertEquals(2, resourceServer.size());
+    }
+
+    @Test
+    public void testGetResource_Missing() {
+        ClasspathResourceServer resourceServer = new ClasspathResourceServer(1000, false);
+        assertNull(resourceServer.getResource("com/foo/Missing.class", new CountingClassLoader()));
+        assertEquals(0, resourceServer.size());
+    }
+
+    @Test
+    public void testEvictionBySize() {
+        CountingClassLoader classLoader = new CountingClassLoader();
+        // Each resource is 17 bytes, so only two fit...
+        ClasspathResourceServer resourceServer = new ClasspathResourceServer(40, false);
+        resourceServer.getResource("com/foo/Aaa.class", classLoader);
+        resourceServer.getResource("com/foo/Bbb.class", classLoader);
+        // Access the first resource, so the second becomes least recently used...
+        resourceServer.getResource("com/foo/Aaa.class", classLoader);
+        resourceServer.getResource("com/foo/Ccc.class", classLoader);
+        assertEquals(2, resourceServer.size());
+        assertEquals(3, classLoader.requests.get());
+
+        resourceServer.getResource("com/foo/Aaa.class", classLoader);
+        assertEquals(3, classLoader.requests.get());
+        resourceServer.getResource("com/foo/Bbb.class", classLoader);
+        assertEquals(4, classLoader.requests.get());
+    }
+
+    @Test
+    public void testJarIndex_FollowsManifestClassPath() throws Exception {
+        File directory = File.createTempFile("mobility-rpc-jars", "");
+        directory.delete();
+        directory.mkdir();
+        File mainJar = new File(directory, "main.jar");
+        File libJar = new File(directory, "lib.jar");
+        try {
+            writeJar(mainJar, "com/foo/Main.class", "lib.jar");
+            writeJar(libJar, "com/foo/Lib.class", null);
+            URLClassLoader classLoader = new URLClassLoader(new URL[] {mainJar.toURI().toURL()}, null);
+
+            ClasspathResourceServer.JarIndex jarIndex = ClasspathResourceServer.JarIndex.build(classLoader);
+            assertNotNull(jarIndex.entries);
+            assertTrue(jarIndex.entries.contains("com/foo/Main.class"));
+            assertTrue(jarIndex.entries.contains("com/foo/Lib.class"));
+
+            // The class loader finds the resource in the referenced jar, so the index must not report it missing...
+            ClasspathResourceServer resourceServer = new ClasspathResourceServer(1000, true);
+            assertFalse(resourceServer.isKnownMissing("com/foo/Lib.class", classLoader));
+            assertTrue(resourceServer.isKnownMissing("com/foo/Missing.class", classLoader));
+            assertNotNull(resourceServer.getResource("com/foo/Lib.class", classLoader));
+        }
+        finally {
+            mainJar.delete();
+            libJar.delete();
+            directory.delete();
+        }
+    }
+
+    static void writeJar(File file, String entryName, String manifestClasspath) throws Exception {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (manifestClasspath != null) {
+            manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, manifestClasspath);
+        }
+        JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(file), manifest);
+        try {
+            jarOutputStream.putNextEntry(new JarEntry(entryName));
+            jarOutputStream.write(entryName.getBytes());
+            jarOutputStream.closeEntry();
+        }
+        finally {
+            jarOutputStream.close();
+        }
+    }
+
+    /**
+     * Supplies the bytes of the name of any requested resource as its content, except for resources named Missing.
+     */
+    static class CountingClassLoader extends ClassLoader {
+        final AtomicInteger requests = new AtomicInteger();
+
+        CountingClassLoader() {
+            super(null);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            requests.incrementAndGet();
+            return name.contains("Missing") ? null : new ByteArrayInputStream(name.getBytes());
+        }
+    }
+}
@@ -19,7 +19,15 @@ import com.googlecode.mobilityrpc.serialization.impl.KryoSerializer;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Unit test for serialization/deserialization.
@@ -88,6 +96,105 @@ public class SerializationTest {
         assertEquals("foo=Foo{bar=5}, outer=Outer{foo=Foo{bar=5}, callable=baz}", output);
     }
 
+    /**
+     * Tests that threads can serialize and deserialize objects concurrently via the same serializer.
+     */
+    @Test
+    public void testSerializer_Concurrent() throws Exception {
+        final Serializer serializer = new KryoSerializer(getClass().getClassLoader(), 2);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                final int threadNumber = i;
+                futures.add(executorService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int j = 0; j < 1000; j++) {
+                            Foo foo = new Foo(threadNumber * 1000 + j);
+                            if (!foo.equals(serializer.deserialize(serializer.serialize(foo)))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Tests serializing into and deserializing from caller-supplied buffers.
+     */
+    @Test
+    public void testSerializer_Buffers() {
+        Serializer serializer = new KryoSerializer(getClass().getClassLoader());
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) 99);
+        int firstLength = serializer.serialize(new Foo(1), buffer);
+        int secondLength = serializer.serialize(new Foo(2), buffer);
+        assertEquals(1 + firstLength + secondLength, buffer.position());
+
+        buffer.flip();
+        buffer.get();
+        assertEquals(new Foo(1), serializer.deserialize(buffer));
+        assertEquals(new Foo(2), serializer.deserialize(buffer));
+        assertEquals(0, buffer.remaining());
+
+        byte[] serializedData = buffer.array();
+        assertEquals(new Foo(2), serializer.deserialize(serializedData, 1 + firstLength, secondLength));
+        // The byte[] variant should produce the same data...
+        byte[] expected = new byte[firstLength];
+        System.arraycopy(serializedData, 1, expected, 0, firstLength);
+        assertArrayEquals(expected, serializer.serialize(new Foo(1)));
+    }
+
+    /**
+     * Tests serializing primitive arrays via unsafe input and output, including after the output buffer has grown.
+     */
+    @Test
+    public void testSerializer_Unsafe() {
+        Serializer serializer = new KryoSerializer(getClass().getClassLoader(), 1, true);
+        double[] doubles = new double[10000];
+        long[] longs = new long[10000];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = i * 1.5;
+            longs[i] = -i * 1000000007L;
+        }
+        Object[] input = new Object[] {doubles, longs, new Foo(5)};
+        Object[] output = (Object[]) serializer.deserialize(serializer.serialize(input));
+        assertArrayEquals(doubles, (double[]) output[0], 0.0);
+        assertArrayEquals(longs, (long[]) output[1]);
+        assertEquals(new Foo(5), output[2]);
+        // Pooled instance should be reused for subsequent objects...
+        assertEquals(new Foo(6), serializer.deserialize(serializer.serialize(new Foo(6))));
+    }
+
+    @Test
+    public void testSerializer_Streams() {
+        for (boolean unsafe : new boolean[] {false, true}) {
+            Serializer serializer = new KryoSerializer(getClass().getClassLoader(), 1, unsafe);
+            long[] longs = new long[100000];
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = i * 31L;
+            }
+            Object[] input = new Object[] {longs, new Foo(7)};
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            serializer.serialize(input, outputStream);
+            // The stream should contain the same serialized form as the byte array...
+            assertArrayEquals(serializer.serialize(input), outputStream.toByteArray());
+            Object[] output = (Object[]) serializer.deserialize(new ByteArrayInputStream(outputStream.toByteArray()));
+            assertArrayEquals(longs, (long[]) output[0]);
+            assertEquals(new Foo(7), output[1]);
+        }
+    }
+
     /**
      * Tests the ability to serialize null.
      */
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.OutgoingBulkData;
+import com.googlecode.mobilityrpc.session.BulkData;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Niall Gallagher
+ */
+public class BulkDataStoreTest {
+
+    private final ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+
+    @Test
+    public void testSideChannelRoundTrip() throws Exception {
+        BulkDataStore senderStore = new BulkDataStore();
+        BulkDataStore receiverStore = new BulkDataStore(1024, null);
+        byte[] small = createData(1000);
+        byte[] large = createData((int) BulkDataStore.MIN_SIDE_CHANNEL_BYTES);
+        BulkData largeBulkData = BulkData.wrap(large);
+        List<BulkData> object = new ArrayList<BulkData>(Arrays.asList(BulkData.wrap(small), largeBulkData, largeBulkData, BulkData.wrap(large)));
+
+        byte[] serialized = serialize(senderStore, object);
+        List<OutgoingBulkData> pending = BulkDataStore.takePendingOutgoing();
+        // Only the large data should be sent separately, and only once for each instance...
+        assertEquals(2, pending.size());
+        assertTrue(serialized.length < large.length);
+        assertTrue(BulkDataStore.takePendingOutgoing().isEmpty());
+
+        // Simulate sending the segments on the connection...
+        for (OutgoingBulkData bulkData : pending) {
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            bulkData.transferTo(Channels.newChannel(segment));
+            assertEquals(bulkData.getLength(), segment.size());
+            receiverStore.receiveIncoming(connectionId, bulkData.getBulkDataId(), bulkData.getLength(), Channels.newChannel(new ByteArrayInputStream(segment.toByteArray())));
+        }
+        assertEquals(2, receiverStore.getIncomingCount());
+
+        List<?> deserialized = deserialize(receiverStore, serialized);
+        assertArrayEquals(small, ((BulkData) deserialized.get(0)).toByteArray());
+        assertArrayEquals(large, ((BulkData) deserialized.get(1)).toByteArray());
+        assertArrayEquals(large, ((BulkData) deserialized.get(3)).toByteArray());
+        assertEquals(0, receiverStore.getIncomingCount());
+    }
+
+    @Test
+    public void testReceiveConsumesExactLength() throws Exception {
+        BulkDataStore directStore = new BulkDataStore(1024, null);
+        BulkDataStore fileStore = new BulkDataStore(0, null);
+        for (BulkDataStore store : Arrays.asList(directStore, fileStore)) {
+            byte[] data = createData(100);
+            InputStream inputStream = new ByteArrayInputStream(createData(101));
+            store.receiveIncoming(connectionId, 7, 100, Channels.newChannel(inputStream));
+            // The byte after the bulk data should remain in the stream...
+            assertEquals(100, inputStream.read());
+            BulkData bulkData = store.claimIncoming(connectionId, 7);
+            // Data larger than the threshold should be held in a temporary file...
+            assertEquals(store == fileStore, bulkData.toString().contains("file="));
+            assertArrayEquals(data, bulkData.toByteArray());
+            assertTrue(bulkData.getByteBuffer().isDirect());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReceiveTruncatedStream() {
+        new BulkDataStore(0, null).receiveIncoming(connectionId, 1, 100, Channels.newChannel(new ByteArrayInputStream(createData(50))));
+    }
+
+    @Test
+    public void testNotifyConnectionClosed() {
+        BulkDataStore store = new BulkDataStore(0, null);
+        store.receiveIncoming(connectionId, 1, 10, Channels.newChannel(new ByteArrayInputStream(createData(10))));
+        assertEquals(1, store.getIncomingCount());
+        store.notifyConnectionClosed(connectionId);
+        assertEquals(0, store.getIncomingCount());
+    }
+
+    @Test
+    public void testIdsSentAheadRecordedForNextMessage() {
+        BulkDataStore store = new BulkDataStore();
+        byte[] large = createData((int) BulkDataStore.MIN_SIDE_CHANNEL_BYTES);
+        serialize(store, new ArrayList<BulkData>(Arrays.asList(BulkData.wrap(large), BulkData.wrap(large))));
+        List<OutgoingBulkData> pending = BulkDataStore.takePendingOutgoing();
+        assertEquals(2, pending.size());
+        assertEquals(Arrays.toString(new long[] {pending.get(0).getBulkDataId(), pending.get(1).getBulkDataId()}), Arrays.toString(BulkDataStore.takeIdsSentAhead()));
+        // Only the message enqueued after the bulk data should refer to it...
+        assertEquals(0, BulkDataStore.takeIdsSentAhead().length);
+        BulkDataStore.takePendingOutgoing();
+        assertEquals(0, BulkDataStore.takeIdsSentAhead().length);
+    }
+
+    @Test
+    public void testReleaseIncoming() {
+        BulkDataStore store = new BulkDataStore(0, null);
+        store.receiveIncoming(connectionId, 1, 10, Channels.newChannel(new ByteArrayInputStream(createData(10))));
+        store.receiveIncoming(connectionId, 2, 10, Channels.newChannel(new ByteArrayInputStream(createData(10))));
+        store.receiveIncoming(connectionId, 3, 10, Channels.newChannel(new ByteArrayInputStream(createData(10))));
+        assertArrayEquals(createData(10), store.claimIncoming(connectionId, 1).toByteArray());
+        // A discarded message which referred to bulk data already claimed, and to bulk data not yet claimed...
+        store.releaseIncoming(connectionId, new long[] {1, 2});
+        assertEquals(1, store.getIncomingCount());
+        assertArrayEquals(createData(10), store.claimIncoming(connectionId, 3).toByteArray());
+        assertEquals(0, store.getIncomingCount());
+    }
+
+    @Test
+    public void testUnclaimedBulkDataExpires() throws Exception {
+        BulkDataStore store = new BulkDataStore(0, null, 50);
+        store.receiveIncoming(connectionId, 1, 10, Channels.newChannel(new ByteArrayInputStream(createData(10))));
+        store.receiveIncoming(connectionId, 2, 10, Channels.newChannel(new ByteArrayInputStream(createData(10))));
+        BulkData claimed = store.claimIncoming(connectionId, 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getIncomingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, store.getIncomingCount());
+        // Bulk data claimed before it expired should not be released...
+        assertArrayEquals(createData(10), claimed.toByteArray());
+        try {
+            store.claimIncoming(connectionId, 2);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("not claimed within 50 milliseconds"));
+        }
+    }
+
+    @Test
+    public void testTransferFromFile() throws Exception {
+        byte[] data = createData(100000);
+        File file = File.createTempFile("bulk-data-test-", ".tmp");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(data);
+            outputStream.close();
+            ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+            BulkData.fromFile(file).transferTo(Channels.newChannel(transferred));
+            assertArrayEquals(data, transferred.toByteArray());
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    static byte[] serialize(BulkDataStore store, Object object) {
+        BulkDataStore.setCurrentConnection(store, null);
+        try {
+            Output output = new Output(1024, -1);
+            createKryo().writeClassAndObject(output, object);
+            return output.toBytes();
+        }
+        finally {
+            BulkDataStore.setCurrentConnection(null, null);
+        }
+    }
+
+    List<?> deserialize(BulkDataStore store, byte[] serialized) {
+        BulkDataStore.setCurrentConnection(store, connectionId);
+        try {
+            return (List<?>) createKryo().readClassAndObject(new Input(serialized));
+        }
+        finally {
+            BulkDataStore.setCurrentConnection(null, null);
+        }
+    }
+
+    static Kryo createKryo() {
+        Kryo kryo = new Kryo();
+        kryo.register(BulkData.class, new BulkDataSerializer());
+        return kryo;
+    }
+
+    static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
+import com.googlecode.mobilityrpc.serialization.Foo;
+import org.junit.Test;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Niall Gallagher
+ */
+public class CompactClassResolverTest {
+
+    @Test
+    public void testCompactClassIds() {
+        Kryo sender = createKryo();
+        Kryo receiver = createKryo();
+        ClassIdTable senderTable = new ClassIdTable();
+        ClassIdTable receiverTable = new ClassIdTable();
+
+        byte[] first = serialize(sender, senderTable, new Foo(1));
+        // The receiver acknowledged the first message...
+        senderTable.confirmOutgoingDefinitions(senderTable.takeOutgoingDefinitions());
+        byte[] second = serialize(sender, senderTable, new Foo(2));
+        assertTrue(senderTable.takeOutgoingDefinitions().isEmpty());
+        byte[] withoutTable = serialize(sender, null, new Foo(3));
+
+        // The second message should omit the class name, which was defined by the first message...
+        assertTrue(second.length < first.length);
+        assertTrue(second.length < withoutTable.length / 4);
+
+        assertEquals(new Foo(1), deserialize(receiver, receiverTable, first));
+        assertEquals(new Foo(2), deserialize(receiver, receiverTable, second));
+        // Objects serialized without compact class ids should still be readable...
+        assertEquals(new Foo(3), deserialize(receiver, receiverTable, withoutTable));
+    }
+
+    @Test
+    public void testUnconfirmedDefinitionsResent() {
+        Kryo sender = createKryo();
+        ClassIdTable senderTable = new ClassIdTable();
+
+        byte[] first = serialize(sender, senderTable, new Foo(1));
+        // Not confirmed, e.g. the message was not sent, so the next message must define the class again...
+        byte[] second = serialize(sender, senderTable, new Foo(2));
+        assertEquals(first.length, second.length);
+        assertEquals(new Foo(2), deserialize(createKryo(), new ClassIdTable(), second));
+    }
+
+    @Test
+    public void testUndefinedClassIdFailsImmediately() {
+        Kryo sender = createKryo();
+        ClassIdTable senderTable = new ClassIdTable();
+        serialize(sender, senderTable, new Foo(1));
+        senderTable.confirmOutgoingDefinitions(senderTable.takeOutgoingDefinitions());
+        byte[] second = serialize(sender, senderTable, new Foo(2));
+
+        // A receiver which never saw the definition cannot resolve the id, and must not wait for it...
+        long start = System.currentTimeMillis();
+        try {
+            deserialize(createKryo(), new ClassIdTable(), second);
+            fail("Expected exception");
+        }
+        catch (RuntimeException expected) {
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    @Test
+    public void testPendingDefinitionsTrackedPerTable() {
+        Kryo sender = createKryo();
+        ClassIdTable firstTable = new ClassIdTable();
+        ClassIdTable secondTable = new ClassIdTable();
+        serialize(sender, firstTable, new Foo(1));
+        // Serializing for another connection must not discard or take over the definitions pending for the first...
+        serialize(sender, secondTable, new Foo(2));
+        assertEquals(1, firstTable.takeOutgoingDefinitions().size());
+        assertEquals(1, secondTable.takeOutgoingDefinitions().size());
+        assertTrue(firstTable.takeOutgoingDefinitions().isEmpty());
+    }
+
+    @Test
+    public void testDiscardRegistrationsNotVisibleTo() throws Exception {
+        ClassLoader libraryClassLoader = getClass().getClassLoader();
+        // A copy of Foo defined by a child class loader, as mobile code would be...
+        Class<?> mobileClass = new MobileCodeClassLoader(libraryClassLoader).defineCopy(Foo.class);
+        Kryo kryo = createKryo();
+        Registration libraryRegistration = kryo.getRegistration(ArrayList.class);
+        Registration mobileRegistration = kryo.getRegistration(mobileClass);
+
+        assertEquals(1, ((CompactClassResolver) kryo.getClassResolver()).discardRegistrationsNotVisibleTo(libraryClassLoader));
+        assertSame(libraryRegistration, kryo.getRegistration(ArrayList.class));
+        assertNotSame(mobileRegistration, kryo.getRegistration(mobileClass));
+    }
+
+    static Kryo createKryo() {
+        Kryo kryo = new Kryo(new CompactClassResolver(), new MapReferenceResolver());
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        CompactClassResolver.reserveRegistrationId(kryo);
+        return kryo;
+    }
+
+    static byte[] serialize(Kryo kryo, ClassIdTable classIdTable, Object object) {
+        ClassIdTable.setCurrentTable(classIdTable);
+        try {
+            Output output = new Output(256, -1);
+            kryo.writeClassAndObject(output, object);
+            return output.toBytes();
+        }
+        finally {
+            ClassIdTable.setCurrentTable(null);
+        }
+    }
+
+    static class MobileCodeClassLoader extends ClassLoader {
+        MobileCodeClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> defineCopy(Class<?> type) throws IOException {
+            InputStream inputStream = getParent().getResourceAsStream(type.getName().replace('.', '/') + ".class");
+            try {
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int bytesRead = inputStream.read(buffer); bytesRead != -1; bytesRead = inputStream.read(buffer)) {
+                    byteArrayOutputStream.write(buffer, 0, bytesRead);
+                }
+                byte[] bytecode = byteArrayOutputStream.toByteArray();
+                return defineClass(type.getName(), bytecode, 0, bytecode.length);
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    static Object deserialize(Kryo kryo, ClassIdTable classIdTable, byte[] serializedData) {
+        ClassIdTable.setCurrentTable(classIdTable);
+        try {
+            return kryo.readClassAndObject(new Input(serializedData));
+        }
+        finally {
+            ClassIdTable.setCurrentTable(null);
+        }
+    }
+}
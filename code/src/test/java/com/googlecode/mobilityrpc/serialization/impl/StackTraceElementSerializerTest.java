@@ -0,0 +1,134 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Niall Gallagher
+ */
+public class StackTraceElementSerializerTest {
+
+    @Test
+    public void testFrameStringsWithTable() {
+        FrameStringTable senderTable = new FrameStringTable();
+        FrameStringTable receiverTable = new FrameStringTable();
+        StackTraceElement[] first = new Exception().getStackTrace();
+        StackTraceElement[] second = new Exception().getStackTrace();
+
+        byte[] firstData = serialize(senderTable, first);
+        Map<Integer, String> firstDefinitions = senderTable.takeOutgoingDefinitions();
+        assertFalse(firstDefinitions.isEmpty());
+        senderTable.confirmOutgoingDefinitions(firstDefinitions.values());
+        byte[] secondData = serialize(senderTable, second);
+
+        // The second message refers to the strings defined by the first message, and need not define them again...
+        assertTrue(senderTable.takeOutgoingDefinitions().isEmpty());
+        define(receiverTable, firstDefinitions);
+        assertFramesEqual(first, deserialize(receiverTable, firstData));
+        assertFramesEqual(second, deserialize(receiverTable, secondData));
+    }
+
+    @Test
+    public void testUnconfirmedDefinitionsResent() {
+        FrameStringTable senderTable = new FrameStringTable();
+        StackTraceElement[] stackTrace = new Exception().getStackTrace();
+
+        serialize(senderTable, stackTrace);
+        Map<Integer, String> firstDefinitions = senderTable.takeOutgoingDefinitions();
+        // Not confirmed, e.g. the message was not sent, so the next message must define the strings again...
+        byte[] second = serialize(senderTable, stackTrace);
+        assertEquals(firstDefinitions, senderTable.takeOutgoingDefinitions());
+
+        FrameStringTable receiverTable = new FrameStringTable();
+        define(receiverTable, firstDefinitions);
+        assertFramesEqual(stackTrace, deserialize(receiverTable, second));
+    }
+
+    @Test
+    public void testUndefinedIdFailsImmediately() {
+        byte[] serializedData = serialize(new FrameStringTable(), new Exception().getStackTrace());
+        long start = System.currentTimeMillis();
+        try {
+            deserialize(new FrameStringTable(), serializedData);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    @Test
+    public void testFrameStringsWithoutTable() {
+        StackTraceElement[] stackTrace = new Exception().getStackTrace();
+        assertFramesEqual(stackTrace, deserialize(null, serialize(null, stackTrace)));
+    }
+
+    static void define(FrameStringTable frameStringTable, Map<Integer, String> frameStringDefinitions) {
+        for (Map.Entry<Integer, String> entry : frameStringDefinitions.entrySet()) {
+            frameStringTable.defineIncomingId(entry.getKey(), entry.getValue());
+        }
+    }
+
+    static void assertFramesEqual(StackTraceElement[] expected, StackTraceElement[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getClassName(), actual[i].getClassName());
+            assertEquals(expected[i].getMethodName(), actual[i].getMethodName());
+            assertEquals(expected[i].getFileName(), actual[i].getFileName());
+            assertEquals(expected[i].getLineNumber(), actual[i].getLineNumber());
+        }
+    }
+
+    static byte[] serialize(FrameStringTable frameStringTable, StackTraceElement[] stackTrace) {
+        FrameStringTable.setCurrentTable(frameStringTable);
+        try {
+            Output output = new Output(256, -1);
+            output.writeInt(stackTrace.length, true);
+            for (StackTraceElement element : stackTrace) {
+                StackTraceElementSerializer.writeElement(output, frameStringTable, element);
+            }
+            return output.toBytes();
+        }
+        finally {
+            FrameStringTable.setCurrentTable(null);
+        }
+    }
+
+    static StackTraceElement[] deserialize(FrameStringTable frameStringTable, byte[] serializedData) {
+        FrameStringTable.setCurrentTable(frameStringTable);
+        try {
+            Input input = new Input(serializedData);
+            StackTraceElement[] stackTrace = new StackTraceElement[input.readInt(true)];
+            for (int i = 0; i < stackTrace.length; i++) {
+                stackTrace[i] = StackTraceElementSerializer.readElement(input, frameStringTable);
+            }
+            return stackTrace;
+        }
+        finally {
+            FrameStringTable.setCurrentTable(null);
+        }
+    }
+}
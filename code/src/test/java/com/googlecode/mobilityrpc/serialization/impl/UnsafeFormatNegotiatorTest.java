@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.serialization.impl;
+
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link UnsafeFormatNegotiator}.
+ *
+ * @author Niall Gallagher
+ */
+public class UnsafeFormatNegotiatorTest {
+
+    static final ConnectionId CONNECTION_ID = new ConnectionId("127.0.0.1", 5739);
+
+    static final int FOREIGN_BYTE_ORDER = UnsafeFormatNegotiator.LOCAL_BYTE_ORDER == UnsafeFormatNegotiator.BYTE_ORDER_LITTLE_ENDIAN
+            ? UnsafeFormatNegotiator.BYTE_ORDER_BIG_ENDIAN
+            : UnsafeFormatNegotiator.BYTE_ORDER_LITTLE_ENDIAN;
+
+    @Test
+    public void testGetAdvertisedByteOrder() {
+        int expected = UnsafeFormatNegotiator.UNSAFE_FORMAT_SUPPORTED
+                ? UnsafeFormatNegotiator.LOCAL_BYTE_ORDER
+                : UnsafeFormatNegotiator.BYTE_ORDER_UNSUPPORTED;
+        assertEquals(expected, new UnsafeFormatNegotiator().getAdvertisedByteOrder());
+    }
+
+    @Test
+    public void testIsAccepted_NothingRecorded() {
+        assertFalse(new UnsafeFormatNegotiator().isAccepted(CONNECTION_ID));
+    }
+
+    @Test
+    public void testRecordRemoteByteOrder_SameByteOrder() {
+        UnsafeFormatNegotiator negotiator = new UnsafeFormatNegotiator();
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        // Accepted only if this machine can read and write the format itself...
+        assertEquals(UnsafeFormatNegotiator.UNSAFE_FORMAT_SUPPORTED, negotiator.isAccepted(CONNECTION_ID));
+        assertFalse(negotiator.isAccepted(new ConnectionId("127.0.0.1", 5740)));
+    }
+
+    @Test
+    public void testRecordRemoteByteOrder_RemoteDoesNotAdvertiseFormat() {
+        UnsafeFormatNegotiator negotiator = new UnsafeFormatNegotiator();
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.BYTE_ORDER_UNSUPPORTED);
+        assertFalse(negotiator.isAccepted(CONNECTION_ID));
+    }
+
+    @Test
+    public void testRecordRemoteByteOrder_RemoteReportsDifferentByteOrder() {
+        UnsafeFormatNegotiator negotiator = new UnsafeFormatNegotiator();
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, FOREIGN_BYTE_ORDER);
+        assertFalse(negotiator.isAccepted(CONNECTION_ID));
+    }
+
+    @Test
+    public void testRecordRemoteByteOrder_AcceptanceRevoked() {
+        UnsafeFormatNegotiator negotiator = new UnsafeFormatNegotiator();
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        // e.g. the remote machine disabled the format, or a different machine now answers on the same address...
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, FOREIGN_BYTE_ORDER);
+        assertFalse(negotiator.isAccepted(CONNECTION_ID));
+
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.BYTE_ORDER_UNSUPPORTED);
+        assertFalse(negotiator.isAccepted(CONNECTION_ID));
+    }
+
+    @Test
+    public void testNotifyConnectionClosed() {
+        UnsafeFormatNegotiator negotiator = new UnsafeFormatNegotiator();
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        negotiator.notifyConnectionClosed(CONNECTION_ID);
+        assertFalse(negotiator.isAccepted(CONNECTION_ID));
+    }
+
+    @Test
+    public void testClear() {
+        UnsafeFormatNegotiator negotiator = new UnsafeFormatNegotiator();
+        negotiator.recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        negotiator.clear();
+        assertFalse(negotiator.isAccepted(CONNECTION_ID));
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link ObjectSpace}.
+ */
+public class ObjectSpaceTest {
+
+    @Test
+    public void testPutAndGet() {
+        ObjectSpace objectSpace = new ObjectSpace(0, 0, 0, 0);
+        UUID uuid = UUID.randomUUID();
+        objectSpace.put(uuid, "foo");
+        assertEquals("foo", objectSpace.get(String.class, uuid));
+        assertNull(objectSpace.get(String.class, UUID.randomUUID()));
+        ObjectSpace.Statistics statistics = objectSpace.getStatistics();
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(1, statistics.getSize());
+    }
+
+    @Test
+    public void testEviction_LeastRecentlyUsed() {
+        ObjectSpace objectSpace = new ObjectSpace(2, 0, 0, 0);
+        final List<ObjectSpace.EvictionCause> causes = new ArrayList<ObjectSpace.EvictionCause>();
+        objectSpace.addEvictionListener(new ObjectSpace.EvictionListener() {
+            @Override
+            public void onEviction(UUID uuid, Object object, ObjectSpace.EvictionCause cause) {
+                causes.add(cause);
+            }
+        });
+        UUID uuid1 = UUID.randomUUID(), uuid2 = UUID.randomUUID(), uuid3 = UUID.randomUUID();
+        objectSpace.put(uuid1, "one");
+        objectSpace.put(uuid2, "two");
+        // Access uuid1, so that uuid2 becomes the least recently used...
+        objectSpace.get(String.class, uuid1);
+        objectSpace.put(uuid3, "three");
+        assertEquals("one", objectSpace.get(String.class, uuid1));
+        assertNull(objectSpace.get(String.class, uuid2));
+        assertEquals("three", objectSpace.get(String.class, uuid3));
+        assertEquals(1, causes.size());
+        assertEquals(ObjectSpace.EvictionCause.CAPACITY, causes.get(0));
+    }
+
+    @Test
+    public void testEviction_EstimatedSize() {
+        ObjectSpace objectSpace = new ObjectSpace(0, 1500, 0, 0);
+        UUID uuid1 = UUID.randomUUID(), uuid2 = UUID.randomUUID();
+        objectSpace.put(uuid1, new byte[1000]);
+        assertTrue(objectSpace.getEstimatedSizeBytes() >= 1000);
+        objectSpace.put(uuid2, new byte[1000]);
+        assertNull(objectSpace.get(byte[].class, uuid1));
+        assertNotNull(objectSpace.get(byte[].class, uuid2));
+        assertTrue(objectSpace.getEstimatedSizeBytes() <= 1500);
+    }
+
+    @Test
+    public void testEviction_TimeToLive() throws InterruptedException {
+        ObjectSpace objectSpace = new ObjectSpace(0, 0, 0, 0);
+        UUID uuid = UUID.randomUUID();
+        objectSpace.put(uuid, "foo", 1);
+        Thread.sleep(20);
+        assertNull(objectSpace.get(String.class, uuid));
+        assertEquals(0, objectSpace.size());
+        assertEquals(1, objectSpace.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testClear() {
+        ObjectSpace objectSpace = new ObjectSpace(0, 0, 0, 0);
+        final List<ObjectSpace.EvictionCause> causes = new ArrayList<ObjectSpace.EvictionCause>();
+        objectSpace.addEvictionListener(new ObjectSpace.EvictionListener() {
+            @Override
+            public void onEviction(UUID uuid, Object object, ObjectSpace.EvictionCause cause) {
+                causes.add(cause);
+            }
+        });
+        objectSpace.put(UUID.randomUUID(), "foo");
+        objectSpace.clear();
+        assertEquals(0, objectSpace.size());
+        assertEquals(1, causes.size());
+        assertEquals(ObjectSpace.EvictionCause.CLEARED, causes.get(0));
+    }
+
+    @Test
+    public void testGlobalObjectSpace_UnboundedByDefault() {
+        ObjectSpace objectSpace = ObjectSpace.getGlobalObjectSpace();
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < ObjectSpace.DEFAULT_MAX_ENTRIES + 1; i++) {
+            UUID uuid = UUID.randomUUID();
+            uuids.add(uuid);
+            objectSpace.put(uuid, i);
+        }
+        try {
+            assertEquals(0, objectSpace.getStatistics().getEvictionCount());
+            // Sizes are not estimated when there is no limit on estimated size...
+            assertEquals(0, objectSpace.getEstimatedSizeBytes());
+        }
+        finally {
+            for (UUID uuid : uuids) {
+                objectSpace.remove(uuid);
+            }
+        }
+    }
+}
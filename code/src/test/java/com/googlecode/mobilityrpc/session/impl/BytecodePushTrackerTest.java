@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class BytecodePushTrackerTest {
+
+    @Test
+    public void testGetReachableClasses() {
+        Set<Class<?>> classes = BytecodePushTracker.getReachableClasses(new TestCallable());
+        assertTrue(classes.contains(TestCallable.class));
+        assertTrue(classes.contains(Callable.class));
+        assertTrue(classes.contains(TestValue.class));
+        assertTrue(classes.contains(TestElement.class)); // Reachable via an ArrayList
+        assertFalse(classes.contains(TestUnreachable.class)); // Only referenced via a transient field
+    }
+
+    @Test
+    public void testIsPushable() {
+        assertFalse(BytecodePushTracker.isPushable(String.class));
+        assertFalse(BytecodePushTracker.isPushable(int.class));
+        assertFalse(BytecodePushTracker.isPushable(Callable.class));
+    }
+
+    @Test
+    public void testResourcesNotPushedTwice() {
+        BytecodePushTracker tracker = new BytecodePushTracker();
+        ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+        UUID sessionId = UUID.randomUUID();
+        List<ResourceResponse.ResourceData> first = tracker.getResourcesToPush(connectionId, sessionId, new TestCallable());
+        List<ResourceResponse.ResourceData> second = tracker.getResourcesToPush(connectionId, sessionId, new TestCallable());
+        assertEquals(0, second.size());
+
+        // Another connection, or another session on the same connection, should be sent the same classes as the first...
+        List<ResourceResponse.ResourceData> otherConnection = tracker.getResourcesToPush(new ConnectionId("127.0.0.1", 5740), sessionId, new TestCallable());
+        assertEquals(first.size(), otherConnection.size());
+        List<ResourceResponse.ResourceData> otherSession = tracker.getResourcesToPush(connectionId, UUID.randomUUID(), new TestCallable());
+        assertEquals(first.size(), otherSession.size());
+    }
+
+    @Test
+    public void testResourcesPushedAgainAfterConnectionClosedOrSessionReleased() {
+        BytecodePushTracker tracker = new BytecodePushTracker();
+        ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+        UUID sessionId = UUID.randomUUID();
+        tracker.recordResourcesSent(connectionId, sessionId, Collections.singletonList("com/foo/Bar.class"));
+        assertTrue(tracker.getResourcesSent(connectionId, sessionId).contains("com/foo/Bar.class"));
+
+        tracker.notifyConnectionClosed(connectionId);
+        assertFalse(tracker.getResourcesSent(connectionId, sessionId).contains("com/foo/Bar.class"));
+
+        tracker.recordResourcesSent(connectionId, sessionId, Collections.singletonList("com/foo/Bar.class"));
+        tracker.releaseSession(sessionId);
+        assertFalse(tracker.getResourcesSent(connectionId, sessionId).contains("com/foo/Bar.class"));
+    }
+
+    @Test
+    public void testPushableClassesCachedPerExecutableClass() {
+        BytecodePushTracker tracker = new BytecodePushTracker();
+        List<Class<?>> first = tracker.getPushableClasses(new TestCallable());
+        // Objects of the same class reuse the classes discovered from the first, without walking their graph...
+        TestCallable other = new TestCallable();
+        other.elements.clear();
+        List<Class<?>> second = tracker.getPushableClasses(other);
+        assertEquals(first, second);
+        for (Class<?> clazz : second) {
+            assertTrue(BytecodePushTracker.isPushable(clazz));
+        }
+    }
+
+    @Test
+    public void testRecordResourcesSent() {
+        BytecodePushTracker tracker = new BytecodePushTracker();
+        ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+        List<String> resourceNames = new ArrayList<String>();
+        for (Class<?> clazz : BytecodePushTracker.getReachableClasses(new TestCallable())) {
+            resourceNames.add(clazz.getName().replace('.', '/') + ".class");
+        }
+        UUID sessionId = UUID.randomUUID();
+        tracker.recordResourcesSent(connectionId, sessionId, resourceNames);
+        assertEquals(0, tracker.getResourcesToPush(connectionId, sessionId, new TestCallable()).size());
+    }
+
+    static class TestCallable implements Callable<Object> {
+        final TestValue value = new TestValue();
+        final List<Object> elements = new ArrayList<Object>();
+        transient TestUnreachable unreachable = new TestUnreachable();
+
+        TestCallable() {
+            elements.add(new TestElement());
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return value;
+        }
+    }
+
+    static class TestValue {
+    }
+
+    static class TestElement {
+    }
+
+    static class TestUnreachable {
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.serialization.Serializer;
+import com.googlecode.mobilityrpc.serialization.impl.KryoSerializer;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link ClosureCaptureAnalyzer}.
+ *
+ * @author Niall Gallagher
+ */
+public class ClosureCaptureAnalyzerTest {
+
+    @Test
+    public void testStripUnreadSyntheticFields_OuterInstanceNotUsed() throws Exception {
+        Service service = new Service(100);
+        Runnable runnable = service.newRunnableWhichDoesNotUseService("foo");
+        ClosureCaptureAnalyzer analyzer = new ClosureCaptureAnalyzer(0, 0);
+
+        Runnable stripped = (Runnable) analyzer.stripUnreadSyntheticFields(runnable);
+        assertNull(getOuterInstance(stripped));
+        // The captured local variable is read by the code of the runnable, and so should be retained...
+        assertEquals("foo", getField(stripped, "val$id"));
+        // The original object should not be modified...
+        if (hasOuterInstanceField(runnable)) {
+            assertNotSame(runnable, stripped);
+            assertSame(service, getOuterInstance(runnable));
+        }
+        stripped.run();
+    }
+
+    @Test
+    public void testStripUnreadSyntheticFields_OuterInstanceUsed() throws Exception {
+        Service service = new Service(100);
+        Runnable runnable = service.newRunnableWhichUsesService();
+        ClosureCaptureAnalyzer analyzer = new ClosureCaptureAnalyzer(0, 0);
+
+        Runnable stripped = (Runnable) analyzer.stripUnreadSyntheticFields(runnable);
+        assertSame(runnable, stripped);
+        assertSame(service, getOuterInstance(stripped));
+        stripped.run();
+        assertEquals(1, service.invocationCount);
+    }
+
+    @Test
+    public void testCheckPayloadSize_ReportNamesOversizedField() {
+        Serializer serializer = new KryoSerializer(getClass().getClassLoader());
+        Runnable runnable = new Service(100000).newRunnableWhichUsesService();
+        int serializedSize = serializer.serialize(runnable).length;
+        ClosureCaptureAnalyzer analyzer = new ClosureCaptureAnalyzer(0, 10000);
+        try {
+            analyzer.checkPayloadSize(runnable, serializedSize, serializer);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            String message = expected.getMessage();
+            assertTrue(message, message.contains(serializedSize + " bytes"));
+            // The outer instance is the largest field, and so should be listed first...
+            assertTrue(message, message.contains("serialized size of its fields: [this$0 (" + Service.class.getName() + ")="));
+        }
+    }
+
+    @Test
+    public void testCheckPayloadSize_WithinLimits() {
+        Serializer serializer = new KryoSerializer(getClass().getClassLoader());
+        Runnable runnable = new Service(100).newRunnableWhichUsesService();
+        ClosureCaptureAnalyzer analyzer = new ClosureCaptureAnalyzer(0, 10000);
+        analyzer.checkPayloadSize(runnable, serializer.serialize(runnable).length, serializer);
+    }
+
+    static boolean hasOuterInstanceField(Object object) {
+        try {
+            object.getClass().getDeclaredField("this$0");
+            return true;
+        }
+        catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    static Object getOuterInstance(Object object) throws Exception {
+        // Newer compilers omit the field entirely from inner classes which do not use the outer instance...
+        return hasOuterInstanceField(object) ? getField(object, "this$0") : null;
+    }
+
+    static Object getField(Object object, String fieldName) throws Exception {
+        Field field = object.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    static class Service {
+        final byte[] state;
+        int invocationCount = 0;
+
+        Service(int stateSize) {
+            this.state = new byte[stateSize];
+        }
+
+        Runnable newRunnableWhichDoesNotUseService(final String id) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (id == null) {
+                        throw new IllegalStateException("Captured variable was not retained");
+                    }
+                }
+            };
+        }
+
+        Runnable newRunnableWhichUsesService() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    invocationCount++;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class ContentAddressedResourceCacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        ContentAddressedResourceCache cache = new ContentAddressedResourceCache(1000);
+        byte[] resource = new byte[] {1, 2, 3};
+        assertTrue(cache.isEmpty());
+        cache.put(resource);
+        assertSame(resource, cache.get(ContentAddressedResourceCache.computeContentHash(new byte[] {1, 2, 3})));
+        assertNull(cache.get(ContentAddressedResourceCache.computeContentHash(new byte[] {1, 2, 4})));
+
+        // Identical content should be stored once...
+        cache.put(new byte[] {1, 2, 3});
+        assertEquals(1, cache.size());
+        assertEquals(3L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testEvictionBySize() {
+        ContentAddressedResourceCache cache = new ContentAddressedResourceCache(10);
+        byte[] first = new byte[] {1, 1, 1, 1};
+        byte[] second = new byte[] {2, 2, 2, 2};
+        byte[] third = new byte[] {3, 3, 3, 3};
+        cache.put(first);
+        cache.put(second);
+        // Access the first resource, so the second becomes least recently used...
+        assertNotNull(cache.get(ContentAddressedResourceCache.computeContentHash(first)));
+        cache.put(third);
+
+        assertEquals(2, cache.size());
+        assertEquals(8L, cache.getTotalBytes());
+        assertNotNull(cache.get(ContentAddressedResourceCache.computeContentHash(first)));
+        assertNull(cache.get(ContentAddressedResourceCache.computeContentHash(second)));
+        assertNotNull(cache.get(ContentAddressedResourceCache.computeContentHash(third)));
+
+        // Resources larger than the bound should not be cached...
+        cache.put(new byte[11]);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        ContentAddressedResourceCache cache = new ContentAddressedResourceCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put(new byte[] {1});
+        assertTrue(cache.isEmpty());
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.session.RemoteExecutionException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class ExceptionTransportTest {
+
+    @Test
+    public void testFullMode() {
+        IllegalStateException exception = new IllegalStateException("foo");
+        assertSame(exception, new ExceptionTransport(ExceptionTransport.Mode.FULL, 32, 8).toTransportForm(exception));
+    }
+
+    @Test
+    public void testCompactMode_ReconstructsExceptionsAndRestoresFramesInCommon() {
+        IOException cause = new IOException("bar");
+        IllegalStateException exception = new IllegalStateException("foo", cause);
+
+        ExceptionTransport exceptionTransport = new ExceptionTransport(ExceptionTransport.Mode.COMPACT, 1000, 8);
+        ExceptionTransport.ExceptionRecord record = (ExceptionTransport.ExceptionRecord) exceptionTransport.toTransportForm(exception);
+        // The cause was created one line above, so only its first frame differs...
+        assertEquals(1, record.cause.stackTrace.length);
+        assertEquals(cause.getStackTrace().length - 1, record.cause.framesInCommon);
+
+        Throwable reconstructed = ExceptionTransport.fromTransportForm(record, getClass().getClassLoader());
+        assertEquals(IllegalStateException.class, reconstructed.getClass());
+        assertEquals("foo", reconstructed.getMessage());
+        assertArrayEquals(exception.getStackTrace(), reconstructed.getStackTrace());
+        assertEquals(IOException.class, reconstructed.getCause().getClass());
+        assertEquals("bar", reconstructed.getCause().getMessage());
+        assertArrayEquals(cause.getStackTrace(), reconstructed.getCause().getStackTrace());
+    }
+
+    @Test
+    public void testCompactMode_LimitsStackFramesAndCauseDepth() {
+        Throwable exception = new IllegalStateException("0");
+        for (int i = 1; i <= 5; i++) {
+            exception = new IllegalStateException(String.valueOf(i), exception);
+        }
+        ExceptionTransport.ExceptionRecord record = new ExceptionTransport(ExceptionTransport.Mode.COMPACT, 2, 3).toRecord(exception);
+        assertEquals(2, record.stackTrace.length);
+
+        Throwable reconstructed = ExceptionTransport.fromTransportForm(record, getClass().getClassLoader());
+        assertEquals(Arrays.asList(exception.getStackTrace()).subList(0, 2), Arrays.asList(reconstructed.getStackTrace()));
+        int depth = 0;
+        for (Throwable cause = reconstructed.getCause(); cause != null; cause = cause.getCause()) {
+            depth++;
+        }
+        assertEquals(3, depth);
+    }
+
+    @Test
+    public void testCompactMode_SubstitutesExceptionsWithState() {
+        ExceptionWithState exception = new ExceptionWithState("foo");
+        ExceptionTransport.ExceptionRecord record = new ExceptionTransport(ExceptionTransport.Mode.COMPACT, 32, 8).toRecord(exception);
+        assertFalse(record.reconstructable);
+
+        Throwable reconstructed = ExceptionTransport.fromTransportForm(record, getClass().getClassLoader());
+        assertEquals(RemoteExecutionException.class, reconstructed.getClass());
+        assertEquals(ExceptionWithState.class.getName(), ((RemoteExecutionException) reconstructed).getRemoteClassName());
+        assertEquals(ExceptionWithState.class.getName() + ": foo", reconstructed.toString());
+        assertNull(reconstructed.getCause());
+    }
+
+    @Test
+    public void testIsReconstructable() {
+        assertTrue(ExceptionTransport.isReconstructable(IllegalStateException.class));
+        assertTrue(ExceptionTransport.isReconstructable(NullPointerException.class));
+        assertFalse(ExceptionTransport.isReconstructable(ExceptionWithState.class));
+        // No constructor accepting a message...
+        assertFalse(ExceptionTransport.isReconstructable(ExceptionWithoutMessage.class));
+    }
+
+    public static class ExceptionWithState extends RuntimeException {
+        private final Object state = new Object();
+
+        public ExceptionWithState(String message) {
+            super(message);
+        }
+    }
+
+    public static class ExceptionWithoutMessage extends RuntimeException {
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link ImmutableExecutableCache}.
+ */
+public class ImmutableExecutableCacheTest {
+
+    @Test
+    public void testSerializedForms_KeyedOnIdentityAndFormat() {
+        ImmutableExecutableCache cache = new ImmutableExecutableCache(10);
+        String first = new String("task");
+        String equalButDistinct = new String("task");
+        byte[] serializedForm = new byte[] {1, 2, 3};
+        cache.putSerializedForm(first, SerializationFormat.KRYO, serializedForm);
+
+        assertSame(serializedForm, cache.getSerializedForm(first, SerializationFormat.KRYO));
+        assertNull(cache.getSerializedForm(equalButDistinct, SerializationFormat.KRYO));
+        assertNull(cache.getSerializedForm(first, SerializationFormat.KRYO_UNSAFE));
+    }
+
+    @Test
+    public void testDeserializedObjects_KeyedOnContent() {
+        ImmutableExecutableCache cache = new ImmutableExecutableCache(10);
+        Object deserializedObject = new Object();
+        cache.putDeserializedObject(new byte[] {1, 2, 3}, SerializationFormat.KRYO, deserializedObject);
+
+        assertSame(deserializedObject, cache.getDeserializedObject(new byte[] {1, 2, 3}, SerializationFormat.KRYO));
+        assertNull(cache.getDeserializedObject(new byte[] {1, 2, 4}, SerializationFormat.KRYO));
+        assertNull(cache.getDeserializedObject(new byte[] {1, 2, 3}, SerializationFormat.KRYO_UNSAFE));
+
+        cache.clear();
+        assertNull(cache.getDeserializedObject(new byte[] {1, 2, 3}, SerializationFormat.KRYO));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ImmutableExecutableCache cache = new ImmutableExecutableCache(2);
+        Object a = new String("a"), b = new String("b"), c = new String("c");
+        cache.putSerializedForm(a, SerializationFormat.KRYO, new byte[] {1});
+        cache.putSerializedForm(b, SerializationFormat.KRYO, new byte[] {2});
+        cache.getSerializedForm(a, SerializationFormat.KRYO);
+        cache.putSerializedForm(c, SerializationFormat.KRYO, new byte[] {3});
+
+        assertNotNull(cache.getSerializedForm(a, SerializationFormat.KRYO));
+        assertNull(cache.getSerializedForm(b, SerializationFormat.KRYO));
+        assertNotNull(cache.getSerializedForm(c, SerializationFormat.KRYO));
+    }
+
+    @Test
+    public void testSerializedForms_FieldlessClassesKeyedOnClass() {
+        ImmutableExecutableCache cache = new ImmutableExecutableCache(10);
+        byte[] serializedForm = new byte[] {1, 2, 3};
+        cache.putSerializedForm(new StatelessTask(), SerializationFormat.KRYO, serializedForm);
+
+        // Every instance has the same serialized form, so a new instance per request should still hit...
+        assertSame(serializedForm, cache.getSerializedForm(new StatelessTask(), SerializationFormat.KRYO));
+        assertNull(cache.getSerializedForm(new StatelessTask(), SerializationFormat.KRYO_UNSAFE));
+        assertNull(cache.getSerializedForm(new StatefulTask(1), SerializationFormat.KRYO));
+    }
+
+    @Test
+    public void testSerializedForms_InstancesReferencedWeakly() throws Exception {
+        ImmutableExecutableCache cache = new ImmutableExecutableCache(10);
+        cache.putSerializedForm(new StatefulTask(1), SerializationFormat.KRYO, new byte[] {1, 2, 3});
+        WeakReference<Object> reference = new WeakReference<Object>(new StatefulTask(2));
+        cache.putSerializedForm(reference.get(), SerializationFormat.KRYO, new byte[] {4, 5, 6});
+
+        // The cache must not prevent the instances from being garbage collected...
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    static class StatelessTask implements Runnable {
+        static int invocations = 0;
+
+        @Override
+        public void run() {
+            invocations++;
+        }
+    }
+
+    static class StatefulTask implements Runnable {
+        final int value;
+
+        StatefulTask(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+}
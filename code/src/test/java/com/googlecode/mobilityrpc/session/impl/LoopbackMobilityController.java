@@ -0,0 +1,281 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.ConnectionManager;
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionRequest;
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionResponse;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamCredit;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+import com.googlecode.mobilityrpc.serialization.impl.ClassIdTable;
+import com.googlecode.mobilityrpc.serialization.impl.FrameStringTable;
+import com.googlecode.mobilityrpc.serialization.impl.SharedKryoPool;
+import com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator;
+import com.googlecode.mobilityrpc.session.MobilitySession;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A controller which passes the messages sent by its sessions directly to the sessions of a peer controller in the
+ * same JVM, without serializing the messages or using the network. Each message is processed by a separate thread,
+ * as in the real controller, so messages might be processed in a different order than they were sent.
+ * <p/>
+ * Tests can intercept messages to hold them back, and deliver them later in any order.
+ *
+ * @author Niall Gallagher
+ */
+class LoopbackMobilityController implements MobilityControllerInternal {
+
+    /**
+     * Implemented by tests to intercept messages before they are delivered to the peer.
+     */
+    interface MessageInterceptor {
+
+        /**
+         * @param message A message about to be delivered to the peer
+         * @return True if the interceptor took the message, in which case it will not be delivered unless the test
+         * delivers it, false to deliver it as normal
+         */
+        boolean intercept(Object message);
+    }
+
+    static final ConnectionId CONNECTION_ID = new ConnectionId("127.0.0.1", 5739);
+
+    final List<Object> messagesSent = new CopyOnWriteArrayList<Object>();
+    volatile MessageInterceptor interceptor;
+
+    private final ExecutorService messageProcessorService = Executors.newCachedThreadPool();
+    private final ConcurrentMap<UUID, MobilitySessionInternal> sessionRegistry = new ConcurrentHashMap<UUID, MobilitySessionInternal>();
+    private final UnsafeFormatNegotiator unsafeFormatNegotiator = new UnsafeFormatNegotiator();
+    private final SharedKryoPool sharedKryoPool = new SharedKryoPool(SessionClassLoader.class.getClassLoader());
+    private final BulkDataStore bulkDataStore = new BulkDataStore();
+    private final ContentAddressedResourceCache contentAddressedResourceCache = new ContentAddressedResourceCache(0);
+    private final SharedClassLoaderRegistry sharedClassLoaderRegistry = new SharedClassLoaderRegistry(this, false);
+    private final MemoizedResponseCache memoizedResponseCache = new MemoizedResponseCache();
+    private final BytecodePushTracker bytecodePushTracker = new BytecodePushTracker();
+    private final ClassIdTable classIdTable = new ClassIdTable();
+    private final FrameStringTable frameStringTable = new FrameStringTable();
+    private LoopbackMobilityController peer;
+
+    /**
+     * @return Two controllers, each of which delivers the messages sent by its sessions to the other
+     */
+    static LoopbackMobilityController[] newPair() {
+        LoopbackMobilityController first = new LoopbackMobilityController();
+        LoopbackMobilityController second = new LoopbackMobilityController();
+        first.peer = second;
+        second.peer = first;
+        return new LoopbackMobilityController[] {first, second};
+    }
+
+    /**
+     * @param messageClass The type of message
+     * @return The number of messages of the given type sent by sessions of this controller
+     */
+    int countMessagesSent(Class<?> messageClass) {
+        int count = 0;
+        for (Object message : messagesSent) {
+            if (messageClass.isInstance(message)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void sendOutgoingMessage(ConnectionId connectionId, Object message) {
+        if (message instanceof StreamChunk) {
+            // The real controller converts messages synchronously, so senders may reuse the buffers they supplied...
+            StreamChunk streamChunk = (StreamChunk) message;
+            message = new StreamChunk(
+                    streamChunk.getChunkType(),
+                    streamChunk.getSequenceNumber(),
+                    streamChunk.getSerializedElements().clone(),
+                    streamChunk.getSerializationFormat(),
+                    streamChunk.getRequestIdentifier(),
+                    streamChunk.getFrameStringDefinitions(),
+                    streamChunk.getBulkDataIds()
+            );
+            peer.defineIncomingFrameStrings(streamChunk.getFrameStringDefinitions());
+        }
+        else if (message instanceof ExecutionResponse) {
+            peer.defineIncomingFrameStrings(((ExecutionResponse) message).getFrameStringDefinitions());
+        }
+        messagesSent.add(message);
+        MessageInterceptor messageInterceptor = interceptor;
+        if (messageInterceptor != null && messageInterceptor.intercept(message)) {
+            return;
+        }
+        deliver(message);
+    }
+
+    /**
+     * Defines frame strings sent in a message, synchronously, as the real controller does when it decodes the message.
+     *
+     * @param frameStringDefinitions The ids defined by the message, mapped to the strings for which they stand
+     */
+    void defineIncomingFrameStrings(Map<Integer, String> frameStringDefinitions) {
+        for (Map.Entry<Integer, String> entry : frameStringDefinitions.entrySet()) {
+            frameStringTable.defineIncomingId(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Delivers the given message to the peer controller, which processes it in a separate thread.
+     *
+     * @param message The message to deliver
+     */
+    void deliver(final Object message) {
+        try {
+            peer.messageProcessorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    peer.processMessage(message);
+                }
+            });
+        }
+        catch (RejectedExecutionException ignore) {
+            // The peer was destroyed at the end of the test...
+        }
+    }
+
+    void processMessage(Object message) {
+        if (message instanceof ExecutionRequest) {
+            ExecutionRequest executionRequest = (ExecutionRequest) message;
+            getMessageHandlingSession(executionRequest.getRequestIdentifier().getSessionId()).receiveIncomingExecutionRequest(CONNECTION_ID, executionRequest);
+        }
+        else if (message instanceof ExecutionResponse) {
+            ExecutionResponse executionResponse = (ExecutionResponse) message;
+            getMessageHandlingSession(executionResponse.getRequestIdentifier().getSessionId()).receiveExecutionResponse(executionResponse);
+        }
+        else if (message instanceof StreamChunk) {
+            StreamChunk streamChunk = (StreamChunk) message;
+            getMessageHandlingSession(streamChunk.getRequestIdentifier().getSessionId()).receiveStreamChunk(streamChunk);
+        }
+        else if (message instanceof StreamCredit) {
+            StreamCredit streamCredit = (StreamCredit) message;
+            getMessageHandlingSession(streamCredit.getRequestIdentifier().getSessionId()).receiveStreamCredit(CONNECTION_ID, streamCredit);
+        }
+        else {
+            throw new IllegalStateException("Unexpected message: " + message);
+        }
+    }
+
+    @Override
+    public MobilitySessionInternal getMessageHandlingSession(UUID sessionId) {
+        MobilitySessionInternal session = sessionRegistry.get(sessionId);
+        if (session == null) {
+            MobilitySessionInternal newSession = new MobilitySessionImpl(sessionId, this);
+            session = sessionRegistry.putIfAbsent(sessionId, newSession);
+            if (session == null) {
+                session = newSession;
+            }
+        }
+        return session;
+    }
+
+    @Override
+    public MobilitySession getSession(UUID sessionId) {
+        return getMessageHandlingSession(sessionId);
+    }
+
+    @Override
+    public MobilitySession newSession() {
+        return getSession(UUID.randomUUID());
+    }
+
+    @Override
+    public void releaseSession(UUID sessionId) {
+        sessionRegistry.remove(sessionId);
+    }
+
+    @Override
+    public ContentAddressedResourceCache getContentAddressedResourceCache() {
+        return contentAddressedResourceCache;
+    }
+
+    @Override
+    public SharedClassLoaderRegistry getSharedClassLoaderRegistry() {
+        return sharedClassLoaderRegistry;
+    }
+
+    @Override
+    public MemoizedResponseCache getMemoizedResponseCache() {
+        return memoizedResponseCache;
+    }
+
+    @Override
+    public BytecodePushTracker getBytecodePushTracker() {
+        return bytecodePushTracker;
+    }
+
+    @Override
+    public ClassIdTable getClassIdTable(ConnectionId connectionId) {
+        return classIdTable;
+    }
+
+    @Override
+    public FrameStringTable getFrameStringTable(ConnectionId connectionId) {
+        return frameStringTable;
+    }
+
+    @Override
+    public UnsafeFormatNegotiator getUnsafeFormatNegotiator() {
+        return unsafeFormatNegotiator;
+    }
+
+    @Override
+    public SharedKryoPool getSharedKryoPool() {
+        return sharedKryoPool;
+    }
+
+    @Override
+    public BulkDataStore getBulkDataStore() {
+        return bulkDataStore;
+    }
+
+    @Override
+    public void receiveIncomingMessage(ConnectionId connectionId, byte[] serializedMessage) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void receiveIncomingBulkData(ConnectionId connectionId, long bulkDataId, long length, ReadableByteChannel source) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ConnectionManager getConnectionManager() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void destroy() {
+        messageProcessorService.shutdownNow();
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionResponse;
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link MemoizedResponseCache}.
+ */
+public class MemoizedResponseCacheTest {
+
+    static final byte[] NAMESPACE = {0};
+
+    @Test
+    public void testGetResponse_CachesSuccessfulResponses() throws Exception {
+        MemoizedResponseCache cache = new MemoizedResponseCache(1024 * 1024, 60000);
+        CountingProducer producer = new CountingProducer(ExecutionResponse.ExecutionOutcome.VALUE_RETURNED);
+        MemoizedResponseCache.MemoizedResponse first = cache.getResponse(NAMESPACE, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        MemoizedResponseCache.MemoizedResponse second = cache.getResponse(NAMESPACE, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        assertSame(first, second);
+        assertEquals(1, producer.invocations.get());
+
+        cache.getResponse(NAMESPACE, new byte[] {1, 2, 4}, SerializationFormat.KRYO, producer);
+        assertEquals(2, producer.invocations.get());
+    }
+
+    @Test
+    public void testGetResponse_DoesNotCacheFailures() throws Exception {
+        MemoizedResponseCache cache = new MemoizedResponseCache(1024 * 1024, 60000);
+        CountingProducer producer = new CountingProducer(ExecutionResponse.ExecutionOutcome.FAILURE);
+        cache.getResponse(NAMESPACE, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        cache.getResponse(NAMESPACE, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        assertEquals(2, producer.invocations.get());
+    }
+
+    @Test
+    public void testGetResponse_CollapsesConcurrentRequests() throws Exception {
+        final MemoizedResponseCache cache = new MemoizedResponseCache(1024 * 1024, 60000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger invocations = new AtomicInteger();
+        final Callable<MemoizedResponseCache.MemoizedResponse> slowProducer = new Callable<MemoizedResponseCache.MemoizedResponse>() {
+            @Override
+            public MemoizedResponseCache.MemoizedResponse call() throws Exception {
+                invocations.incrementAndGet();
+                release.await();
+                return new MemoizedResponseCache.MemoizedResponse(ExecutionResponse.ExecutionOutcome.VALUE_RETURNED, new byte[] {9}, SerializationFormat.KRYO);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(new Callable<MemoizedResponseCache.MemoizedResponse>() {
+                    @Override
+                    public MemoizedResponseCache.MemoizedResponse call() throws Exception {
+                        return cache.getResponse(NAMESPACE, new byte[] {1, 2, 3}, SerializationFormat.KRYO, slowProducer);
+                    }
+                });
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<?> future : futures) {
+                assertNotNull(future.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, invocations.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetResponse_SharedOnlyWithinNamespace() throws Exception {
+        MemoizedResponseCache cache = new MemoizedResponseCache(1024 * 1024, 60000);
+        CountingProducer producer = new CountingProducer(ExecutionResponse.ExecutionOutcome.VALUE_RETURNED);
+        cache.getResponse(new byte[] {1}, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        cache.getResponse(new byte[] {1}, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        assertEquals(1, producer.invocations.get());
+        cache.getResponse(new byte[] {2}, new byte[] {1, 2, 3}, SerializationFormat.KRYO, producer);
+        assertEquals(2, producer.invocations.get());
+    }
+
+    @Test
+    public void testGetResponse_BoundedBySize() throws Exception {
+        // Room for two entries, each of which has a 1-byte response...
+        long entrySizeBytes = MemoizedResponseCache.ENTRY_OVERHEAD_BYTES + NAMESPACE.length + 32 + 1;
+        MemoizedResponseCache cache = new MemoizedResponseCache(2 * entrySizeBytes, 60000);
+        CountingProducer producer = new CountingProducer(ExecutionResponse.ExecutionOutcome.VALUE_RETURNED);
+        cache.getResponse(NAMESPACE, new byte[] {1}, SerializationFormat.KRYO, producer);
+        cache.getResponse(NAMESPACE, new byte[] {2}, SerializationFormat.KRYO, producer);
+        assertEquals(2 * entrySizeBytes, cache.getEstimatedSizeBytes());
+        // Access {1}, so that {2} becomes the least recently used...
+        cache.getResponse(NAMESPACE, new byte[] {1}, SerializationFormat.KRYO, producer);
+        cache.getResponse(NAMESPACE, new byte[] {3}, SerializationFormat.KRYO, producer);
+        assertEquals(3, producer.invocations.get());
+        assertEquals(2 * entrySizeBytes, cache.getEstimatedSizeBytes());
+        cache.getResponse(NAMESPACE, new byte[] {1}, SerializationFormat.KRYO, producer);
+        assertEquals(3, producer.invocations.get());
+        cache.getResponse(NAMESPACE, new byte[] {2}, SerializationFormat.KRYO, producer);
+        assertEquals(4, producer.invocations.get());
+    }
+
+    static class CountingProducer implements Callable<MemoizedResponseCache.MemoizedResponse> {
+        final AtomicInteger invocations = new AtomicInteger();
+        final ExecutionResponse.ExecutionOutcome executionOutcome;
+
+        CountingProducer(ExecutionResponse.ExecutionOutcome executionOutcome) {
+            this.executionOutcome = executionOutcome;
+        }
+
+        @Override
+        public MemoizedResponseCache.MemoizedResponse call() {
+            invocations.incrementAndGet();
+            return new MemoizedResponseCache.MemoizedResponse(executionOutcome, new byte[] {9}, SerializationFormat.KRYO);
+        }
+    }
+}
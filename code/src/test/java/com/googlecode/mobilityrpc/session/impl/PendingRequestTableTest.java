@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link PendingRequestTable}.
+ */
+public class PendingRequestTableTest {
+
+    @Test
+    public void testComplete() {
+        PendingRequestTable<String> table = new PendingRequestTable<String>();
+        PendingRequestTable.PendingRequest<String> pendingRequest = table.register(1, 60000);
+        assertEquals(1, table.size());
+        assertTrue(table.contains(1));
+        assertFalse(table.contains(2));
+        assertTrue(table.complete(1, "foo"));
+        assertEquals("foo", pendingRequest.awaitResponse());
+        assertEquals(0, table.size());
+        assertFalse(table.contains(1));
+        assertFalse(table.complete(1, "bar"));
+    }
+
+    @Test
+    public void testComplete_FromAnotherThread() throws InterruptedException {
+        final PendingRequestTable<String> table = new PendingRequestTable<String>();
+        PendingRequestTable.PendingRequest<String> pendingRequest = table.register(1, 60000);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ignore) {
+                    // Ignore
+                }
+                table.complete(1, "foo");
+            }
+        });
+        thread.start();
+        assertEquals("foo", pendingRequest.awaitResponse());
+        thread.join();
+    }
+
+    @Test
+    public void testAwaitResponse_TimesOut() {
+        PendingRequestTable<String> table = new PendingRequestTable<String>();
+        PendingRequestTable.PendingRequest<String> pendingRequest = table.register(1, 50);
+        try {
+            pendingRequest.awaitResponse();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            // Expected
+        }
+        assertEquals(0, table.size());
+        assertFalse(table.complete(1, "foo"));
+    }
+
+    @Test
+    public void testAwaitResponse_HugeTimeoutDoesNotExpire() throws InterruptedException {
+        PendingRequestTable<String> table = new PendingRequestTable<String>();
+        PendingRequestTable.PendingRequest<String> pendingRequest = table.register(1, Long.MAX_VALUE);
+        // Wait for several ticks of the timer, a deadline which overflowed would have expired by now...
+        Thread.sleep(100);
+        assertEquals(1, table.size());
+        assertTrue(table.complete(1, "foo"));
+        assertEquals("foo", pendingRequest.awaitResponse());
+    }
+
+    @Test
+    public void testComputeDeadlineMillis_Saturates() {
+        assertEquals(1100, HashedWheelTimer.computeDeadlineMillis(1000, 100));
+        assertEquals(Long.MAX_VALUE, HashedWheelTimer.computeDeadlineMillis(1000, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, HashedWheelTimer.computeDeadlineMillis(System.currentTimeMillis(), Long.MAX_VALUE - 1));
+    }
+
+    /**
+     * Performs random registrations and completions, to validate entries remain reachable after the table shifts
+     * entries to fill slots vacated by completed requests.
+     */
+    @Test
+    public void testRandomOperations() {
+        PendingRequestTable<Long> table = new PendingRequestTable<Long>();
+        Map<Long, PendingRequestTable.PendingRequest<Long>> expected = new HashMap<Long, PendingRequestTable.PendingRequest<Long>>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000);
+            if (expected.containsKey(key)) {
+                assertTrue(table.complete(key, key));
+                assertEquals(Long.valueOf(key), expected.remove(key).awaitResponse());
+            }
+            else {
+                expected.put(key, table.register(key, 60000));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Niall Gallagher
+ */
+public class PersistentResourceStoreTest {
+
+    @Test
+    public void testPutGetAndReopen() throws Exception {
+        File file = File.createTempFile("mobility-rpc-store", ".dat");
+        try {
+            byte[] resource = new byte[] {1, 2, 3};
+            byte[] hash = ContentAddressedResourceCache.computeContentHash(resource);
+
+            PersistentResourceStore store = new PersistentResourceStore(file, 1024 * 1024);
+            assertTrue(store.isEmpty());
+            store.put(hash, resource);
+            assertArrayEquals(resource, store.get(hash));
+            store.close();
+
+            // Resources should survive reopening the store...
+            store = new PersistentResourceStore(file, 1024 * 1024);
+            assertEquals(1, store.size());
+            assertArrayEquals(resource, store.get(hash));
+            assertNull(store.get(ContentAddressedResourceCache.computeContentHash(new byte[] {4})));
+            store.close();
+        }
+        finally {
+            deleteStoreFiles(file);
+        }
+    }
+
+    @Test
+    public void testPartialRecordTruncated() throws Exception {
+        File file = File.createTempFile("mobility-rpc-store", ".dat");
+        try {
+            byte[] resource = new byte[] {1, 2, 3};
+            PersistentResourceStore store = new PersistentResourceStore(file, 1024 * 1024);
+            store.put(ContentAddressedResourceCache.computeContentHash(resource), resource);
+            long length = store.getFileLength();
+            File dataFile = store.getDataFile();
+            store.close();
+
+            // Simulate a crash while appending a record...
+            RandomAccessFile randomAccessFile = new RandomAccessFile(dataFile, "rw");
+            randomAccessFile.seek(length);
+            randomAccessFile.writeInt(1000);
+            randomAccessFile.write(new byte[10]);
+            randomAccessFile.close();
+
+            store = new PersistentResourceStore(file, 1024 * 1024);
+            assertEquals(1, store.size());
+            assertEquals(length, store.getFileLength());
+            assertEquals(length, dataFile.length());
+            store.close();
+        }
+        finally {
+            deleteStoreFiles(file);
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File file = File.createTempFile("mobility-rpc-store", ".dat");
+        try {
+            // Each record is 36 bytes of header plus 64 bytes of data...
+            PersistentResourceStore store = new PersistentResourceStore(file, 1000);
+            byte[][] hashes = new byte[20][];
+            for (int i = 0; i < hashes.length; i++) {
+                byte[] resource = new byte[64];
+                resource[0] = (byte) i;
+                hashes[i] = ContentAddressedResourceCache.computeContentHash(resource);
+                store.put(hashes[i], resource);
+                assertTrue(store.getFileLength() <= 1000);
+            }
+            // The most recently added resource should have survived compaction...
+            assertNotNull(store.get(hashes[hashes.length - 1]));
+            assertNull(store.get(hashes[0]));
+            store.close();
+        }
+        finally {
+            deleteStoreFiles(file);
+        }
+    }
+
+    @Test
+    public void testCompaction_ReplacesDataFileAndRetainsLock() throws Exception {
+        File file = File.createTempFile("mobility-rpc-store", ".dat");
+        try {
+            PersistentResourceStore store = new PersistentResourceStore(file, 1000);
+            File initialDataFile = store.getDataFile();
+            byte[][] hashes = new byte[20][];
+            for (int i = 0; i < hashes.length; i++) {
+                byte[] resource = new byte[64];
+                resource[0] = (byte) i;
+                hashes[i] = ContentAddressedResourceCache.computeContentHash(resource);
+                store.put(hashes[i], resource);
+            }
+            File compactedDataFile = store.getDataFile();
+            assertFalse(compactedDataFile.equals(initialDataFile));
+            assertFalse(initialDataFile.exists());
+            int size = store.size();
+
+            // The lock should have been held throughout, so another store should not be able to open the file...
+            try {
+                new PersistentResourceStore(file, 1000);
+                fail("Expected IllegalStateException");
+            }
+            catch (IllegalStateException expected) {
+                // Expected
+            }
+            store.close();
+
+            // Reopening should use the compacted data file...
+            store = new PersistentResourceStore(file, 1000);
+            assertEquals(compactedDataFile, store.getDataFile());
+            assertEquals(size, store.size());
+            assertNotNull(store.get(hashes[hashes.length - 1]));
+            store.close();
+        }
+        finally {
+            deleteStoreFiles(file);
+        }
+    }
+
+    @Test
+    public void testInterruptedCompaction_CurrentDataFileRetained() throws Exception {
+        File file = File.createTempFile("mobility-rpc-store", ".dat");
+        try {
+            byte[] resource = new byte[] {1, 2, 3};
+            byte[] hash = ContentAddressedResourceCache.computeContentHash(resource);
+            PersistentResourceStore store = new PersistentResourceStore(file, 1024 * 1024);
+            store.put(hash, resource);
+            File dataFile = store.getDataFile();
+            File nextDataFile = store.getDataFile(1);
+            store.close();
+
+            // Simulate a crash while writing the next generation of the data file...
+            RandomAccessFile randomAccessFile = new RandomAccessFile(nextDataFile, "rw");
+            randomAccessFile.write(new byte[10]);
+            randomAccessFile.close();
+
+            store = new PersistentResourceStore(file, 1024 * 1024);
+            assertEquals(dataFile, store.getDataFile());
+            assertArrayEquals(resource, store.get(hash));
+            assertFalse(nextDataFile.exists());
+            store.close();
+        }
+        finally {
+            deleteStoreFiles(file);
+        }
+    }
+
+    @Test
+    public void testContentAddressedResourceCacheBackedByStore() throws Exception {
+        File file = File.createTempFile("mobility-rpc-store", ".dat");
+        try {
+            byte[] resource = new byte[] {1, 2, 3};
+            ContentAddressedResourceCache cache = new ContentAddressedResourceCache(1024, new PersistentResourceStore(file, 1024 * 1024));
+            cache.put(resource);
+            cache.close();
+
+            // A new cache (e.g. after a restart) should find the resource in the store...
+            cache = new ContentAddressedResourceCache(1024, new PersistentResourceStore(file, 1024 * 1024));
+            assertFalse(cache.isEmpty());
+            assertArrayEquals(resource, cache.get(ContentAddressedResourceCache.computeContentHash(resource)));
+            assertEquals(1, cache.size());
+            cache.close();
+        }
+        finally {
+            deleteStoreFiles(file);
+        }
+    }
+
+    static void deleteStoreFiles(File file) {
+        File[] files = file.getParentFile().listFiles();
+        if (files != null) {
+            for (File candidate : files) {
+                if (candidate.getName().startsWith(file.getName() + ".")) {
+                    candidate.delete();
+                }
+            }
+        }
+        file.delete();
+    }
+}
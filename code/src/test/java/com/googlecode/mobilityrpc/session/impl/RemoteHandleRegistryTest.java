@@ -0,0 +1,89 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link RemoteHandleRegistry}.
+ */
+public class RemoteHandleRegistryTest {
+
+    @Test
+    public void testRegisterAndGet() {
+        RemoteHandleRegistry registry = new RemoteHandleRegistry();
+        UUID handleId = UUID.randomUUID();
+        registry.register(handleId, "foo", 60000);
+        assertEquals("foo", registry.get(handleId));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testRelease() {
+        RemoteHandleRegistry registry = new RemoteHandleRegistry();
+        UUID handleId = UUID.randomUUID();
+        registry.register(handleId, "foo", 60000);
+        assertTrue(registry.release(handleId));
+        assertFalse(registry.release(handleId));
+        assertEquals(0, registry.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGet_Released() {
+        RemoteHandleRegistry registry = new RemoteHandleRegistry();
+        UUID handleId = UUID.randomUUID();
+        registry.register(handleId, "foo", 60000);
+        registry.release(handleId);
+        registry.get(handleId);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGet_LeaseExpired() throws InterruptedException {
+        RemoteHandleRegistry registry = new RemoteHandleRegistry();
+        UUID handleId = UUID.randomUUID();
+        registry.register(handleId, "foo", 1);
+        Thread.sleep(20);
+        registry.get(handleId);
+    }
+
+    @Test
+    public void testLeaseExpiresWithoutAccess() throws InterruptedException {
+        RemoteHandleRegistry registry = new RemoteHandleRegistry();
+        registry.register(UUID.randomUUID(), "foo", 50);
+        assertEquals(1, registry.size());
+        // The object should be reclaimed by the timer, without the registry being accessed...
+        Thread.sleep(300);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testLeaseRenewedByAccess() throws InterruptedException {
+        RemoteHandleRegistry registry = new RemoteHandleRegistry();
+        UUID handleId = UUID.randomUUID();
+        registry.register(handleId, "foo", 200);
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(100);
+            assertEquals("foo", registry.get(handleId));
+        }
+        assertEquals(1, registry.size());
+        Thread.sleep(500);
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.controller.impl.MobilityControllerInternal;
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.network.ConnectionManager;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceRequest;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
+import com.googlecode.mobilityrpc.serialization.impl.BulkDataStore;
+import com.googlecode.mobilityrpc.serialization.impl.ClassIdTable;
+import com.googlecode.mobilityrpc.serialization.impl.FrameStringTable;
+import com.googlecode.mobilityrpc.serialization.impl.SharedKryoPool;
+import com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator;
+import com.googlecode.mobilityrpc.session.MobilitySession;
+import org.junit.Test;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Niall Gallagher
+ */
+public class SessionClassLoaderTest {
+
+    @Test
+    public void testConcurrentFetchesAreDeduplicated() throws Exception {
+        final RemoteMachineStub remoteMachine = new RemoteMachineStub();
+        final SessionClassLoader classLoader = new SessionClassLoader(remoteMachine, UUID.randomUUID(), new RequestIdGenerator());
+        remoteMachine.classLoader = classLoader;
+        remoteMachine.respond = new CountDownLatch(1);
+
+        final AtomicReference<List<ResourceResponse.ResourceData>> otherThreadResult = new AtomicReference<List<ResourceResponse.ResourceData>>();
+        final CountDownLatch otherThreadFinished = new CountDownLatch(1);
+        Thread otherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    classLoader.setThreadLocalConnectionId(new ConnectionId("127.0.0.1", 5739));
+                    otherThreadResult.set(classLoader.fetchResources(Collections.singletonList("foo.txt")));
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                finally {
+                    otherThreadFinished.countDown();
+                }
+            }
+        });
+        otherThread.start();
+        // Wait for the other thread to send its request, then fetch the same resource in this thread...
+        while (remoteMachine.requestsReceived.isEmpty()) {
+            Thread.sleep(1);
+        }
+        // Allow the response to the other thread's request to arrive shortly, while this thread is waiting for it...
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException ignore) {
+                    // Ignore
+                }
+                remoteMachine.respond.countDown();
+            }
+        }).start();
+        classLoader.setThreadLocalConnectionId(new ConnectionId("127.0.0.1", 5739));
+        List<ResourceResponse.ResourceData> result = classLoader.fetchResources(Collections.singletonList("foo.txt"));
+        otherThreadFinished.await(10, TimeUnit.SECONDS);
+
+        assertEquals(1, otherThreadResult.get().size());
+        assertArrayEquals("foo.txt".getBytes("UTF-8"), otherThreadResult.get().get(0).getResourceData());
+        // This thread should have waited for the other thread's request, instead of sending its own...
+        assertEquals(1, result.size());
+        assertArrayEquals("foo.txt".getBytes("UTF-8"), result.get(0).getResourceData());
+        assertEquals(1, remoteMachine.requestsReceived.size());
+    }
+
+    @Test
+    public void testMissingResourcesNotRequestedAgain() throws Exception {
+        RemoteMachineStub remoteMachine = new RemoteMachineStub();
+        SessionClassLoader classLoader = new SessionClassLoader(remoteMachine, UUID.randomUUID(), new RequestIdGenerator());
+        remoteMachine.classLoader = classLoader;
+        classLoader.setThreadLocalConnectionId(new ConnectionId("127.0.0.1", 5739));
+
+        assertNull(classLoader.getResource("missing.txt"));
+        assertNull(classLoader.getResource("missing.txt"));
+        assertEquals(1, remoteMachine.requestsReceived.size());
+
+        assertNotNull(classLoader.getResource("foo.txt"));
+        assertEquals(2, remoteMachine.requestsReceived.size());
+    }
+
+    @Test
+    public void testSmallResourcesReturnedInlineWithContentHashes() throws Exception {
+        RemoteMachineStub remoteMachine = new RemoteMachineStub();
+        remoteMachine.contentAddressedResourceCache = new ContentAddressedResourceCache(1024 * 1024);
+        // Some other resource is cached, so the class loader will ask for content hashes...
+        remoteMachine.contentAddressedResourceCache.put(new byte[] {1, 2, 3});
+        SessionClassLoader classLoader = new SessionClassLoader(remoteMachine, UUID.randomUUID(), new RequestIdGenerator());
+        remoteMachine.classLoader = classLoader;
+        classLoader.setThreadLocalConnectionId(new ConnectionId("127.0.0.1", 5739));
+
+        // A small resource should be fetched in a single round trip...
+        List<ResourceResponse.ResourceData> result = classLoader.fetchResources(Collections.singletonList("foo.txt"));
+        assertEquals(1, result.size());
+        assertArrayEquals("foo.txt".getBytes("UTF-8"), result.get(0).getResourceData());
+        assertEquals(1, remoteMachine.requestsReceived.size());
+
+        // A large resource not in the cache should be fetched by hash, and then by data...
+        result = classLoader.fetchResources(Collections.singletonList("large.txt"));
+        assertArrayEquals("large.txt".getBytes("UTF-8"), result.get(0).getResourceData());
+        assertEquals(3, remoteMachine.requestsReceived.size());
+
+        // Another session should find the large resource in the cache, after fetching only its hash...
+        SessionClassLoader otherClassLoader = new SessionClassLoader(remoteMachine, UUID.randomUUID(), new RequestIdGenerator());
+        remoteMachine.classLoader = otherClassLoader;
+        otherClassLoader.setThreadLocalConnectionId(new ConnectionId("127.0.0.1", 5739));
+        result = otherClassLoader.fetchResources(Collections.singletonList("large.txt"));
+        assertArrayEquals("large.txt".getBytes("UTF-8"), result.get(0).getResourceData());
+        assertEquals(4, remoteMachine.requestsReceived.size());
+    }
+
+    /**
+     * Answers resource requests from the class loader, returning the name of each resource as its content, except
+     * for resources whose names start with "missing". When content hashes are requested, returns the data of
+     * resources inline along with their hashes, except for resources whose names start with "large".
+     */
+    static class RemoteMachineStub implements MobilityControllerInternal {
+        final List<ResourceRequest> requestsReceived = new CopyOnWriteArrayList<ResourceRequest>();
+        volatile ContentAddressedResourceCache contentAddressedResourceCache = new ContentAddressedResourceCache(0);
+        volatile SessionClassLoader classLoader;
+        volatile CountDownLatch respond = new CountDownLatch(0);
+
+        @Override
+        public void sendOutgoingMessage(ConnectionId connectionId, Object message) {
+            final ResourceRequest resourceRequest = (ResourceRequest) message;
+            requestsReceived.add(resourceRequest);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond.await();
+                        List<ResourceResponse.ResourceData> resourceData = new ArrayList<ResourceResponse.ResourceData>();
+                        for (String resourceName : resourceRequest.getResourceNames()) {
+                            byte[] data = resourceName.getBytes("UTF-8");
+                            if (resourceName.startsWith("missing")) {
+                                continue;
+                            }
+                            if (!resourceRequest.isContentHashesOnly()) {
+                                resourceData.add(new ResourceResponse.ResourceData(resourceName, data));
+                            }
+                            else if (resourceName.startsWith("large")) {
+                                resourceData.add(new ResourceResponse.ResourceData(resourceName, new byte[0], ContentAddressedResourceCache.computeContentHash(data)));
+                            }
+                            else {
+                                resourceData.add(new ResourceResponse.ResourceData(resourceName, data, ContentAddressedResourceCache.computeContentHash(data)));
+                            }
+                        }
+                        classLoader.processResourceResponse(new ResourceResponse(resourceData, resourceRequest.getRequestIdentifier()));
+                    }
+                    catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }).start();
+        }
+
+        @Override
+        public ContentAddressedResourceCache getContentAddressedResourceCache() {
+            return contentAddressedResourceCache;
+        }
+
+        @Override
+        public SharedClassLoaderRegistry getSharedClassLoaderRegistry() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MemoizedResponseCache getMemoizedResponseCache() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public BytecodePushTracker getBytecodePushTracker() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ClassIdTable getClassIdTable(ConnectionId connectionId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FrameStringTable getFrameStringTable(ConnectionId connectionId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UnsafeFormatNegotiator getUnsafeFormatNegotiator() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SharedKryoPool getSharedKryoPool() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public BulkDataStore getBulkDataStore() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MobilitySessionInternal getMessageHandlingSession(UUID sessionId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void receiveIncomingMessage(ConnectionId connectionId, byte[] serializedMessage) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void receiveIncomingBulkData(ConnectionId connectionId, long bulkDataId, long length, ReadableByteChannel source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MobilitySession getSession(UUID sessionId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MobilitySession newSession() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void releaseSession(UUID sessionId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
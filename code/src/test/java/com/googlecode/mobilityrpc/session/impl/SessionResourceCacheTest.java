@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Niall Gallagher
+ */
+public class SessionResourceCacheTest {
+
+    @Test
+    public void testEvictionBySize() {
+        SessionResourceCache cache = new SessionResourceCache(10, new ContentAddressedResourceCache(0));
+        byte[] first = new byte[] {1, 1, 1, 1};
+        cache.putIfAbsent("first", first);
+        cache.putIfAbsent("second", new byte[] {2, 2, 2, 2});
+        // Access the first resource, so the second becomes least recently used...
+        assertSame(first, cache.get("first"));
+        cache.putIfAbsent("third", new byte[] {3, 3, 3, 3});
+
+        assertEquals(2, cache.size());
+        assertEquals(8L, cache.getTotalBytes());
+        assertNull(cache.get("second"));
+        assertFalse(cache.contains("second"));
+        assertEquals(1L, cache.getEvictionCount());
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void testUndefinedClassesPinned() {
+        SessionResourceCache cache = new SessionResourceCache(10, new ContentAddressedResourceCache(0));
+        byte[] pushed = new byte[] {1, 1, 1, 1};
+        cache.putIfAbsent("Pushed.class", pushed);
+        cache.putIfAbsent("Prefetched.class", new byte[] {2, 2, 2, 2});
+        cache.putIfAbsent("resource", new byte[] {3, 3, 3, 3});
+
+        // The non-class resource is evicted, but the classes not yet defined must not be...
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getPinnedCount());
+        assertFalse(cache.contains("resource"));
+        cache.putIfAbsent("Another.class", new byte[] {4, 4, 4, 4});
+        assertEquals(3, cache.size());
+        assertEquals(12L, cache.getTotalBytes());
+
+        // Once defined, the class becomes evictable...
+        cache.releaseDefinedClass("Pushed.class");
+        assertEquals(2, cache.getPinnedCount());
+        assertEquals(2, cache.size());
+        assertFalse(cache.contains("Pushed.class"));
+        assertTrue(cache.contains("Prefetched.class"));
+        assertTrue(cache.contains("Another.class"));
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        SessionResourceCache cache = new SessionResourceCache(10, new ContentAddressedResourceCache(0));
+        byte[] original = new byte[] {1};
+        cache.putIfAbsent("resource", original);
+        cache.putIfAbsent("resource", new byte[] {2});
+        assertSame(original, cache.get("resource"));
+        assertEquals(1L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testReleaseDefinedClass() {
+        ContentAddressedResourceCache contentCache = new ContentAddressedResourceCache(1000);
+        SessionResourceCache cache = new SessionResourceCache(1000, contentCache);
+        byte[] bytecode = new byte[] {1, 2, 3};
+        cache.putIfAbsent("Foo.class", bytecode);
+
+        // Not in the content-addressed cache, so must be kept in memory...
+        cache.releaseDefinedClass("Foo.class");
+        assertEquals(1, cache.size());
+
+        contentCache.put(bytecode);
+        cache.releaseDefinedClass("Foo.class");
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.getTotalBytes());
+        assertEquals(1, cache.getReleasedCount());
+        assertTrue(cache.contains("Foo.class"));
+        assertSame(bytecode, cache.get("Foo.class"));
+
+        // Once the content-addressed cache no longer has it, it is gone...
+        contentCache.clear();
+        assertNull(cache.get("Foo.class"));
+        assertFalse(cache.contains("Foo.class"));
+    }
+
+    @Test
+    public void testEvictedResourceRetainedByContentHash() {
+        ContentAddressedResourceCache contentCache = new ContentAddressedResourceCache(1000);
+        SessionResourceCache cache = new SessionResourceCache(4, contentCache);
+        byte[] first = new byte[] {1, 1, 1, 1};
+        contentCache.put(first);
+        cache.putIfAbsent("first.txt", first);
+        cache.putIfAbsent("second.txt", new byte[] {2, 2, 2, 2});
+        assertEquals(1, cache.size());
+        assertSame(first, cache.get("first.txt"));
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.network.ConnectionId;
+import com.googlecode.mobilityrpc.protocol.pojo.ResourceResponse;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Niall Gallagher
+ */
+public class SharedClassLoaderRegistryTest {
+
+    static final List<ResourceResponse.ResourceData> NO_RESOURCES = Collections.emptyList();
+
+    @Test
+    public void testAcquireAndRelease() {
+        SharedClassLoaderRegistry registry = new SharedClassLoaderRegistry(new SessionClassLoaderTest.RemoteMachineStub(), true);
+        byte[] codebase1 = SharedClassLoaderRegistry.computeCodebaseFingerprint("build-1");
+        byte[] codebase2 = SharedClassLoaderRegistry.computeCodebaseFingerprint("build-2");
+
+        SessionClassLoader first = registry.acquire(codebase1, NO_RESOURCES);
+        assertNotNull(first);
+        assertSame(first, registry.acquire(SharedClassLoaderRegistry.computeCodebaseFingerprint("build-1"), NO_RESOURCES));
+        // Different codebases must not share classes...
+        assertNotSame(first, registry.acquire(codebase2, NO_RESOURCES));
+        assertEquals(2, registry.size());
+
+        registry.release(codebase1);
+        assertEquals(2, registry.size());
+        registry.release(codebase1);
+        assertEquals(1, registry.size());
+        // Once released by all sessions, a new class loader is created...
+        assertNotSame(first, registry.acquire(codebase1, NO_RESOURCES));
+    }
+
+    @Test
+    public void testAcquire_InconsistentBytecode() {
+        SharedClassLoaderRegistry registry = new SharedClassLoaderRegistry(new SessionClassLoaderTest.RemoteMachineStub(), true);
+        byte[] codebase = SharedClassLoaderRegistry.computeCodebaseFingerprint("build-1");
+        SessionClassLoader classLoader = registry.acquire(codebase, NO_RESOURCES);
+        classLoader.addPushedResources(Arrays.asList(new ResourceResponse.ResourceData("com/foo/Bar.class", new byte[] {1, 2, 3})));
+
+        assertSame(classLoader, registry.acquire(codebase, Arrays.asList(new ResourceResponse.ResourceData("com/foo/Bar.class", new byte[] {1, 2, 3}))));
+        assertNull(registry.acquire(codebase, Arrays.asList(new ResourceResponse.ResourceData("com/foo/Bar.class", new byte[] {4, 5, 6}))));
+    }
+
+    @Test
+    public void testVerifyReceivedResources() throws Exception {
+        SessionClassLoaderTest.RemoteMachineStub remoteMachine = new SessionClassLoaderTest.RemoteMachineStub();
+        SharedClassLoaderRegistry registry = new SharedClassLoaderRegistry(remoteMachine, true);
+        byte[] codebase = SharedClassLoaderRegistry.computeCodebaseFingerprint("build-1");
+        SessionClassLoader classLoader = registry.acquire(codebase, NO_RESOURCES);
+        remoteMachine.classLoader = classLoader;
+        UUID firstSessionId = UUID.randomUUID();
+        UUID secondSessionId = UUID.randomUUID();
+        ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+
+        // The stub supplies the bytes of the name of a resource as its content...
+        classLoader.setThreadLocalConnectionId(connectionId, firstSessionId);
+        classLoader.addPushedResources(Arrays.asList(new ResourceResponse.ResourceData("com/foo/Bar.class", "com/foo/Bar.class".getBytes("UTF-8"))));
+
+        // Resources received via the same session need not be verified with its client...
+        assertEquals(1, registry.verifyReceivedResources(classLoader, firstSessionId, 0));
+        assertEquals(0, remoteMachine.requestsReceived.size());
+
+        // Resources received via another session are verified by content hash...
+        classLoader.setThreadLocalConnectionId(connectionId, secondSessionId);
+        assertEquals(1, registry.verifyReceivedResources(classLoader, secondSessionId, 0));
+        assertEquals(1, remoteMachine.requestsReceived.size());
+        assertTrue(remoteMachine.requestsReceived.get(0).isContentHashesOnly());
+        assertEquals(1, registry.verifyReceivedResources(classLoader, secondSessionId, 1));
+        assertEquals(1, remoteMachine.requestsReceived.size());
+
+        // A class which differs from that of the client, or which the client does not have, fails verification...
+        classLoader.setThreadLocalConnectionId(connectionId, firstSessionId);
+        classLoader.addPushedResources(Arrays.asList(new ResourceResponse.ResourceData("com/foo/Baz.class", new byte[] {1, 2, 3})));
+        classLoader.setThreadLocalConnectionId(connectionId, secondSessionId);
+        assertEquals(-1, registry.verifyReceivedResources(classLoader, secondSessionId, 1));
+        classLoader.setThreadLocalConnectionId(connectionId, firstSessionId);
+        classLoader.addPushedResources(Arrays.asList(new ResourceResponse.ResourceData("missing/Foo.class", new byte[] {1, 2, 3})));
+        classLoader.setThreadLocalConnectionId(connectionId, secondSessionId);
+        assertEquals(-1, registry.verifyReceivedResources(classLoader, secondSessionId, 2));
+        classLoader.setThreadLocalConnectionId(null, null);
+
+        // The bytecode pushed with each request is compared too...
+        assertTrue(registry.isConsistentWithPushedResources(classLoader, Arrays.asList(new ResourceResponse.ResourceData("com/foo/Baz.class", new byte[] {1, 2, 3}))));
+        assertFalse(registry.isConsistentWithPushedResources(classLoader, Arrays.asList(new ResourceResponse.ResourceData("com/foo/Baz.class", new byte[] {4, 5, 6}))));
+    }
+
+    @Test
+    public void testVerifyReceivedResources_ReceivedConcurrentlyViaAnotherSession() throws Exception {
+        SessionClassLoaderTest.RemoteMachineStub remoteMachine = new SessionClassLoaderTest.RemoteMachineStub();
+        SharedClassLoaderRegistry registry = new SharedClassLoaderRegistry(remoteMachine, true);
+        final SessionClassLoader classLoader = registry.acquire(SharedClassLoaderRegistry.computeCodebaseFingerprint("build-1"), NO_RESOURCES);
+        remoteMachine.classLoader = classLoader;
+        final UUID firstSessionId = UUID.randomUUID();
+        UUID secondSessionId = UUID.randomUUID();
+        final ConnectionId connectionId = new ConnectionId("127.0.0.1", 5739);
+
+        // The second session starts processing a request, having verified everything received so far...
+        classLoader.setThreadLocalConnectionId(connectionId, secondSessionId);
+        assertEquals(0, registry.verifyReceivedResources(classLoader, secondSessionId, 0));
+
+        // Meanwhile, a request from the client of the first session, which runs a different build, pushes a class...
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                classLoader.setThreadLocalConnectionId(connectionId, firstSessionId);
+                classLoader.addPushedResources(Arrays.asList(new ResourceResponse.ResourceData("com/foo/Bar.class", new byte[] {1, 2, 3})));
+                classLoader.setThreadLocalConnectionId(null, null);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // The second session must not be served that class, without it being verified with its own client...
+        try {
+            classLoader.loadClass("com.foo.Bar");
+            fail("Expected ClassNotFoundException");
+        }
+        catch (ClassNotFoundException expected) {
+            assertTrue(expected.getCause().getMessage().startsWith("The bytecode which this shared class loader received via another session differs"));
+        }
+        assertEquals(1, remoteMachine.requestsReceived.size());
+        assertTrue(remoteMachine.requestsReceived.get(0).isContentHashesOnly());
+        // ...and should detach from the shared class loader before its next request...
+        assertEquals(-1, registry.verifyReceivedResources(classLoader, secondSessionId, 0));
+        classLoader.setThreadLocalConnectionId(null, null);
+    }
+
+    @Test
+    public void testAcquire_SharingDisabled() {
+        SharedClassLoaderRegistry registry = new SharedClassLoaderRegistry(new SessionClassLoaderTest.RemoteMachineStub(), false);
+        assertNull(registry.acquire(SharedClassLoaderRegistry.computeCodebaseFingerprint("build-1"), NO_RESOURCES));
+        assertNull(SharedClassLoaderRegistry.computeCodebaseFingerprint(null));
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionMode;
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionResponse;
+import com.googlecode.mobilityrpc.protocol.pojo.RequestIdentifier;
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamCredit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests streaming of large objects returned by {@link Callable} objects executed in
+ * {@link ExecutionMode#RETURN_RESPONSE} mode, between two sessions connected by a {@link LoopbackMobilityController}.
+ *
+ * @author Niall Gallagher
+ */
+public class StreamedResultTest {
+
+    static final int CHUNK_SIZE = MobilitySessionImpl.STREAMED_RESULT_CHUNK_SIZE;
+
+    static volatile CountDownLatch producerReleased;
+
+    LoopbackMobilityController client;
+    LoopbackMobilityController server;
+    MobilitySessionImpl clientSession;
+
+    @Before
+    public void setUp() {
+        LoopbackMobilityController[] controllers = LoopbackMobilityController.newPair();
+        client = controllers[0];
+        server = controllers[1];
+        clientSession = (MobilitySessionImpl) client.newSession();
+        producerReleased = new CountDownLatch(0);
+    }
+
+    @After
+    public void tearDown() {
+        producerReleased.countDown();
+        client.destroy();
+        server.destroy();
+    }
+
+    @Test
+    public void testStreamedOnlyAboveChunkSize() throws Exception {
+        byte[] small = clientSession.execute(LoopbackMobilityController.CONNECTION_ID, new ByteArrayCallable(CHUNK_SIZE - 1024));
+        assertArrayEquals(createData(CHUNK_SIZE - 1024), small);
+        // The object fits in a single chunk, so should be returned in the response itself...
+        assertEquals(1, server.countMessagesSent(ExecutionResponse.class));
+        assertFalse(getResponsesSent().get(0).isStreamed());
+        assertEquals(0, server.countMessagesSent(StreamChunk.class));
+        assertTrue(clientSession.streamedResults.isEmpty());
+        assertTrue(clientSession.earlyStreamedChunks.isEmpty());
+
+        byte[] large = clientSession.execute(LoopbackMobilityController.CONNECTION_ID, new ByteArrayCallable(CHUNK_SIZE * 3));
+        assertArrayEquals(createData(CHUNK_SIZE * 3), large);
+        assertEquals(2, server.countMessagesSent(ExecutionResponse.class));
+        ExecutionResponse streamedResponse = getResponsesSent().get(1);
+        assertTrue(streamedResponse.isStreamed());
+        assertEquals(0, streamedResponse.getSerializedReturnObject().length);
+        // Three full chunks plus the overhead of serialization, followed by the end of the stream...
+        assertEquals(4, countChunksSent(StreamChunk.ChunkType.BYTES));
+        assertEquals(1, countChunksSent(StreamChunk.ChunkType.END_OF_STREAM));
+        assertEquals(4, client.countMessagesSent(StreamCredit.class));
+        assertTrue(clientSession.streamedResults.isEmpty());
+        assertTrue(awaitOutgoingStreamsFinished());
+    }
+
+    @Test
+    public void testChunkSizeRequestedByClientIsCapped() {
+        MobilitySessionImpl.StreamedResultOutputStream outputStream = getServerSession().new StreamedResultOutputStream(
+                LoopbackMobilityController.CONNECTION_ID,
+                new RequestIdentifier(clientSession.getSessionId(), UUID.randomUUID(), null),
+                SerializationFormat.KRYO,
+                Integer.MAX_VALUE
+        );
+        // A small object should only cost a small buffer...
+        outputStream.write(new byte[10], 0, 10);
+        assertEquals(MobilitySessionImpl.STREAMED_RESULT_INITIAL_BUFFER_SIZE, outputStream.getBufferCapacity());
+        // ...and the buffer should not grow beyond the maximum chunk size, whatever the client requested...
+        byte[] data = createData(MobilitySessionImpl.MAX_STREAMED_RESULT_CHUNK_SIZE - 10);
+        outputStream.write(data, 0, data.length);
+        assertEquals(MobilitySessionImpl.MAX_STREAMED_RESULT_CHUNK_SIZE, outputStream.getBufferCapacity());
+        assertFalse(outputStream.isStreaming());
+        assertEquals(MobilitySessionImpl.MAX_STREAMED_RESULT_CHUNK_SIZE, outputStream.toByteArray().length);
+    }
+
+    @Test
+    public void testCredits() throws Exception {
+        // Hold back the credits which the client grants, until the server has used its initial allowance...
+        final List<Object> heldCredits = new ArrayList<Object>();
+        client.interceptor = new LoopbackMobilityController.MessageInterceptor() {
+            @Override
+            public boolean intercept(Object message) {
+                synchronized (heldCredits) {
+                    return message instanceof StreamCredit && client.interceptor != null && heldCredits.add(message);
+                }
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> result = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return clientSession.execute(LoopbackMobilityController.CONNECTION_ID, new ByteArrayCallable(CHUNK_SIZE * 8));
+                }
+            });
+            Thread.sleep(500);
+            assertEquals(StreamingResponseTest.INITIAL_CREDITS, countChunksSent(StreamChunk.ChunkType.BYTES));
+            assertFalse(result.isDone());
+
+            synchronized (heldCredits) {
+                client.interceptor = null;
+                for (Object heldCredit : heldCredits) {
+                    client.deliver(heldCredit);
+                }
+            }
+            assertArrayEquals(createData(CHUNK_SIZE * 8), result.get(10, TimeUnit.SECONDS));
+            assertEquals(9, countChunksSent(StreamChunk.ChunkType.BYTES));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testChunksArrivingBeforeResponseAreBuffered() throws Exception {
+        // Hold back the response which tells the client the object is streamed, until chunks have arrived...
+        final List<Object> heldResponses = new ArrayList<Object>();
+        server.interceptor = new LoopbackMobilityController.MessageInterceptor() {
+            @Override
+            public boolean intercept(Object message) {
+                synchronized (heldResponses) {
+                    return message instanceof ExecutionResponse && server.interceptor != null && heldResponses.add(message);
+                }
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> result = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return clientSession.execute(LoopbackMobilityController.CONNECTION_ID, new ByteArrayCallable(CHUNK_SIZE * 3));
+                }
+            });
+            Thread.sleep(500);
+            assertEquals(StreamingResponseTest.INITIAL_CREDITS, countChunksSent(StreamChunk.ChunkType.BYTES));
+            // No stream is registered until the response arrives, so the chunks should have been buffered...
+            assertTrue(clientSession.streamedResults.isEmpty());
+            synchronized (clientSession.earlyStreamedChunks) {
+                assertEquals(1, clientSession.earlyStreamedChunks.size());
+            }
+
+            synchronized (heldResponses) {
+                server.interceptor = null;
+                for (Object heldResponse : heldResponses) {
+                    server.deliver(heldResponse);
+                }
+            }
+            assertArrayEquals(createData(CHUNK_SIZE * 3), result.get(10, TimeUnit.SECONDS));
+            assertTrue(clientSession.streamedResults.isEmpty());
+            synchronized (clientSession.earlyStreamedChunks) {
+                assertTrue(clientSession.earlyStreamedChunks.isEmpty());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureChunkReplacesPartialResult() throws Exception {
+        try {
+            clientSession.execute(LoopbackMobilityController.CONNECTION_ID, new PoisonedResultCallable(CHUNK_SIZE * 2));
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().startsWith("An exception was thrown while streaming the object returned by the Callable object on the remote machine"));
+            assertTrue(hasCauseWithMessage(expected, Poison.MESSAGE));
+        }
+        // The server streamed part of the object before serialization failed, and then the failure instead of the rest...
+        assertTrue(countChunksSent(StreamChunk.ChunkType.BYTES) >= 1);
+        assertEquals(1, countChunksSent(StreamChunk.ChunkType.FAILURE));
+        assertEquals(0, countChunksSent(StreamChunk.ChunkType.END_OF_STREAM));
+        assertTrue(clientSession.streamedResults.isEmpty());
+        assertTrue(awaitOutgoingStreamsFinished());
+    }
+
+    @Test
+    public void testCancelAfterClientTimeout() throws Exception {
+        producerReleased = new CountDownLatch(1);
+        try {
+            clientSession.execute(LoopbackMobilityController.CONNECTION_ID, ExecutionMode.RETURN_RESPONSE, 200, new SlowByteArrayCallable(CHUNK_SIZE * 8));
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().startsWith("Failed to receive response for execution request"));
+        }
+        assertTrue(clientSession.streamedResults.isEmpty());
+        // The client should have cancelled the stream when it gave up on the response...
+        assertEquals(1, client.countMessagesSent(StreamCredit.class));
+        Thread.sleep(100);
+        assertEquals(1, getServerSession().outgoingStreams.size());
+
+        // ...so the server should not stream the object when it is returned...
+        producerReleased.countDown();
+        assertTrue(awaitOutgoingStreamsFinished());
+        Thread.sleep(100);
+        assertEquals(0, countChunksSent(StreamChunk.ChunkType.BYTES));
+    }
+
+    List<ExecutionResponse> getResponsesSent() {
+        List<ExecutionResponse> responses = new ArrayList<ExecutionResponse>();
+        for (Object message : server.messagesSent) {
+            if (message instanceof ExecutionResponse) {
+                responses.add((ExecutionResponse) message);
+            }
+        }
+        return responses;
+    }
+
+    int countChunksSent(StreamChunk.ChunkType chunkType) {
+        int count = 0;
+        for (Object message : server.messagesSent) {
+            if (message instanceof StreamChunk && ((StreamChunk) message).getChunkType() == chunkType) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    MobilitySessionImpl getServerSession() {
+        return (MobilitySessionImpl) server.getMessageHandlingSession(clientSession.getSessionId());
+    }
+
+    boolean awaitOutgoingStreamsFinished() throws InterruptedException {
+        MobilitySessionImpl serverSession = getServerSession();
+        for (int i = 0; i < 500; i++) {
+            if (serverSession.outgoingStreams.isEmpty()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    static boolean hasCauseWithMessage(Throwable throwable, String message) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    /**
+     * Returns a byte array of the given length.
+     */
+    static class ByteArrayCallable implements Callable<byte[]> {
+        final int length;
+
+        ByteArrayCallable(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public byte[] call() {
+            return createData(length);
+        }
+    }
+
+    /**
+     * Returns a byte array of the given length, after the test releases it.
+     */
+    static class SlowByteArrayCallable extends ByteArrayCallable {
+
+        SlowByteArrayCallable(int length) {
+            super(length);
+        }
+
+        @Override
+        public byte[] call() {
+            try {
+                producerReleased.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return super.call();
+        }
+    }
+
+    /**
+     * Returns a list containing a byte array of the given length, followed by an object which cannot be serialized.
+     */
+    static class PoisonedResultCallable implements Callable<List<Object>> {
+        final int length;
+
+        PoisonedResultCallable(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public List<Object> call() {
+            return new ArrayList<Object>(Arrays.asList(createData(length), new Poison()));
+        }
+    }
+
+    static class Poison implements KryoSerializable {
+        static final String MESSAGE = "Poison cannot be serialized";
+
+        @Override
+        public void write(Kryo kryo, Output output) {
+            throw new IllegalStateException(MESSAGE);
+        }
+
+        @Override
+        public void read(Kryo kryo, Input input) {
+            throw new IllegalStateException(MESSAGE);
+        }
+    }
+}
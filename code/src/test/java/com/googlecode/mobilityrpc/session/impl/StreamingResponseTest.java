@@ -0,0 +1,256 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.ExecutionRequest;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamChunk;
+import com.googlecode.mobilityrpc.protocol.pojo.StreamCredit;
+import com.googlecode.mobilityrpc.session.RemoteIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests streaming of results from {@link Callable} objects executed in
+ * {@link com.googlecode.mobilityrpc.protocol.pojo.ExecutionMode#STREAM_RESPONSE} mode, between two sessions connected
+ * by a {@link LoopbackMobilityController}.
+ */
+public class StreamingResponseTest {
+
+    static final int CHUNK_SIZE = 256;
+    static final int INITIAL_CREDITS = 4;
+
+    static final AtomicInteger elementsProduced = new AtomicInteger();
+    static volatile CountDownLatch producerReleased;
+
+    LoopbackMobilityController client;
+    LoopbackMobilityController server;
+    MobilitySessionImpl clientSession;
+
+    @Before
+    public void setUp() {
+        LoopbackMobilityController[] controllers = LoopbackMobilityController.newPair();
+        client = controllers[0];
+        server = controllers[1];
+        clientSession = (MobilitySessionImpl) client.newSession();
+        elementsProduced.set(0);
+        producerReleased = new CountDownLatch(0);
+    }
+
+    @After
+    public void tearDown() {
+        producerReleased.countDown();
+        client.destroy();
+        server.destroy();
+    }
+
+    @Test
+    public void testCreditFlow() throws Exception {
+        RemoteIterator<Integer> iterator = clientSession.executeStreaming(LoopbackMobilityController.CONNECTION_ID, 10000, new CountingCallable(CHUNK_SIZE * 20));
+        assertEquals(Integer.valueOf(0), iterator.next());
+        // The server may send its initial allowance of chunks, plus one more for the chunk the client has taken...
+        Thread.sleep(200);
+        assertEquals(CHUNK_SIZE * (INITIAL_CREDITS + 1), elementsProduced.get());
+        assertEquals(INITIAL_CREDITS + 1, server.countMessagesSent(StreamChunk.class));
+
+        for (int i = 1; i < CHUNK_SIZE * 20; i++) {
+            assertEquals(Integer.valueOf(i), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+        // Twenty chunks of elements, followed by the end of the stream...
+        assertEquals(21, server.countMessagesSent(StreamChunk.class));
+        assertEquals(20, client.countMessagesSent(StreamCredit.class));
+        assertTrue(clientSession.streamingResponses.isEmpty());
+        assertTrue(awaitOutgoingStreamsFinished());
+    }
+
+    @Test
+    public void testChunksReordered() {
+        // Hold back the initial allowance of chunks, and deliver them in reverse order...
+        final List<Object> heldChunks = new ArrayList<Object>();
+        server.interceptor = new LoopbackMobilityController.MessageInterceptor() {
+            @Override
+            public synchronized boolean intercept(Object message) {
+                if (!(message instanceof StreamChunk) || server.interceptor == null) {
+                    return false;
+                }
+                heldChunks.add(message);
+                if (heldChunks.size() == INITIAL_CREDITS) {
+                    server.interceptor = null;
+                    Collections.reverse(heldChunks);
+                    for (Object heldChunk : heldChunks) {
+                        server.deliver(heldChunk);
+                    }
+                }
+                return true;
+            }
+        };
+        RemoteIterator<Integer> iterator = clientSession.executeStreaming(LoopbackMobilityController.CONNECTION_ID, 10000, new CountingCallable(CHUNK_SIZE * 6));
+        for (int i = 0; i < CHUNK_SIZE * 6; i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(Integer.valueOf(i), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        RemoteIterator<Integer> iterator = clientSession.executeStreaming(LoopbackMobilityController.CONNECTION_ID, 10000, new CountingCallable(CHUNK_SIZE * 20));
+        assertEquals(Integer.valueOf(0), iterator.next());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        assertTrue(clientSession.streamingResponses.isEmpty());
+
+        // The server should stop producing elements, instead of waiting for credits...
+        assertTrue(awaitOutgoingStreamsFinished());
+        assertTrue(elementsProduced.get() <= CHUNK_SIZE * (INITIAL_CREDITS + 1));
+    }
+
+    @Test
+    public void testCancel_BeforeServerStartsStreaming() throws Exception {
+        // Hold back the request, such that the cancel arrives at the server first...
+        final AtomicReference<Object> heldRequest = new AtomicReference<Object>();
+        client.interceptor = new LoopbackMobilityController.MessageInterceptor() {
+            @Override
+            public boolean intercept(Object message) {
+                return message instanceof ExecutionRequest && heldRequest.compareAndSet(null, message);
+            }
+        };
+        RemoteIterator<Integer> iterator = clientSession.executeStreaming(LoopbackMobilityController.CONNECTION_ID, 10000, new CountingCallable(CHUNK_SIZE * 20));
+        iterator.close();
+        Thread.sleep(100);
+        assertEquals(1, getServerSession().outgoingStreams.size());
+
+        client.deliver(heldRequest.get());
+        assertTrue(awaitOutgoingStreamsFinished());
+        assertEquals(0, elementsProduced.get());
+        assertEquals(0, server.countMessagesSent(StreamChunk.class));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        producerReleased = new CountDownLatch(1);
+        RemoteIterator<Integer> iterator = clientSession.executeStreaming(LoopbackMobilityController.CONNECTION_ID, 200, new SlowCallable());
+        try {
+            iterator.hasNext();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().startsWith("Timed out waiting to receive stream chunk 0"));
+        }
+        assertTrue(clientSession.streamingResponses.isEmpty());
+        assertEquals(1, client.countMessagesSent(StreamCredit.class));
+
+        // The client cancelled the stream when it timed out, so the server should not send elements when it resumes...
+        producerReleased.countDown();
+        assertTrue(awaitOutgoingStreamsFinished());
+        assertEquals(0, server.countMessagesSent(StreamChunk.class));
+    }
+
+    @Test
+    public void testAbandonedIteratorReclaimed() throws Exception {
+        RemoteIterator<Integer> iterator = clientSession.executeStreaming(LoopbackMobilityController.CONNECTION_ID, 10000, new CountingCallable(CHUNK_SIZE * 20));
+        assertTrue(iterator.hasNext());
+        Thread.sleep(100);
+        assertEquals(1, clientSession.streamingResponses.size());
+        MobilitySessionImpl.StreamingResponseReference reference = clientSession.streamingResponses.values().iterator().next();
+
+        // Discard the iterator without closing it...
+        //noinspection UnusedAssignment
+        iterator = null;
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        clientSession.reclaimAbandonedStreamingResponses();
+        assertTrue(clientSession.streamingResponses.isEmpty());
+        assertTrue(awaitOutgoingStreamsFinished());
+    }
+
+    MobilitySessionImpl getServerSession() {
+        return (MobilitySessionImpl) server.getMessageHandlingSession(clientSession.getSessionId());
+    }
+
+    boolean awaitOutgoingStreamsFinished() throws InterruptedException {
+        MobilitySessionImpl serverSession = getServerSession();
+        for (int i = 0; i < 500; i++) {
+            if (serverSession.outgoingStreams.isEmpty()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Returns an iterator of consecutive integers, counting the elements produced.
+     */
+    static class CountingCallable implements Callable<Iterator<Integer>> {
+        final int numElements;
+
+        CountingCallable(int numElements) {
+            this.numElements = numElements;
+        }
+
+        @Override
+        public Iterator<Integer> call() {
+            return new Iterator<Integer>() {
+                int nextElement = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return nextElement < numElements;
+                }
+
+                @Override
+                public Integer next() {
+                    elementsProduced.incrementAndGet();
+                    return nextElement++;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns an iterator which does not produce any elements until the test releases it.
+     */
+    static class SlowCallable implements Callable<Iterator<Integer>> {
+
+        @Override
+        public Iterator<Integer> call() throws Exception {
+            producerReleased.await(10, TimeUnit.SECONDS);
+            return new CountingCallable(CHUNK_SIZE).call();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2011, 2012 Niall Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.mobilityrpc.session.impl;
+
+import com.googlecode.mobilityrpc.protocol.pojo.SerializationFormat;
+import com.googlecode.mobilityrpc.serialization.impl.UnsafeFormatNegotiator;
+import com.googlecode.mobilityrpc.session.UnsafeSerializable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.googlecode.mobilityrpc.session.impl.LoopbackMobilityController.CONNECTION_ID;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the selection of the {@link SerializationFormat#KRYO_UNSAFE} serialization format by a session, depending on
+ * the byte order advertised by the remote machine.
+ *
+ * @author Niall Gallagher
+ */
+public class UnsafeSerializationTest {
+
+    LoopbackMobilityController client;
+    LoopbackMobilityController server;
+    MobilitySessionImpl clientSession;
+
+    @Before
+    public void setUp() {
+        LoopbackMobilityController[] controllers = LoopbackMobilityController.newPair();
+        client = controllers[0];
+        server = controllers[1];
+        clientSession = (MobilitySessionImpl) client.newSession();
+    }
+
+    @After
+    public void tearDown() {
+        client.destroy();
+        server.destroy();
+    }
+
+    @Test
+    public void testSelectSerializationFormat_RemoteSupportsFormat() {
+        client.getUnsafeFormatNegotiator().recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        SerializationFormat expected = UnsafeFormatNegotiator.UNSAFE_FORMAT_SUPPORTED ? SerializationFormat.KRYO_UNSAFE : SerializationFormat.KRYO;
+        assertEquals(expected, clientSession.selectSerializationFormat(CONNECTION_ID, new UnsafeTask()));
+        // The format is only used for objects or sessions which requested it...
+        assertEquals(SerializationFormat.KRYO, clientSession.selectSerializationFormat(CONNECTION_ID, new RegularTask()));
+        clientSession.setUnsafeSerializationEnabled(true);
+        assertEquals(expected, clientSession.selectSerializationFormat(CONNECTION_ID, new RegularTask()));
+    }
+
+    @Test
+    public void testSelectSerializationFormat_RemoteNotNegotiated() {
+        clientSession.setUnsafeSerializationEnabled(true);
+        assertEquals(SerializationFormat.KRYO, clientSession.selectSerializationFormat(CONNECTION_ID, new UnsafeTask()));
+    }
+
+    @Test
+    public void testSelectSerializationFormat_RemoteDoesNotAdvertiseFormat() {
+        clientSession.setUnsafeSerializationEnabled(true);
+        client.getUnsafeFormatNegotiator().recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.BYTE_ORDER_UNSUPPORTED);
+        assertEquals(SerializationFormat.KRYO, clientSession.selectSerializationFormat(CONNECTION_ID, new UnsafeTask()));
+    }
+
+    @Test
+    public void testSelectSerializationFormat_RemoteReportsDifferentByteOrder() {
+        clientSession.setUnsafeSerializationEnabled(true);
+        int foreignByteOrder = UnsafeFormatNegotiator.LOCAL_BYTE_ORDER == UnsafeFormatNegotiator.BYTE_ORDER_LITTLE_ENDIAN
+                ? UnsafeFormatNegotiator.BYTE_ORDER_BIG_ENDIAN
+                : UnsafeFormatNegotiator.BYTE_ORDER_LITTLE_ENDIAN;
+        client.getUnsafeFormatNegotiator().recordRemoteByteOrder(CONNECTION_ID, UnsafeFormatNegotiator.LOCAL_BYTE_ORDER);
+        // The remote machine was replaced by one with a different byte order...
+        client.getUnsafeFormatNegotiator().recordRemoteByteOrder(CONNECTION_ID, foreignByteOrder);
+        assertEquals(SerializationFormat.KRYO, clientSession.selectSerializationFormat(CONNECTION_ID, new UnsafeTask()));
+    }
+
+    static class RegularTask implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    static class UnsafeTask implements Runnable, UnsafeSerializable {
+        @Override
+        public void run() {
+        }
+    }
+}